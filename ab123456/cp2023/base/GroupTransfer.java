@@ -0,0 +1,21 @@
+package cp2023.base;
+
+import java.util.List;
+
+// Move of a group of components from one device to another, executed
+// as a single transfer: the memory slots for all of them are reserved
+// at once, prepare() is called once before any of them leaves the source
+// device, and perform() once after all of them enter the destination one.
+public interface GroupTransfer {
+
+    // The components of the group, each of them listed once.
+    public List<ComponentId> getComponentIds();
+
+    public DeviceId getSourceDeviceId();
+
+    public DeviceId getDestinationDeviceId();
+
+    public void prepare();
+
+    public void perform();
+}
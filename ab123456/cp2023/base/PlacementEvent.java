@@ -0,0 +1,54 @@
+package cp2023.base;
+
+// Completed transfer, as published by ExtendedStorageSystem.subscribe().
+// The source device is null for an addition, and the destination one
+// for a deletion. The slot is the memory slot the component occupies
+// in its destination device, or occupied in its source device, if it was
+// deleted.
+public final class PlacementEvent {
+
+    private final long sequence;
+    private final ComponentId componentId;
+    private final DeviceId sourceDeviceId;
+    private final DeviceId destinationDeviceId;
+    private final int slot;
+
+    public PlacementEvent(long sequence, ComponentId componentId,
+                          DeviceId sourceDeviceId,
+                          DeviceId destinationDeviceId, int slot) {
+        this.sequence = sequence;
+        this.componentId = componentId;
+        this.sourceDeviceId = sourceDeviceId;
+        this.destinationDeviceId = destinationDeviceId;
+        this.slot = slot;
+    }
+
+    // Number of the event in the feed of its system. The events are numbered
+    // consecutively, from the first one published after the subscription.
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public ComponentId getComponentId() {
+        return this.componentId;
+    }
+
+    public DeviceId getSourceDeviceId() {
+        return this.sourceDeviceId;
+    }
+
+    public DeviceId getDestinationDeviceId() {
+        return this.destinationDeviceId;
+    }
+
+    public int getSlot() {
+        return this.slot;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + this.sequence + " " + this.componentId + ": " +
+                this.sourceDeviceId + " -> " + this.destinationDeviceId +
+                " (slot " + this.slot + ")";
+    }
+}
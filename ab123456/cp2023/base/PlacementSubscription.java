@@ -0,0 +1,37 @@
+package cp2023.base;
+
+import java.util.function.Consumer;
+
+// Subscription to the placement changes of an ExtendedStorageSystem,
+// returned by its subscribe(). The events are kept in a buffer of a fixed
+// size shared by all the subscriptions, from which every subscription reads
+// them at its own pace, by polling. A subscription has to be polled by one
+// thread at a time.
+public interface PlacementSubscription extends AutoCloseable {
+
+    // What happens when the subscriber falls behind by the whole buffer.
+    enum Policy {
+        // The transfers wait, after perform(), until the subscriber reads
+        // its oldest event. They hold no locks, but their components stay
+        // busy, so the subscriber must not wait for the transfers while
+        // it is not polling.
+        BLOCK,
+        // The oldest events the subscriber has not read are overwritten,
+        // and counted by getDroppedCount().
+        DROP_OLDEST
+    }
+
+    // Passes at most maxEvents events that are already published to
+    // the handler, in the order of their sequence numbers, and returns
+    // their number. It never waits for new events.
+    int poll(Consumer<? super PlacementEvent> handler, int maxEvents);
+
+    // Returns the number of the events that were overwritten before this
+    // subscription read them.
+    long getDroppedCount();
+
+    // Cancels the subscription, so that it never holds the transfers back
+    // again.
+    @Override
+    void close();
+}
@@ -0,0 +1,20 @@
+package cp2023.base;
+
+// Result of ExtendedStorageSystem.tryExecute(). Every status other than OK
+// corresponds to the exception of the same name thrown by execute().
+public enum TransferStatus {
+    OK,
+    ILLEGAL_TRANSFER_TYPE,
+    DEVICE_DOES_NOT_EXIST,
+    COMPONENT_ALREADY_EXISTS,
+    COMPONENT_DOES_NOT_EXIST,
+    COMPONENT_DOES_NOT_NEED_TRANSFER,
+    COMPONENT_IS_BEING_OPERATED_ON,
+    // The transfer was cancelled while it was waiting for a memory slot,
+    // because its timeout passed, or because its thread was interrupted.
+    TRANSFER_TIMED_OUT,
+    TRANSFER_INTERRUPTED,
+    // The group transfer was waiting in a cycle of transfers that can't be
+    // resolved, as it could not get the memory slots of all its components.
+    UNRESOLVABLE_CYCLE
+}
@@ -0,0 +1,92 @@
+package cp2023.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.solution.StorageSystemBuilder;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures how the time of building a system from a parallel stream
+//of placements by StorageSystemBuilder scales with the parallelism of its
+//pool, and compares it with the constructor taking the placement maps,
+//which are created before the measurement. Every case is repeated, and
+//the fastest repetition is reported.
+//Usage: BuilderBenchmark [components] [devices] [repetitions]
+public final class BuilderBenchmark {
+    public static void main(String[] args) {
+        int components = args.length > 0 ? Integer.parseInt(args[0]) :
+                10_000_000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int slots = (int) ((components / devices + 1) * 4L / 3);
+
+        System.out.println("components=" + components + " devices=" + devices);
+        System.out.println("construction,parallelism,millis");
+        int processors = Runtime.getRuntime().availableProcessors();
+        for(int parallelism = 1; parallelism <= processors; parallelism *= 2){
+            System.out.println("builder," + parallelism + "," +
+                    measureBuilder(components, devices, slots, parallelism,
+                            repetitions));
+        }
+        if(Integer.bitCount(processors) != 1){
+            System.out.println("builder," + processors + "," +
+                    measureBuilder(components, devices, slots, processors,
+                            repetitions));
+        }
+        System.out.println("maps,1," +
+                measureMaps(components, devices, slots, repetitions));
+    }
+
+    private static long measureBuilder(int components, int devices, int slots,
+                                       int parallelism, int repetitions) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        long best = Long.MAX_VALUE;
+        StorageSystem system = null;
+        for(int i = 0; i < repetitions; ++i){
+            system = null;
+            System.gc();
+            long start = System.nanoTime();
+            StorageSystemBuilder builder = StorageSystemFactory.builder()
+                    .pool(pool);
+            for(int d = 0; d < devices; ++d){
+                builder.device(new DeviceId(d), slots);
+            }
+            builder.placements(IntStream.range(0, components).parallel()
+                    .mapToObj(c -> Map.entry(new ComponentId(c),
+                            new DeviceId(c % devices))));
+            system = builder.build();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        pool.shutdown();
+        return best / 1_000_000;
+    }
+
+    private static long measureMaps(int components, int devices, int slots,
+                                    int repetitions) {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        for(int d = 0; d < devices; ++d){
+            deviceTotalSlots.put(new DeviceId(d), slots);
+        }
+        HashMap<ComponentId, DeviceId> componentPlacement =
+                new HashMap<>(components * 2);
+        for(int c = 0; c < components; ++c){
+            componentPlacement.put(new ComponentId(c), new DeviceId(c % devices));
+        }
+        long best = Long.MAX_VALUE;
+        StorageSystem system = null;
+        for(int i = 0; i < repetitions; ++i){
+            system = null;
+            System.gc();
+            long start = System.nanoTime();
+            system = StorageSystemFactory.newSystem(deviceTotalSlots,
+                    componentPlacement);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1_000_000;
+    }
+}
@@ -0,0 +1,100 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures how the throughput of execute() scales with the number of threads
+//when every thread moves its own component between its own pair of devices,
+//so that no two threads ever touch the same device.
+//Usage: DisjointDevicesBenchmark [measurement millis per thread count]
+public final class DisjointDevicesBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        System.out.println("threads,transfers/s");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(THREAD_COUNTS[THREAD_COUNTS.length - 1], millis / 2);
+        for(int threads : THREAD_COUNTS){
+            System.out.println(threads + "," + measure(threads, millis));
+        }
+    }
+
+    //Runs the given number of threads for the given time and returns
+    //the number of transfers per second they managed to execute.
+    private static long measure(int threads, long millis)
+            throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        for(int i = 0; i < threads; ++i){
+            deviceCapacities.put(new DeviceId(2 * i), 1);
+            deviceCapacities.put(new DeviceId(2 * i + 1), 1);
+            initialComponentMapping.put(new ComponentId(i),
+                    new DeviceId(2 * i));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        AtomicLong transfers = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            DeviceId first = new DeviceId(2 * i);
+            DeviceId second = new DeviceId(2 * i + 1);
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                long done = 0;
+                DeviceId src = first;
+                DeviceId dest = second;
+                while(System.nanoTime() < deadline[0]){
+                    execute(system, new NoOpTransfer(comp, src, dest));
+                    DeviceId tmp = src;
+                    src = dest;
+                    dest = tmp;
+                    ++done;
+                }
+                transfers.addAndGet(done);
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        return transfers.get() * 1000 / millis;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
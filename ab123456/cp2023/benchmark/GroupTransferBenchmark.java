@@ -0,0 +1,165 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the throughput of moving groups of components, depending on
+//the size of the group, when every group is moved by a single group
+//transfer, and when its components are moved one by one. All the threads
+//move their own groups back and forth between the same two devices, which
+//have room for all of them, so no transfer waits for a memory slot, and
+//the locks of the two devices are the only contention.
+//Usage: GroupTransferBenchmark [measurement millis per point] [threads]
+public final class GroupTransferBenchmark {
+    private static final int[] GROUP_SIZES = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        System.out.println("group size,one by one components/s," +
+                "group components/s");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(threads, GROUP_SIZES[1], false, millis / 2);
+        measure(threads, GROUP_SIZES[1], true, millis / 2);
+        for(int size : GROUP_SIZES){
+            System.out.println(size + "," +
+                    measure(threads, size, false, millis) + "," +
+                    measure(threads, size, true, millis));
+        }
+    }
+
+    //Moves the groups for the given time, and returns the number
+    //of the components moved per second.
+    private static long measure(int threads, int size, boolean bAsGroup,
+                                long millis) throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        DeviceId[] devices = {new DeviceId(0), new DeviceId(1)};
+        for(DeviceId device : devices){
+            deviceCapacities.put(device, threads * size);
+        }
+        for(int i = 0; i < threads * size; ++i){
+            initialComponentMapping.put(new ComponentId(i), devices[0]);
+        }
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        AtomicLong moved = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; ++i){
+            ArrayList<ComponentId> group = new ArrayList<>();
+            for(int j = 0; j < size; ++j){
+                group.add(new ComponentId(i * size + j));
+            }
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                long done = 0;
+                int device = 0;
+                while(System.nanoTime() < deadline[0]){
+                    DeviceId src = devices[device];
+                    DeviceId dest = devices[1 - device];
+                    if(bAsGroup){
+                        execute(system, new NoOpGroupTransfer(group, src,
+                                dest));
+                    }
+                    else{
+                        for(ComponentId comp : group){
+                            execute(system, new NoOpTransfer(comp, src, dest));
+                        }
+                    }
+                    device = 1 - device;
+                    done += size;
+                }
+                moved.addAndGet(done);
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        return moved.get() * 1000 / millis;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(ExtendedStorageSystem system,
+                                NoOpTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+
+    private static void execute(ExtendedStorageSystem system,
+                                GroupTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+
+    //Group transfer with empty prepare() and perform().
+    private static final class NoOpGroupTransfer implements GroupTransfer {
+        private final List<ComponentId> compIds;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+
+        NoOpGroupTransfer(List<ComponentId> compIds, DeviceId srcDevId,
+                          DeviceId dstDevId) {
+            this.compIds = compIds;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+        }
+
+        @Override
+        public List<ComponentId> getComponentIds() {
+            return compIds;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the latency of the transfers that wait for a memory slot handed
+//over by another transfer, depending on how long prepare() takes. The single
+//-slot devices form a ring, which is full except for one device, and every
+//thread moves its component around the ring, so almost every transfer waits
+//for the slot of the component ahead of it, which frees it right after its
+//own prepare(). prepare() spins for the given time, without sleeping, so
+//the handoff itself dominates the latency for the short ones.
+//Usage: HandoffLatencyBenchmark [measurement millis per point] [devices]
+public final class HandoffLatencyBenchmark {
+    private static final long[] PREPARE_MICROS = {0, 1, 10, 50, 100};
+    //Number of the latencies recorded by every thread, the rest are only
+    //counted.
+    private static final int MAX_SAMPLES = 1 << 18;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        System.out.println("prepare us,transfers/s,p50 us,p90 us,p99 us," +
+                "p99.9 us");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation, and the spinning is tuned.
+        measure(devices, 0, millis / 2);
+        for(long prepareMicros : PREPARE_MICROS){
+            System.out.println(prepareMicros + "," +
+                    measure(devices, prepareMicros, millis));
+        }
+    }
+
+    //Runs the ring for the given time, and returns the number of transfers
+    //per second, and the percentiles of their latencies in microseconds.
+    private static String measure(int devices, long prepareMicros,
+                                  long millis) throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        for(int i = 0; i < devices; ++i){
+            deviceCapacities.put(new DeviceId(i), 1);
+            if(i + 1 < devices){
+                initialComponentMapping.put(new ComponentId(i),
+                        new DeviceId(i));
+            }
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        int threads = devices - 1;
+        long[][] samples = new long[threads][];
+        int[] samplesCount = new int[threads];
+        AtomicLong transfers = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            int thread = i;
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                long[] latencies = new long[MAX_SAMPLES];
+                int count = 0;
+                long done = 0;
+                int device = thread;
+                while(System.nanoTime() < deadline[0]){
+                    int dest = (device + 1) % devices;
+                    long begin = System.nanoTime();
+                    execute(system, new BusyTransfer(comp,
+                            new DeviceId(device), new DeviceId(dest),
+                            prepareMicros * 1000));
+                    if(count < MAX_SAMPLES){
+                        latencies[count++] = System.nanoTime() - begin;
+                    }
+                    device = dest;
+                    ++done;
+                }
+                //The others may be waiting for our slot, and we will not
+                //move anymore.
+                execute(system, new NoOpTransfer(comp, new DeviceId(device),
+                        null));
+                samples[thread] = latencies;
+                samplesCount[thread] = count;
+                transfers.addAndGet(done);
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        int total = 0;
+        for(int count : samplesCount){
+            total += count;
+        }
+        long[] all = new long[total];
+        int position = 0;
+        for(int i = 0; i < threads; ++i){
+            System.arraycopy(samples[i], 0, all, position, samplesCount[i]);
+            position += samplesCount[i];
+        }
+        Arrays.sort(all);
+        return transfers.get() * 1000 / millis + "," +
+                percentileMicros(all, 0.5) + "," +
+                percentileMicros(all, 0.9) + "," +
+                percentileMicros(all, 0.99) + "," +
+                percentileMicros(all, 0.999);
+    }
+
+    private static String percentileMicros(long[] sorted, double percentile){
+        if(sorted.length == 0){
+            return "-";
+        }
+        long nanos = sorted[(int) Math.min(sorted.length - 1,
+                (long) (percentile * sorted.length))];
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+
+    //Transfer whose prepare() spins for the given time.
+    private static final class BusyTransfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final long prepareNanos;
+
+        BusyTransfer(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId,
+                     long prepareNanos) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.prepareNanos = prepareNanos;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            long end = System.nanoTime() + prepareNanos;
+            while(System.nanoTime() < end){
+                Thread.onSpinWait();
+            }
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
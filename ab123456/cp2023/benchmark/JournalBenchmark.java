@@ -0,0 +1,129 @@
+package cp2023.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import cp2023.base.ComponentTransfer;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+//Compares the throughput of execute() of the systems that keep their
+//placement only in memory with the ones created by newDurableSystem(), which
+//record it in the journal, on the workloads of StorageSystemBenchmarkSuite.
+//It also reports how long recover() takes with the journal left by the run.
+//Usage: JournalBenchmark [measurement millis per configuration]
+//                        [journal directory]
+//The journals are created in a temporary directory if none is given.
+public final class JournalBenchmark {
+    public static void main(String[] args) throws InterruptedException,
+            IOException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        Path directory = args.length > 1 ? Path.of(args[1]) :
+                Files.createTempDirectory("journal-benchmark");
+        Path journal = directory.resolve("placement.journal");
+
+        ArrayList<Supplier<Workload>> configurations = new ArrayList<>();
+        for(int threads : new int[] {1, 4, 16}){
+            configurations.add(() -> Workload.freeSlotMoves(16, 64, threads));
+            configurations.add(() -> Workload.addDeleteChurn(16, 64, threads));
+        }
+        configurations.add(() -> Workload.futureSlotMoves(8, 4));
+        configurations.add(() -> Workload.cycles(8, 2));
+
+        System.out.println("scenario,threads,in-memory transfers/s," +
+                "journaled transfers/s,ratio,recovery millis");
+        for(Supplier<Workload> configuration : configurations){
+            //Warm-up round, so that the measurement is not dominated by
+            //the JIT compilation.
+            measure(configuration.get(), millis / 4);
+            measure(configuration.get().durable(journal), millis / 4);
+
+            Workload workload = configuration.get();
+            long inMemory = measure(workload, millis);
+            long journaled = measure(workload.durable(journal), millis);
+            long start = System.nanoTime();
+            StorageSystemFactory.recover(journal);
+            long recovery = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(workload.scenario + "," + workload.threads() +
+                    "," + inMemory + "," + journaled + "," +
+                    String.format("%.2f", (double) inMemory / journaled) +
+                    "," + recovery);
+        }
+        Files.deleteIfExists(journal);
+    }
+
+    //Runs the workload for the given time and returns the number of
+    //transfers per second its threads managed to execute.
+    private static long measure(Workload workload, long millis)
+            throws InterruptedException {
+        AtomicLong transfers = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        ArrayList<Thread> workers = new ArrayList<>();
+        for(ArrayList<ComponentTransfer> loop : workload.transfers){
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                transfers.addAndGet(run(workload.system, loop, deadline));
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        return transfers.get() * 1000 / millis;
+    }
+
+    //Executes the transfers of one thread in a loop until the deadline,
+    //and returns their number. When the time is up, the component is deleted,
+    //so that the transfers of other threads waiting for its slot or forming
+    //a cycle with it can finish as well.
+    private static long run(StorageSystem system,
+                            ArrayList<ComponentTransfer> loop,
+                            long[] deadline) {
+        long count = 0;
+        ComponentTransfer last = null;
+        while(System.nanoTime() < deadline[0]){
+            for(ComponentTransfer transfer : loop){
+                execute(system, transfer);
+                ++count;
+                last = transfer;
+                if(System.nanoTime() >= deadline[0]){
+                    break;
+                }
+            }
+        }
+        if(last != null && last.getDestinationDeviceId() != null){
+            execute(system, new NoOpTransfer(last.getComponentId(),
+                    last.getDestinationDeviceId(), null));
+        }
+        return count;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
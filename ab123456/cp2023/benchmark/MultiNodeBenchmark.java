@@ -0,0 +1,178 @@
+package cp2023.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageNode;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the throughput of a storage system spread over 2, 4 and 8 nodes
+//on localhost, depending on the fraction of the moves between the nodes.
+//All the nodes run in this process, but they share nothing, and talk only
+//over TCP. The workload is the one of ShardedBenchmark, with the nodes
+//instead of the shards: every node has single-slot devices, all of them
+//occupied except for one, and every thread owns a component, which it moves
+//to a random device, on another node with the given probability. Every move
+//is executed by the node of its source device. Almost every move has to
+//wait, and many of them are completed only by cycles, which go through many
+//nodes as soon as there are moves between them. The node i listens
+//on the port basePort + i, and every measurement uses the next ports.
+//Usage: MultiNodeBenchmark [measurement millis per point]
+//                          [devices per node] [base port]
+public final class MultiNodeBenchmark {
+    private static final int[] NODES = {2, 4, 8};
+    private static final double[] CROSS_NODE_RATIOS = {0.01, 0.1, 0.5};
+    private static int nextPort;
+
+    public static void main(String[] args)
+            throws InterruptedException, IOException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        nextPort = args.length > 2 ? Integer.parseInt(args[2]) : 47000;
+        System.out.println("nodes,cross-node ratio,transfers/s," +
+                "cross-node transfers/s,cycles/s,cross-node cycles/s");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(2, devices, 0.1, millis / 2);
+        for(int nodes : NODES){
+            for(double ratio : CROSS_NODE_RATIOS){
+                System.out.println(nodes + "," + ratio + "," +
+                        measure(nodes, devices, ratio, millis));
+            }
+        }
+    }
+
+    //Runs the workload on the given number of nodes for the given time,
+    //and returns the number of transfers, the moves between the nodes,
+    //the cycles within the nodes and the ones through many nodes per second.
+    private static String measure(int nodes, int devices, double ratio,
+                                  long millis)
+            throws InterruptedException, IOException {
+        ArrayList<InetSocketAddress> addresses = new ArrayList<>();
+        HashMap<DeviceId, Integer> deviceNodes = new HashMap<>();
+        ArrayList<HashMap<DeviceId, Integer>> deviceCapacities =
+                new ArrayList<>();
+        ArrayList<HashMap<ComponentId, DeviceId>> initialComponentMapping =
+                new ArrayList<>();
+        for(int i = 0; i < nodes; ++i){
+            addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    nextPort++));
+            deviceCapacities.add(new HashMap<>());
+            initialComponentMapping.add(new HashMap<>());
+        }
+        int threads = 0;
+        for(int i = 0; i < nodes * devices; ++i){
+            //The device with id i is on the node i modulo the number
+            //of nodes.
+            deviceNodes.put(new DeviceId(i), i % nodes);
+            deviceCapacities.get(i % nodes).put(new DeviceId(i), 1);
+            //The last device of every node is free.
+            if(i < nodes * (devices - 1)){
+                initialComponentMapping.get(i % nodes).put(
+                        new ComponentId(threads++), new DeviceId(i));
+            }
+        }
+        StorageNode[] system = new StorageNode[nodes];
+        for(int i = 0; i < nodes; ++i){
+            system[i] = StorageSystemFactory.startNode(i, addresses,
+                    deviceNodes, deviceCapacities.get(i),
+                    initialComponentMapping.get(i));
+        }
+
+        AtomicLong transfers = new AtomicLong();
+        AtomicLong crossNodeTransfers = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            int first = i;
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                Random random = new Random(Ids.of(comp));
+                long done = 0;
+                long crossNode = 0;
+                int device = first;
+                while(System.nanoTime() < deadline[0]){
+                    int node = device % nodes;
+                    if(random.nextDouble() < ratio){
+                        node = (node + 1 + random.nextInt(nodes - 1)) % nodes;
+                    }
+                    int dest = node + nodes * random.nextInt(devices);
+                    if(dest == device){
+                        continue;
+                    }
+                    execute(system[device % nodes], new NoOpTransfer(comp,
+                            new DeviceId(device), new DeviceId(dest)));
+                    if(dest % nodes != device % nodes){
+                        ++crossNode;
+                    }
+                    device = dest;
+                    ++done;
+                }
+                //The others may be waiting for our slot, and we will not
+                //move anymore.
+                execute(system[device % nodes], new NoOpTransfer(comp,
+                        new DeviceId(device), null));
+                transfers.addAndGet(done);
+                crossNodeTransfers.addAndGet(crossNode);
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        long cycles = 0;
+        long crossNodeCycles = 0;
+        for(StorageNode node : system){
+            cycles += node.getStats().getCycles();
+            crossNodeCycles += node.getRemoteCycles();
+            close(node);
+        }
+        return transfers.get() * 1000 / millis + "," +
+                crossNodeTransfers.get() * 1000 / millis + "," +
+                cycles * 1000 / millis + "," +
+                crossNodeCycles * 1000 / millis;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageNode node, ComponentTransfer transfer){
+        try {
+            node.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+
+    private static void close(StorageNode node){
+        try {
+            node.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
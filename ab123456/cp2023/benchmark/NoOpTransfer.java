@@ -0,0 +1,42 @@
+package cp2023.benchmark;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+//Transfer with empty prepare() and perform(), so that the benchmarks
+//measure only the overhead of the storage system.
+final class NoOpTransfer implements ComponentTransfer {
+    private final ComponentId compId;
+    private final DeviceId srcDevId;
+    private final DeviceId dstDevId;
+
+    NoOpTransfer(ComponentId compId, DeviceId srcDevId, DeviceId dstDevId) {
+        this.compId = compId;
+        this.srcDevId = srcDevId;
+        this.dstDevId = dstDevId;
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return this.srcDevId;
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return this.dstDevId;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void perform() {
+    }
+}
@@ -0,0 +1,155 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.PlacementSubscription;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the cost of publishing the completed transfers to the placement
+//feed. The workload is the one of ReadApiBenchmark, run without any
+//subscription, with the given number of subscriptions that drop the events
+//no one reads, and with the given number of subscriptions that block
+//the transfers, each read by its own thread.
+//Usage: PlacementFeedBenchmark [measurement millis per point] [devices]
+//                              [slots per device] [subscriptions]
+public final class PlacementFeedBenchmark {
+    private static final int POLL_BATCH = 256;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int slots = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int subscriptions = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        System.out.println("policy,subscriptions,transfers/s,events read/s");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(devices, slots, PlacementSubscription.Policy.BLOCK,
+                subscriptions, millis / 2);
+        System.out.println("none,0," + measure(devices, slots,
+                PlacementSubscription.Policy.DROP_OLDEST, 0, millis));
+        for(PlacementSubscription.Policy policy :
+                PlacementSubscription.Policy.values()){
+            System.out.println(policy + "," + subscriptions + "," +
+                    measure(devices, slots, policy, subscriptions, millis));
+        }
+    }
+
+    //Runs the workload with the given subscriptions for the given time,
+    //and returns the number of transfers and of the events read per second.
+    //The subscriptions that drop the events are never read.
+    private static String measure(int devices, int slots,
+                                  PlacementSubscription.Policy policy,
+                                  int subscriptions, long millis)
+            throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        int writers = 0;
+        for(int i = 0; i < devices; ++i){
+            deviceCapacities.put(new DeviceId(i), slots);
+            for(int j = 0; j + 1 < slots; ++j){
+                initialComponentMapping.put(new ComponentId(writers++),
+                        new DeviceId(i));
+            }
+        }
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        AtomicLong transfers = new AtomicLong();
+        AtomicLong events = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(writers);
+        ArrayList<Thread> threads = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < writers; ++i){
+            ComponentId comp = new ComponentId(i);
+            DeviceId first = initialComponentMapping.get(comp);
+            threads.add(new Thread(() -> {
+                awaitStart(start);
+                Random random = new Random(Ids.of(comp));
+                long done = 0;
+                int device = Ids.of(first);
+                while(System.nanoTime() < deadline[0]){
+                    int dest = random.nextInt(devices);
+                    if(dest == device){
+                        continue;
+                    }
+                    execute(system, new NoOpTransfer(comp,
+                            new DeviceId(device), new DeviceId(dest)));
+                    device = dest;
+                    ++done;
+                }
+                //The others may be waiting for our slot, and we will not
+                //move anymore.
+                execute(system, new NoOpTransfer(comp, new DeviceId(device),
+                        null));
+                transfers.addAndGet(done);
+                finished.countDown();
+            }));
+        }
+        ArrayList<PlacementSubscription> opened = new ArrayList<>();
+        for(int i = 0; i < subscriptions; ++i){
+            PlacementSubscription subscription = system.subscribe(policy);
+            opened.add(subscription);
+            if(policy == PlacementSubscription.Policy.BLOCK){
+                threads.add(new Thread(() -> {
+                    long[] read = new long[1];
+                    //The writers may wait for this reader until they are
+                    //all finished, and then their events are all published.
+                    while(true){
+                        boolean bFinished = finished.getCount() == 0;
+                        if(subscription.poll(event -> ++read[0],
+                                POLL_BATCH) == 0){
+                            if(bFinished){
+                                break;
+                            }
+                            Thread.yield();
+                        }
+                    }
+                    events.addAndGet(read[0]);
+                }));
+            }
+        }
+        for(Thread t : threads){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : threads){
+            t.join();
+        }
+        for(PlacementSubscription subscription : opened){
+            subscription.close();
+        }
+        return transfers.get() * 1000 / millis + "," +
+                events.get() * 1000 / millis;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(ExtendedStorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
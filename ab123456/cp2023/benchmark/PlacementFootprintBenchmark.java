@@ -0,0 +1,94 @@
+package cp2023.benchmark;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the heap retained by a system holding the given number of
+//components, and the latency of the placement lookups done by the transfers
+//of random components. Every device is full except for one slot, and every
+//iteration deletes a random component and adds it back, which looks up
+//the state of the component and its slot in the device a few times.
+//Run it with a heap big enough for the given number of components, as well as
+//the temporary placement map passed to the factory.
+//Usage: PlacementFootprintBenchmark [components] [slots per device]
+//                                   [iterations]
+public final class PlacementFootprintBenchmark {
+
+    public static void main(String[] args) {
+        int components = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int slots = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2_000_000;
+        int devices = (components + slots - 2) / (slots - 1);
+
+        long heapBefore = usedHeap();
+        StorageSystem system = newSystem(components, slots, devices);
+        long heapAfter = usedHeap();
+
+        Random random = new Random(components);
+        //Warm-up round, so that the measurement is not dominated by
+        //the JIT compilation.
+        churn(system, random, components, slots, iterations / 4);
+        long start = System.nanoTime();
+        churn(system, random, components, slots, iterations);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("components,heap MB,bytes/component,ns/iteration");
+        System.out.println(components + "," +
+                (heapAfter - heapBefore) / (1 << 20) + "," +
+                (heapAfter - heapBefore) / components + "," +
+                elapsed / iterations);
+    }
+
+    //Puts the component i into the device i / (slots - 1).
+    private static StorageSystem newSystem(int components, int slots,
+                                           int devices) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        for(int i = 0; i < devices; ++i){
+            deviceCapacities.put(new DeviceId(i), slots);
+        }
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>(components * 2);
+        for(int i = 0; i < components; ++i){
+            initialComponentMapping.put(new ComponentId(i),
+                    new DeviceId(i / (slots - 1)));
+        }
+        return StorageSystemFactory.newSystem(deviceCapacities,
+                initialComponentMapping);
+    }
+
+    private static void churn(StorageSystem system, Random random,
+                              int components, int slots, int iterations) {
+        for(int i = 0; i < iterations; ++i){
+            int id = random.nextInt(components);
+            ComponentId comp = new ComponentId(id);
+            DeviceId device = new DeviceId(id / (slots - 1));
+            execute(system, new NoOpTransfer(comp, device, null));
+            execute(system, new NoOpTransfer(comp, null, device));
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; ++i){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void execute(StorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
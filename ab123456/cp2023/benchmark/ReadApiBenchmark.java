@@ -0,0 +1,145 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures how the readers polling the placement, with locate(), occupancy()
+//and listComponents(), affect the throughput of the transfers. There are
+//a few devices, each with one free slot, and every writer thread owns
+//a component, which it moves to random devices. Every reader thread
+//locates a random component, and reads the occupancy and the components
+//of a random device, in a loop, so the readers hit the same devices
+//as the writers.
+//Usage: ReadApiBenchmark [measurement millis per point] [devices]
+//                        [slots per device]
+public final class ReadApiBenchmark {
+    private static final int[] READERS = {0, 1, 2, 4, 8};
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int slots = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        System.out.println("readers,transfers/s,reads/s");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(devices, slots, 2, millis / 2);
+        for(int readers : READERS){
+            System.out.println(readers + "," +
+                    measure(devices, slots, readers, millis));
+        }
+    }
+
+    //Runs the writers and the given number of readers for the given time,
+    //and returns the number of transfers and of reads per second.
+    private static String measure(int devices, int slots, int readers,
+                                  long millis) throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        int writers = 0;
+        for(int i = 0; i < devices; ++i){
+            deviceCapacities.put(new DeviceId(i), slots);
+            for(int j = 0; j + 1 < slots; ++j){
+                initialComponentMapping.put(new ComponentId(writers++),
+                        new DeviceId(i));
+            }
+        }
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        AtomicLong transfers = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < writers; ++i){
+            ComponentId comp = new ComponentId(i);
+            DeviceId first = initialComponentMapping.get(comp);
+            threads.add(new Thread(() -> {
+                awaitStart(start);
+                Random random = new Random(Ids.of(comp));
+                long done = 0;
+                int device = Ids.of(first);
+                while(System.nanoTime() < deadline[0]){
+                    int dest = random.nextInt(devices);
+                    if(dest == device){
+                        continue;
+                    }
+                    execute(system, new NoOpTransfer(comp,
+                            new DeviceId(device), new DeviceId(dest)));
+                    device = dest;
+                    ++done;
+                }
+                //The others may be waiting for our slot, and we will not
+                //move anymore.
+                execute(system, new NoOpTransfer(comp, new DeviceId(device),
+                        null));
+                transfers.addAndGet(done);
+            }));
+        }
+        int components = writers;
+        for(int i = 0; i < readers; ++i){
+            int seed = -1 - i;
+            threads.add(new Thread(() -> {
+                awaitStart(start);
+                Random random = new Random(seed);
+                long done = 0;
+                long found = 0;
+                while(System.nanoTime() < deadline[0]){
+                    DeviceId device = new DeviceId(random.nextInt(devices));
+                    if(system.locate(new ComponentId(
+                            random.nextInt(components))) != null){
+                        ++found;
+                    }
+                    found += system.occupancy(device);
+                    found += system.listComponents(device).size();
+                    ++done;
+                }
+                //Keeps the reads from being optimized away.
+                if(found < 0){
+                    throw new AssertionError();
+                }
+                reads.addAndGet(done);
+            }));
+        }
+        for(Thread t : threads){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : threads){
+            t.join();
+        }
+        return transfers.get() * 1000 / millis + "," +
+                reads.get() * 1000 / millis;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(ExtendedStorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package cp2023.benchmark;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures how many invalid transfers per second a single thread gets
+//rejected, either by execute(), which throws an exception with the stack
+//trace, or by tryExecute(), which returns the status.
+//Usage: RejectionBenchmark [measurement millis per case]
+public final class RejectionBenchmark {
+    private static final DeviceId FIRST = new DeviceId(1);
+    private static final DeviceId SECOND = new DeviceId(2);
+    private static final ComponentId IDLE = new ComponentId(1);
+    private static final ComponentId BUSY = new ComponentId(2);
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        deviceCapacities.put(FIRST, 4);
+        deviceCapacities.put(SECOND, 4);
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        initialComponentMapping.put(IDLE, FIRST);
+        initialComponentMapping.put(BUSY, FIRST);
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        //Keep the BUSY component in the middle of its transfer for
+        //the whole benchmark.
+        CountDownLatch prepared = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Thread owner = new Thread(() -> {
+            try {
+                system.execute(new BlockingTransfer(BUSY, FIRST, SECOND,
+                        prepared, finish));
+            } catch (TransferException e) {
+                throw new RuntimeException("Unexpected transfer exception: " +
+                        e.toString(), e);
+            }
+        });
+        owner.start();
+        prepared.await();
+
+        String[] names = {"device-does-not-exist", "component-does-not-exist",
+                "component-already-exists", "component-does-not-need-transfer",
+                "component-is-being-operated-on"};
+        ComponentTransfer[] transfers = {
+                new NoOpTransfer(IDLE, FIRST, new DeviceId(3)),
+                new NoOpTransfer(IDLE, SECOND, null),
+                new NoOpTransfer(IDLE, null, FIRST),
+                new NoOpTransfer(IDLE, FIRST, FIRST),
+                new NoOpTransfer(BUSY, SECOND, null)};
+        System.out.println("rejection,execute rejections/s," +
+                "tryExecute rejections/s");
+        for(int i = 0; i < transfers.length; ++i){
+            //Warm-up round, so that the measurement is not dominated by
+            //the JIT compilation.
+            measureExecute(system, transfers[i], millis / 4);
+            measureTryExecute(system, transfers[i], millis / 4);
+            System.out.println(names[i] + "," +
+                    measureExecute(system, transfers[i], millis) + "," +
+                    measureTryExecute(system, transfers[i], millis));
+        }
+        finish.countDown();
+        owner.join();
+    }
+
+    private static long measureExecute(ExtendedStorageSystem system,
+                                       ComponentTransfer transfer,
+                                       long millis) {
+        long count = 0;
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        while(System.nanoTime() < deadline){
+            for(int i = 0; i < 100; ++i){
+                try {
+                    system.execute(transfer);
+                    throw new RuntimeException("Transfer not rejected");
+                } catch (TransferException e) {
+                    ++count;
+                }
+            }
+        }
+        return count * 1000 / millis;
+    }
+
+    private static long measureTryExecute(ExtendedStorageSystem system,
+                                          ComponentTransfer transfer,
+                                          long millis) {
+        long count = 0;
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        while(System.nanoTime() < deadline){
+            for(int i = 0; i < 100; ++i){
+                if(system.tryExecute(transfer) == TransferStatus.OK){
+                    throw new RuntimeException("Transfer not rejected");
+                }
+                ++count;
+            }
+        }
+        return count * 1000 / millis;
+    }
+
+    //Transfer whose prepare() signals that it started, and whose perform()
+    //waits until it is allowed to finish.
+    private static final class BlockingTransfer implements ComponentTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final CountDownLatch prepared;
+        private final CountDownLatch finish;
+
+        BlockingTransfer(ComponentId compId, DeviceId srcDevId,
+                         DeviceId dstDevId, CountDownLatch prepared,
+                         CountDownLatch finish) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.prepared = prepared;
+            this.finish = finish;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+            prepared.countDown();
+        }
+
+        @Override
+        public void perform() {
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("panic: unexpected thread interruption", e);
+            }
+        }
+    }
+}
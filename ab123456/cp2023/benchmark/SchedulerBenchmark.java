@@ -0,0 +1,232 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.SchedulableTransfer;
+import cp2023.solution.StorageSystemClass;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferScheduler;
+
+//Measures the wait times of the transfers under every built-in
+//TransferScheduler. Every thread owns a component on its own single-slot
+//device, moves it to the hot device, which has only a few slots, keeps it
+//there for a while, and moves it back, so the transfers to the hot device
+//queue up. Every fourth thread is urgent: it has a higher priority and
+//a tighter deadline than the others. For every policy and class of threads,
+//the percentiles of the time of the moves to the hot device are reported,
+//together with the fraction of them that missed their deadlines, and for
+//the whole system, the 99th percentile of the slot wait from its stats.
+//Usage: SchedulerBenchmark [measurement millis per policy] [threads]
+//                          [hot device slots] [hold micros]
+public final class SchedulerBenchmark {
+    private static final DeviceId HOT = new DeviceId(-1);
+    private static final int URGENT_PRIORITY = 10;
+    private static final long URGENT_BUDGET_NANOS = 1_000_000;
+    private static final long NORMAL_BUDGET_NANOS = 50_000_000;
+    //Maximum number of latency samples kept per thread.
+    private static final int MAX_SAMPLES = 1 << 16;
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int slots = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        long holdNanos = (args.length > 3 ? Long.parseLong(args[3]) : 100) *
+                1000;
+        String[] names = {"fifo", "priority", "earliest-deadline-first"};
+        TransferScheduler[] schedulers = {TransferScheduler.fifo(),
+                TransferScheduler.priority(),
+                TransferScheduler.earliestDeadlineFirst()};
+        System.out.println("policy,class,transfers,p50 us,p99 us," +
+                "deadline misses %,system slot wait p99 us");
+        for(int i = 0; i < schedulers.length; ++i){
+            //Warm-up round, so that the measurement is not dominated by
+            //the JIT compilation.
+            run(schedulers[i], threads, slots, holdNanos, millis / 4);
+            for(String line : run(schedulers[i], threads, slots, holdNanos,
+                    millis)){
+                System.out.println(names[i] + "," + line);
+            }
+        }
+    }
+
+    //Runs the benchmark with the given scheduler, and returns the results
+    //of the urgent and the normal threads.
+    private static String[] run(TransferScheduler scheduler, int threads,
+                                int slots, long holdNanos, long millis)
+            throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        HashMap<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+        deviceTotalSlots.put(HOT, slots);
+        for(int i = 0; i < threads; ++i){
+            deviceTotalSlots.put(new DeviceId(i), 1);
+            componentPlacement.put(new ComponentId(i), new DeviceId(i));
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(deviceTotalSlots,
+                componentPlacement, ForkJoinPool.commonPool(), scheduler);
+
+        long[][] samples = new long[threads][MAX_SAMPLES];
+        long[] counts = new long[threads];
+        long[] misses = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        ArrayList<Thread> workers = new ArrayList<>();
+        for(int i = 0; i < threads; ++i){
+            int index = i;
+            boolean bUrgent = isUrgent(i);
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                ComponentId comp = new ComponentId(index);
+                DeviceId own = new DeviceId(index);
+                long budget = bUrgent ? URGENT_BUDGET_NANOS :
+                        NORMAL_BUDGET_NANOS;
+                while(System.nanoTime() < deadline[0]){
+                    long begin = System.nanoTime();
+                    execute(system, new HintedTransfer(comp, own, HOT,
+                            bUrgent ? URGENT_PRIORITY : 0, begin + budget));
+                    long elapsed = System.nanoTime() - begin;
+                    samples[index][(int) (counts[index]++ % MAX_SAMPLES)] =
+                            elapsed;
+                    if(elapsed > budget){
+                        ++misses[index];
+                    }
+                    LockSupport.parkNanos(holdNanos);
+                    execute(system, new HintedTransfer(comp, HOT, own, 0,
+                            Long.MAX_VALUE));
+                }
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        long slotWaitP99 = ((StorageSystemClass) system).getStats()
+                .getSlotWait().getP99() / 1000;
+        return new String[] {
+                summary("urgent", true, samples, counts, misses) + "," +
+                        slotWaitP99,
+                summary("normal", false, samples, counts, misses) + "," +
+                        slotWaitP99};
+    }
+
+    private static boolean isUrgent(int thread) {
+        return thread % 4 == 0;
+    }
+
+    private static String summary(String name, boolean bUrgent,
+                                  long[][] samples, long[] counts,
+                                  long[] misses) {
+        long total = 0;
+        long missed = 0;
+        int kept = 0;
+        for(int i = 0; i < counts.length; ++i){
+            if(isUrgent(i) == bUrgent){
+                total += counts[i];
+                missed += misses[i];
+                kept += (int) Math.min(counts[i], MAX_SAMPLES);
+            }
+        }
+        long[] latencies = new long[kept];
+        int next = 0;
+        for(int i = 0; i < counts.length; ++i){
+            if(isUrgent(i) == bUrgent){
+                int n = (int) Math.min(counts[i], MAX_SAMPLES);
+                System.arraycopy(samples[i], 0, latencies, next, n);
+                next += n;
+            }
+        }
+        Arrays.sort(latencies);
+        return name + "," + total + "," + percentile(latencies, 50) / 1000 +
+                "," + percentile(latencies, 99) / 1000 + "," +
+                String.format("%.2f", total == 0 ? 0 : 100.0 * missed / total);
+    }
+
+    private static long percentile(long[] sorted, double percent) {
+        if(sorted.length == 0){
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageSystem system,
+                                HintedTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+
+    //Transfer that does nothing, with the given scheduling hints.
+    private static final class HintedTransfer implements SchedulableTransfer {
+        private final ComponentId compId;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+        private final int priority;
+        private final long deadlineNanos;
+
+        HintedTransfer(ComponentId compId, DeviceId srcDevId,
+                       DeviceId dstDevId, int priority, long deadlineNanos) {
+            this.compId = compId;
+            this.srcDevId = srcDevId;
+            this.dstDevId = dstDevId;
+            this.priority = priority;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return this.compId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public int getPriority() {
+            return this.priority;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return this.deadlineNanos;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageSystemClass;
+import cp2023.solution.StorageSystemFactory;
+
+//Compares the throughput of ShardedStorageSystem with the one of a single
+//StorageSystemClass, depending on the fraction of the moves between
+//the shards. Every shard has single-slot devices, all of them occupied
+//except for one, and every thread owns a component, which it moves to
+//a random device, in another shard with the given probability, and
+//otherwise in the shard it is in. Almost every move has to wait, and many
+//of them are completed only by cycles, which go through many shards as soon
+//as there are moves between them. The device with id i is in the shard
+//i modulo the number of shards, and the same devices, components and
+//seeds are used for the single system.
+//Usage: ShardedBenchmark [measurement millis per point] [shards]
+//                        [devices per shard]
+public final class ShardedBenchmark {
+    private static final double[] CROSS_SHARD_RATIOS =
+            {0.0, 0.01, 0.1, 0.5};
+
+    public static void main(String[] args) throws InterruptedException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int devices = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        System.out.println("cross-shard ratio,shards,transfers/s,cycles/s");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(shards, devices, 0.1, shards, millis / 2);
+        for(double ratio : CROSS_SHARD_RATIOS){
+            for(int systemShards : new int[]{1, shards}){
+                System.out.println(ratio + "," + systemShards + "," +
+                        measure(shards, devices, ratio, systemShards, millis));
+            }
+        }
+    }
+
+    //Runs the workload partitioned into the given number of shards on
+    //a system with systemShards shards for the given time, and returns
+    //the number of transfers and cycles per second.
+    private static String measure(int shards, int devices, double ratio,
+                                  int systemShards, long millis)
+            throws InterruptedException {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        int threads = 0;
+        for(int i = 0; i < shards * devices; ++i){
+            deviceCapacities.put(new DeviceId(i), 1);
+            //The last device of every shard is free.
+            if(i < shards * (devices - 1)){
+                initialComponentMapping.put(new ComponentId(threads++),
+                        new DeviceId(i));
+            }
+        }
+        StorageSystemClass system = (StorageSystemClass)
+                StorageSystemFactory.newShardedSystem(deviceCapacities,
+                        initialComponentMapping, systemShards);
+
+        AtomicLong transfers = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+        long[] deadline = new long[1];
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            int first = i;
+            workers.add(new Thread(() -> {
+                awaitStart(start);
+                Random random = new Random(Ids.of(comp));
+                long done = 0;
+                int device = first;
+                while(System.nanoTime() < deadline[0]){
+                    int shard = device % shards;
+                    if(shards > 1 && random.nextDouble() < ratio){
+                        shard = (shard + 1 + random.nextInt(shards - 1)) %
+                                shards;
+                    }
+                    int dest = shard + shards * random.nextInt(devices);
+                    if(dest == device){
+                        continue;
+                    }
+                    execute(system, new NoOpTransfer(comp,
+                            new DeviceId(device), new DeviceId(dest)));
+                    device = dest;
+                    ++done;
+                }
+                //The others may be waiting for our slot, and we will not
+                //move anymore.
+                execute(system, new NoOpTransfer(comp, new DeviceId(device),
+                        null));
+                transfers.addAndGet(done);
+            }));
+        }
+        for(Thread t : workers){
+            t.start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        return transfers.get() * 1000 / millis + "," +
+                system.getStats().getCycles() * 1000 / millis;
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageSystemClass system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cp2023.benchmark;
+
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the cost of reserving and freeing a memory slot depending on
+//the size of the device. The device is almost full, and a single thread
+//repeatedly deletes a component from it and adds it back, so that every
+//iteration frees one slot and reserves one.
+//Usage: SlotAllocatorBenchmark [iterations per device size]
+public final class SlotAllocatorBenchmark {
+    private static final int[] DEVICE_SIZES =
+            {1_000, 10_000, 100_000, 1_000_000};
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        System.out.println("slots,ns/iteration");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(DEVICE_SIZES[0], iterations);
+        for(int slots : DEVICE_SIZES){
+            System.out.println(slots + "," + measure(slots, iterations));
+        }
+    }
+
+    //Returns the average time of one delete and add pair in nanoseconds.
+    private static long measure(int slots, int iterations) {
+        DeviceId device = new DeviceId(1);
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        deviceCapacities.put(device, slots);
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        for(int i = 0; i < slots - 1; ++i){
+            initialComponentMapping.put(new ComponentId(i), device);
+        }
+        StorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+
+        //Take components from all over the device, so that the freed slots
+        //are not always at its beginning.
+        int stride = Math.max(1, (slots - 1) / 97);
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; ++i){
+            ComponentId comp = new ComponentId((i * stride) % (slots - 1));
+            execute(system, new NoOpTransfer(comp, device, null));
+            execute(system, new NoOpTransfer(comp, null, device));
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static void execute(StorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package cp2023.benchmark;
+
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the heap retained by the memory slots of a system, and the time
+//of its construction, depending on the total number of the slots. The slots
+//are split evenly between the given number of devices, and the given
+//fraction of them is occupied by components, in the lowest slots of every
+//device. The placement maps are built before the clock starts, so only
+//the construction of the system is measured, and the heap is measured
+//after they are dropped. The best time of a few rounds is reported.
+//Run it with a heap big enough for the biggest system, as well as
+//the placement map passed to the factory.
+//Usage: SlotFootprintBenchmark [devices] [occupied fraction]
+public final class SlotFootprintBenchmark {
+    private static final int[] TOTAL_SLOTS =
+            {1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        double occupied = args.length > 1 ? Double.parseDouble(args[1]) : 0.1;
+        System.out.println("slots,components,heap bytes,bytes/slot," +
+                "construction ms");
+        //Warm-up round, so that the first measurement is not dominated
+        //by the JIT compilation.
+        measure(TOTAL_SLOTS[2], devices, occupied);
+        for(int slots : TOTAL_SLOTS){
+            System.out.println(measure(slots, devices, occupied));
+        }
+    }
+
+    private static String measure(int totalSlots, int devices,
+                                  double occupied) {
+        int slots = totalSlots / devices;
+        int components = (int) (slots * occupied);
+        long bestNanos = Long.MAX_VALUE;
+        long heap = 0;
+        for(int round = 0; round < ROUNDS; ++round){
+            long[] result = measureOnce(slots, devices, components);
+            bestNanos = Math.min(bestNanos, result[0]);
+            heap = result[1];
+        }
+        return devices * slots + "," + devices * components + "," + heap + "," +
+                String.format("%.2f", (double) heap / (devices * slots)) +
+                "," + String.format("%.2f", bestNanos / 1e6);
+    }
+
+    //Returns the construction time in nanoseconds, and the heap retained
+    //by the system, which is unreachable once it returns.
+    private static long[] measureOnce(int slots, int devices, int components) {
+        long heapBefore = usedHeap();
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        for(int i = 0; i < devices; ++i){
+            DeviceId device = new DeviceId(i);
+            deviceCapacities.put(device, slots);
+            for(int j = 0; j < components; ++j){
+                initialComponentMapping.put(
+                        new ComponentId(i * components + j), device);
+            }
+        }
+        long start = System.nanoTime();
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping);
+        long nanos = System.nanoTime() - start;
+        deviceCapacities = null;
+        initialComponentMapping = null;
+        long heap = usedHeap() - heapBefore;
+        if(system.occupancy(new DeviceId(0)) != components){
+            throw new AssertionError("Unexpected occupancy");
+        }
+        return new long[]{nanos, heap};
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; ++i){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
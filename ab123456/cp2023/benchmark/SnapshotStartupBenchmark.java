@@ -0,0 +1,95 @@
+package cp2023.benchmark;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+//Compares the time and the memory allocated by building a system from
+//the placement maps, with loading it from a binary snapshot. It also reports
+//the time of writing the snapshot and its size. Every step is repeated, and
+//the fastest repetition is reported, so that the results are not dominated by
+//the JIT compilation and the garbage collection of the previous system.
+//Usage: SnapshotStartupBenchmark [components] [devices] [repetitions]
+//                                [snapshot directory]
+//The snapshot is created in a temporary directory if none is given.
+public final class SnapshotStartupBenchmark {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        int components = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int repetitions = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Path directory = args.length > 3 ? Path.of(args[3]) :
+                Files.createTempDirectory("snapshot-benchmark");
+        Path snapshot = directory.resolve("placement.snapshot");
+
+        //A quarter of the slots is free.
+        int slots = (int) ((components / devices + 1) * 4L / 3);
+        HashMap<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        for(int i = 0; i < devices; ++i){
+            deviceTotalSlots.put(new DeviceId(i), slots);
+        }
+        HashMap<ComponentId, DeviceId> componentPlacement =
+                new HashMap<>(components * 2);
+        for(int i = 0; i < components; ++i){
+            componentPlacement.put(new ComponentId(i), new DeviceId(i % devices));
+        }
+
+        long[] fromMaps = {Long.MAX_VALUE, 0};
+        long[] write = {Long.MAX_VALUE, 0};
+        long[] load = {Long.MAX_VALUE, 0};
+        StorageSystem system = null;
+        for(int i = 0; i < repetitions; ++i){
+            system = null;
+            System.gc();
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            system = StorageSystemFactory.newSystem(deviceTotalSlots,
+                    componentPlacement);
+            record(fromMaps, start, allocated);
+
+            allocated = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            StorageSystemFactory.snapshot(system, snapshot);
+            record(write, start, allocated);
+
+            system = null;
+            System.gc();
+            allocated = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            system = StorageSystemFactory.loadSnapshot(snapshot);
+            record(load, start, allocated);
+        }
+
+        System.out.println("components=" + components + " devices=" + devices +
+                " snapshot bytes=" + Files.size(snapshot));
+        System.out.println("step,millis,allocated MB");
+        print("new system from maps", fromMaps);
+        print("write snapshot", write);
+        print("load snapshot", load);
+        Files.deleteIfExists(snapshot);
+    }
+
+    //Keeps the shortest time, together with the memory allocated by
+    //the calling thread in that repetition.
+    private static void record(long[] best, long start, long allocated){
+        long elapsed = System.nanoTime() - start;
+        if(elapsed < best[0]){
+            best[0] = elapsed;
+            best[1] = threads.getCurrentThreadAllocatedBytes() - allocated;
+        }
+    }
+
+    private static void print(String step, long[] best){
+        System.out.println(step + "," + best[0] / 1_000_000 + "," +
+                best[1] / (1 << 20));
+    }
+}
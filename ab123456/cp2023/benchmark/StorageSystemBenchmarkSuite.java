@@ -0,0 +1,201 @@
+package cp2023.benchmark;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import cp2023.base.ComponentTransfer;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+
+//Runs all the workloads over a grid of device, slot and thread counts, and
+//reports the throughput and the latency percentiles of execute() for each of
+//them as a JSON array, so that the results of different revisions can be
+//compared by scripts. Every configuration is run on a fresh system, first
+//for a quarter of the measurement time as a warm-up, and then measured.
+//Usage: StorageSystemBenchmarkSuite [measurement millis per configuration]
+//                                   [scenario name filter] [output file]
+//The results are written to the standard output if no file is given.
+//The sources come without a build, so the suite is a plain main() that
+//needs nothing but the JDK rather than a JMH module. It does its own
+//warm-up and keeps no JIT state between configurations, which is why every
+//one of them gets a fresh system, and its numbers are comparable only
+//between runs on the same machine and JVM.
+public final class StorageSystemBenchmarkSuite {
+    //Maximum number of latency samples kept per thread. The older samples
+    //are overwritten when a thread executes more transfers.
+    private static final int MAX_SAMPLES = 1 << 16;
+
+    public static void main(String[] args) throws InterruptedException,
+            FileNotFoundException {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        String filter = args.length > 1 ? args[1] : "";
+        PrintStream out = args.length > 2 ? new PrintStream(args[2]) :
+                System.out;
+
+        ArrayList<String> results = new ArrayList<>();
+        for(Supplier<Workload> configuration : configurations(filter)){
+            //The warm-up run deletes the components when it ends, so
+            //the measured one needs a new system.
+            run(configuration.get(), millis / 4);
+            Workload workload = configuration.get();
+            System.err.println("running " + workload.scenario + " devices=" +
+                    workload.devices + " slots=" + workload.slots +
+                    " threads=" + workload.threads());
+            results.add(run(workload, millis));
+        }
+        out.println("[");
+        for(int i = 0; i < results.size(); ++i){
+            out.println("  " + results.get(i) +
+                    (i + 1 < results.size() ? "," : ""));
+        }
+        out.println("]");
+        out.flush();
+    }
+
+    //Returns all the configurations of the scenarios whose names contain
+    //the given filter, always in the same order.
+    private static ArrayList<Supplier<Workload>> configurations(
+            String filter) {
+        ArrayList<Supplier<Workload>> result = new ArrayList<>();
+        for(int devices : new int[] {2, 16}){
+            for(int slots : new int[] {16, 64}){
+                for(int threads : new int[] {1, 4, 16}){
+                    result.add(() -> Workload.freeSlotMoves(devices, slots,
+                            threads));
+                    result.add(() -> Workload.addDeleteChurn(devices, slots,
+                            threads));
+                }
+            }
+        }
+        for(int devices : new int[] {2, 4, 8}){
+            for(int slots : new int[] {2, 4}){
+                result.add(() -> Workload.futureSlotMoves(devices, slots));
+            }
+        }
+        for(int length : new int[] {2, 3, 8, 32}){
+            for(int rings : new int[] {1, 2}){
+                result.add(() -> Workload.cycles(length, rings));
+            }
+        }
+        for(int devices : new int[] {16, 64}){
+            result.add(() -> Workload.chains(devices));
+        }
+        result.removeIf(configuration -> {
+            Workload workload = configuration.get();
+            return workload == null || !workload.scenario.contains(filter);
+        });
+        return result;
+    }
+
+    //Runs the workload for the given time and returns its results as
+    //a JSON object.
+    private static String run(Workload workload, long millis)
+            throws InterruptedException {
+        int threads = workload.threads();
+        long[][] samples = new long[threads][MAX_SAMPLES];
+        long[] counts = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for(int i = 0; i < threads; ++i){
+            int index = i;
+            workers[i] = new Thread(() -> {
+                awaitStart(start);
+                counts[index] = loop(workload.system,
+                        workload.transfers.get(index), deadline, samples[index]);
+            });
+            workers[i].start();
+        }
+        deadline[0] = System.nanoTime() + millis * 1_000_000L;
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread t : workers){
+            t.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long total = 0;
+        int kept = 0;
+        for(int i = 0; i < threads; ++i){
+            total += counts[i];
+            kept += (int) Math.min(counts[i], MAX_SAMPLES);
+        }
+        long[] latencies = new long[kept];
+        int next = 0;
+        for(int i = 0; i < threads; ++i){
+            int n = (int) Math.min(counts[i], MAX_SAMPLES);
+            System.arraycopy(samples[i], 0, latencies, next, n);
+            next += n;
+        }
+        Arrays.sort(latencies);
+        return "{\"scenario\": \"" + workload.scenario + "\"" +
+                ", \"devices\": " + workload.devices +
+                ", \"slots\": " + workload.slots +
+                ", \"threads\": " + threads +
+                ", \"transfers\": " + total +
+                ", \"transfersPerSecond\": " + total * 1_000_000_000L / elapsed +
+                ", \"latencyNanos\": {\"p50\": " + percentile(latencies, 50) +
+                ", \"p90\": " + percentile(latencies, 90) +
+                ", \"p99\": " + percentile(latencies, 99) +
+                ", \"p999\": " + percentile(latencies, 99.9) +
+                ", \"max\": " + percentile(latencies, 100) + "}}";
+    }
+
+    //Executes the transfers of one thread in a loop until the deadline,
+    //and returns their number. When the time is up, the component is deleted,
+    //so that the transfers of other threads waiting for its slot or forming
+    //a cycle with it can finish as well.
+    private static long loop(StorageSystem system,
+                             ArrayList<ComponentTransfer> transfers,
+                             long[] deadline, long[] samples) {
+        long count = 0;
+        ComponentTransfer last = null;
+        while(System.nanoTime() < deadline[0]){
+            for(ComponentTransfer transfer : transfers){
+                long start = System.nanoTime();
+                execute(system, transfer);
+                samples[(int) (count++ % samples.length)] =
+                        System.nanoTime() - start;
+                last = transfer;
+                if(System.nanoTime() >= deadline[0]){
+                    break;
+                }
+            }
+        }
+        if(last != null && last.getDestinationDeviceId() != null){
+            execute(system, new NoOpTransfer(last.getComponentId(),
+                    last.getDestinationDeviceId(), null));
+        }
+        return count;
+    }
+
+    private static long percentile(long[] sorted, double percent) {
+        if(sorted.length == 0){
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static void awaitStart(CountDownLatch start){
+        try {
+            start.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption", e);
+        }
+    }
+
+    private static void execute(StorageSystem system,
+                                ComponentTransfer transfer){
+        try {
+            system.execute(transfer);
+        } catch (TransferException e) {
+            throw new RuntimeException("Unexpected transfer exception: " +
+                    e.toString(), e);
+        }
+    }
+}
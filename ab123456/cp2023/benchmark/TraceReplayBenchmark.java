@@ -0,0 +1,46 @@
+package cp2023.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.trace.Trace;
+import cp2023.trace.TraceReplayer;
+
+//Replays a trace recorded by TraceRecorder against a new system, which
+//starts with the devices and the placement the trace starts with, and
+//prints the report of the replay. The speed is the number of times
+//the replay runs faster than the recording, so 1 replays the trace as it
+//was recorded, and max replays it as fast as possible, with prepare()
+//and perform() returning at once. With more than one shard the system is
+//a ShardedStorageSystem. Every transfer that waits for a memory slot
+//for longer than the timeout is cancelled, and counted as a transfer whose
+//status differs from the recorded one.
+//Usage: TraceReplayBenchmark <trace file> [speed or max] [shards]
+//                            [transfer timeout millis]
+public final class TraceReplayBenchmark {
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.err.println("Usage: TraceReplayBenchmark <trace file> " +
+                    "[speed or max] [shards] [transfer timeout millis]");
+            System.exit(1);
+        }
+        Trace trace = Trace.read(Path.of(args[0]));
+        double speed = args.length > 1 ? (args[1].equals("max") ?
+                Double.POSITIVE_INFINITY : Double.parseDouble(args[1])) : 1;
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        long timeoutMillis = args.length > 3 ? Long.parseLong(args[3]) : 10_000;
+
+        ExtendedStorageSystem system = shards > 1 ?
+                StorageSystemFactory.newShardedSystem(
+                        trace.getDeviceTotalSlots(),
+                        trace.getComponentPlacement(), shards) :
+                StorageSystemFactory.newSystem(trace.getDeviceTotalSlots(),
+                        trace.getComponentPlacement());
+        TraceReplayer.Report report = TraceReplayer.replay(trace, system,
+                speed, Duration.ofMillis(timeoutMillis));
+        System.out.print(report);
+    }
+}
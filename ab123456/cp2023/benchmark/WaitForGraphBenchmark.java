@@ -0,0 +1,94 @@
+package cp2023.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+//Measures the cost of the cycle detection on long chains of waiting
+//transfers. Every device has one slot, which is occupied, and the transfer
+//of the component from device i to device i + 1 waits for the next one.
+//The chain is released either by the transfer closing it into a cycle, or by
+//deleting the component at its end. The waiting transfers are executed
+//asynchronously, so that the chain does not need a thread per transfer.
+//Usage: WaitForGraphBenchmark [devices] [repetitions]
+public final class WaitForGraphBenchmark {
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        System.out.println("scenario,devices,enqueue ms,release ms");
+        for(int i = 0; i < repetitions; ++i){
+            run("cycle-ascending", devices, executor, ascending(devices), true);
+            run("cycle-descending", devices, executor, descending(devices), true);
+            run("cycle-random", devices, executor, shuffled(devices), true);
+            run("chain-ascending", devices, executor, ascending(devices), false);
+            run("chain-descending", devices, executor, descending(devices), false);
+        }
+        executor.shutdown();
+    }
+
+    //Enqueues the transfers from device i to device i + 1 in the given order
+    //of i, then releases the chain, and prints the times of both phases.
+    private static void run(String scenario, int devices,
+                            ExecutorService executor, List<Integer> order,
+                            boolean bCloseCycle) {
+        HashMap<DeviceId, Integer> deviceCapacities = new HashMap<>();
+        HashMap<ComponentId, DeviceId> initialComponentMapping =
+                new HashMap<>();
+        for(int i = 0; i < devices; ++i){
+            deviceCapacities.put(new DeviceId(i), 1);
+            initialComponentMapping.put(new ComponentId(i), new DeviceId(i));
+        }
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                deviceCapacities, initialComponentMapping, executor);
+
+        ArrayList<CompletableFuture<Void>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int i : order){
+            results.add(system.executeAsync(new NoOpTransfer(
+                    new ComponentId(i), new DeviceId(i), new DeviceId(i + 1))));
+        }
+        long enqueued = System.nanoTime();
+        ComponentId last = new ComponentId(devices - 1);
+        results.add(system.executeAsync(new NoOpTransfer(last,
+                new DeviceId(devices - 1),
+                bCloseCycle ? new DeviceId(0) : null)));
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .join();
+        long released = System.nanoTime();
+        System.out.println(scenario + "," + devices + "," +
+                (enqueued - start) / 1_000_000 + "," +
+                (released - enqueued) / 1_000_000);
+    }
+
+    private static List<Integer> ascending(int devices) {
+        ArrayList<Integer> result = new ArrayList<>();
+        for(int i = 0; i < devices - 1; ++i){
+            result.add(i);
+        }
+        return result;
+    }
+
+    private static List<Integer> descending(int devices) {
+        List<Integer> result = ascending(devices);
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static List<Integer> shuffled(int devices) {
+        List<Integer> result = ascending(devices);
+        Collections.shuffle(result, new Random(devices));
+        return result;
+    }
+}
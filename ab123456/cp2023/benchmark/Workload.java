@@ -0,0 +1,170 @@
+package cp2023.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+//A system together with the transfers its threads execute. Every thread owns
+//one component and executes its transfers in a loop, in which the component
+//always returns to the device it started from.
+final class Workload {
+    final String scenario;
+    final int devices;
+    final int slots;
+    final StorageSystem system;
+    final ArrayList<ArrayList<ComponentTransfer>> transfers;
+    private final HashMap<ComponentId, DeviceId> placement;
+
+    private Workload(String scenario, int devices, int slots,
+                     HashMap<ComponentId, DeviceId> placement,
+                     ArrayList<ArrayList<ComponentTransfer>> transfers) {
+        this.scenario = scenario;
+        this.devices = devices;
+        this.slots = slots;
+        this.transfers = transfers;
+        this.placement = placement;
+        system = StorageSystemFactory.newSystem(deviceCapacities(), placement);
+    }
+
+    private Workload(Workload workload, StorageSystem system) {
+        this.scenario = workload.scenario;
+        this.devices = workload.devices;
+        this.slots = workload.slots;
+        this.transfers = workload.transfers;
+        this.placement = workload.placement;
+        this.system = system;
+    }
+
+    //Returns the same workload on a new system, which records its placement
+    //in the journal in the given file.
+    Workload durable(Path journalFile) throws IOException {
+        return new Workload(this, StorageSystemFactory.newDurableSystem(
+                deviceCapacities(), placement, journalFile));
+    }
+
+    private HashMap<DeviceId, Integer> deviceCapacities() {
+        HashMap<DeviceId, Integer> result = new HashMap<>();
+        for(int i = 0; i < devices; ++i){
+            result.put(new DeviceId(i), slots);
+        }
+        return result;
+    }
+
+    int threads() {
+        return transfers.size();
+    }
+
+    //Every thread moves its component between two devices that have enough
+    //slots for all the components using them, so no transfer ever waits.
+    //Returns null if the devices would not have enough slots.
+    static Workload freeSlotMoves(int devices, int slots, int threads) {
+        if(slots < 2 * ((threads + devices - 1) / devices)){
+            return null;
+        }
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        ArrayList<ArrayList<ComponentTransfer>> transfers = new ArrayList<>();
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            DeviceId first = new DeviceId(i % devices);
+            DeviceId second = new DeviceId((i + 1) % devices);
+            placement.put(comp, first);
+            ArrayList<ComponentTransfer> loop = new ArrayList<>();
+            loop.add(new NoOpTransfer(comp, first, second));
+            loop.add(new NoOpTransfer(comp, second, first));
+            transfers.add(loop);
+        }
+        return new Workload("free-slot-moves", devices, slots, placement,
+                transfers);
+    }
+
+    //The devices form a ring, which is full except for one slot, and every
+    //thread moves its component around the ring. Almost every transfer has
+    //to wait for a slot that will be freed by the component ahead of it,
+    //and chains of waiting transfers always end at the free slot.
+    //Returns null if there would be less than two threads.
+    static Workload futureSlotMoves(int devices, int slots) {
+        return ring("future-slot-moves", devices, slots);
+    }
+
+    //Same as futureSlotMoves() with single-slot devices, so that the waiting
+    //transfers form long chains.
+    static Workload chains(int devices) {
+        return ring("chain", devices, 1);
+    }
+
+    private static Workload ring(String scenario, int devices, int slots) {
+        int threads = devices * slots - 1;
+        if(threads < 2){
+            return null;
+        }
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        ArrayList<ArrayList<ComponentTransfer>> transfers = new ArrayList<>();
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            placement.put(comp, new DeviceId(i % devices));
+            transfers.add(aroundTheRing(comp, i % devices, 0, devices));
+        }
+        return new Workload(scenario, devices, slots, placement, transfers);
+    }
+
+    //Every thread deletes its component and adds it back. The devices have
+    //enough slots for all the components, so no transfer ever waits.
+    static Workload addDeleteChurn(int devices, int slots, int threads) {
+        if(slots < (threads + devices - 1) / devices){
+            return null;
+        }
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        ArrayList<ArrayList<ComponentTransfer>> transfers = new ArrayList<>();
+        for(int i = 0; i < threads; ++i){
+            ComponentId comp = new ComponentId(i);
+            DeviceId device = new DeviceId(i % devices);
+            placement.put(comp, device);
+            ArrayList<ComponentTransfer> loop = new ArrayList<>();
+            loop.add(new NoOpTransfer(comp, device, null));
+            loop.add(new NoOpTransfer(comp, null, device));
+            transfers.add(loop);
+        }
+        return new Workload("add-delete-churn", devices, slots, placement,
+                transfers);
+    }
+
+    //Independent rings of full single-slot devices of the given length. Every
+    //thread moves its component around its ring, so the transfers can
+    //proceed only when all of them form a cycle.
+    static Workload cycles(int length, int rings) {
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        ArrayList<ArrayList<ComponentTransfer>> transfers = new ArrayList<>();
+        for(int i = 0; i < length * rings; ++i){
+            ComponentId comp = new ComponentId(i);
+            placement.put(comp, new DeviceId(i));
+            int ring = i / length;
+            transfers.add(aroundTheRing(comp, i % length, ring * length,
+                    length));
+        }
+        return new Workload(length + "-cycles", length * rings, 1, placement,
+                transfers);
+    }
+
+    //Moves of the given component, which starts at the given position
+    //of the ring of devices, around the whole ring.
+    private static ArrayList<ComponentTransfer> aroundTheRing(ComponentId comp,
+                                                              int position,
+                                                              int firstDevice,
+                                                              int length) {
+        ArrayList<ComponentTransfer> loop = new ArrayList<>();
+        for(int j = 0; j < length; ++j){
+            int from = firstDevice + (position + j) % length;
+            int to = firstDevice + (position + j + 1) % length;
+            loop.add(new NoOpTransfer(comp, new DeviceId(from),
+                    new DeviceId(to)));
+        }
+        return loop;
+    }
+}
@@ -0,0 +1,20 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+
+public final class TransferInterrupted extends TransferException {
+
+    private static final long serialVersionUID = 6920450721483925158L;
+
+    private final ComponentId compId;
+    
+    public TransferInterrupted(ComponentId compId) {
+        super("transfer of component " + compId.toString() +
+                " was interrupted while waiting for a memory slot");
+        this.compId = compId;
+    }
+    
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+}
@@ -0,0 +1,20 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+
+public final class TransferTimedOut extends TransferException {
+
+    private static final long serialVersionUID = -3085829021570127741L;
+
+    private final ComponentId compId;
+    
+    public TransferTimedOut(ComponentId compId) {
+        super("transfer of component " + compId.toString() +
+                " timed out waiting for a memory slot");
+        this.compId = compId;
+    }
+    
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+}
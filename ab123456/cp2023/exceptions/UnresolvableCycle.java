@@ -0,0 +1,20 @@
+package cp2023.exceptions;
+
+import cp2023.base.ComponentId;
+
+public final class UnresolvableCycle extends TransferException {
+
+    private static final long serialVersionUID = 4721638395024817306L;
+
+    private final ComponentId compId;
+    
+    public UnresolvableCycle(ComponentId compId) {
+        super("group transfer of component " + compId.toString() +
+                " waits in a cycle that can't be resolved");
+        this.compId = compId;
+    }
+    
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+}
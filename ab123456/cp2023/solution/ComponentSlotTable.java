@@ -0,0 +1,147 @@
+package cp2023.solution;
+//This class maps the ids of the components stored in a device to the ids
+//of their memory slots. It is an open-addressing hash table with linear
+//probing, in which every entry is a single long: the component id in its
+//upper half, and the slot id increased by one in its lower half, so that
+//an empty entry is 0. The table is sized for the components the device
+//holds, not for its slots, as most of them are usually free, and it doubles
+//whenever its load factor would exceed 3/4.
+//The table is not thread-safe, it is guarded by the device lock, except for
+//copyIdsTo().
+class ComponentSlotTable {
+    private long[] entries;
+    private int mask;
+    private int size = 0;
+
+    //Constructor of the table that can hold the given number of components
+    //without growing.
+    ComponentSlotTable(int expectedSize){
+        entries = new long[capacityFor(expectedSize)];
+        mask = entries.length - 1;
+    }
+
+    private static int capacityFor(int size){
+        return Integer.highestOneBit(Math.max(size + size / 3, 2)) << 1;
+    }
+
+    static int hash(int id){
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long pack(int id, int slot){
+        return ((long) id << 32) | (slot + 1);
+    }
+
+    private static int key(long entry){
+        return (int) (entry >>> 32);
+    }
+
+    private static int slot(long entry){
+        return (int) entry - 1;
+    }
+
+    //Returns the index of the entry with the given id, or -1 if there is none.
+    private int find(int id){
+        for(int i = hash(id) & mask; ; i = (i + 1) & mask){
+            long entry = entries[i];
+            if(entry == 0){
+                return -1;
+            }
+            if(key(entry) == id){
+                return i;
+            }
+        }
+    }
+
+    //Returns the slot of the given component, or -1 if it is not present.
+    int get(int id){
+        int i = find(id);
+        return i < 0 ? -1 : slot(entries[i]);
+    }
+
+    boolean containsKey(int id){
+        return find(id) >= 0;
+    }
+
+    //Stores the slot of the given component, which must not be present yet.
+    void put(int id, int slot){
+        if(++size + size / 3 > entries.length){
+            grow();
+        }
+        insert(pack(id, slot));
+    }
+
+    private void insert(long entry){
+        int i = hash(key(entry)) & mask;
+        while(entries[i] != 0){
+            i = (i + 1) & mask;
+        }
+        entries[i] = entry;
+    }
+
+    private void grow(){
+        long[] old = entries;
+        entries = new long[old.length << 1];
+        mask = entries.length - 1;
+        for(long entry : old){
+            if(entry != 0){
+                insert(entry);
+            }
+        }
+    }
+
+    //Copies the ids of all the components, and their slots, to the given
+    //arrays, which have to be big enough, and returns their number.
+    int copyTo(int[] ids, int[] slots){
+        int count = 0;
+        for(long entry : entries){
+            if(entry != 0){
+                ids[count] = key(entry);
+                slots[count++] = slot(entry);
+            }
+        }
+        return count;
+    }
+
+    //Copies the ids of all the components to the given array, and returns
+    //their number, or -1 if the array is too small. It may be called without
+    //the device lock, while the table is being changed, in which case
+    //the result is garbage, which the caller has to detect on its own,
+    //see DeviceDataWrapper.getComponentsWithoutLock().
+    int copyIdsTo(int[] ids){
+        int count = 0;
+        for(long entry : entries){
+            if(entry != 0){
+                if(count == ids.length){
+                    return -1;
+                }
+                ids[count++] = key(entry);
+            }
+        }
+        return count;
+    }
+
+    //Removes the given component and returns its slot, or -1 if it was not
+    //present. The entries that follow are shifted back into the hole, so that
+    //no tombstones are needed.
+    int remove(int id){
+        int hole = find(id);
+        if(hole < 0){
+            return -1;
+        }
+        int result = slot(entries[hole]);
+        for(int i = (hole + 1) & mask; entries[i] != 0; i = (i + 1) & mask){
+            int home = hash(key(entries[i])) & mask;
+            //The entry can be moved to the hole only if the hole lies
+            //between its home position and its current position.
+            if(((i - home) & mask) >= ((i - hole) & mask)){
+                entries[hole] = entries[i];
+                hole = i;
+            }
+        }
+        entries[hole] = 0;
+        --size;
+        return result;
+    }
+}
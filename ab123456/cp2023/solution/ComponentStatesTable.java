@@ -0,0 +1,220 @@
+package cp2023.solution;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+//This class maps the ids of all the components known to the system to their
+//states, and to the devices they are stored in. It is split into segments,
+//each of them an open-addressing hash table with linear probing, in which
+//every entry is a single long: the component id in its upper half, and
+//in its lower half the state in the two lowest bits, and the index
+//of the device increased by one in the others, so that 0 means no device.
+//Components are never removed, so the states and the devices of the existing
+//entries are changed with a single CAS, and only the insertions take
+//the segment lock. The device of a component is read like its state,
+//without any lock.
+//When a segment grows, its old entries are marked as MOVED one by one with
+//a CAS, so that no concurrent update can be lost, and the threads that see
+//such an entry wait for the new table to be published.
+class ComponentStatesTable {
+    //State of an empty entry, returned for the components that are not known.
+    static final int ABSENT = 0;
+    //The component is not being operated on.
+    static final int IDLE = 1;
+    //The component is being operated on.
+    static final int BUSY = 2;
+    private static final int MOVED = 3;
+    private static final int STATE_BITS = 2;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+    //Device of the components that are not stored in any device.
+    static final int NO_DEVICE = -1;
+    private static final int SEGMENT_BITS = 6;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    private static class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile AtomicLongArray entries;
+        //Number of the entries, guarded by the lock.
+        int size = 0;
+
+        Segment(int capacity){
+            entries = new AtomicLongArray(capacity);
+        }
+
+        //Waits until the thread growing this segment publishes the new table.
+        void awaitResize(){
+            lock.lock();
+            lock.unlock();
+        }
+    }
+
+    //Constructor.
+    ComponentStatesTable(int expectedSize){
+        int perSegment = expectedSize >> SEGMENT_BITS;
+        int capacity = Integer.highestOneBit(
+                Math.max(perSegment + perSegment / 3, 8)) << 1;
+        for(int i = 0; i < segments.length; ++i){
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    private static int hash(int id){
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash){
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static long pack(int id, int state, int device){
+        return ((long) id << 32) |
+                (((device + 1) << STATE_BITS | state) & 0xFFFFFFFFL);
+    }
+
+    private static long withState(long entry, int state){
+        return (entry & ~STATE_MASK) | state;
+    }
+
+    private static int key(long entry){
+        return (int) (entry >>> 32);
+    }
+
+    private static int state(long entry){
+        return (int) entry & STATE_MASK;
+    }
+
+    private static int device(long entry){
+        return ((int) entry >>> STATE_BITS) - 1;
+    }
+
+    //Returns the index of the entry with the given id, or -(i + 1), where i is
+    //the index of the empty entry at which the search stopped.
+    private static int find(AtomicLongArray entries, int hash, int id){
+        int mask = entries.length() - 1;
+        for(int i = hash & mask; ; i = (i + 1) & mask){
+            long entry = entries.get(i);
+            if(state(entry) == ABSENT){
+                return -(i + 1);
+            }
+            if(key(entry) == id){
+                return i;
+            }
+        }
+    }
+
+    //Returns the entry of the given component, or 0 if it is not known.
+    private long getEntry(int id){
+        int h = hash(id);
+        Segment segment = segmentFor(h);
+        while(true){
+            AtomicLongArray entries = segment.entries;
+            int i = find(entries, h, id);
+            if(i < 0){
+                return 0;
+            }
+            long entry = entries.get(i);
+            if(state(entry) != MOVED){
+                return entry;
+            }
+            segment.awaitResize();
+        }
+    }
+
+    //Returns the state of the given component, or ABSENT if it is not known.
+    int get(int id){
+        return state(getEntry(id));
+    }
+
+    //Returns the index of the device the given component is stored in,
+    //or NO_DEVICE if it is not stored in any, or it is not known.
+    int getDevice(int id){
+        return device(getEntry(id));
+    }
+
+    //Changes the state of the given component if it is the expected one,
+    //and keeps its device. Returns false if it is not, or if the component
+    //is not known.
+    boolean compareAndSet(int id, int expected, int update){
+        return compareAndSet(id, expected, update, NO_DEVICE, false);
+    }
+
+    //Changes the state of the given component if it is the expected one,
+    //and its device to the given one.
+    boolean compareAndSet(int id, int expected, int update, int device){
+        return compareAndSet(id, expected, update, device, true);
+    }
+
+    private boolean compareAndSet(int id, int expected, int update,
+                                  int device, boolean bSetDevice){
+        int h = hash(id);
+        Segment segment = segmentFor(h);
+        while(true){
+            AtomicLongArray entries = segment.entries;
+            int i = find(entries, h, id);
+            if(i < 0){
+                return false;
+            }
+            long entry = entries.get(i);
+            if(state(entry) == MOVED){
+                segment.awaitResize();
+            }
+            else if(state(entry) != expected){
+                return false;
+            }
+            else if(entries.compareAndSet(i, entry, bSetDevice ?
+                    pack(id, update, device) : withState(entry, update))){
+                return true;
+            }
+            //Otherwise, the entry has just changed, so it is read again.
+        }
+    }
+
+    //Adds the given component with the given state, and no device, if it is
+    //not known yet. Returns false if it is.
+    boolean putIfAbsent(int id, int state){
+        return putIfAbsent(id, state, NO_DEVICE);
+    }
+
+    //Adds the given component with the given state, stored in the device
+    //with the given index, if it is not known yet. Returns false if it is.
+    boolean putIfAbsent(int id, int state, int device){
+        int h = hash(id);
+        Segment segment = segmentFor(h);
+        segment.lock.lock();
+        try {
+            AtomicLongArray entries = segment.entries;
+            int i = find(entries, h, id);
+            if(i >= 0){
+                return false;
+            }
+            if((segment.size + 1) * 4 > entries.length() * 3){
+                entries = resize(segment);
+                i = find(entries, h, id);
+            }
+            entries.set(-(i + 1), pack(id, state, device));
+            ++segment.size;
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    //Moves the entries of the segment to a table twice as big, and publishes
+    //it. Has to be called with the segment lock held.
+    private static AtomicLongArray resize(Segment segment){
+        AtomicLongArray entries = segment.entries;
+        AtomicLongArray result = new AtomicLongArray(entries.length() * 2);
+        for(int i = 0; i < entries.length(); ++i){
+            long entry;
+            do {
+                entry = entries.get(i);
+            } while(state(entry) != ABSENT && !entries.compareAndSet(i, entry,
+                    withState(entry, MOVED)));
+            if(state(entry) != ABSENT){
+                int j = -(find(result, hash(key(entry)), key(entry)) + 1);
+                result.set(j, entry);
+            }
+        }
+        segment.entries = result;
+        return result;
+    }
+}
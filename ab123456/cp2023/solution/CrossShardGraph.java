@@ -0,0 +1,125 @@
+package cp2023.solution;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+//This class keeps the edges of the move transfers waiting for a memory slot
+//in a device of another shard than their source device. They are not a part
+//of any WaitForGraph, so that the searches of every shard stay within its
+//own devices, and the cycles containing them are found here instead.
+//An edge is added and removed with waitingTransfersMutex of the shard
+//of its destination device held, and with the lock of this graph, which
+//is always taken last. A cycle may go through the waiting moves of any
+//shards, so findCycle() has to be called with the mutexes of all of them
+//held. It searches the whole graph, but it is needed only when a move that
+//starts waiting may close such a cycle, see mayCloseCycle().
+class CrossShardGraph {
+    private final LinkedHashSet<TransferDataWrapper> transfers =
+            new LinkedHashSet<>();
+    private volatile int transfersCount = 0;
+    private final ArrayDeque<DeviceDataWrapper> stack = new ArrayDeque<>();
+    //Edge every device visited by the current search was reached by.
+    private final IdentityHashMap<DeviceDataWrapper, TransferDataWrapper>
+            reachedBy = new IdentityHashMap<>();
+
+    synchronized void addWaitingTransfer(TransferDataWrapper transfer){
+        DeviceDataWrapper src = transfer.source;
+        if(src.crossShardTransfers == null){
+            src.crossShardTransfers = new HashSet<>();
+        }
+        src.crossShardTransfers.add(transfer);
+        if(transfers.add(transfer)){
+            ++src.shard.outgoingCrossShardCount;
+            ++transfer.destination.shard.incomingCrossShardCount;
+        }
+        transfersCount = transfers.size();
+    }
+
+    synchronized void removeWaitingTransfer(TransferDataWrapper transfer){
+        if(transfers.remove(transfer)){
+            transfer.source.crossShardTransfers.remove(transfer);
+            --transfer.source.shard.outgoingCrossShardCount;
+            --transfer.destination.shard.incomingCrossShardCount;
+            transfersCount = transfers.size();
+        }
+    }
+
+    //Returns true if there are no waiting moves between the shards, so
+    //no cycle can go through more than one shard. It needs no lock.
+    boolean isEmpty(){
+        return transfersCount == 0;
+    }
+
+    //Returns true if the given transfer, which has just started waiting, may
+    //be a part of a cycle through many shards. A move within a shard can be one
+    //only if some waiting move between the shards leaves its shard, and
+    //another one comes back to it, so the moves in the shards that no such
+    //pair goes through never take the mutexes of the other shards. It needs
+    //no lock: a move between the shards always searches for the cycles
+    //after its edge is added, so if the given move misses one that is
+    //being added, that one finds the cycle.
+    boolean mayCloseCycle(TransferDataWrapper transfer){
+        if(isEmpty() || transfer.source == null){
+            return false;
+        }
+        Shard shard = transfer.source.shard;
+        return transfer.bCrossShard || (shard.outgoingCrossShardCount > 0 &&
+                shard.incomingCrossShardCount > 0);
+    }
+
+    //Returns a cycle of the waiting transfers that contains a move between
+    //the shards, starting with that move, so that every transfer waits for
+    //the device the previous one leaves, or null if there is no such cycle.
+    //The edges of the cycle are not removed.
+    synchronized ArrayList<TransferDataWrapper> findCycle(){
+        for(TransferDataWrapper transfer : transfers){
+            if(searchForward(transfer.destination, transfer.source)){
+                ArrayList<TransferDataWrapper> cycle = new ArrayList<>();
+                cycle.add(transfer);
+                for(DeviceDataWrapper d = transfer.source;
+                    d != transfer.destination; d = reachedBy.get(d).source){
+                    cycle.add(reachedBy.get(d));
+                }
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    //Iterative DFS over the outgoing edges of both kinds. Returns true
+    //if the target device was reached.
+    private boolean searchForward(DeviceDataWrapper start,
+                                  DeviceDataWrapper target){
+        reachedBy.clear();
+        reachedBy.put(start, null);
+        stack.clear();
+        stack.push(start);
+        while(!stack.isEmpty()){
+            DeviceDataWrapper device = stack.pop();
+            if((device.outgoingTransfers != null &&
+                    visit(device.outgoingTransfers, target)) ||
+                    (device.crossShardTransfers != null &&
+                            visit(device.crossShardTransfers, target))){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean visit(HashSet<TransferDataWrapper> edges,
+                          DeviceDataWrapper target){
+        for(TransferDataWrapper edge : edges){
+            DeviceDataWrapper next = edge.destination;
+            if(reachedBy.containsKey(next)){
+                continue;
+            }
+            reachedBy.put(next, edge);
+            if(next == target){
+                return true;
+            }
+            stack.push(next);
+        }
+        return false;
+    }
+}
@@ -1,115 +1,671 @@
 package cp2023.solution;
 import cp2023.base.ComponentId;
-import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 //This class holds all data if the device with the given id, as well as
 //implements useful functions to process this data.
+//All the data is guarded by the device lock, except for the memory cells,
+//which are updated atomically, and the waiting transfers, which are guarded
+//by the waitingTransfersMutex of the Shard of the device. The number of
+//the used slots and the ids of the components can also be read without
+//any lock, see getComponentsWithoutLock().
+//
+//The number of the slots may be changed while the system runs, see
+//resize(). When the device shrinks, the slots beyond its new size that are
+//still in use are retiring: they are never handed over to another component,
+//and they are dropped when their components leave. The slots beyond the size
+//that are not in use are never touched, so the device grows back into them
+//without any copying, until it outgrows the array of their states.
 public class DeviceDataWrapper {
-    private final int deviceSize;
-    private Map<ComponentId, Integer> memoryMapping;
-    private Map<ComponentId, Integer> reservedMemory;
-    private ArrayList<ComponentId> componentsInsideDevice;
-    private ArrayList<ComponentId> componentsLeavingDevice;
-    private ArrayList<Semaphore> memoryCells;
-    public ArrayList<ComponentTransfer>
-            waitingTransfers = new ArrayList<>();
+    private final DeviceId deviceId;
+    //Volatile, so that the size of the device can be read without the lock.
+    //It is changed only with the lock held.
+    private volatile int deviceSize;
+    private final ReentrantLock deviceLock = new ReentrantLock();
+    //State of every memory slot, a single byte, which is all the device
+    //keeps per slot: the lower two bits tell whether the slot is reserved
+    //or occupied, which is changed only with the device lock held, and
+    //the next two the state of its memory cell, which is changed without
+    //any lock. Both are changed with compare-and-set, so that neither
+    //overwrites the other. A byte of 0 is a free slot with a free cell,
+    //so the slots that were never used need no initialization.
+    //When the device outgrows the array, its old states are marked as
+    //SLOT_MOVED one by one with a CAS, so that no concurrent change of a cell
+    //can be lost, and the threads that see such a state wait for the new
+    //array to be published, as in ComponentStatesTable.
+    private volatile byte[] slotStates;
+    private static final VarHandle SLOT_STATES =
+            MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final int SLOT_MASK = 3;
+    private static final int SLOT_FREE = 0;
+    //Reserved for the component that has not entered the device yet.
+    private static final int SLOT_RESERVED = 1;
+    private static final int SLOT_OCCUPIED = 2;
+    //Occupied by the leaving component, and reserved for the one that
+    //will replace it.
+    private static final int SLOT_OCCUPIED_RESERVED = 3;
+    private static final int CELL_MASK = 12;
+    private static final int CELL_OCCUPIED = 4;
+    //Occupied, and some transfer waits for it, see cellWaiters.
+    private static final int CELL_WAITED = 8;
+    private static final int SLOT_MOVED = 16;
+    //Memory slot allocator, so that both reserving and freeing a slot is
+    //O(1): all the slots from firstUnusedSlot to the size of the device
+    //are free, and the free slots below it are on the stack, which grows
+    //as needed. The lowest ones are taken first.
+    private int firstUnusedSlot;
+    private int[] freeMemorySlots;
+    private int freeMemorySlotsOnStack;
+    private int freeMemorySlotsCount;
+    //Volatile, so that the occupancy of the device can be read without
+    //the lock. It is changed only with the lock held.
+    private volatile int usedSlotsCount;
+    //Number of the retiring slots, that is the slots beyond the size
+    //of the device that are still in use.
+    private int retiringSlotsCount = 0;
+    //Future of the last resize, until there are no retiring slots,
+    //see takeFinishedResize().
+    private CompletableFuture<Void> pendingResize = null;
+    //Set once the device is being drained, see StorageSystemClass.
+    private boolean bDraining = false;
+    private ComponentSlotTable memoryMapping;
+    //Seqlock of memoryMapping for the readers that do not hold the device
+    //lock: it is odd while the mapping is being changed.
+    private volatile int mappingVersion = 0;
+    private LinkedHashSet<ComponentId> componentsLeavingDevice;
+    //Components leaving the retiring slots, whose slots can't be reserved.
+    private final LinkedHashSet<ComponentId> componentsLeavingRetiringSlots =
+            new LinkedHashSet<>();
+    //Transfers waiting for the memory cells to be released, by the ids
+    //of the cells. Only the cells marked with CELL_WAITED have an entry,
+    //which is rare, so it is not worth a reference per slot.
+    private final ConcurrentHashMap<Integer, TransferDataWrapper> cellWaiters =
+            new ConcurrentHashMap<>();
+    //Queue of the transfers waiting for a memory slot in this device, and
+    //of the group transfers waiting for the slots of all their components,
+    //each represented by one of its members, see GroupDataWrapper. It is
+    //ordered by their ranks, and then by the time they started waiting,
+    //linked through their previousWaiting and nextWaiting fields, so that
+    //both taking the first one and removing any of them is O(1). A new
+    //transfer is inserted after the last one with a rank that is not higher,
+    //searching from the end, which is O(1) as well when the ranks are equal,
+    //as they are in the FIFO order. The transfers are served strictly in
+    //this order, so while the first one is a group that the device can't
+    //take yet, the ones behind it wait, even if some slots are available.
+    TransferDataWrapper firstWaitingTransfer = null;
+    private TransferDataWrapper lastWaitingTransfer = null;
+    //Number of transfers in the queue. Transfers are added to the queue
+    //only by the threads holding the device lock, so a thread holding it
+    //can never see this value lower than the actual one.
+    private volatile int waitingTransfersCount = 0;
+    //Shard of the system the device belongs to, and the index of the device
+    //in the system, by which the ComponentStatesTable refers to it, both set
+    //once by the system before any transfer starts.
+    Shard shard;
+    int index;
+    //Data of this device in the WaitForGraph of its shard, guarded by
+    //waitingTransfersMutex as well. The set of the waiting moves from this
+    //device is created when the first one appears, as most devices never
+    //have any.
+    HashSet<TransferDataWrapper> outgoingTransfers = null;
+    int topologicalOrder;
+    int visitMark;
+    TransferDataWrapper reachedBy;
+    //Waiting moves from this device to the devices of other shards, created
+    //when the first one appears, and guarded by the CrossShardGraph.
+    HashSet<TransferDataWrapper> crossShardTransfers = null;
+    //Waiting moves from this device to the devices of other nodes, created
+    //when the first one appears, and guarded by waitingTransfersMutex,
+    //see RemoteMoveGraph.
+    HashSet<TransferDataWrapper> remoteTransfers = null;
 
     //Constructor.
-    public DeviceDataWrapper(ArrayList<ComponentId> components, int slots){
+    public DeviceDataWrapper(DeviceId id, ArrayList<ComponentId> components,
+                             int slots){
+        this(id, slots, toIds(components), consecutiveSlots(components.size()));
+    }
+
+    //Constructor of the device whose components, given by their ids, occupy
+    //the given memory slots.
+    DeviceDataWrapper(DeviceId id, int slots, int[] components,
+                      int[] componentSlots){
+        deviceId = id;
         deviceSize = slots;
-        componentsInsideDevice = components;
-        componentsLeavingDevice = new ArrayList<>();
-        memoryCells = new ArrayList<>();
-        memoryMapping = new HashMap<>();
-        reservedMemory = new HashMap<>();
-        for(int i = 0; i < deviceSize; ++i){
-            if(i < componentsInsideDevice.size()){
-                memoryMapping.put(componentsInsideDevice.get(i), i);
-                memoryCells.add(new Semaphore(0, true));
+        if(components.length > deviceSize){
+            throw new IllegalArgumentException("Too many components " +
+                    "assigned to the device with id = " + id);
+        }
+        componentsLeavingDevice = new LinkedHashSet<>();
+        memoryMapping = new ComponentSlotTable(components.length);
+        byte[] states = new byte[deviceSize];
+        firstUnusedSlot = 0;
+        for(int i = 0; i < components.length; ++i){
+            int slot = componentSlots[i];
+            if(slot < 0 || slot >= deviceSize || states[slot] != SLOT_FREE){
+                throw new IllegalArgumentException("Invalid memory slot " +
+                        slot + " of the component with id = " +
+                        components[i] + " in the device with id = " + id);
+            }
+            memoryMapping.put(components[i], slot);
+            states[slot] = SLOT_OCCUPIED | CELL_OCCUPIED;
+            firstUnusedSlot = Math.max(firstUnusedSlot, slot + 1);
+        }
+        //The lowest free slots are on the top of the stack.
+        freeMemorySlots = new int[Math.max(
+                firstUnusedSlot - components.length, 4)];
+        freeMemorySlotsOnStack = 0;
+        for(int i = firstUnusedSlot - 1; i >= 0; --i){
+            if(states[i] == SLOT_FREE){
+                freeMemorySlots[freeMemorySlotsOnStack++] = i;
+            }
+        }
+        freeMemorySlotsCount = deviceSize - components.length;
+        usedSlotsCount = components.length;
+        slotStates = states;
+    }
+
+    private static int[] toIds(ArrayList<ComponentId> components){
+        int[] result = new int[components.size()];
+        for(int i = 0; i < result.length; ++i){
+            result[i] = Ids.of(components.get(i));
+        }
+        return result;
+    }
+
+    private static int[] consecutiveSlots(int count){
+        int[] result = new int[count];
+        for(int i = 0; i < count; ++i){
+            result[i] = i;
+        }
+        return result;
+    }
+
+    public DeviceId getDeviceId(){
+        return deviceId;
+    }
+
+    public void lock(){
+        deviceLock.lock();
+    }
+
+    public void unlock(){
+        deviceLock.unlock();
+    }
+
+    //Locks the device and returns the time in nanoseconds spent waiting
+    //for the lock. The clock is read only if the lock is taken, so that
+    //the uncontended case stays cheap.
+    long lockAndGetWaitTime(){
+        if(deviceLock.tryLock()){
+            return 0;
+        }
+        long start = System.nanoTime();
+        deviceLock.lock();
+        return System.nanoTime() - start;
+    }
+
+    int getDeviceSize(){
+        return deviceSize;
+    }
+
+    //Returns the number of slots that are occupied or reserved, including
+    //the retiring ones. Without the device lock, the number may be already
+    //out of date.
+    int getUsedSlotsCount(){
+        return usedSlotsCount;
+    }
+
+    //Returns the ids of the components of this device in the first array,
+    //and their memory slots in the second one. The used slots include
+    //the ones reserved for the components that have not entered yet, so
+    //the arrays are trimmed to the components that are in the mapping.
+    //Has to be called with the device lock held.
+    int[][] getComponentSlots(){
+        int[] ids = new int[usedSlotsCount];
+        int[] slots = new int[usedSlotsCount];
+        int count = memoryMapping.copyTo(ids, slots);
+        return new int[][]{Arrays.copyOf(ids, count),
+                Arrays.copyOf(slots, count)};
+    }
+
+    //Returns the ids of the components of this device without taking
+    //the lock. The mapping is copied while no one changes it, which is
+    //checked with its seqlock, and copied again if someone did. The writers
+    //hold the device lock for a few instructions only, so the copy is
+    //retried rarely, and never blocks them.
+    int[] getComponentsWithoutLock(){
+        int[] ids = new int[getUsedSlotsCount()];
+        while(true){
+            int version = mappingVersion;
+            if((version & 1) == 0){
+                int count = memoryMapping.copyIdsTo(ids);
+                VarHandle.loadLoadFence();
+                if(mappingVersion == version){
+                    if(count >= 0){
+                        return count == ids.length ? ids :
+                                Arrays.copyOf(ids, count);
+                    }
+                    //More components entered the device in the meantime.
+                    ids = new int[2 * ids.length + 1];
+                    continue;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    //Starts a change of memoryMapping, see getComponentsWithoutLock().
+    //Has to be called with the device lock held.
+    private void beginMappingChange(){
+        mappingVersion = mappingVersion + 1;
+        //The odd version has to be visible before any change of the mapping.
+        VarHandle.storeStoreFence();
+    }
+
+    private void endMappingChange(){
+        mappingVersion = mappingVersion + 1;
+    }
+
+    int getWaitingTransfersCount(){
+        return waitingTransfersCount;
+    }
+
+    //Acquires the memory cell with the given id and returns true if it is
+    //free. Otherwise, registers the given transfer as the one to be woken up
+    //when the cell is released, and returns false. Only the transfer that
+    //reserved the cell may try to acquire it.
+    boolean acquireMemoryCell(int id, TransferDataWrapper transfer){
+        while(true){
+            byte[] states = slotStates;
+            int state = getSlotState(states, id);
+            if((state & SLOT_MOVED) != 0){
+                awaitSlotStatesResize();
+                continue;
+            }
+            if((state & CELL_MASK) == 0){
+                if(casSlotState(states, id, state, state | CELL_OCCUPIED)){
+                    return true;
+                }
+                continue;
             }
-            else{
-                memoryCells.add(new Semaphore(1, true));
+            //The waiter has to be there before the cell is marked, because
+            //the releasing transfer takes it as soon as it sees the mark.
+            cellWaiters.put(id, transfer);
+            if(casSlotState(states, id, state, state | CELL_WAITED)){
+                return false;
             }
+            cellWaiters.remove(id, transfer);
         }
     }
 
-    //Acquires the memory cell with the given id.
-    public void acquireMemoryCell(int id){
-        try {
-            memoryCells.get(id).acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("panic: unexpected thread interruption");
+    //Releases the memory cell with the given id, handing it over to
+    //the transfer waiting for it, if there is one.
+    void releaseMemoryCell(int id){
+        while(true){
+            byte[] states = slotStates;
+            int state = getSlotState(states, id);
+            if((state & SLOT_MOVED) != 0){
+                awaitSlotStatesResize();
+            }
+            else if((state & CELL_WAITED) != 0){
+                //The cell stays occupied, by the waiting transfer now.
+                if(casSlotState(states, id, state, state & ~CELL_WAITED)){
+                    cellWaiters.remove(id).wakeUp();
+                    return;
+                }
+            }
+            else if(casSlotState(states, id, state, state & ~CELL_MASK)){
+                return;
+            }
         }
     }
 
+    //Waits until the thread growing the array of the slot states, which
+    //holds the device lock, publishes the new one.
+    private void awaitSlotStatesResize(){
+        deviceLock.lock();
+        deviceLock.unlock();
+    }
+
+    private static int getSlotState(byte[] states, int slot){
+        return (byte) SLOT_STATES.getVolatile(states, slot);
+    }
+
+    private static boolean casSlotState(byte[] states, int slot, int expected,
+                                        int state){
+        return SLOT_STATES.compareAndSet(states, slot,
+                (byte) expected, (byte) state);
+    }
+
+    //The array is never replaced while the device lock is held, so
+    //the functions below do not check for SLOT_MOVED.
+
+    private int getReservation(int slot){
+        return getSlotState(slotStates, slot) & SLOT_MASK;
+    }
+
+    //Changes the reservation bits of the slot, keeping the state of its
+    //cell, which may be changed at the same time by another transfer.
+    private void setReservation(int slot, int reservation){
+        byte[] states = slotStates;
+        while(true){
+            int state = getSlotState(states, slot);
+            if(casSlotState(states, slot, state,
+                    (state & ~SLOT_MASK) | reservation)){
+                return;
+            }
+        }
+    }
+
+    //Replaces the array of the slot states with a longer one. Has to be
+    //called with the device lock held.
+    private void growSlotStates(int length){
+        byte[] old = slotStates;
+        byte[] result = new byte[length];
+        for(int i = 0; i < old.length; ++i){
+            while(true){
+                int state = getSlotState(old, i);
+                if(casSlotState(old, i, state, state | SLOT_MOVED)){
+                    result[i] = (byte) state;
+                    break;
+                }
+            }
+        }
+        slotStates = result;
+    }
+
     boolean isComponentInDevice(ComponentId comp){
-        return componentsInsideDevice.contains(comp);
+        return memoryMapping.containsKey(Ids.of(comp));
+    }
+
+    //Returns the id of the memory cell occupied by the given component.
+    int getComponentSlot(ComponentId comp){
+        return memoryMapping.get(Ids.of(comp));
     }
 
-    //Adds the given component to the list of components leaving device.
+    //Adds the given component to the list of components leaving device,
+    //unless its slot is retiring, in which case the slot is dropped when
+    //the component leaves, and can't be reserved before.
     public void addComponentLeavingDevice(ComponentId comp){
-        componentsLeavingDevice.add(comp);
+        if(isSlotRetiring(memoryMapping.get(Ids.of(comp)))){
+            componentsLeavingRetiringSlots.add(comp);
+        }
+        else{
+            componentsLeavingDevice.add(comp);
+        }
     }
 
-    public void releaseMemoryCell(ComponentId comp){
-        memoryCells.get(memoryMapping.get(comp)).release();
+    boolean isSlotRetiring(int slot){
+        return slot >= deviceSize;
     }
 
     public boolean hasFreeMemorySpace(){
-        return deviceSize - memoryMapping.size() > 0;
+        return freeMemorySlotsCount > 0;
     }
     public boolean willHaveFreeMemorySpace(){
         return componentsLeavingDevice.size() > 0;
     }
 
-    //Add the given device to the list of components inside this device.
-    public void enterDevice(ComponentId comp){
-        componentsInsideDevice.add(comp);
+    //Returns the number of the memory slots that can be reserved right
+    //away, that is the free ones and the ones of the leaving components.
+    int getAvailableSlotsCount(){
+        return freeMemorySlotsCount + componentsLeavingDevice.size();
     }
 
-    //Looks for the first memory cell that has no memory mapping in either
-    //memoryMapping or reservedMemory maps, acquires it and stores new
-    //information about the memory mapping in the memoryMapping HashMap.
-    public void acquireFirstFreeMemorySlot(ComponentId comp){
-        for(int i = 0; i < memoryCells.size(); ++i){
-            if(!memoryMapping.containsValue(i) &&
-                    !reservedMemory.containsValue(i)){
-                acquireMemoryCell(i);
-                memoryMapping.put(comp, i);
-                break;
-            }
+    //Stores the information about the given component occupying the memory
+    //slot reserved for it before.
+    public void enterDevice(ComponentId comp, int slot){
+        beginMappingChange();
+        memoryMapping.put(Ids.of(comp), slot);
+        endMappingChange();
+        setReservation(slot, SLOT_OCCUPIED);
+    }
+
+    //Takes a free memory slot from the stack of free slots, or the first one
+    //that was never used if the stack is empty, and reserves it.
+    //Returns the id of the reserved slot.
+    public int reserveFreeMemorySlot(){
+        if(freeMemorySlotsCount == 0){
+            throw new IllegalStateException("panic: no free memory slot");
         }
+        int slot = freeMemorySlotsOnStack > 0 ?
+                freeMemorySlots[--freeMemorySlotsOnStack] : firstUnusedSlot++;
+        --freeMemorySlotsCount;
+        ++usedSlotsCount;
+        setReservation(slot, SLOT_RESERVED);
+        return slot;
     }
 
-    //Acquires a memory cell with the id mapped to the given component
-    //in reservedMemory map. The assumption is that this function is used only
-    //When reserveMemorySpace() function was called before for the given comp.
-    public void acquireReservedMemory(ComponentId comp){
-        int index = reservedMemory.get(comp);
-        memoryMapping.put(comp, index);
-        reservedMemory.remove(comp);
-        acquireMemoryCell(index);
+    //Reserves the memory slot with the given id. The slot has to be owned
+    //by a component that is leaving the device.
+    public void reserveMemorySlot(int slot){
+        setReservation(slot, SLOT_OCCUPIED_RESERVED);
     }
 
-    //Removes the given comp from this device data structures.
+    //Removes the given comp from this device data structures. If nobody
+    //reserved its memory slot, the slot becomes free, or is dropped if it
+    //is retiring.
     public void leaveDevice(ComponentId comp){
-        componentsInsideDevice.remove(comp);
+        beginMappingChange();
+        int slot = memoryMapping.remove(Ids.of(comp));
+        endMappingChange();
         componentsLeavingDevice.remove(comp);
-        memoryMapping.remove(comp);
+        componentsLeavingRetiringSlots.remove(comp);
+        if(getReservation(slot) == SLOT_OCCUPIED_RESERVED){
+            setReservation(slot, SLOT_RESERVED);
+            return;
+        }
+        setReservation(slot, SLOT_FREE);
+        --usedSlotsCount;
+        if(isSlotRetiring(slot)){
+            --retiringSlotsCount;
+        }
+        else{
+            pushFreeMemorySlot(slot);
+        }
+    }
+
+    private void pushFreeMemorySlot(int slot){
+        if(freeMemorySlotsOnStack == freeMemorySlots.length){
+            freeMemorySlots = Arrays.copyOf(freeMemorySlots,
+                    2 * freeMemorySlots.length);
+        }
+        freeMemorySlots[freeMemorySlotsOnStack++] = slot;
+        ++freeMemorySlotsCount;
+    }
+
+    //Changes the number of the slots of the device, which has to be locked.
+    //The new slots are free right away, and so are the retiring ones that
+    //the device grows back into. Returns the future to be completed when
+    //there are no retiring slots, see takeFinishedResize(). The future
+    //of the previous resize is cancelled, if it has not finished yet.
+    CompletableFuture<Void> resize(int slots){
+        if(pendingResize != null){
+            pendingResize.cancel(false);
+        }
+        if(slots < deviceSize){
+            shrink(slots);
+        }
+        else if(slots > deviceSize){
+            grow(slots);
+        }
+        pendingResize = new CompletableFuture<>();
+        return pendingResize;
+    }
+
+    private void shrink(int slots){
+        int kept = 0;
+        for(int i = 0; i < freeMemorySlotsOnStack; ++i){
+            if(freeMemorySlots[i] < slots){
+                freeMemorySlots[kept++] = freeMemorySlots[i];
+            }
+        }
+        freeMemorySlotsOnStack = kept;
+        //The slots from firstUnusedSlot on are free, and the ones from
+        //the old size on are already retiring, if they are in use.
+        for(int i = slots; i < Math.min(firstUnusedSlot, deviceSize); ++i){
+            if(getReservation(i) != SLOT_FREE){
+                ++retiringSlotsCount;
+            }
+        }
+        firstUnusedSlot = Math.min(firstUnusedSlot, slots);
+        deviceSize = slots;
+        freeMemorySlotsCount = kept + slots - firstUnusedSlot;
+        Iterator<ComponentId> leaving = componentsLeavingDevice.iterator();
+        while(leaving.hasNext()){
+            ComponentId comp = leaving.next();
+            if(isSlotRetiring(memoryMapping.get(Ids.of(comp)))){
+                leaving.remove();
+                componentsLeavingRetiringSlots.add(comp);
+            }
+        }
+    }
+
+    private void grow(int slots){
+        if(slots > slotStates.length){
+            growSlotStates(slots);
+        }
+        int oldSize = deviceSize;
+        deviceSize = slots;
+        if(retiringSlotsCount > 0){
+            //The retiring slots below the new size are in use again, so
+            //the free slots below the highest of them go to the stack.
+            int end = oldSize;
+            for(int i = oldSize; i < slots; ++i){
+                if(getReservation(i) != SLOT_FREE){
+                    --retiringSlotsCount;
+                    end = i + 1;
+                }
+            }
+            if(end > oldSize){
+                for(int i = end - 1; i >= firstUnusedSlot; --i){
+                    if(getReservation(i) == SLOT_FREE){
+                        pushFreeMemorySlot(i);
+                    }
+                }
+                firstUnusedSlot = end;
+            }
+            Iterator<ComponentId> leaving =
+                    componentsLeavingRetiringSlots.iterator();
+            while(leaving.hasNext()){
+                ComponentId comp = leaving.next();
+                if(!isSlotRetiring(memoryMapping.get(Ids.of(comp)))){
+                    leaving.remove();
+                    componentsLeavingDevice.add(comp);
+                }
+            }
+        }
+        freeMemorySlotsCount = freeMemorySlotsOnStack + slots - firstUnusedSlot;
+    }
+
+    //Returns the future of the last resize of the device, which has to be
+    //locked, if there are no retiring slots left, and forgets it, so that
+    //it is returned only once. Otherwise returns null.
+    CompletableFuture<Void> takeFinishedResize(){
+        if(pendingResize == null || retiringSlotsCount > 0){
+            return null;
+        }
+        CompletableFuture<Void> result = pendingResize;
+        pendingResize = null;
+        return result;
+    }
+
+    //Marks the device as being drained. Has to be called with the device
+    //lock held.
+    void startDraining(){
+        bDraining = true;
+    }
+
+    //Returns true if the device is being drained, so no transfer can enter
+    //it. Has to be called with the device lock held.
+    boolean isDraining(){
+        return bDraining;
     }
 
     //Reserves the memory slot of the first component that is marked as the one
-    //leaving the device (is contained inside componentsLeavingDevice list).
+    //leaving the device (is contained inside componentsLeavingDevice set).
     //The assumption is that this function will be used only when we know that
     //there is no free memory present, but there definitely will, because
     //there is at least one component leaving the device.
-    public void reserveMemorySpace(ComponentId comp){
-        int result = memoryMapping
-                .get(componentsLeavingDevice.get(0));
-        componentsLeavingDevice.remove(0);
-        reservedMemory.put(comp, result);
+    //Returns the id of the reserved slot.
+    public int reserveMemorySpace(){
+        ComponentId leaving = componentsLeavingDevice.iterator().next();
+        componentsLeavingDevice.remove(leaving);
+        int result = memoryMapping.get(Ids.of(leaving));
+        reserveMemorySlot(result);
+        return result;
+    }
+
+    //Functions below have to be called with waitingTransfersMutex held,
+    //except for hasWaitingTransfers(), which needs only the device lock.
+    //Transfers can be added only with the device lock held as well.
+
+    public boolean hasWaitingTransfers(){
+        return waitingTransfersCount > 0;
+    }
+
+    void addWaitingTransfer(TransferDataWrapper transfer){
+        TransferDataWrapper previous = lastWaitingTransfer;
+        while(previous != null && previous.rank > transfer.rank){
+            previous = previous.previousWaiting;
+        }
+        TransferDataWrapper next = previous == null ?
+                firstWaitingTransfer : previous.nextWaiting;
+        transfer.previousWaiting = previous;
+        transfer.nextWaiting = next;
+        if(previous == null){
+            firstWaitingTransfer = transfer;
+        }
+        else{
+            previous.nextWaiting = transfer;
+        }
+        if(next == null){
+            lastWaitingTransfer = transfer;
+        }
+        else{
+            next.previousWaiting = transfer;
+        }
+        transfer.bWaiting = true;
+        ++waitingTransfersCount;
+    }
+
+    void removeWaitingTransfer(TransferDataWrapper transfer){
+        if(transfer.previousWaiting == null){
+            firstWaitingTransfer = transfer.nextWaiting;
+        }
+        else{
+            transfer.previousWaiting.nextWaiting = transfer.nextWaiting;
+        }
+        if(transfer.nextWaiting == null){
+            lastWaitingTransfer = transfer.previousWaiting;
+        }
+        else{
+            transfer.nextWaiting.previousWaiting = transfer.previousWaiting;
+        }
+        transfer.previousWaiting = null;
+        transfer.nextWaiting = null;
+        transfer.bWaiting = false;
+        --waitingTransfersCount;
+    }
+
+    TransferDataWrapper peekWaitingTransfer(){
+        return firstWaitingTransfer;
+    }
+
+    TransferDataWrapper pollWaitingTransfer(){
+        TransferDataWrapper result = firstWaitingTransfer;
+        if(result != null){
+            removeWaitingTransfer(result);
+        }
+        return result;
     }
-}
\ No newline at end of file
+}
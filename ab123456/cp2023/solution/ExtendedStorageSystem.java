@@ -0,0 +1,106 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.PlacementSubscription;
+import cp2023.base.StorageSystem;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.TransferException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+//StorageSystem with everything the systems of this package offer on top
+//of execute(). It is a separate interface, so that the StorageSystem of
+//the assignment stays as it was given, and the implementations of it
+//written against the original, like the tests and the mocks, still compile.
+public interface ExtendedStorageSystem extends StorageSystem, Closeable {
+    TransferStatus tryExecute(ComponentTransfer transfer);
+
+    //Like execute(), but if the transfer has to wait for a memory slot for
+    //longer than the given timeout, it is cancelled, and TransferTimedOut
+    //is thrown. The time it waits for a snapshot of the placement to be
+    //taken before it starts counts as well. Once the transfer gets its
+    //slot, it is always completed.
+    void execute(ComponentTransfer transfer, Duration timeout)
+            throws TransferException;
+
+    TransferStatus tryExecute(ComponentTransfer transfer, Duration timeout);
+
+    CompletableFuture<Void> executeAsync(ComponentTransfer transfer);
+
+    List<CompletableFuture<Void>> executeAll(
+            Collection<? extends ComponentTransfer> transfers);
+
+    //Moves all the components of the group, or none of them. The group is
+    //rejected as a whole if any of its components could not be moved on
+    //its own, with the exception of that component. It waits until
+    //the destination device can take all its components at once, and never
+    //holds the memory slots of only some of them. It waits in the same queue
+    //as the single transfers, and the ones that start waiting after it
+    //never overtake it. A cycle through the group is resolved if the group
+    //can get its slots from the transfers leaving its destination device,
+    //and the ones available there, otherwise it is rejected with
+    //UnresolvableCycle, as it could wait forever. Throws
+    //IllegalArgumentException if the group lacks a source or a destination
+    //device, is empty, or lists a component more than once.
+    void execute(GroupTransfer transfer) throws TransferException;
+
+    TransferStatus tryExecute(GroupTransfer transfer);
+
+    void execute(GroupTransfer transfer, Duration timeout)
+            throws TransferException;
+
+    TransferStatus tryExecute(GroupTransfer transfer, Duration timeout);
+
+    //Returns the device storing the given component, as of the end of its
+    //last transfer, or null if it is not stored in any device. Like
+    //occupancy() and listComponents(), it takes no lock, so it can be
+    //called at any rate without slowing the transfers down.
+    DeviceId locate(ComponentId component);
+
+    //Returns the number of memory slots of the given device that are
+    //occupied, or reserved for the components entering it, or -1 if there
+    //is no such device.
+    int occupancy(DeviceId device);
+
+    //Returns the components stored in the given device at some moment
+    //during the call, or null if there is no such device.
+    List<ComponentId> listComponents(DeviceId device);
+
+    //Subscribes to the completed transfers, which are published as
+    //PlacementEvents once their perform() returns, with the given policy
+    //for the subscriber that falls behind. The transfers of one component
+    //are published in the order they were executed.
+    PlacementSubscription subscribe(PlacementSubscription.Policy policy);
+
+    //Adds an empty device with the given number of memory slots, which
+    //the transfers can use right away. Throws IllegalArgumentException
+    //if there is already a device with the given id.
+    void addDevice(DeviceId device, int slots);
+
+    //Changes the number of memory slots of the given device while
+    //the transfers run. The slots it gains are given to the transfers
+    //waiting for the device right away. When it shrinks, its free slots
+    //are dropped at once, and the occupied ones when their components
+    //leave, without blocking any transfer. The result completes once no
+    //slot beyond the new size is in use, or is cancelled if the device
+    //is resized or drained again before.
+    CompletableFuture<Void> resizeDevice(DeviceId device, int newSlots);
+
+    //Removes the given device once all its components leave it. From
+    //the call on, the transfers to the device, including the ones already
+    //waiting for it, are rejected as if it did not exist, while the ones
+    //from it proceed as usual. The result completes when the device is
+    //removed.
+    CompletableFuture<Void> drainDevice(DeviceId device);
+
+    //Releases what the system holds outside of the heap, like the journal
+    //of a durable system, whose records are forced to the disk first.
+    //The system must not be used afterwards.
+    @Override
+    void close() throws IOException;
+}
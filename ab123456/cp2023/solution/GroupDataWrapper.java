@@ -0,0 +1,105 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.TransferStatus;
+import java.util.ArrayList;
+//This class holds all data of the group transfer that is being executed.
+//Every component of the group has its own member transfer, which keeps
+//its slots and is recorded, published and counted like a transfer of
+//a single component, but the members are never waiting, or woken up,
+//on their own: the whole group waits until all its members can get their
+//slots at once. While it waits, its first member stands for it in the queue
+//of its destination device, among the single transfers, and as the edge
+//of the group in the wait-for graph, so that the cycles through the group
+//are found like any other, see StorageSystemClass.resolveCycle().
+class GroupDataWrapper {
+    final GroupTransfer transfer;
+    final DeviceDataWrapper source;
+    final DeviceDataWrapper destination;
+    final ArrayList<TransferDataWrapper> members;
+    //Set by startGroup(): true if the group can proceed to prepare() right
+    //away, false if it waits until someone wakes it up.
+    boolean bReady = false;
+    //Set when the group is taken out of the queue without memory slots,
+    //to the reason of its rejection: its destination device is being
+    //drained, or it is a part of a cycle that can't be resolved.
+    TransferStatus rejection = null;
+    //Member whose component made the group rejected.
+    TransferDataWrapper rejectedMember = null;
+    private final HandoffSignal wakeUpSignal = new HandoffSignal();
+
+    //Constructor.
+    GroupDataWrapper(GroupTransfer transfer, DeviceDataWrapper source,
+                     DeviceDataWrapper destination){
+        this.transfer = transfer;
+        this.source = source;
+        this.destination = destination;
+        members = new ArrayList<>(transfer.getComponentIds().size());
+        for(ComponentId comp : transfer.getComponentIds()){
+            TransferDataWrapper member = new TransferDataWrapper(
+                    new Member(comp), source, destination, null);
+            member.group = this;
+            members.add(member);
+        }
+    }
+
+    int size(){
+        return members.size();
+    }
+
+    //Returns the member that stands for the waiting group in the queue and
+    //in the wait-for graph. The group waits as long as its bWaiting is set.
+    TransferDataWrapper waiter(){
+        return members.get(0);
+    }
+
+    //Waits until someone reserves the memory slots for the group, but
+    //at most for the given time. Returns false if the time passed.
+    boolean waitForWakeUp(long timeoutNanos) throws InterruptedException {
+        return wakeUpSignal.await(timeoutNanos);
+    }
+
+    void waitForWakeUpUninterruptibly(){
+        wakeUpSignal.awaitUninterruptibly();
+    }
+
+    void wakeUp(){
+        wakeUpSignal.signal();
+    }
+
+    //Transfer of a single component of the group. The group is prepared
+    //and performed as a whole, so its members do nothing on their own.
+    private final class Member implements ComponentTransfer {
+        private final ComponentId comp;
+
+        //Constructor.
+        Member(ComponentId comp){
+            this.comp = comp;
+        }
+
+        @Override
+        public ComponentId getComponentId(){
+            return comp;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId(){
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId(){
+            return transfer.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare(){
+        }
+
+        @Override
+        public void perform(){
+        }
+    }
+}
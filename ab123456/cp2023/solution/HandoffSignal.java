@@ -0,0 +1,124 @@
+package cp2023.solution;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+//This class is what the thread of a transfer sleeps on while it waits
+//for its memory slot or cell, and what the transfer handing it over signals.
+//It is a semaphore for a single waiter, which spins for a while before
+//parking: when prepare() is short, the slot usually comes a few microseconds
+//after the transfer starts waiting, much sooner than a parked thread could
+//be woken up.
+//
+//How long it spins is tuned from the observed handoff times, that is
+//the times from the start of a wait to getting the permit, shared by all
+//the waits in the process. The budget follows twice their moving average,
+//as long as that is short enough to be worth spinning for, and drops to 0
+//otherwise, so the long waits do not burn the CPU. With a single processor,
+//the signalling thread can't run while the waiter spins, so it never spins.
+class HandoffSignal {
+    private static final long MAX_SPIN_NANOS = 50_000;
+    private static final boolean bCanSpin =
+            Runtime.getRuntime().availableProcessors() > 1;
+    //Weight of a new handoff time in the moving average is 1 / 2^SHIFT.
+    private static final int SHIFT = 3;
+    //Shared by all the signals, updated without synchronization, as losing
+    //an update only makes the average a little less accurate.
+    private static volatile long averageHandoffNanos = 0;
+    private static volatile long spinBudgetNanos = bCanSpin ? 5_000 : 0;
+    private final AtomicInteger permits = new AtomicInteger();
+    private volatile Thread waiter = null;
+
+    //Gives a permit to the waiter, waking it up if it is parked.
+    void signal(){
+        permits.incrementAndGet();
+        Thread thread = waiter;
+        if(thread != null){
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private boolean tryAcquire(){
+        int available = permits.get();
+        return available > 0 &&
+                permits.compareAndSet(available, available - 1);
+    }
+
+    //Waits for a permit, but at most for the given time. Returns false
+    //if the time passed.
+    boolean await(long timeoutNanos) throws InterruptedException {
+        if(Thread.interrupted()){
+            throw new InterruptedException();
+        }
+        if(tryAcquire()){
+            return true;
+        }
+        long start = System.nanoTime();
+        if(spin(start, Math.min(timeoutNanos, spinBudgetNanos))){
+            return true;
+        }
+        waiter = Thread.currentThread();
+        try {
+            while(!tryAcquire()){
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if(remaining <= 0){
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if(Thread.interrupted()){
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter = null;
+        }
+        recordHandoff(System.nanoTime() - start);
+        return true;
+    }
+
+    //Waits for a permit. If the thread is interrupted, it keeps waiting,
+    //and its interrupt status is set again when it gets the permit.
+    void awaitUninterruptibly(){
+        if(tryAcquire()){
+            return;
+        }
+        long start = System.nanoTime();
+        if(spin(start, spinBudgetNanos)){
+            return;
+        }
+        boolean bInterrupted = false;
+        waiter = Thread.currentThread();
+        while(!tryAcquire()){
+            LockSupport.park(this);
+            bInterrupted |= Thread.interrupted();
+        }
+        waiter = null;
+        recordHandoff(System.nanoTime() - start);
+        if(bInterrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Spins until it gets a permit, or the given time since the start
+    //passes. Returns true if it got the permit.
+    private boolean spin(long start, long budgetNanos){
+        long elapsed = 0;
+        while(elapsed < budgetNanos){
+            Thread.onSpinWait();
+            if(tryAcquire()){
+                recordHandoff(System.nanoTime() - start);
+                return true;
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        return false;
+    }
+
+    private static void recordHandoff(long nanos){
+        if(!bCanSpin){
+            return;
+        }
+        long average = averageHandoffNanos;
+        average += (Math.min(nanos, 2 * MAX_SPIN_NANOS) - average) >> SHIFT;
+        averageHandoffNanos = average;
+        spinBudgetNanos = 2 * average <= MAX_SPIN_NANOS ? 2 * average : 0;
+    }
+}
@@ -0,0 +1,20 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+//Numbers of the ids, by which the tables of this package, the journal,
+//the snapshots and the traces address the components and the devices.
+//The ids of the assignment do not expose their numbers, but their
+//hashCode() is Integer.hashCode() of the number, which is the number
+//itself.
+public final class Ids {
+    private Ids() {
+    }
+
+    public static int of(ComponentId comp){
+        return comp.hashCode();
+    }
+
+    public static int of(DeviceId device){
+        return device.hashCode();
+    }
+}
@@ -0,0 +1,80 @@
+package cp2023.solution;
+import java.util.concurrent.atomic.AtomicLongArray;
+//Concurrent log-linear histogram of non-negative values. The values up to 15
+//have their own buckets, and every following power of two is split into
+//8 buckets. To keep the recording cheap, the counters are striped by
+//the recording thread, and recording a value never allocates.
+class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+    //Positions of the sum and the maximum of the values after the buckets
+    //of every stripe.
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    private final AtomicLongArray[] stripes;
+    private final int stripesMask;
+
+    //Constructor.
+    LatencyHistogram(){
+        int stripesCount = Integer.highestOneBit(Math.min(16,
+                Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        stripes = new AtomicLongArray[stripesCount];
+        stripesMask = stripesCount - 1;
+        for(int i = 0; i < stripesCount; ++i){
+            stripes[i] = new AtomicLongArray(BUCKETS + 2);
+        }
+    }
+
+    static int bucketOf(long value){
+        if(value < LINEAR_BUCKETS){
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) &
+                (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    //Returns the highest value that falls into the given bucket.
+    static long highestInBucket(int bucket){
+        if(bucket < LINEAR_BUCKETS){
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) +
+                width - 1;
+    }
+
+    void record(long value){
+        AtomicLongArray stripe = stripes[
+                (int) Thread.currentThread().getId() & stripesMask];
+        stripe.incrementAndGet(bucketOf(value));
+        if(value <= 0){
+            //The common case of the lock wait times, nothing else to update.
+            return;
+        }
+        stripe.addAndGet(SUM, value);
+        long max = stripe.get(MAX);
+        while(value > max && !stripe.compareAndSet(MAX, max, value)){
+            max = stripe.get(MAX);
+        }
+    }
+
+    StorageSystemStats.Histogram snapshot(){
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for(AtomicLongArray stripe : stripes){
+            for(int i = 0; i < BUCKETS; ++i){
+                counts[i] += stripe.get(i);
+            }
+            sum += stripe.get(SUM);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return new StorageSystemStats.Histogram(counts, sum, max);
+    }
+}
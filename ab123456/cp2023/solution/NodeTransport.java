@@ -0,0 +1,347 @@
+package cp2023.solution;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+//This class sends and receives the messages of a StorageNode over TCP, with
+//all the sockets served by a single selector thread. Every node listens on
+//its own address, and opens one connection to every other node, the first
+//time it sends something to it, on which it only sends. So the messages
+//from one node to another arrive in the order they were sent. A message is
+//framed by its length, and starts with the id of the node that sent it.
+//The messages of a node to itself do not go through the network.
+//
+//The received messages are passed to the handler in the selector thread,
+//so the handler must never block. A connection that can't be established
+//is retried until the node is closed, but a connection that breaks is not
+//recovered, as the messages in flight would be lost. The handler is told
+//about it instead, so that nobody waits for a reply that can't come, and
+//the messages sent to the node afterwards are dropped. Nothing is received
+//on the connections a node opens, but they are read anyway, to notice when
+//the other node closes them before it has ever sent anything back.
+class NodeTransport implements Closeable {
+    private static final long RECONNECT_MILLIS = 20;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    interface Handler {
+        //Handles the message sent by the given node, positioned after
+        //the id of the node. The buffer is reused after the call returns.
+        void handle(int sender, ByteBuffer message);
+
+        //Called when the connection to, or from, the given node closes or
+        //breaks, once for each of them.
+        void disconnected(int node);
+    }
+
+    //Connection to another node, on which this one sends its messages.
+    private static final class Connection {
+        final int node;
+        //Frames waiting to be written, guarded by the connection.
+        final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+        //Owned by the selector thread.
+        SocketChannel channel = null;
+        boolean bConnected = false;
+        //Set when the connection breaks, guarded by the connection.
+        boolean bBroken = false;
+        long reconnectNanos = 0;
+
+        //Constructor.
+        Connection(int node){
+            this.node = node;
+        }
+    }
+
+    //Frames being read from the connection of another node.
+    private static final class Inbound {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        //Node that sent the first frame, -1 before it arrives.
+        int node = -1;
+    }
+
+    private final int nodeId;
+    private final List<InetSocketAddress> addresses;
+    private final Handler handler;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Connection[] connections;
+    //Connections with new frames, which the selector thread has to write.
+    private final ConcurrentLinkedQueue<Connection> pending =
+            new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    //Buffer for what is read from the connections this node opens, which is
+    //only ever their end. Owned by the selector thread.
+    private final ByteBuffer discarded = ByteBuffer.allocate(64);
+    private volatile boolean bClosed = false;
+
+    //Constructor. Starts listening on the address of the given node.
+    NodeTransport(int nodeId, List<InetSocketAddress> addresses,
+                  Handler handler) throws IOException {
+        this.nodeId = nodeId;
+        this.addresses = addresses;
+        this.handler = handler;
+        connections = new Connection[addresses.size()];
+        for(int i = 0; i < connections.length; ++i){
+            connections[i] = new Connection(i);
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.bind(addresses.get(nodeId));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "storage-node-" + nodeId + "-io");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Sends the given message to the given node. It never blocks.
+    void send(int node, ByteBuffer message){
+        if(node == nodeId){
+            handler.handle(nodeId, message);
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(8 + message.remaining());
+        frame.putInt(4 + message.remaining()).putInt(nodeId).put(message);
+        frame.flip();
+        Connection connection = connections[node];
+        synchronized(connection){
+            if(connection.bBroken){
+                return;
+            }
+            connection.frames.add(frame);
+        }
+        pending.add(connection);
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        bClosed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(
+                    "panic: unexpected thread interruption", e);
+        }
+    }
+
+    private void run(){
+        try {
+            while(!bClosed){
+                selector.select(RECONNECT_MILLIS);
+                Connection connection;
+                while((connection = pending.poll()) != null){
+                    flush(connection);
+                }
+                for(Connection c : connections){
+                    if(c.channel == null && c.reconnectNanos != 0 &&
+                            System.nanoTime() >= c.reconnectNanos){
+                        flush(c);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(key.isValid()){
+                        handleKey(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClosedSelectorException e) {
+            //Closed below.
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void handleKey(SelectionKey key) throws IOException {
+        if(key.isAcceptable()){
+            SocketChannel channel = server.accept();
+            if(channel != null){
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new Inbound());
+            }
+        }
+        else if(key.attachment() instanceof Inbound){
+            read(key, (Inbound) key.attachment());
+        }
+        else{
+            Connection connection = (Connection) key.attachment();
+            if(key.isConnectable()){
+                try {
+                    connection.channel.finishConnect();
+                } catch (IOException e) {
+                    retryLater(connection);
+                    return;
+                }
+                connection.bConnected = true;
+            }
+            else if(key.isReadable() && !readEnd(connection)){
+                return;
+            }
+            flush(connection);
+        }
+    }
+
+    //Writes as many waiting frames of the connection as the socket accepts,
+    //and connects first, if needed.
+    private void flush(Connection connection) throws IOException {
+        if(connection.channel == null){
+            connect(connection);
+            return;
+        }
+        if(!connection.bConnected){
+            return;
+        }
+        synchronized(connection){
+            if(connection.bBroken){
+                return;
+            }
+            try {
+                while(!connection.frames.isEmpty()){
+                    ByteBuffer frame = connection.frames.peek();
+                    connection.channel.write(frame);
+                    if(frame.hasRemaining()){
+                        break;
+                    }
+                    connection.frames.poll();
+                }
+            } catch (IOException e) {
+                broken(connection);
+                return;
+            }
+            connection.channel.keyFor(selector).interestOps(
+                    SelectionKey.OP_READ | (connection.frames.isEmpty() ? 0 :
+                            SelectionKey.OP_WRITE));
+        }
+    }
+
+    //Reads from a connection this node opened, and returns false if
+    //the other node has closed it, or it broke.
+    private boolean readEnd(Connection connection) throws IOException {
+        int count;
+        try {
+            discarded.clear();
+            count = connection.channel.read(discarded);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if(count >= 0){
+            return true;
+        }
+        synchronized(connection){
+            broken(connection);
+        }
+        return false;
+    }
+
+    //Drops the frames of the connection and tells the handler. Called with
+    //the connection locked.
+    private void broken(Connection connection) throws IOException {
+        connection.bBroken = true;
+        connection.frames.clear();
+        connection.channel.close();
+        handler.disconnected(connection.node);
+    }
+
+    private void connect(Connection connection) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        connection.channel = channel;
+        connection.bConnected = false;
+        try {
+            if(channel.connect(addresses.get(connection.node))){
+                connection.bConnected = true;
+                channel.register(selector, SelectionKey.OP_READ, connection);
+                flush(connection);
+            }
+            else{
+                channel.register(selector, SelectionKey.OP_CONNECT, connection);
+            }
+        } catch (IOException e) {
+            retryLater(connection);
+        }
+    }
+
+    private void retryLater(Connection connection) throws IOException {
+        connection.channel.close();
+        connection.channel = null;
+        connection.reconnectNanos =
+                System.nanoTime() + RECONNECT_MILLIS * 1_000_000;
+    }
+
+    //Reads what is available, and passes every complete frame
+    //to the handler.
+    private void read(SelectionKey key, Inbound inbound) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        int count;
+        try {
+            count = channel.read(inbound.buffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if(count < 0){
+            key.cancel();
+            channel.close();
+            if(inbound.node >= 0){
+                handler.disconnected(inbound.node);
+            }
+            return;
+        }
+        ByteBuffer buffer = inbound.buffer;
+        buffer.flip();
+        while(buffer.remaining() >= 4 &&
+                buffer.remaining() >= 4 + buffer.getInt(buffer.position())){
+            int length = buffer.getInt();
+            ByteBuffer frame = buffer.slice();
+            frame.limit(length);
+            buffer.position(buffer.position() + length);
+            int sender = frame.getInt();
+            inbound.node = sender;
+            handler.handle(sender, frame);
+        }
+        if(buffer.remaining() >= 4 &&
+                4 + buffer.getInt(buffer.position()) > buffer.capacity()){
+            //The frame does not fit, grow the buffer.
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(
+                    2 * buffer.capacity(), 4 + buffer.getInt(buffer.position())));
+            larger.put(buffer);
+            inbound.buffer = larger;
+        }
+        else{
+            buffer.compact();
+        }
+    }
+
+    private void closeAll(){
+        try {
+            for(SelectionKey key : selector.keys()){
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            //Nothing more to do when closing.
+        }
+    }
+}
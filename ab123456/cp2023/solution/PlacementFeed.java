@@ -0,0 +1,202 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.PlacementEvent;
+import cp2023.base.PlacementSubscription;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+//This class publishes the completed transfers of a system to its
+//subscriptions. The events are kept in a ring buffer allocated up front,
+//as primitive arrays, one per field, so publishing an event allocates
+//nothing. Every transfer publishes its own event, after perform(), with
+//no lock held: it claims the next sequence number with a single atomic
+//increment, and then the slot of the ring with that number modulo
+//the capacity, which only it writes until the number comes around again.
+//
+//Every slot is tagged with its sequence number s: with 2s while the event
+//is being written, and with 2s + 1 once it is published, so the readers,
+//which take no lock either, read the fields of an event between two reads
+//of its tag, like a seqlock, and know whether the event is not published
+//yet, or was overwritten while they were reading it. The subscriptions
+//with the BLOCK policy hold the writers back instead, until they read
+//the event that would be overwritten.
+class PlacementFeed {
+    static final int CAPACITY = 1 << 14;
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 10_000;
+    private static final byte HAS_SOURCE = 1;
+    private static final byte HAS_DESTINATION = 2;
+    private final int mask = CAPACITY - 1;
+    private final AtomicLongArray tags = new AtomicLongArray(CAPACITY);
+    private final int[] components = new int[CAPACITY];
+    private final int[] sources = new int[CAPACITY];
+    private final int[] destinations = new int[CAPACITY];
+    private final int[] slots = new int[CAPACITY];
+    private final byte[] kinds = new byte[CAPACITY];
+    //Sequence number of the next event.
+    private final AtomicLong next = new AtomicLong();
+    //Copied on every change, under the lock of the feed, so that
+    //the writers read it without any lock.
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    //Constructor.
+    PlacementFeed(){
+        //Every slot looks as if the event a round before the first one
+        //had been published in it.
+        for(int i = 0; i < CAPACITY; ++i){
+            tags.set(i, 2L * (i - CAPACITY) + 1);
+        }
+    }
+
+    //Returns true if someone reads the events. Otherwise, they need not
+    //be published.
+    boolean hasSubscriptions(){
+        return subscriptions.length > 0;
+    }
+
+    synchronized PlacementSubscription subscribe(
+            PlacementSubscription.Policy policy){
+        Subscription result = new Subscription(policy, next.get());
+        Subscription[] updated =
+                Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        updated[subscriptions.length] = result;
+        subscriptions = updated;
+        return result;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription){
+        Subscription[] updated = new Subscription[subscriptions.length - 1];
+        int count = 0;
+        for(Subscription s : subscriptions){
+            if(s != subscription){
+                updated[count++] = s;
+            }
+        }
+        subscriptions = updated;
+    }
+
+    //Publishes the completed transfer. Either of the devices may be null.
+    void publish(int component, DeviceDataWrapper source,
+                 DeviceDataWrapper destination, int slot){
+        long sequence = next.getAndIncrement();
+        int i = (int) sequence & mask;
+        for(Subscription subscription : subscriptions){
+            if(subscription.policy == PlacementSubscription.Policy.BLOCK){
+                for(int attempt = 0; !subscription.bClosed &&
+                        sequence - subscription.cursor >= CAPACITY; ++attempt){
+                    backOff(attempt);
+                }
+            }
+        }
+        //The writer of the event a round before may still be writing it.
+        for(int attempt = 0;
+            tags.get(i) != 2 * (sequence - CAPACITY) + 1; ++attempt){
+            backOff(attempt);
+        }
+        tags.set(i, 2 * sequence);
+        //The tag has to be visible before any of the fields.
+        VarHandle.storeStoreFence();
+        components[i] = component;
+        sources[i] = source == null ? 0 : Ids.of(source.getDeviceId());
+        destinations[i] = destination == null ? 0 :
+                Ids.of(destination.getDeviceId());
+        slots[i] = slot;
+        kinds[i] = (byte) ((source == null ? 0 : HAS_SOURCE) |
+                (destination == null ? 0 : HAS_DESTINATION));
+        tags.set(i, 2 * sequence + 1);
+    }
+
+    private static void backOff(int attempt){
+        if(attempt < SPINS){
+            Thread.onSpinWait();
+        }
+        else{
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    //Returns the event with the given sequence number, or null if it is not
+    //published yet. Sets bOverwritten[0] to true if the event was already
+    //overwritten.
+    private PlacementEvent read(long sequence, boolean[] bOverwritten){
+        int i = (int) sequence & mask;
+        long tag = tags.get(i);
+        if(tag == 2 * sequence + 1){
+            int component = components[i];
+            int source = sources[i];
+            int destination = destinations[i];
+            int slot = slots[i];
+            byte kind = kinds[i];
+            VarHandle.loadLoadFence();
+            if(tags.get(i) == tag){
+                return new PlacementEvent(sequence, new ComponentId(component),
+                        (kind & HAS_SOURCE) == 0 ? null : new DeviceId(source),
+                        (kind & HAS_DESTINATION) == 0 ? null :
+                                new DeviceId(destination), slot);
+            }
+            tag = tags.get(i);
+        }
+        bOverwritten[0] = tag > 2 * sequence + 1;
+        return null;
+    }
+
+    private class Subscription implements PlacementSubscription {
+        final Policy policy;
+        //Sequence number of the next event to read. Written only by
+        //the polling thread, and read by the writers.
+        volatile long cursor;
+        volatile boolean bClosed = false;
+        private long droppedCount = 0;
+        private final boolean[] bOverwritten = new boolean[1];
+
+        //Constructor.
+        Subscription(Policy policy, long cursor){
+            this.policy = policy;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public int poll(Consumer<? super PlacementEvent> handler,
+                        int maxEvents){
+            int count = 0;
+            long sequence = cursor;
+            while(count < maxEvents && !bClosed){
+                bOverwritten[0] = false;
+                PlacementEvent event = read(sequence, bOverwritten);
+                if(event == null && !bOverwritten[0]){
+                    break;
+                }
+                if(event == null){
+                    //Skip to the oldest event that may still be there.
+                    long oldest = Math.max(sequence + 1,
+                            next.get() - CAPACITY);
+                    droppedCount += oldest - sequence;
+                    sequence = oldest;
+                    cursor = sequence;
+                    continue;
+                }
+                cursor = ++sequence;
+                handler.accept(event);
+                ++count;
+            }
+            return count;
+        }
+
+        @Override
+        public long getDroppedCount(){
+            return droppedCount;
+        }
+
+        @Override
+        public void close(){
+            if(!bClosed){
+                bClosed = true;
+                unsubscribe(this);
+            }
+        }
+    }
+}
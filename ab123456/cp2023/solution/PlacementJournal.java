@@ -0,0 +1,417 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+//This class appends the placement decisions of a system to a memory-mapped
+//file, so that the placement can be recovered after a crash.
+//
+//A transfer is recorded when its memory slot is reserved (or, for deletions,
+//when it starts), because from that moment on it can't fail, and its slot
+//may already be handed over to other transfers. Recovery redoes all
+//the recorded transfers. Every recorded transfer reserved either a free slot,
+//or the slot of a component whose transfer was recorded before, so
+//the recovered placement never exceeds the capacity of a device. The only
+//decisions that have to be recorded together are the transfers of a cycle,
+//and the members of a group transfer, so they are written as one group,
+//which is ignored unless it is complete.
+//
+//The file is a sequence of 16-byte records of four ints: the kind and three
+//arguments. It starts with the header, the devices with their sizes, and
+//the initial placement. The devices added, resized or removed later are
+//recorded like the transfers, as soon as they change. Appending a record
+//only reserves its position with an atomic counter and writes it to
+//the mapped memory, so it survives a crash of the process right away.
+//A background thread forces the written records to the disk every
+//FORCE_INTERVAL_MILLIS, so that a crash of the whole machine loses at most
+//the last few milliseconds, and concurrent transfers share the cost of
+//a single force(). It keeps forcing on every tick until all the reserved
+//records are written and forced, so a record written after a force is
+//never left behind. close() stops the thread, forces the rest of
+//the records, and closes the file.
+//
+//The records of the transfers only accumulate, so once the journal grows
+//to COMPACTION_SIZE, and to twice the size it had after its last
+//compaction, needsCompaction() tells the system to compact() it: with no
+//transfer running, the current devices and placement are written to a new
+//file, like by create(), which atomically replaces the old one.
+class PlacementJournal {
+    private static final int RECORD_SIZE = 16;
+    private static final int CHUNK_SIZE = 64 << 20;
+    private static final long FORCE_INTERVAL_MILLIS = 5;
+    private static final long COMPACTION_SIZE = CHUNK_SIZE;
+    //Version 2 added the removals of the devices.
+    private static final int VERSION = 2;
+    //Every kind has the magic in its highest byte, so that the records that
+    //were not written completely can be told apart from the valid ones.
+    //The kind is always written last, with a release store, so that it can
+    //never reach the memory before the arguments of its record.
+    private static final int MAGIC = 0x5A000000;
+    private static final int HEADER = MAGIC | 1;
+    private static final int DEVICE = MAGIC | 2;
+    private static final int PLACEMENT = MAGIC | 3;
+    private static final int GROUP = MAGIC | 4;
+    private static final int DEVICE_REMOVAL = MAGIC | 5;
+    //Flags of the placement records.
+    private static final int HAS_SOURCE = 0x100;
+    private static final int HAS_DESTINATION = 0x200;
+    private static final int IN_GROUP = 0x400;
+    private static final int FLAGS = HAS_SOURCE | HAS_DESTINATION | IN_GROUP;
+
+    //Big-endian, like the getInt() and putInt() of the chunks.
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(
+            int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path file;
+    //Replaced by compact().
+    private FileChannel channel;
+    private Thread forcing = null;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private final AtomicLong position = new AtomicLong(0);
+    //Number of the bytes below the position that are already written,
+    //counting the skipped ends of the chunks. It catches up with
+    //the position once every reserved record is written.
+    private final AtomicLong writtenBytes = new AtomicLong(0);
+    private volatile long forcedPosition = 0;
+    private volatile long compactionPosition = COMPACTION_SIZE;
+
+    //Placement read from a journal by recover().
+    static final class Recovered {
+        final LinkedHashMap<DeviceId, Integer> deviceTotalSlots =
+                new LinkedHashMap<>();
+        final HashMap<ComponentId, DeviceId> componentPlacement =
+                new HashMap<>();
+    }
+
+    private PlacementJournal(Path file, FileChannel channel){
+        this.file = file;
+        this.channel = channel;
+    }
+
+    //Creates a new journal in the given file, replacing the old one only when
+    //the new one is complete, writes the given devices and placement into it,
+    //and starts its background thread.
+    static PlacementJournal create(Path file,
+                                   Map<DeviceId, Integer> deviceTotalSlots,
+                                   Map<ComponentId, DeviceId> placement)
+            throws IOException {
+        PlacementJournal journal = write(file, deviceTotalSlots, placement);
+        journal.startForcing();
+        return journal;
+    }
+
+    //Writes a new journal with the given devices and placement, forces it,
+    //and moves it over the given file.
+    private static PlacementJournal write(Path file,
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> placement) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        PlacementJournal journal = new PlacementJournal(file, FileChannel.open(
+                temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+        try {
+            journal.append(HEADER, VERSION, deviceTotalSlots.size(), 0);
+            for(Map.Entry<DeviceId, Integer> entry :
+                    deviceTotalSlots.entrySet()){
+                journal.append(DEVICE, Ids.of(entry.getKey()),
+                        entry.getValue(), 0);
+            }
+            for(Map.Entry<ComponentId, DeviceId> entry :
+                    placement.entrySet()){
+                journal.append(PLACEMENT | HAS_DESTINATION,
+                        Ids.of(entry.getKey()), 0, Ids.of(entry.getValue()));
+            }
+            journal.force();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UncheckedIOException e) {
+            journal.channel.close();
+            throw e;
+        }
+        journal.compactionPosition = Math.max(COMPACTION_SIZE,
+                2 * journal.position.get());
+        return journal;
+    }
+
+    //Reads the placement recorded in the given journal.
+    static Recovered recover(Path file) throws IOException {
+        Recovered result = new Recovered();
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long size = channel.size() / RECORD_SIZE * RECORD_SIZE;
+            if(size < RECORD_SIZE){
+                throw new IOException("Empty journal " + file);
+            }
+            long offset = 0;
+            while(offset < size){
+                MappedByteBuffer chunk = channel.map(
+                        FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(CHUNK_SIZE, size - offset));
+                if(offset == 0 && (chunk.getInt(0) != HEADER ||
+                        chunk.getInt(4) < 1 || chunk.getInt(4) > VERSION)){
+                    throw new IOException("Not a placement journal " + file);
+                }
+                replay(chunk, result);
+                offset += chunk.capacity();
+            }
+        }
+        return result;
+    }
+
+    //Applies the records of the given chunk. Records that are not valid
+    //are the unused space or the positions reserved by the transfers that
+    //were interrupted by the crash, and they are skipped.
+    private static void replay(MappedByteBuffer chunk, Recovered result){
+        for(int i = 0; i < chunk.capacity(); i += RECORD_SIZE){
+            int kind = chunk.getInt(i);
+            if(kind == DEVICE){
+                result.deviceTotalSlots.put(
+                        new DeviceId(chunk.getInt(i + 4)), chunk.getInt(i + 8));
+            }
+            else if(kind == DEVICE_REMOVAL){
+                result.deviceTotalSlots.remove(
+                        new DeviceId(chunk.getInt(i + 4)));
+            }
+            else if(kind == GROUP){
+                //The group and its records are reserved together, so they
+                //never cross the boundary of a chunk.
+                int count = chunk.getInt(i + 4);
+                if(count < 0 || i + (long) count * RECORD_SIZE >=
+                        chunk.capacity()){
+                    return;
+                }
+                for(int j = 1; j <= count; ++j){
+                    replayPlacement(chunk, i + j * RECORD_SIZE,
+                            chunk.getInt(i + j * RECORD_SIZE) & ~IN_GROUP,
+                            result);
+                }
+                i += count * RECORD_SIZE;
+            }
+            else if((kind & ~FLAGS) == PLACEMENT && (kind & IN_GROUP) == 0){
+                replayPlacement(chunk, i, kind, result);
+            }
+        }
+    }
+
+    private static void replayPlacement(MappedByteBuffer chunk, int i,
+                                        int kind, Recovered result){
+        ComponentId comp = new ComponentId(chunk.getInt(i + 4));
+        if((kind & HAS_DESTINATION) != 0){
+            result.componentPlacement.put(comp,
+                    new DeviceId(chunk.getInt(i + 12)));
+        }
+        else{
+            result.componentPlacement.remove(comp);
+        }
+    }
+
+    //Returns true if the journal has grown enough to be compacted.
+    boolean needsCompaction(){
+        return position.get() >= compactionPosition;
+    }
+
+    //Replaces the content of the journal with the given devices and
+    //placement, which have to be the ones recorded in it, so the recovered
+    //placement stays the same. Nothing may be appended meanwhile.
+    //If the new file can't be written, the old journal is kept, and
+    //the compaction is tried again once it has doubled.
+    synchronized void compact(Map<DeviceId, Integer> deviceTotalSlots,
+                              Map<ComponentId, DeviceId> placement)
+            throws IOException {
+        if(!channel.isOpen()){
+            return;
+        }
+        PlacementJournal compacted;
+        try {
+            compacted = write(file, deviceTotalSlots, placement);
+        } catch (IOException | UncheckedIOException e) {
+            compactionPosition = 2 * position.get();
+            throw e;
+        }
+        FileChannel old = channel;
+        channel = compacted.channel;
+        chunks = compacted.chunks;
+        position.set(compacted.position.get());
+        writtenBytes.set(compacted.writtenBytes.get());
+        forcedPosition = compacted.forcedPosition;
+        compactionPosition = compacted.compactionPosition;
+        old.close();
+    }
+
+    //Records the placement decision of the given transfer.
+    void append(TransferDataWrapper data){
+        long offset = reserve(1);
+        writePlacement(offset, data, 0);
+    }
+
+    //Records the placement decisions of all the transfers of a cycle, or
+    //all the members of a group transfer, so that either all or none of them
+    //are recovered.
+    void appendGroup(ArrayList<TransferDataWrapper> group){
+        long offset = reserve(group.size() + 1);
+        for(int i = 0; i < group.size(); ++i){
+            writePlacement(offset + (i + 1) * RECORD_SIZE, group.get(i),
+                    IN_GROUP);
+        }
+        write(offset, GROUP, group.size(), 0, 0);
+    }
+
+    //Records the new size of the given device, or the size of the device
+    //that was added.
+    void appendDevice(DeviceId device, int slots){
+        append(DEVICE, Ids.of(device), slots, 0);
+    }
+
+    //Records the removal of the given device, which is empty.
+    void appendDeviceRemoval(DeviceId device){
+        append(DEVICE_REMOVAL, Ids.of(device), 0, 0);
+    }
+
+    private void writePlacement(long offset, TransferDataWrapper data,
+                                int flags){
+        int kind = PLACEMENT | flags;
+        int src = 0;
+        int dest = 0;
+        if(data.source != null){
+            kind |= HAS_SOURCE;
+            src = Ids.of(data.source.getDeviceId());
+        }
+        if(data.destination != null){
+            kind |= HAS_DESTINATION;
+            dest = Ids.of(data.destination.getDeviceId());
+        }
+        write(offset, kind, Ids.of(data.getComponentId()), src, dest);
+    }
+
+    private void append(int kind, int first, int second, int third){
+        write(reserve(1), kind, first, second, third);
+    }
+
+    //Reserves the given number of consecutive records, which never cross
+    //the boundary of a chunk, and returns the offset of the first one.
+    private long reserve(int records){
+        int size = records * RECORD_SIZE;
+        if(size > CHUNK_SIZE){
+            throw new IllegalArgumentException("Too many records in a group");
+        }
+        while(true){
+            long offset = position.get();
+            long chunkEnd = (offset / CHUNK_SIZE + 1) * CHUNK_SIZE;
+            //Skip the rest of the chunk if the records do not fit in it.
+            long start = offset + size <= chunkEnd ? offset : chunkEnd;
+            if(position.compareAndSet(offset, start + size)){
+                writtenBytes.addAndGet(start - offset);
+                ensureMapped(start + size);
+                return start;
+            }
+        }
+    }
+
+    private void ensureMapped(long end){
+        if(end <= (long) chunks.length * CHUNK_SIZE){
+            return;
+        }
+        synchronized(this){
+            MappedByteBuffer[] current = chunks;
+            if(end <= (long) current.length * CHUNK_SIZE){
+                return;
+            }
+            int count = (int) ((end + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            MappedByteBuffer[] result = new MappedByteBuffer[count];
+            System.arraycopy(current, 0, result, 0, current.length);
+            try {
+                for(int i = current.length; i < count; ++i){
+                    result[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long) i * CHUNK_SIZE, CHUNK_SIZE);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot extend the journal", e);
+            }
+            chunks = result;
+        }
+    }
+
+    private void write(long offset, int kind, int first, int second,
+                       int third){
+        MappedByteBuffer chunk = chunks[(int) (offset / CHUNK_SIZE)];
+        int i = (int) (offset % CHUNK_SIZE);
+        chunk.putInt(i + 4, first);
+        chunk.putInt(i + 8, second);
+        chunk.putInt(i + 12, third);
+        INT.setRelease(chunk, i, kind);
+        writtenBytes.addAndGet(RECORD_SIZE);
+    }
+
+    //Forces all the records written so far to the disk. The forced position
+    //moves only up to the end of the records that were all written before
+    //the force, so that the records which were still being written are
+    //forced again by the next call.
+    synchronized void force(){
+        //Read before the position, so that they are equal only if every
+        //record reserved up to the position was already written.
+        long written = writtenBytes.get();
+        long end = position.get();
+        MappedByteBuffer[] current = chunks;
+        for(int i = (int) (forcedPosition / CHUNK_SIZE);
+            i < current.length && (long) i * CHUNK_SIZE < end; ++i){
+            current[i].force();
+        }
+        if(written == end){
+            forcedPosition = end;
+        }
+    }
+
+    private void startForcing(){
+        forcing = new Thread(() -> {
+            while(true){
+                try {
+                    Thread.sleep(FORCE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(position.get() != forcedPosition){
+                    force();
+                }
+            }
+        }, "placement-journal-force");
+        forcing.setDaemon(true);
+        forcing.start();
+    }
+
+    //Stops the background thread, forces the records written so far to
+    //the disk, and closes the file. The mapped chunks are dropped, so that
+    //they are unmapped once collected. Nothing may be appended afterwards.
+    void close() throws IOException {
+        if(forcing != null){
+            forcing.interrupt();
+            try {
+                forcing.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            forcing = null;
+        }
+        synchronized(this){
+            if(channel.isOpen()){
+                force();
+                chunks = new MappedByteBuffer[0];
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package cp2023.solution;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+//The placement of a system in the binary snapshot format, in which every
+//device is described by its id, its size, and the arrays of the ids and
+//the memory slots of its components, so that a system can be built from it
+//without any boxed ids or maps.
+//
+//The file consists of big-endian ints: the magic, the version, the number
+//of the devices, and the number of the components, then four ints for every
+//device: its id, its number of slots, its number of components, and zero,
+//and finally, for every device in the same order, the pairs of the id
+//and the memory slot of each of its components.
+final class PlacementSnapshot {
+    private static final int MAGIC = 0x43505350;
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 4;
+    private static final int DEVICE_INTS = 4;
+
+    final int[] deviceIds;
+    final int[] deviceSlots;
+    //Ids of the components of every device, and their memory slots.
+    final int[][] components;
+    final int[][] componentSlots;
+
+    PlacementSnapshot(int[] deviceIds, int[] deviceSlots, int[][] components,
+                      int[][] componentSlots){
+        this.deviceIds = deviceIds;
+        this.deviceSlots = deviceSlots;
+        this.components = components;
+        this.componentSlots = componentSlots;
+    }
+
+    int getComponentsCount(){
+        int result = 0;
+        for(int[] device : components){
+            result += device.length;
+        }
+        return result;
+    }
+
+    //Writes the snapshot to the given file, replacing it only when the new
+    //one is complete.
+    void write(Path file) throws IOException {
+        long size = 4L * (HEADER_INTS + DEVICE_INTS * deviceIds.length +
+                2L * getComponentsCount());
+        if(size > Integer.MAX_VALUE){
+            throw new IOException("Snapshot larger than 2 GB");
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.put(MAGIC).put(VERSION).put(deviceIds.length)
+                    .put(getComponentsCount());
+            for(int i = 0; i < deviceIds.length; ++i){
+                ints.put(deviceIds[i]).put(deviceSlots[i])
+                        .put(components[i].length).put(0);
+            }
+            for(int i = 0; i < deviceIds.length; ++i){
+                int[] pairs = new int[2 * components[i].length];
+                for(int j = 0; j < components[i].length; ++j){
+                    pairs[2 * j] = components[i][j];
+                    pairs[2 * j + 1] = componentSlots[i][j];
+                }
+                ints.put(pairs);
+            }
+            buffer.force();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //Reads the snapshot from the given file. Only the format is checked
+    //here, the placement itself is validated by the system built from it.
+    static PlacementSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE){
+                throw new IOException("Snapshot larger than 2 GB: " + file);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    size);
+            IntBuffer ints = buffer.asIntBuffer();
+            if(ints.remaining() < HEADER_INTS || ints.get() != MAGIC){
+                throw new IOException("Not a placement snapshot: " + file);
+            }
+            int version = ints.get();
+            if(version != VERSION){
+                throw new IOException("Unsupported snapshot version " +
+                        version + ": " + file);
+            }
+            int devices = ints.get();
+            int componentsCount = ints.get();
+            if(devices < 0 || componentsCount < 0 || ints.remaining() !=
+                    (long) DEVICE_INTS * devices + 2L * componentsCount){
+                throw new IOException("Corrupted snapshot: " + file);
+            }
+            int[] deviceIds = new int[devices];
+            int[] deviceSlots = new int[devices];
+            int[][] components = new int[devices][];
+            int[][] componentSlots = new int[devices][];
+            long total = 0;
+            for(int i = 0; i < devices; ++i){
+                deviceIds[i] = ints.get();
+                deviceSlots[i] = ints.get();
+                int count = ints.get();
+                ints.get();
+                total += count;
+                if(count < 0 || total > componentsCount){
+                    throw new IOException("Corrupted snapshot: " + file);
+                }
+                components[i] = new int[count];
+                componentSlots[i] = new int[count];
+            }
+            if(total != componentsCount){
+                throw new IOException("Corrupted snapshot: " + file);
+            }
+            for(int i = 0; i < devices; ++i){
+                int[] pairs = new int[2 * components[i].length];
+                ints.get(pairs);
+                for(int j = 0; j < components[i].length; ++j){
+                    components[i][j] = pairs[2 * j];
+                    componentSlots[i][j] = pairs[2 * j + 1];
+                }
+            }
+            return new PlacementSnapshot(deviceIds, deviceSlots, components,
+                    componentSlots);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+//Thrown by StorageSystemBuilder.build() when the placement is invalid.
+//Instead of the first problem, it reports all of them at once: all
+//the devices with too many components, all the devices that were not
+//defined, and the components assigned to more than one device.
+public class PlacementValidationException extends IllegalArgumentException {
+    private static final long serialVersionUID = 4129874213498601237L;
+    //At most this many duplicate components are kept, and listed
+    //in the message.
+    static final int MAX_REPORTED_DUPLICATES = 100;
+    private final Map<DeviceId, Long> overCapacityDevices;
+    private final Set<DeviceId> unknownDevices;
+    private final List<ComponentId> duplicateComponents;
+    private final long duplicateComponentsCount;
+
+    PlacementValidationException(Map<DeviceId, Long> overCapacityDevices,
+                                 Set<DeviceId> unknownDevices,
+                                 List<ComponentId> duplicateComponents,
+                                 long duplicateComponentsCount){
+        super(describe(overCapacityDevices, unknownDevices,
+                duplicateComponents, duplicateComponentsCount));
+        this.overCapacityDevices =
+                Collections.unmodifiableMap(overCapacityDevices);
+        this.unknownDevices = Collections.unmodifiableSet(unknownDevices);
+        this.duplicateComponents =
+                Collections.unmodifiableList(duplicateComponents);
+        this.duplicateComponentsCount = duplicateComponentsCount;
+    }
+
+    private static String describe(Map<DeviceId, Long> overCapacityDevices,
+                                   Set<DeviceId> unknownDevices,
+                                   List<ComponentId> duplicateComponents,
+                                   long duplicateComponentsCount){
+        StringBuilder result = new StringBuilder("Invalid placement");
+        if(!overCapacityDevices.isEmpty()){
+            result.append("; too many components assigned to the devices ")
+                    .append(overCapacityDevices);
+        }
+        if(!unknownDevices.isEmpty()){
+            result.append("; components assigned to the devices without " +
+                    "specified size ").append(unknownDevices);
+        }
+        if(duplicateComponentsCount > 0){
+            result.append("; ").append(duplicateComponentsCount)
+                    .append(" components assigned to more than one device ")
+                    .append(duplicateComponents);
+            if(duplicateComponentsCount > duplicateComponents.size()){
+                result.append(" and more");
+            }
+        }
+        return result.toString();
+    }
+
+    //Devices with too many components, mapped to the number of components
+    //assigned to them.
+    public Map<DeviceId, Long> getOverCapacityDevices(){
+        return overCapacityDevices;
+    }
+
+    //Devices without specified size that have components assigned to them.
+    public Set<DeviceId> getUnknownDevices(){
+        return unknownDevices;
+    }
+
+    //Some of the components assigned more than once, at most
+    //MAX_REPORTED_DUPLICATES of them.
+    public List<ComponentId> getDuplicateComponents(){
+        return duplicateComponents;
+    }
+
+    public long getDuplicateComponentsCount(){
+        return duplicateComponentsCount;
+    }
+}
@@ -0,0 +1,112 @@
+package cp2023.solution;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+//This class keeps the edges of the moves from the devices of a system
+//to the devices of other nodes, which wait until the other node reserves
+//a memory slot for them, see StorageNode. The rest of their cycles is not
+//known to the system, so instead of finding them, it only answers
+//the questions of the node about its part of them: which of these moves
+//wait, directly or not, for a given device, and through which waiting
+//transfers. An edge is added and removed with waitingTransfersMutex
+//of the shard of its source device held, and the searches have to be done
+//with the mutexes of all the shards held.
+class RemoteMoveGraph {
+    private final AtomicInteger transfersCount = new AtomicInteger();
+
+    void addWaitingTransfer(TransferDataWrapper transfer){
+        DeviceDataWrapper src = transfer.source;
+        if(src.remoteTransfers == null){
+            src.remoteTransfers = new HashSet<>();
+        }
+        src.remoteTransfers.add(transfer);
+        transfersCount.incrementAndGet();
+    }
+
+    void removeWaitingTransfer(TransferDataWrapper transfer){
+        if(transfer.source.remoteTransfers.remove(transfer)){
+            transfersCount.decrementAndGet();
+        }
+    }
+
+    //Returns true if there are no waiting moves to other nodes, so no cycle
+    //can go through this system. It needs no lock.
+    boolean isEmpty(){
+        return transfersCount.get() == 0;
+    }
+
+    //Returns the waiting moves to other nodes that leave the given device,
+    //or any device reachable from it through the waiting transfers, so that
+    //each of them waits, directly or not, for a memory slot in it.
+    ArrayList<TransferDataWrapper> findReachable(DeviceDataWrapper start){
+        ArrayList<TransferDataWrapper> result = new ArrayList<>();
+        IdentityHashMap<DeviceDataWrapper, TransferDataWrapper> reachedBy =
+                search(start, null);
+        for(DeviceDataWrapper device : reachedBy.keySet()){
+            if(device.remoteTransfers != null){
+                result.addAll(device.remoteTransfers);
+            }
+        }
+        return result;
+    }
+
+    //Returns the waiting transfers leading from the start device to
+    //the target one, in that order, so that the first one leaves the start
+    //device and the last one waits for the target one, or null if there are
+    //none. The path from a device to itself is empty.
+    ArrayList<TransferDataWrapper> findPath(DeviceDataWrapper start,
+                                            DeviceDataWrapper target){
+        IdentityHashMap<DeviceDataWrapper, TransferDataWrapper> reachedBy =
+                search(start, target);
+        if(!reachedBy.containsKey(target)){
+            return null;
+        }
+        ArrayList<TransferDataWrapper> path = new ArrayList<>();
+        for(DeviceDataWrapper d = target; d != start;
+            d = reachedBy.get(d).source){
+            path.add(reachedBy.get(d));
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    //Iterative DFS over the waiting moves within the system, both within
+    //the shards and between them, which stops when it reaches the target.
+    //Returns the edge every device was reached by. The waiting groups are
+    //skipped, as a segment of a cycle through other nodes is resolved
+    //by handing over single memory slots, so such a cycle through a group
+    //is never resolved.
+    private static IdentityHashMap<DeviceDataWrapper, TransferDataWrapper>
+            search(DeviceDataWrapper start, DeviceDataWrapper target){
+        IdentityHashMap<DeviceDataWrapper, TransferDataWrapper> reachedBy =
+                new IdentityHashMap<>();
+        ArrayDeque<DeviceDataWrapper> stack = new ArrayDeque<>();
+        reachedBy.put(start, null);
+        stack.push(start);
+        while(!stack.isEmpty() && !reachedBy.containsKey(target)){
+            DeviceDataWrapper device = stack.pop();
+            if(device.outgoingTransfers != null){
+                visit(device.outgoingTransfers, reachedBy, stack);
+            }
+            if(device.crossShardTransfers != null){
+                visit(device.crossShardTransfers, reachedBy, stack);
+            }
+        }
+        return reachedBy;
+    }
+
+    private static void visit(HashSet<TransferDataWrapper> edges,
+            IdentityHashMap<DeviceDataWrapper, TransferDataWrapper> reachedBy,
+            ArrayDeque<DeviceDataWrapper> stack){
+        for(TransferDataWrapper edge : edges){
+            if(edge.group == null &&
+                    !reachedBy.containsKey(edge.destination)){
+                reachedBy.put(edge.destination, edge);
+                stack.push(edge.destination);
+            }
+        }
+    }
+}
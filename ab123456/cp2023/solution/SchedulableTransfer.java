@@ -0,0 +1,18 @@
+package cp2023.solution;
+import cp2023.base.ComponentTransfer;
+//A transfer that carries the hints for the TransferScheduler of the system.
+//Transfers that do not implement it have the default ones.
+public interface SchedulableTransfer extends ComponentTransfer {
+    //Transfers with higher priority are preferred by
+    //TransferScheduler.priority().
+    default int getPriority() {
+        return 0;
+    }
+
+    //Time, as returned by System.nanoTime(), by which the transfer should
+    //get its memory slot, used by TransferScheduler.earliestDeadlineFirst().
+    //Long.MAX_VALUE if there is no deadline.
+    default long getDeadlineNanos() {
+        return Long.MAX_VALUE;
+    }
+}
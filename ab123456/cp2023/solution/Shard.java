@@ -0,0 +1,23 @@
+package cp2023.solution;
+import java.util.concurrent.locks.ReentrantLock;
+//A partition of the devices of a StorageSystemClass. Every shard has its own
+//waitingTransfersMutex, which guards the queues of the transfers waiting for
+//a memory slot in its devices, and its own WaitForGraph of the waiting moves
+//between its devices, so the transfers waiting in different shards never
+//contend for a lock. The waiting moves between the devices of different
+//shards are kept in the CrossShardGraph of the system instead.
+final class Shard {
+    final int index;
+    final ReentrantLock waitingTransfersMutex = new ReentrantLock();
+    final WaitForGraph waitForGraph = new WaitForGraph();
+    //Numbers of the waiting moves between the shards that leave a device
+    //of this shard, and that enter one. Changed with the lock of
+    //the CrossShardGraph held, read without it.
+    volatile int outgoingCrossShardCount = 0;
+    volatile int incomingCrossShardCount = 0;
+
+    //Constructor.
+    Shard(int index){
+        this.index = index;
+    }
+}
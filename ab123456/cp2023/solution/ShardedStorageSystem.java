@@ -0,0 +1,66 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToIntFunction;
+//StorageSystemClass whose devices are partitioned into shards. The device
+//locks and the component states are per device and per component anyway,
+//so what the shards split is the only lock shared by all the waiting
+//transfers: every shard has its own waitingTransfersMutex and WaitForGraph.
+//The transfers within one shard, and the additions and deletions, never
+//touch the structures of other shards.
+//
+//A move between two shards locks its devices like any other transfer,
+//and if there is a memory slot for it, it is as cheap as a local one.
+//Otherwise it waits in the queue of its destination device, guarded by
+//the mutex of that shard, and its edge is kept in the CrossShardGraph.
+//Every such move that starts waiting searches for the cycles through many
+//shards with the mutexes of all of them held, and so does every move
+//within a shard that some waiting move between the shards leaves, while
+//another one enters it. Only the moves in the other shards stay within
+//their own mutexes. So sharding pays off only as long as the partitioner
+//keeps the waiting moves between the shards rare: under a uniform traffic,
+//where every shard has them in both directions, every waiting move takes
+//all the mutexes, and the shards wait for each other just like the single
+//mutex of StorageSystemClass would make them. The component states,
+//the map of the devices, and the gate of the snapshots are shared by all
+//the shards too, but they are read and changed without locks.
+public class ShardedStorageSystem extends StorageSystemClass {
+    private final int shardsCount;
+    private final ToIntFunction<DeviceId> partitioner;
+
+    //Creates the system whose devices are assigned to the shards by their
+    //ids modulo the number of shards.
+    public ShardedStorageSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement,
+                                int shardsCount) {
+        this(deviceTotalSlots, componentPlacement, shardsCount,
+                id -> Math.floorMod(Ids.of(id), shardsCount),
+                ForkJoinPool.commonPool());
+    }
+
+    //Creates the system whose devices are assigned to the shards by the given
+    //function, which has to return a number from 0 to shardsCount - 1.
+    public ShardedStorageSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement,
+                                int shardsCount,
+                                ToIntFunction<DeviceId> partitioner,
+                                Executor asyncExecutor) {
+        super(deviceTotalSlots, componentPlacement, asyncExecutor,
+                TransferScheduler.fifo(), shardsCount, partitioner);
+        this.shardsCount = shardsCount;
+        this.partitioner = partitioner;
+    }
+
+    public int getShardsCount(){
+        return shardsCount;
+    }
+
+    //Returns the shard of the given device, or -1 if there is no such device.
+    public int getShard(DeviceId device){
+        return deviceData.containsKey(device) ?
+                partitioner.applyAsInt(device) : -1;
+    }
+}
@@ -0,0 +1,1027 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.PlacementSubscription;
+import cp2023.base.StorageSystem;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.DeviceDoesNotExist;
+import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferTimedOut;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+//A node of a storage system spread over many processes. Every node hosts
+//a StorageSystemClass with its own devices, knows which node hosts every
+//other device, and talks to the other nodes over TCP, see NodeTransport.
+//The transfers within a node are executed by its system as usual. A move
+//to a device of another node has to be started on the node of its source
+//device, and is a two-phase exchange between the two nodes:
+//  1. the source node claims the component and registers the move as
+//     waiting for its memory slot, in the RemoteMoveGraph, then sends
+//     RESERVE to the destination node,
+//  2. the destination node starts an asynchronous addition of the component,
+//     which reserves a memory slot, waiting for it in the queue of its device
+//     if needed, and then sends RESERVED, or REJECTED,
+//  3. the source node marks the component as leaving, which may hand its
+//     slot to a transfer waiting for it, calls prepare(), frees the memory
+//     cell and sends COMMIT,
+//  4. the destination node waits for its memory cell, puts the component
+//     into the device and sends COMMITTED, after which the source node calls
+//     perform().
+//An addition to a device of another node skips the first phase. A transfer
+//whose source device is hosted by another node is rejected as if the device
+//did not exist. RESERVE carries what is left of the timeout of the transfer,
+//and the destination node cancels the addition once it passes, and sends
+//REJECTED with TRANSFER_TIMED_OUT. After RESERVED the transfer is always
+//completed, as within a node. When the connection to a node closes,
+//the replies expected from it are completed exceptionally, and the transfers
+//waiting for them fail with UncheckedIOException.
+//
+//The cycles through many nodes are found by edge chasing. When a move from
+//another node starts waiting in the queue of its destination device, or
+//a move within the node starts waiting while there are moves waiting for
+//other nodes, the node looks for the moves to other nodes that wait,
+//directly or not, for that device, and sends each of them a PROBE with
+//the path of the moves between the nodes, which the receiving node extends
+//in the same way. A probe carries the earliest deadline of the moves
+//of its path, and is dropped once it passes, as one of them no longer
+//waits by then. When the path comes back to the node of its first move,
+//and that move waits for the device the path ends at, the node resolves
+//the cycle in two phases: it asks every node on the cycle, in the order
+//of their ids, to LOCK the mutexes of its system, and check that its part
+//of the cycle still waits, finding again the waiting transfers that connect
+//its moves. Then either all of them hand over their memory slots, as
+//resolveCycle() does, or none of them. The locks are taken in one order,
+//and no one waits for a network message with them held but the nodes
+//locked for a cycle, so the resolutions can't deadlock.
+public final class StorageNode implements ExtendedStorageSystem {
+    //Kinds of the messages.
+    private static final byte RESERVE = 1;
+    private static final byte RESERVED = 2;
+    private static final byte REJECTED = 3;
+    private static final byte COMMIT = 4;
+    private static final byte COMMITTED = 5;
+    private static final byte PROBE = 6;
+    private static final byte LOCK = 7;
+    private static final byte LOCKED = 8;
+    private static final byte DECIDE = 9;
+    //The ids of the moves and the cycles start with the id of the node that
+    //created them.
+    private static final int NODE_ID_SHIFT = 40;
+    //Number of the pairs of a probe and a move it was forwarded to, above
+    //which the node forgets them.
+    private static final int MAX_FORWARDED_PROBES = 1 << 16;
+
+    //Move or addition from this node to another one.
+    private static final class Outgoing {
+        final long id;
+        final int node;
+        final int device;
+        //System.nanoTime() when its timeout passes, or Long.MAX_VALUE.
+        final long deadlineNanos;
+        //Data of the move in the system of this node, null for additions.
+        TransferDataWrapper data = null;
+        //Completed with OK when the other node reserves the memory slot,
+        //otherwise with the reason of the rejection.
+        final CompletableFuture<TransferStatus> reply =
+                new CompletableFuture<>();
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        //Constructor.
+        Outgoing(long id, int node, int device, long deadlineNanos){
+            this.id = id;
+            this.node = node;
+            this.device = device;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    //Move or addition from another node to this one.
+    private static final class Incoming {
+        final long id;
+        final int node;
+        //Deadline of the transfer on the clock of this node.
+        final long deadlineNanos;
+        volatile TransferDataWrapper data = null;
+        final CompletableFuture<Void> commit = new CompletableFuture<>();
+
+        //Constructor.
+        Incoming(long id, int node, long deadlineNanos){
+            this.id = id;
+            this.node = node;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    //Waiting move between the nodes on the path of a probe, with the node
+    //and the device it waits for. Its own node is a part of its id.
+    private static final class RemoteEdge {
+        final long id;
+        final int node;
+        final int device;
+
+        //Constructor.
+        RemoteEdge(long id, int node, int device){
+            this.id = id;
+            this.node = node;
+            this.device = device;
+        }
+    }
+
+    //Parts of a cycle going through this node, which the node that found
+    //the cycle asked to lock. Every part is a move to this node, and a move
+    //from this node, which waits for the former one, directly or not.
+    private static final class LockRequest {
+        final long cycle;
+        final int resolver;
+        final long[] incomingIds;
+        final long[] outgoingIds;
+
+        //Constructor.
+        LockRequest(long cycle, int resolver, long[] incomingIds,
+                    long[] outgoingIds){
+            this.cycle = cycle;
+            this.resolver = resolver;
+            this.incomingIds = incomingIds;
+            this.outgoingIds = outgoingIds;
+        }
+    }
+
+    //Probe, and a move it was forwarded to.
+    private static final class ForwardedProbe {
+        final long probe;
+        final long forwardedTo;
+
+        //Constructor.
+        ForwardedProbe(long probe, long forwardedTo){
+            this.probe = probe;
+            this.forwardedTo = forwardedTo;
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof ForwardedProbe &&
+                    ((ForwardedProbe) other).probe == probe &&
+                    ((ForwardedProbe) other).forwardedTo == forwardedTo;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(probe) * 31 + Long.hashCode(forwardedTo);
+        }
+    }
+
+    private final int nodeId;
+    private final Map<DeviceId, Integer> deviceNodes;
+    private final StorageSystemClass system;
+    //Runs the asynchronous transfers of the system, which include
+    //the additions of the components from other nodes that wait for COMMIT
+    //in their prepare(), and everything the messages ask for that has
+    //to take a lock.
+    private final ExecutorService workers;
+    private final NodeTransport transport;
+    private final AtomicLong lastId = new AtomicLong();
+    private final ConcurrentHashMap<Long, Outgoing> outgoing =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Incoming> incoming =
+            new ConcurrentHashMap<>();
+    //Every probe is forwarded to every move at most once, which is enough
+    //for it to reach all the moves waiting, directly or not, for the move
+    //it started from. Every new waiting transfer starts a new probe.
+    private final Set<ForwardedProbe> forwardedProbes =
+            ConcurrentHashMap.newKeySet();
+    //Replies to LOCK, and the decisions of the resolvers, by the cycle ids.
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>>
+            lockReplies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>>
+            decisions = new ConcurrentHashMap<>();
+    //Served one by one, by the thread holding the mutexes of the system
+    //for every one of them until the decision comes.
+    private final LinkedBlockingQueue<LockRequest> lockRequests =
+            new LinkedBlockingQueue<>();
+    private final Thread locker;
+    //Cycles through many nodes resolved by this node.
+    private final LongAdder remoteCyclesCount = new LongAdder();
+    //Replies expected from every node, which are completed exceptionally
+    //when the connection to it closes, and whether it has closed.
+    private final ArrayList<Set<CompletableFuture<?>>> expectedReplies =
+            new ArrayList<>();
+    private final boolean[] bDisconnected;
+
+    //Starts the node with the given id, listening on the address with that
+    //index. deviceNodes maps every device of the whole system to the id
+    //of its node, and the other two maps describe the devices of this node,
+    //as for StorageSystemClass.
+    public StorageNode(int nodeId, List<InetSocketAddress> addresses,
+                       Map<DeviceId, Integer> deviceNodes,
+                       Map<DeviceId, Integer> deviceTotalSlots,
+                       Map<ComponentId, DeviceId> componentPlacement)
+            throws IOException {
+        if(nodeId < 0 || nodeId >= addresses.size()){
+            throw new IllegalArgumentException("No address of the node " +
+                    nodeId);
+        }
+        for(DeviceId device : deviceTotalSlots.keySet()){
+            if(!Integer.valueOf(nodeId).equals(deviceNodes.get(device))){
+                throw new IllegalArgumentException("Device with id = " +
+                        device + " is not assigned to the node " + nodeId);
+            }
+        }
+        this.nodeId = nodeId;
+        this.deviceNodes = Map.copyOf(deviceNodes);
+        for(int i = 0; i < addresses.size(); ++i){
+            expectedReplies.add(ConcurrentHashMap.newKeySet());
+        }
+        bDisconnected = new boolean[addresses.size()];
+        workers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "storage-node-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        system = new StorageSystemClass(deviceTotalSlots, componentPlacement,
+                workers);
+        system.setWaitListener(this::onWaiting);
+        locker = new Thread(this::serveLockRequests,
+                "storage-node-" + nodeId + "-locker");
+        locker.setDaemon(true);
+        locker.start();
+        try {
+            transport = new NodeTransport(nodeId, addresses,
+                    new NodeTransport.Handler() {
+                        @Override
+                        public void handle(int sender, ByteBuffer message){
+                            StorageNode.this.handle(sender, message);
+                        }
+
+                        @Override
+                        public void disconnected(int node){
+                            StorageNode.this.disconnected(node);
+                        }
+                    });
+        } catch (IOException e) {
+            locker.interrupt();
+            workers.shutdownNow();
+            throw e;
+        }
+    }
+
+    public int getNodeId(){
+        return nodeId;
+    }
+
+    //Returns the runtime metrics of the system of this node, whose cycles
+    //are only the ones within the node.
+    public StorageSystemStats getStats(){
+        return system.getStats();
+    }
+
+    //Returns the number of the cycles through many nodes resolved so far
+    //by this node, that is the ones found on this node.
+    public long getRemoteCycles(){
+        return remoteCyclesCount.sum();
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        throwIfRejected(executeTransfer(transfer, null), transfer);
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer, Duration timeout)
+            throws TransferException {
+        throwIfRejected(executeTransfer(transfer, timeout), transfer);
+    }
+
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer) {
+        return executeTransfer(transfer, null);
+    }
+
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer,
+                                     Duration timeout) {
+        return executeTransfer(transfer, timeout);
+    }
+
+    //The transfers between the nodes are executed by the workers of the node,
+    //as every one of them needs a thread for the exchange with the other
+    //node anyway.
+    @Override
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer) {
+        if(getRemoteNode(transfer) < 0){
+            return system.executeAsync(transfer);
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        workers.execute(() -> {
+            try {
+                TransferStatus status = executeTransfer(transfer, null);
+                if(status == TransferStatus.OK){
+                    result.complete(null);
+                }
+                else{
+                    result.completeExceptionally(newRejection(status,
+                            transfer));
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    //The placement is known only for the devices of this node, so a component
+    //stored on another node is not located, and the devices of other nodes
+    //are reported as if they did not exist.
+    @Override
+    public DeviceId locate(ComponentId component){
+        return system.locate(component);
+    }
+
+    @Override
+    public int occupancy(DeviceId device){
+        return system.occupancy(device);
+    }
+
+    @Override
+    public List<ComponentId> listComponents(DeviceId device){
+        return system.listComponents(device);
+    }
+
+    //Only the devices of this node are seen by the feed, so a move to
+    //another node is published as a deletion, and a move from another
+    //node as an addition.
+    @Override
+    public PlacementSubscription subscribe(
+            PlacementSubscription.Policy policy){
+        return system.subscribe(policy);
+    }
+
+    //The devices are changed only on this node, so the other nodes do not
+    //know about the added ones, and their transfers to a drained one are
+    //rejected by this node.
+    @Override
+    public void addDevice(DeviceId device, int slots){
+        system.addDevice(device, slots);
+    }
+
+    @Override
+    public CompletableFuture<Void> resizeDevice(DeviceId device,
+                                                int newSlots){
+        return system.resizeDevice(device, newSlots);
+    }
+
+    @Override
+    public CompletableFuture<Void> drainDevice(DeviceId device){
+        return system.drainDevice(device);
+    }
+
+    //A group is executed by the system of this node, which does not know
+    //the devices of the other nodes, so a group from or to them is rejected
+    //as if they did not exist.
+    @Override
+    public void execute(GroupTransfer transfer) throws TransferException {
+        system.execute(transfer);
+    }
+
+    @Override
+    public TransferStatus tryExecute(GroupTransfer transfer) {
+        return system.tryExecute(transfer);
+    }
+
+    @Override
+    public void execute(GroupTransfer transfer, Duration timeout)
+            throws TransferException {
+        system.execute(transfer, timeout);
+    }
+
+    @Override
+    public TransferStatus tryExecute(GroupTransfer transfer,
+                                     Duration timeout) {
+        return system.tryExecute(transfer, timeout);
+    }
+
+    //Only the transfers within the node are planned together, as in
+    //StorageSystemClass, the ones between the nodes are executed
+    //independently.
+    @Override
+    public List<CompletableFuture<Void>> executeAll(
+            Collection<? extends ComponentTransfer> transfers) {
+        for(ComponentTransfer transfer : transfers){
+            if(getRemoteNode(transfer) >= 0){
+                ArrayList<CompletableFuture<Void>> results = new ArrayList<>();
+                for(ComponentTransfer t : transfers){
+                    results.add(executeAsync(t));
+                }
+                return results;
+            }
+        }
+        return system.executeAll(transfers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+        //Nothing is received anymore.
+        for(int node = 0; node < bDisconnected.length; ++node){
+            disconnected(node);
+        }
+        locker.interrupt();
+        workers.shutdownNow();
+        system.close();
+    }
+
+    //Returns the node of the destination device of the given transfer,
+    //if it is another node, and -1 otherwise.
+    private int getRemoteNode(ComponentTransfer transfer){
+        DeviceId dest = transfer.getDestinationDeviceId();
+        Integer node = dest == null ? null : deviceNodes.get(dest);
+        return node == null || node == nodeId ? -1 : node;
+    }
+
+    private TransferException newRejection(TransferStatus status,
+                                           ComponentTransfer transfer){
+        return StorageSystemClass.newRejection(status, transfer,
+                system.deviceData.keySet());
+    }
+
+    private void throwIfRejected(TransferStatus status,
+                                 ComponentTransfer transfer)
+            throws TransferException {
+        if(status != TransferStatus.OK){
+            throw newRejection(status, transfer);
+        }
+    }
+
+    //Executes the transfer, with the given timeout, or without any,
+    //if it is null.
+    private TransferStatus executeTransfer(ComponentTransfer transfer,
+                                           Duration timeout){
+        int node = getRemoteNode(transfer);
+        if(node < 0){
+            //Within the node, or invalid, which the system finds out.
+            return timeout == null ? system.tryExecute(transfer) :
+                    system.tryExecute(transfer, timeout);
+        }
+        long deadlineNanos = timeout == null ? Long.MAX_VALUE :
+                deadlineOf(StorageSystemClass.toNanos(timeout));
+        DeviceId src = transfer.getSourceDeviceId();
+        if(src == null){
+            return addToNode(transfer, node, deadlineNanos);
+        }
+        if(!system.deviceData.containsKey(src)){
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        return moveToNode(transfer, node, deadlineNanos);
+    }
+
+    //Returns the deadline of the call with the given timeout, which starts
+    //now, or Long.MAX_VALUE, if the timeout is too long to ever pass.
+    private static long deadlineOf(long timeoutNanos){
+        return timeoutNanos >= Long.MAX_VALUE / 2 ? Long.MAX_VALUE :
+                System.nanoTime() + timeoutNanos;
+    }
+
+    //Returns what is left until the given deadline, never less than 0,
+    //or Long.MAX_VALUE if there is none. The deadlines are sent to other
+    //nodes this way, as their clocks differ.
+    private static long remainingNanos(long deadlineNanos){
+        return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE :
+                Math.max(0, deadlineNanos - System.nanoTime());
+    }
+
+    private long nextId(){
+        return ((long) nodeId << NODE_ID_SHIFT) | lastId.incrementAndGet();
+    }
+
+    //The move waits for the reply to RESERVE as long as it takes, because
+    //only the other node knows if it has reserved the memory slot. It does
+    //not wait longer than its timeout, as the other node rejects it then.
+    private TransferStatus moveToNode(ComponentTransfer transfer, int node,
+                                      long deadlineNanos){
+        Outgoing out = new Outgoing(nextId(), node,
+                Ids.of(transfer.getDestinationDeviceId()), deadlineNanos);
+        out.data = system.createRemoteMove(new OutgoingTransfer(transfer, out),
+                out.id);
+        outgoing.put(out.id, out);
+        TransferStatus status = system.startRemoteMove(out.data);
+        if(status == TransferStatus.OK){
+            expect(node, out.reply);
+            transport.send(node, reserveMessage(out,
+                    transfer.getComponentId(), true));
+            try {
+                status = await(out.reply);
+            } catch (UncheckedIOException e) {
+                system.rejectRemoteMove(out.data);
+                outgoing.remove(out.id);
+                throw e;
+            }
+            if(status == TransferStatus.OK){
+                system.grantRemoteMove(out.data);
+                system.finishRemoteMove(out.data);
+            }
+            else{
+                system.rejectRemoteMove(out.data);
+            }
+        }
+        outgoing.remove(out.id);
+        return status;
+    }
+
+    private TransferStatus addToNode(ComponentTransfer transfer, int node,
+                                     long deadlineNanos){
+        Outgoing out = new Outgoing(nextId(), node,
+                Ids.of(transfer.getDestinationDeviceId()), deadlineNanos);
+        outgoing.put(out.id, out);
+        expect(node, out.reply);
+        transport.send(node, reserveMessage(out, transfer.getComponentId(),
+                false));
+        TransferStatus status;
+        try {
+            status = await(out.reply);
+            if(status == TransferStatus.OK){
+                transfer.prepare();
+                commit(out);
+                transfer.perform();
+            }
+        } finally {
+            outgoing.remove(out.id);
+        }
+        return status;
+    }
+
+    //Hands the component over to the other node, and waits until it is there.
+    private void commit(Outgoing out){
+        expect(out.node, out.committed);
+        transport.send(out.node, idMessage(COMMIT, out.id));
+        await(out.committed);
+    }
+
+    //Registers the given future as a reply expected from the given node,
+    //which is completed exceptionally if the connection to the node closes
+    //before the reply comes.
+    private void expect(int node, CompletableFuture<?> reply){
+        Set<CompletableFuture<?>> replies = expectedReplies.get(node);
+        replies.add(reply);
+        reply.whenComplete((ignored, e) -> replies.remove(reply));
+        //Checked after the reply is added, as disconnected() sets the flag
+        //before it completes the replies.
+        synchronized(bDisconnected){
+            if(bDisconnected[node]){
+                reply.completeExceptionally(newDisconnection(node));
+            }
+        }
+    }
+
+    //Called when the connection to, or from, the given node closes. Fails
+    //all the replies expected from it.
+    private void disconnected(int node){
+        synchronized(bDisconnected){
+            bDisconnected[node] = true;
+        }
+        for(CompletableFuture<?> reply : expectedReplies.get(node)){
+            reply.completeExceptionally(newDisconnection(node));
+        }
+    }
+
+    private static UncheckedIOException newDisconnection(int node){
+        return new UncheckedIOException("Connection to the node " + node +
+                " closed", new ClosedChannelException());
+    }
+
+    //Waits for the given reply, and throws UncheckedIOException if
+    //the connection to its node closed before it came.
+    private static <T> T await(CompletableFuture<T> reply){
+        try {
+            return reply.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException){
+                throw (UncheckedIOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    //Transfer executed by the system of this node for the move
+    //to another node.
+    private final class OutgoingTransfer implements ComponentTransfer {
+        private final ComponentTransfer transfer;
+        private final Outgoing out;
+
+        //Constructor.
+        OutgoingTransfer(ComponentTransfer transfer, Outgoing out){
+            this.transfer = transfer;
+            this.out = out;
+        }
+
+        @Override
+        public ComponentId getComponentId(){
+            return transfer.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId(){
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId(){
+            return transfer.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare(){
+            transfer.prepare();
+        }
+
+        //Called when the component has left its device.
+        @Override
+        public void perform(){
+            commit(out);
+            transfer.perform();
+        }
+    }
+
+    //Transfer executed by the system of this node for the move, or addition,
+    //from another node.
+    private final class IncomingTransfer implements ComponentTransfer {
+        private final Incoming in;
+        private final ComponentId comp;
+        private final DeviceId dest;
+
+        //Constructor.
+        IncomingTransfer(Incoming in, ComponentId comp, DeviceId dest){
+            this.in = in;
+            this.comp = comp;
+            this.dest = dest;
+        }
+
+        @Override
+        public ComponentId getComponentId(){
+            return comp;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId(){
+            return null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId(){
+            return dest;
+        }
+
+        //Called when the memory slot is reserved, it lets the other node
+        //proceed, and waits until it hands the component over.
+        @Override
+        public void prepare(){
+            expect(in.node, in.commit);
+            transport.send(in.node, idMessage(RESERVED, in.id));
+            await(in.commit);
+        }
+
+        //COMMITTED is sent only when the component is released as well,
+        //see reserve().
+        @Override
+        public void perform(){
+        }
+    }
+
+    //Handles the message from the given node in the thread of the transport,
+    //so everything that may block is passed to the workers.
+    private void handle(int sender, ByteBuffer message){
+        byte kind = message.get();
+        long id = message.getLong();
+        switch(kind){
+            case RESERVE: {
+                ComponentId comp = new ComponentId(message.getInt());
+                DeviceId dest = new DeviceId(message.getInt());
+                boolean bMove = message.get() != 0;
+                long deadlineNanos = deadlineOf(message.getLong());
+                workers.execute(() -> reserve(sender, id, comp, dest, bMove,
+                        deadlineNanos));
+                break;
+            }
+            case RESERVED:
+                //The move is granted by its own thread.
+                outgoing.get(id).reply.complete(TransferStatus.OK);
+                break;
+            case REJECTED:
+                outgoing.get(id).reply.complete(
+                        TransferStatus.values()[message.getInt()]);
+                break;
+            case COMMIT:
+                incoming.get(id).commit.complete(null);
+                break;
+            case COMMITTED:
+                outgoing.get(id).committed.complete(null);
+                break;
+            case PROBE: {
+                long deadlineNanos = deadlineOf(message.getLong());
+                RemoteEdge[] path = new RemoteEdge[message.getInt()];
+                for(int i = 0; i < path.length; ++i){
+                    path[i] = new RemoteEdge(message.getLong(),
+                            message.getInt(), message.getInt());
+                }
+                workers.execute(() -> probe(id, path, deadlineNanos));
+                break;
+            }
+            case LOCK: {
+                long[] incomingIds = new long[message.getInt()];
+                long[] outgoingIds = new long[incomingIds.length];
+                for(int i = 0; i < incomingIds.length; ++i){
+                    incomingIds[i] = message.getLong();
+                    outgoingIds[i] = message.getLong();
+                }
+                lockRequests.add(new LockRequest(id, sender, incomingIds,
+                        outgoingIds));
+                break;
+            }
+            case LOCKED:
+                lockReplies.remove(id).complete(message.get() != 0);
+                break;
+            case DECIDE:
+                getDecision(id).complete(message.get() != 0);
+                break;
+            default:
+                throw new IllegalStateException("Unknown message " + kind +
+                        " from the node " + sender);
+        }
+    }
+
+    //Starts the addition of the component moved, or added, from the given
+    //node, which is cancelled if it still waits for its memory slot when
+    //the given deadline passes.
+    private void reserve(int sender, long id, ComponentId comp, DeviceId dest,
+                         boolean bMove, long deadlineNanos){
+        Incoming in = new Incoming(id, sender, deadlineNanos);
+        TransferStatus status = TransferStatus.DEVICE_DOES_NOT_EXIST;
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if(system.deviceData.containsKey(dest)){
+            incoming.put(id, in);
+            result.thenRun(() -> transport.send(sender,
+                    idMessage(COMMITTED, id)));
+            result.whenComplete((ignored, e) -> incoming.remove(id));
+            //The addition waiting for a device that is being drained, or
+            //for longer than its timeout, is rejected before it reserves
+            //anything.
+            result.exceptionally(e -> {
+                if(e instanceof DeviceDoesNotExist){
+                    transport.send(sender, rejectedMessage(id,
+                            TransferStatus.DEVICE_DOES_NOT_EXIST));
+                }
+                else if(e instanceof TransferTimedOut){
+                    transport.send(sender, rejectedMessage(id,
+                            TransferStatus.TRANSFER_TIMED_OUT));
+                }
+                return null;
+            });
+            in.data = system.createRemoteAdd(new IncomingTransfer(in, comp,
+                    dest), bMove ? id : 0, result);
+            status = system.startRemoteAdd(in.data, result);
+        }
+        if(status != TransferStatus.OK){
+            incoming.remove(id);
+            transport.send(sender, rejectedMessage(id, status));
+        }
+        else if(!in.data.bReady && deadlineNanos != Long.MAX_VALUE){
+            CompletableFuture.delayedExecutor(remainingNanos(deadlineNanos),
+                    TimeUnit.NANOSECONDS, workers).execute(() -> {
+                if(system.cancelRemoteAdd(in.data)){
+                    result.completeExceptionally(
+                            new TransferTimedOut(comp));
+                }
+            });
+        }
+    }
+
+
+    //Called by the system when the given transfer starts waiting for
+    //a memory slot, which may close a cycle through many nodes.
+    private void onWaiting(TransferDataWrapper data){
+        if(data.remoteId != 0){
+            Incoming in = incoming.get(data.remoteId);
+            search(nextId(), new RemoteEdge[]{new RemoteEdge(data.remoteId,
+                    nodeId, Ids.of(data.destination.getDeviceId()))},
+                    data.destination,
+                    in == null ? Long.MAX_VALUE : in.deadlineNanos);
+        }
+        else if(system.hasRemoteMoves()){
+            search(nextId(), new RemoteEdge[0], data.destination,
+                    Long.MAX_VALUE);
+        }
+    }
+
+    //Continues the search of the probe from the device its last move
+    //waits for.
+    private void probe(long probe, RemoteEdge[] path, long deadlineNanos){
+        DeviceDataWrapper device = system.deviceData.get(
+                new DeviceId(path[path.length - 1].device));
+        if(device != null){
+            search(probe, path, device, deadlineNanos);
+        }
+    }
+
+    //Finds the moves to other nodes waiting for the given device, resolves
+    //the cycle if the first move of the path is one of them, and forwards
+    //the probe to the others, unless the deadline of the probe, or
+    //of the move, has passed.
+    private void search(long probe, RemoteEdge[] path,
+                        DeviceDataWrapper device, long deadlineNanos){
+        system.lockAllShards();
+        ArrayList<TransferDataWrapper> moves = system.findRemoteMoves(device);
+        system.unlockAllShards();
+        for(TransferDataWrapper move : moves){
+            Outgoing out = outgoing.get(move.remoteId);
+            if(out == null){
+                continue;
+            }
+            if(path.length > 0 && path[0].id == out.id){
+                workers.execute(() -> resolve(path));
+                continue;
+            }
+            if(forwardedProbes.size() > MAX_FORWARDED_PROBES){
+                forwardedProbes.clear();
+            }
+            if(!forwardedProbes.add(new ForwardedProbe(probe, out.id))){
+                continue;
+            }
+            long deadline = Math.min(deadlineNanos, out.deadlineNanos);
+            if(remainingNanos(deadline) == 0){
+                continue;
+            }
+            RemoteEdge[] extended = new RemoteEdge[path.length + 1];
+            System.arraycopy(path, 0, extended, 0, path.length);
+            extended[path.length] = new RemoteEdge(out.id, out.node,
+                    out.device);
+            transport.send(out.node, probeMessage(probe, extended,
+                    remainingNanos(deadline)));
+        }
+    }
+
+    //Resolves the cycle of the given moves between the nodes, which was found
+    //on this node, if all its parts still wait.
+    private void resolve(RemoteEdge[] cycle){
+        //Move i waits on its node for move i + 1, directly or not.
+        TreeMap<Integer, ArrayList<long[]>> parts = new TreeMap<>();
+        for(int i = 0; i < cycle.length; ++i){
+            parts.computeIfAbsent(cycle[i].node, node -> new ArrayList<>())
+                    .add(new long[]{cycle[i].id,
+                            cycle[(i + 1) % cycle.length].id});
+        }
+        long cycleId = nextId();
+        ArrayList<Integer> locked = new ArrayList<>();
+        boolean bCommit = true;
+        for(Map.Entry<Integer, ArrayList<long[]>> entry : parts.entrySet()){
+            CompletableFuture<Boolean> reply = new CompletableFuture<>();
+            lockReplies.put(cycleId, reply);
+            expect(entry.getKey(), reply);
+            transport.send(entry.getKey(), lockMessage(cycleId,
+                    entry.getValue()));
+            if(!reply.exceptionally(e -> false).join()){
+                lockReplies.remove(cycleId);
+                bCommit = false;
+                break;
+            }
+            locked.add(entry.getKey());
+        }
+        if(bCommit){
+            remoteCyclesCount.increment();
+        }
+        for(int node : locked){
+            ByteBuffer message = ByteBuffer.allocate(10);
+            message.put(DECIDE).putLong(cycleId).put((byte) (bCommit ? 1 : 0));
+            transport.send(node, message.flip());
+        }
+    }
+
+    private CompletableFuture<Boolean> getDecision(long cycleId){
+        return decisions.computeIfAbsent(cycleId,
+                id -> new CompletableFuture<>());
+    }
+
+    private void serveLockRequests(){
+        try {
+            while(true){
+                serve(lockRequests.take());
+            }
+        } catch (InterruptedException e) {
+            //The node is closed.
+        }
+    }
+
+    //Locks the system for the part of the cycle, and resolves it if all
+    //the nodes of the cycle agree.
+    private void serve(LockRequest request){
+        int parts = request.incomingIds.length;
+        TransferDataWrapper[] ins = new TransferDataWrapper[parts];
+        TransferDataWrapper[] outs = new TransferDataWrapper[parts];
+        ArrayList<ArrayList<TransferDataWrapper>> paths = new ArrayList<>();
+        Set<TransferDataWrapper> members =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        system.lockAllShards();
+        boolean bWaiting = true;
+        for(int i = 0; i < parts && bWaiting; ++i){
+            Incoming in = incoming.get(request.incomingIds[i]);
+            Outgoing out = outgoing.get(request.outgoingIds[i]);
+            ins[i] = in == null ? null : in.data;
+            outs[i] = out == null ? null : out.data;
+            bWaiting = ins[i] != null && outs[i] != null &&
+                    ins[i].bWaiting && outs[i].bWaiting;
+            ArrayList<TransferDataWrapper> path = bWaiting ? system
+                    .findWaitingPath(ins[i].destination, outs[i].source) : null;
+            bWaiting = path != null && members.add(ins[i]) &&
+                    members.add(outs[i]);
+            for(int j = 0; bWaiting && j < path.size(); ++j){
+                //The parts found again must not share any transfer.
+                bWaiting = members.add(path.get(j));
+            }
+            paths.add(path);
+        }
+        ByteBuffer reply = ByteBuffer.allocate(10);
+        reply.put(LOCKED).putLong(request.cycle).put((byte) (bWaiting ? 1 : 0));
+        transport.send(request.resolver, reply.flip());
+        ArrayList<TransferDataWrapper> resolved = new ArrayList<>();
+        boolean bCommit = false;
+        if(bWaiting){
+            //The cycle is given up if the resolver is gone, so that
+            //the mutexes are not held forever.
+            CompletableFuture<Boolean> decision = getDecision(request.cycle);
+            expect(request.resolver, decision);
+            bCommit = decision.exceptionally(e -> false).join();
+        }
+        if(bCommit){
+            for(int i = 0; i < parts; ++i){
+                resolved.addAll(system.resolveRemoteSegment(ins[i],
+                        paths.get(i), outs[i]));
+            }
+        }
+        if(bWaiting){
+            decisions.remove(request.cycle);
+        }
+        system.unlockAllShards();
+        system.wakeResolved(resolved);
+    }
+
+    private static ByteBuffer idMessage(byte kind, long id){
+        ByteBuffer message = ByteBuffer.allocate(9);
+        message.put(kind).putLong(id);
+        return message.flip();
+    }
+
+    private static ByteBuffer rejectedMessage(long id, TransferStatus status){
+        ByteBuffer message = ByteBuffer.allocate(13);
+        message.put(REJECTED).putLong(id).putInt(status.ordinal());
+        return message.flip();
+    }
+
+    private static ByteBuffer reserveMessage(Outgoing out, ComponentId comp,
+                                             boolean bMove){
+        ByteBuffer message = ByteBuffer.allocate(26);
+        message.put(RESERVE).putLong(out.id).putInt(Ids.of(comp))
+                .putInt(out.device).put((byte) (bMove ? 1 : 0))
+                .putLong(remainingNanos(out.deadlineNanos));
+        return message.flip();
+    }
+
+    private static ByteBuffer probeMessage(long probe, RemoteEdge[] path,
+                                           long remainingNanos){
+        ByteBuffer message = ByteBuffer.allocate(21 + 16 * path.length);
+        message.put(PROBE).putLong(probe).putLong(remainingNanos)
+                .putInt(path.length);
+        for(RemoteEdge edge : path){
+            message.putLong(edge.id).putInt(edge.node).putInt(edge.device);
+        }
+        return message.flip();
+    }
+
+    private static ByteBuffer lockMessage(long cycleId, ArrayList<long[]> parts){
+        ByteBuffer message = ByteBuffer.allocate(13 + 16 * parts.size());
+        message.put(LOCK).putLong(cycleId).putInt(parts.size());
+        for(long[] part : parts){
+            message.putLong(part[0]).putLong(part[1]);
+        }
+        return message.flip();
+    }
+}
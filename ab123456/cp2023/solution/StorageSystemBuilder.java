@@ -0,0 +1,303 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+//Builds a StorageSystemClass from a stream of placements, without
+//materializing them as maps. The placements are collected as int pairs into
+//chunks, in parallel if the stream is parallel, and build() groups them
+//by device in parallel, in the given ForkJoinPool:
+//  1. every chunk resolves the indexes of its devices, which are sorted
+//     by id, and counts its placements in every range of the devices,
+//  2. every chunk copies its placements to the place of its range,
+//  3. every range sorts its placements by device, checks the capacities,
+//     registers the components and creates its devices.
+//Unlike the constructor of StorageSystemClass, build() reports all
+//the problems with the placement at once, see PlacementValidationException.
+//The builder is not thread-safe, only the stream passed to placements()
+//may be consumed by many threads, and it builds only one system.
+public final class StorageSystemBuilder {
+    private static final int CHUNK_SIZE = 1 << 16;
+    //Number of the ranges of devices per thread of the pool, so that
+    //the ranges with more components do not keep the others waiting.
+    private static final int RANGES_PER_THREAD = 4;
+    private final TreeMap<DeviceId, Integer> deviceTotalSlots = new TreeMap<>();
+    private final Placements placements = new Placements();
+    private Executor asyncExecutor = ForkJoinPool.commonPool();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private TransferScheduler scheduler = TransferScheduler.fifo();
+    //build() reuses the chunks for its own data, so it can be called once.
+    private boolean bBuilt = false;
+
+    //Placements as pairs of the component id and the device id, and after
+    //the first step of build(), the device index, or -1 if the device
+    //is not known.
+    private static final class Chunk {
+        final int[] components = new int[CHUNK_SIZE];
+        final int[] devices = new int[CHUNK_SIZE];
+        int size = 0;
+        //Number of the placements in every range of devices, and then
+        //the position of the next one in the grouped arrays.
+        int[] rangePositions;
+    }
+
+    //Chunks collected by one thread of the stream.
+    private static final class Placements {
+        final ArrayList<Chunk> chunks = new ArrayList<>();
+        private Chunk last = null;
+
+        void add(int component, int device){
+            if(last == null || last.size == CHUNK_SIZE){
+                last = new Chunk();
+                chunks.add(last);
+            }
+            last.components[last.size] = component;
+            last.devices[last.size++] = device;
+        }
+
+        void add(Map.Entry<ComponentId, DeviceId> placement){
+            add(Ids.of(placement.getKey()), Ids.of(placement.getValue()));
+        }
+
+        void addAll(Placements other){
+            chunks.addAll(other.chunks);
+            //Keep filling the last chunk of this one.
+            if(last != null){
+                chunks.remove(last);
+                chunks.add(last);
+            }
+        }
+    }
+
+    StorageSystemBuilder(){
+    }
+
+    public StorageSystemBuilder device(DeviceId id, int slots){
+        deviceTotalSlots.put(id, slots);
+        return this;
+    }
+
+    public StorageSystemBuilder devices(Map<DeviceId, Integer> slots){
+        deviceTotalSlots.putAll(slots);
+        return this;
+    }
+
+    public StorageSystemBuilder place(ComponentId comp, DeviceId device){
+        placements.add(Ids.of(comp), Ids.of(device));
+        return this;
+    }
+
+    //Adds all the placements of the given stream. If it is parallel, it is
+    //consumed by the threads of the pool of this builder.
+    public StorageSystemBuilder placements(
+            Stream<? extends Map.Entry<ComponentId, DeviceId>> stream){
+        Placements result = pool.submit(() -> stream.collect(Placements::new,
+                Placements::add, Placements::addAll)).join();
+        placements.addAll(result);
+        return this;
+    }
+
+    //Sets the executor running the asynchronous transfers of the system,
+    //ForkJoinPool.commonPool() by default.
+    public StorageSystemBuilder asyncExecutor(Executor executor){
+        asyncExecutor = executor;
+        return this;
+    }
+
+    //Sets the scheduler of the waiting transfers of the system,
+    //TransferScheduler.fifo() by default.
+    public StorageSystemBuilder scheduler(TransferScheduler scheduler){
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    //Sets the pool that consumes the parallel streams of placements and
+    //builds the system, ForkJoinPool.commonPool() by default.
+    public StorageSystemBuilder pool(ForkJoinPool pool){
+        this.pool = pool;
+        return this;
+    }
+
+    //Builds the system. Throws PlacementValidationException if the placement
+    //is invalid.
+    public ExtendedStorageSystem build(){
+        if(bBuilt){
+            throw new IllegalStateException("The system was already built");
+        }
+        bBuilt = true;
+        int[] ids = new int[deviceTotalSlots.size()];
+        int[] slots = new int[deviceTotalSlots.size()];
+        int devicesCount = 0;
+        for(Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()){
+            ids[devicesCount] = Ids.of(entry.getKey());
+            slots[devicesCount++] = entry.getValue();
+        }
+        ArrayList<Chunk> chunks = placements.chunks;
+        int rangesCount = Math.max(1, Math.min(devicesCount,
+                RANGES_PER_THREAD * pool.getParallelism()));
+        int[] firstDevice = new int[rangesCount + 1];
+        int[] rangeOfDevice = new int[devicesCount];
+        for(int r = 0; r <= rangesCount; ++r){
+            firstDevice[r] = (int) ((long) r * devicesCount / rangesCount);
+        }
+        for(int r = 0; r < rangesCount; ++r){
+            Arrays.fill(rangeOfDevice, firstDevice[r], firstDevice[r + 1], r);
+        }
+
+        //Step 1: resolve and count.
+        Set<DeviceId> unknownDevices = ConcurrentHashMap.newKeySet();
+        forEach(chunks.size(), c -> {
+            Chunk chunk = chunks.get(c);
+            chunk.rangePositions = new int[rangesCount];
+            for(int i = 0; i < chunk.size; ++i){
+                int index = Arrays.binarySearch(ids, chunk.devices[i]);
+                if(index < 0){
+                    unknownDevices.add(new DeviceId(chunk.devices[i]));
+                    chunk.devices[i] = -1;
+                }
+                else{
+                    chunk.devices[i] = index;
+                    ++chunk.rangePositions[rangeOfDevice[index]];
+                }
+            }
+        });
+        //The ranges are placed one after another, and within every range,
+        //the placements of the chunks in the order of the chunks.
+        int[] rangeStart = new int[rangesCount + 1];
+        for(int r = 0; r < rangesCount; ++r){
+            int position = rangeStart[r];
+            for(Chunk chunk : chunks){
+                int count = chunk.rangePositions[r];
+                chunk.rangePositions[r] = position;
+                position += count;
+            }
+            rangeStart[r + 1] = position;
+        }
+
+        //Step 2: copy the placements to their ranges.
+        int[] groupedComponents = new int[rangeStart[rangesCount]];
+        int[] groupedDevices = new int[rangeStart[rangesCount]];
+        forEach(chunks.size(), c -> {
+            Chunk chunk = chunks.get(c);
+            for(int i = 0; i < chunk.size; ++i){
+                int index = chunk.devices[i];
+                if(index >= 0){
+                    int position = chunk.rangePositions[rangeOfDevice[index]]++;
+                    groupedComponents[position] = chunk.components[i];
+                    groupedDevices[position] = index;
+                }
+            }
+        });
+
+        //Step 3: create the devices of every range.
+        ComponentStatesTable componentsStates =
+                new ComponentStatesTable(groupedComponents.length);
+        DeviceDataWrapper[] devices = new DeviceDataWrapper[devicesCount];
+        ConcurrentHashMap<DeviceId, Long> overCapacityDevices =
+                new ConcurrentHashMap<>();
+        List<ComponentId> duplicateComponents =
+                Collections.synchronizedList(new ArrayList<>());
+        AtomicLong duplicateComponentsCount = new AtomicLong();
+        forEach(rangesCount, r -> {
+            int first = firstDevice[r];
+            int[] offsets = new int[firstDevice[r + 1] - first + 1];
+            for(int i = rangeStart[r]; i < rangeStart[r + 1]; ++i){
+                ++offsets[groupedDevices[i] - first + 1];
+            }
+            for(int d = 1; d < offsets.length; ++d){
+                int count = offsets[d];
+                if(count > slots[first + d - 1]){
+                    overCapacityDevices.put(new DeviceId(ids[first + d - 1]),
+                            (long) count);
+                }
+                offsets[d] += offsets[d - 1];
+            }
+            int[] sorted = new int[rangeStart[r + 1] - rangeStart[r]];
+            int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+            for(int i = rangeStart[r]; i < rangeStart[r + 1]; ++i){
+                int component = groupedComponents[i];
+                if(componentsStates.putIfAbsent(component,
+                        ComponentStatesTable.IDLE, groupedDevices[i])){
+                    sorted[next[groupedDevices[i] - first]++] = component;
+                }
+                else if(duplicateComponentsCount.getAndIncrement() <
+                        PlacementValidationException.MAX_REPORTED_DUPLICATES){
+                    duplicateComponents.add(new ComponentId(component));
+                }
+            }
+            for(int d = 0; d + 1 < offsets.length; ++d){
+                int device = first + d;
+                if(next[d] - offsets[d] <= slots[device]){
+                    devices[device] = new DeviceDataWrapper(
+                            new DeviceId(ids[device]), slots[device],
+                            Arrays.copyOfRange(sorted, offsets[d], next[d]),
+                            consecutiveSlots(next[d] - offsets[d]));
+                }
+            }
+        });
+        if(!overCapacityDevices.isEmpty() || !unknownDevices.isEmpty() ||
+                duplicateComponentsCount.get() > 0){
+            throw new PlacementValidationException(
+                    new TreeMap<>(overCapacityDevices),
+                    new TreeSet<>(unknownDevices),
+                    new ArrayList<>(duplicateComponents),
+                    duplicateComponentsCount.get());
+        }
+        return new StorageSystemClass(devices, componentsStates,
+                asyncExecutor, scheduler);
+    }
+
+    private static int[] consecutiveSlots(int count){
+        int[] result = new int[count];
+        for(int i = 0; i < count; ++i){
+            result[i] = i;
+        }
+        return result;
+    }
+
+    //Runs the given body for all the indexes from 0 to count - 1 in the pool
+    //of this builder, and waits until all of them are done.
+    private void forEach(int count, IntConsumer body){
+        if(count > 0){
+            pool.invoke(new ForEachTask(0, count, body));
+        }
+    }
+
+    private static final class ForEachTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        ForEachTask(int from, int to, IntConsumer body){
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from == 1){
+                body.accept(from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ForEachTask(from, middle, body),
+                    new ForEachTask(middle, to, body));
+        }
+    }
+}
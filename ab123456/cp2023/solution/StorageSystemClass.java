@@ -3,33 +3,270 @@ package cp2023.solution;
 import cp2023.base.ComponentId;
 import cp2023.base.ComponentTransfer;
 import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.PlacementSubscription;
 import cp2023.base.StorageSystem;
+import cp2023.base.TransferStatus;
 import cp2023.exceptions.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
-public class StorageSystemClass implements StorageSystem {
+//Every device has its own lock, and a transfer locks only its source and
+//destination devices, always in the order of their ids. Transfers that have
+//to wait for a memory slot are additionally registered in the waitingTransfers
+//lists of the devices and in the WaitForGraph, which are guarded by a separate
+//mutex, taken only on the waiting paths and always after the device locks.
+//The devices may be partitioned into shards, each with its own mutex and
+//WaitForGraph (see ShardedStorageSystem), in which case the mutexes of
+//different shards are always taken in the order of the shards. The system
+//may also be a node of a system spread over many processes (see StorageNode),
+//whose moves to other nodes wait in the RemoteMoveGraph.
+//A group transfer locks its two devices once for all its components, and
+//waits in a separate queue of its destination device, see GroupDataWrapper.
+//The devices may be added, resized and drained while the transfers run.
+//These changes are serialized by the lock of the system, and every one of
+//them changes a single device with its lock held, like a transfer does.
+public class StorageSystemClass implements ExtendedStorageSystem {
+    //Read by the transfers without any lock.
     Map<DeviceId, DeviceDataWrapper> deviceData;
-    private Map<ComponentId, Boolean> componentsStates;
-    private Semaphore transferMutex = new Semaphore(1, true);
-    private ArrayList<ComponentTransfer> transfers = new ArrayList<>();
-    private Map<ComponentTransfer, Semaphore>
-            transfersSemaphores = new HashMap<>();
-    private ArrayList<ComponentTransfer>
-            memoryTriggers = new ArrayList<>();
-    private HashMap<ComponentTransfer, Semaphore>
-            memoryTriggersMapping = new HashMap<>();
-    private boolean bWasThereACycle = false;
-    private ArrayList<ComponentTransfer>
-            cycleTransfersListSaver = new ArrayList<>();
-
+    //The devices by their indices, see ComponentStatesTable. Copied on every
+    //change, with the lock of the system held.
+    private volatile DeviceDataWrapper[] devices;
+    private ComponentStatesTable componentsStates;
+    private final Shard[] shards;
+    //Chooses the shards of the devices added later, see addDevice().
+    private final ToIntFunction<DeviceId> partitioner;
+    //Waiting moves between the shards, see CrossShardGraph.
+    private final CrossShardGraph crossShardGraph = new CrossShardGraph();
+    //Waiting moves to the devices of other nodes, see StorageNode.
+    private final RemoteMoveGraph remoteMoveGraph = new RemoteMoveGraph();
+    //Told about every move that starts waiting for a memory slot, and about
+    //every addition of a component moved from another node, if the system
+    //is hosted by a StorageNode. Set once, before any transfer starts.
+    private Consumer<TransferDataWrapper> waitListener = null;
+    private final Executor asyncExecutor;
+    //Chooses which waiting transfer gets a memory slot.
+    private final TransferScheduler scheduler;
+    //Null if the placement is kept only in memory.
+    private final PlacementJournal journal;
+    //Set while the journal is being compacted, see compactJournal().
+    private final AtomicBoolean bCompactingJournal = new AtomicBoolean(false);
+    //Created by the first subscription, see subscribe().
+    private volatile PlacementFeed placementFeed = null;
+    //Lets snapshot() wait until no transfer is changing the placement.
+    private final TransferGate transferGate = new TransferGate();
+    //Runtime metrics, see StorageSystemStats.
+    final LatencyHistogram mutexWaitHistogram = new LatencyHistogram();
+    final LatencyHistogram slotWaitHistogram = new LatencyHistogram();
+    final LatencyHistogram cycleLengthsHistogram = new LatencyHistogram();
+    final LongAdder cancelledTransfersCount = new LongAdder();
+    //Indexed by the ordinals of StorageSystemStats.TransferPath.
+    final LatencyHistogram[] transferLatencyHistograms =
+            newHistograms(StorageSystemStats.TransferPath.values().length);
 
     public StorageSystemClass(Map<DeviceId, Integer> deviceTotalSlots,
                               Map<ComponentId, DeviceId> componentPlacement) {
-        //Check whether there is a component assigned to the device without
-        //defined size, or if there are too many components assigned
-        //to one device.
+        this(deviceTotalSlots, componentPlacement, ForkJoinPool.commonPool());
+    }
+
+    public StorageSystemClass(Map<DeviceId, Integer> deviceTotalSlots,
+                              Map<ComponentId, DeviceId> componentPlacement,
+                              Executor asyncExecutor) {
+        this(deviceTotalSlots, componentPlacement, asyncExecutor,
+                TransferScheduler.fifo());
+    }
+
+    public StorageSystemClass(Map<DeviceId, Integer> deviceTotalSlots,
+                              Map<ComponentId, DeviceId> componentPlacement,
+                              Executor asyncExecutor,
+                              TransferScheduler scheduler) {
+        this(deviceTotalSlots, componentPlacement, asyncExecutor, scheduler,
+                null, 1, id -> 0);
+    }
+
+    //Creates the system whose devices are partitioned into the given number
+    //of shards by the given function.
+    StorageSystemClass(Map<DeviceId, Integer> deviceTotalSlots,
+                       Map<ComponentId, DeviceId> componentPlacement,
+                       Executor asyncExecutor, TransferScheduler scheduler,
+                       int shardsCount, ToIntFunction<DeviceId> partitioner) {
+        this(deviceTotalSlots, componentPlacement, asyncExecutor, scheduler,
+                null, shardsCount, partitioner);
+    }
+
+    //Creates the system, which records its placement in the journal in
+    //the given file, replacing its old content.
+    public StorageSystemClass(Map<DeviceId, Integer> deviceTotalSlots,
+                              Map<ComponentId, DeviceId> componentPlacement,
+                              Executor asyncExecutor, Path journalFile)
+            throws IOException {
+        this(deviceTotalSlots, componentPlacement, asyncExecutor,
+                TransferScheduler.fifo(), createJournal(journalFile,
+                        deviceTotalSlots, componentPlacement), 1, id -> 0);
+    }
+
+    private StorageSystemClass(Map<DeviceId, Integer> deviceTotalSlots,
+                               Map<ComponentId, DeviceId> componentPlacement,
+                               Executor asyncExecutor,
+                               TransferScheduler scheduler,
+                               PlacementJournal journal, int shardsCount,
+                               ToIntFunction<DeviceId> partitioner) {
+        this.asyncExecutor = asyncExecutor;
+        this.scheduler = scheduler;
+        this.journal = journal;
+        this.partitioner = partitioner;
+        Map<DeviceId, ArrayList<ComponentId>> componentsInDevice =
+                groupComponents(deviceTotalSlots, componentPlacement);
+        //Passed parameters were valid, we can initialize our object.
+        deviceData = new ConcurrentHashMap<>();
+        for(Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()){
+            if(componentsInDevice.containsKey(entry.getKey())){
+                deviceData.put(entry.getKey(), new DeviceDataWrapper(
+                        entry.getKey(),
+                        componentsInDevice.get(entry.getKey()),
+                        entry.getValue()));
+            }
+            else{
+                deviceData.put(entry.getKey(), new DeviceDataWrapper(
+                        entry.getKey(), new ArrayList<>(), entry.getValue()));
+            }
+        }
+        shards = createShards(deviceData.values(), shardsCount, partitioner);
+        devices = indexDevices(
+                deviceData.values().toArray(new DeviceDataWrapper[0]));
+        //initialize mutexex for each component;
+        componentsStates = new ComponentStatesTable(componentPlacement.size());
+        for(Map.Entry<ComponentId, DeviceId> entry :
+                componentPlacement.entrySet()){
+            componentsStates.putIfAbsent(Ids.of(entry.getKey()),
+                    ComponentStatesTable.IDLE,
+                    deviceData.get(entry.getValue()).index);
+        }
+    }
+
+    //Creates the system with the devices and the placement read from
+    //the given snapshot. The internal tables are built directly from its
+    //arrays.
+    StorageSystemClass(PlacementSnapshot snapshot, Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+        this.scheduler = TransferScheduler.fifo();
+        this.journal = null;
+        this.partitioner = id -> 0;
+        deviceData = new ConcurrentHashMap<>(snapshot.deviceIds.length * 2);
+        devices = new DeviceDataWrapper[snapshot.deviceIds.length];
+        componentsStates =
+                new ComponentStatesTable(snapshot.getComponentsCount());
+        for(int i = 0; i < snapshot.deviceIds.length; ++i){
+            DeviceId id = new DeviceId(snapshot.deviceIds[i]);
+            DeviceDataWrapper device = new DeviceDataWrapper(id,
+                    snapshot.deviceSlots[i], snapshot.components[i],
+                    snapshot.componentSlots[i]);
+            if(deviceData.put(id, device) != null){
+                throw new IllegalArgumentException(
+                        "Duplicate device with id = " + id);
+            }
+            devices[i] = device;
+            for(int comp : snapshot.components[i]){
+                if(!componentsStates.putIfAbsent(comp,
+                        ComponentStatesTable.IDLE, i)){
+                    throw new IllegalArgumentException("Component with id = " +
+                            comp + " assigned to more than one device");
+                }
+            }
+        }
+        indexDevices(devices);
+        shards = createShards(deviceData.values(), 1, id -> 0);
+    }
+
+    //Creates the system with the given devices, and the states of all their
+    //components, built and validated by StorageSystemBuilder, which refer
+    //to the devices by their positions in the array.
+    StorageSystemClass(DeviceDataWrapper[] devices,
+                       ComponentStatesTable componentsStates,
+                       Executor asyncExecutor, TransferScheduler scheduler) {
+        this.asyncExecutor = asyncExecutor;
+        this.scheduler = scheduler;
+        this.journal = null;
+        this.partitioner = id -> 0;
+        this.componentsStates = componentsStates;
+        deviceData = new ConcurrentHashMap<>(devices.length * 2);
+        for(DeviceDataWrapper device : devices){
+            deviceData.put(device.getDeviceId(), device);
+        }
+        this.devices = indexDevices(devices);
+        shards = createShards(deviceData.values(), 1, id -> 0);
+    }
+
+    //Sets the index of every given device to its position in the array,
+    //and returns the array.
+    private static DeviceDataWrapper[] indexDevices(
+            DeviceDataWrapper[] devices){
+        for(int i = 0; i < devices.length; ++i){
+            devices[i].index = i;
+        }
+        return devices;
+    }
+
+    //Creates the given number of shards, and assigns every given device
+    //to the shard chosen by the given function.
+    private static Shard[] createShards(Collection<DeviceDataWrapper> devices,
+                                        int shardsCount,
+                                        ToIntFunction<DeviceId> partitioner){
+        if(shardsCount < 1){
+            throw new IllegalArgumentException(
+                    "The number of shards has to be positive");
+        }
+        Shard[] result = new Shard[shardsCount];
+        for(int i = 0; i < shardsCount; ++i){
+            result[i] = new Shard(i);
+        }
+        for(DeviceDataWrapper device : devices){
+            device.shard = result[getShardIndex(device.getDeviceId(),
+                    shardsCount, partitioner)];
+            device.shard.waitForGraph.addDevice(device);
+        }
+        return result;
+    }
+
+    //Returns the shard of the given device chosen by the given function,
+    //checking that it is one of the given number of shards.
+    private static int getShardIndex(DeviceId device, int shardsCount,
+                                     ToIntFunction<DeviceId> partitioner){
+        int index = partitioner.applyAsInt(device);
+        if(index < 0 || index >= shardsCount){
+            throw new IllegalArgumentException("Device with id = " +
+                    device + " assigned to the shard " + index + " out of " +
+                    shardsCount);
+        }
+        return index;
+    }
+
+    private static LatencyHistogram[] newHistograms(int count){
+        LatencyHistogram[] result = new LatencyHistogram[count];
+        for(int i = 0; i < count; ++i){
+            result[i] = new LatencyHistogram();
+        }
+        return result;
+    }
+
+    //Checks whether there is a component assigned to the device without
+    //defined size, or if there are too many components assigned to one
+    //device, and returns the components assigned to every device.
+    private static Map<DeviceId, ArrayList<ComponentId>> groupComponents(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement){
         if(componentPlacement == null){
             throw new IllegalArgumentException
                     ("Null passed as componentPlacement");
@@ -54,456 +291,2147 @@ public class StorageSystemClass implements StorageSystem {
                                 "with id = " + me.getValue());
             }
         }
-        //Passed parameters were valid, we can initialize our object.
-        deviceData = new HashMap<>();
-        for(Map.Entry<DeviceId, Integer> entry : deviceTotalSlots.entrySet()){
-            if(componentsInDevice.containsKey(entry.getKey())){
-                deviceData.put(entry.getKey(), new DeviceDataWrapper(
-                        componentsInDevice.get(entry.getKey()),
-                        entry.getValue()));
-            }
-            else{
-                deviceData.put(entry.getKey(), new DeviceDataWrapper(
-                        new ArrayList<>(), entry.getValue()));
-            }
+        return componentsInDevice;
+    }
+
+    //Validates the placement, so that an invalid one never replaces
+    //the content of the journal, and creates the journal.
+    private static PlacementJournal createJournal(Path journalFile,
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement) throws IOException {
+        groupComponents(deviceTotalSlots, componentPlacement);
+        return PlacementJournal.create(journalFile, deviceTotalSlots,
+                componentPlacement);
+    }
+
+    //Stops the journal, if the system has one, after forcing all its records
+    //to the disk. The transfers that are still running may be recorded or
+    //not, so the system must not be used afterwards.
+    @Override
+    public void close() throws IOException {
+        if(journal != null){
+            journal.close();
         }
-        //initialize mutexex for each component;
-        componentsStates = new HashMap<>();
-        for(Map.Entry<ComponentId, DeviceId> entry :
-                componentPlacement.entrySet()){
-            componentsStates.put(entry.getKey(), false);
+    }
+
+    //Rewrites the journal with only the current devices and placement, see
+    //PlacementJournal.compact(). Like in snapshot(), new transfers wait while
+    //the placement is read. The lock of the system, which keeps the devices
+    //from being added or resized, is taken only once the gate is closed,
+    //because a running transfer may need it to remove a drained device.
+    void compactJournal() throws IOException {
+        transferGate.close();
+        try {
+            synchronized(this){
+                compactClosedJournal();
+            }
+        } finally {
+            transferGate.open();
         }
     }
 
-    //Validates transfer, and if there's anything wrong, this function
-    //released transferMUTEXLock and throws a corresponding exception.
-    private void validateTransfer(ComponentTransfer transfer)
-            throws TransferException {
-        if(componentsStates.containsKey(transfer.getComponentId())){
-            if(transfer.getSourceDeviceId() == null &&
-                    transfer.getDestinationDeviceId() != null &&
-                    deviceData.get(transfer.getDestinationDeviceId())
-                            .isComponentInDevice(transfer.getComponentId())){
-                //We are trying to add something that already exist.
-                transferMutex.release();
-                throw new ComponentAlreadyExists(transfer.getComponentId(),
-                        transfer.getDestinationDeviceId());
+    private void compactClosedJournal() throws IOException {
+        TreeMap<DeviceId, DeviceDataWrapper> devices = new TreeMap<>(deviceData);
+        LinkedHashMap<DeviceId, Integer> deviceSlots = new LinkedHashMap<>();
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        for(DeviceDataWrapper device : devices.values()){
+            device.lock();
+        }
+        try {
+            for(DeviceDataWrapper device : devices.values()){
+                int[][] slots = device.getComponentSlots();
+                //The removal of a drained device is already recorded.
+                if(device.isDraining() && slots[0].length == 0){
+                    continue;
+                }
+                deviceSlots.put(device.getDeviceId(),
+                        getRecordedSize(device, slots[1]));
+                for(int comp : slots[0]){
+                    placement.put(new ComponentId(comp), device.getDeviceId());
+                }
             }
-            else if(componentsStates.get(transfer.getComponentId())) {
-                //We are requesting an operation on something that is
-                //already being operated on.
-                transferMutex.release();
-                throw new ComponentIsBeingOperatedOn(transfer.getComponentId());
+            journal.compact(deviceSlots, placement);
+        } finally {
+            for(DeviceDataWrapper device : devices.values()){
+                device.unlock();
             }
         }
+    }
 
-        if(transfer.getSourceDeviceId() != null &&
-                !deviceData.containsKey(transfer.getSourceDeviceId())){
-            //Source device does not exist.
-            transferMutex.release();
-            throw new DeviceDoesNotExist(transfer.getSourceDeviceId());
+    //Starts compactJournal() in the background, once the journal has grown
+    //enough, unless it is already running. It has to wait until no transfer
+    //is running, so it can't be done by the transfer that finds it needed.
+    private void compactJournalIfNeeded(){
+        if(!journal.needsCompaction() ||
+                !bCompactingJournal.compareAndSet(false, true)){
+            return;
         }
-        else if(transfer.getDestinationDeviceId() != null &&
-                !deviceData.containsKey(transfer.getDestinationDeviceId())){
-            //Destination device does not exist.
-            transferMutex.release();
-            throw new DeviceDoesNotExist(transfer.getDestinationDeviceId());
-        }
-        else if(transfer.getSourceDeviceId() != null &&
-                !deviceData.get(transfer.getSourceDeviceId())
-                        .isComponentInDevice(transfer.getComponentId())){
-            transferMutex.release();
-            throw new ComponentDoesNotExist(transfer.getComponentId(),
-                    transfer.getSourceDeviceId());
+        Thread thread = new Thread(() -> {
+            try {
+                compactJournal();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot compact the journal", e);
+            } finally {
+                bCompactingJournal.set(false);
+            }
+        }, "placement-journal-compact");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    //Returns the size of the device to be recorded with the given slots of
+    //its components. A device that is still shrinking is recorded with
+    //the retiring slots that are in use.
+    private static int getRecordedSize(DeviceDataWrapper device, int[] slots){
+        int size = device.getDeviceSize();
+        for(int slot : slots){
+            size = Math.max(size, slot + 1);
         }
-        else if(transfer.getDestinationDeviceId() != null &&
-                deviceData.get(transfer.getDestinationDeviceId())
-                        .isComponentInDevice(transfer.getComponentId())){
-            transferMutex.release();
-            throw new ComponentDoesNotNeedTransfer(transfer.getComponentId(),
-                    transfer.getSourceDeviceId());
+        return size;
+    }
+
+    //Returns data of the device with the given id, or null if the id is null
+    //or there is no such device.
+    private DeviceDataWrapper getDevice(DeviceId id){
+        return id == null ? null : deviceData.get(id);
+    }
+
+    private TransferException newRejection(TransferStatus status,
+                                           ComponentTransfer transfer){
+        return newRejection(status, transfer, deviceData.keySet());
+    }
+
+    //Creates the exception corresponding to the given rejection status
+    //of the given transfer, in the system with the given devices.
+    //The exceptions are the ones of the assignment, with their stack
+    //traces, so the callers that expect many rejections should use
+    //tryExecute(), which creates none.
+    static TransferException newRejection(TransferStatus status,
+                                          ComponentTransfer transfer,
+                                          Set<DeviceId> devices){
+        ComponentId comp = transfer.getComponentId();
+        switch(status){
+            case ILLEGAL_TRANSFER_TYPE:
+                return new IllegalTransferType(comp);
+            case DEVICE_DOES_NOT_EXIST:
+                DeviceId src = transfer.getSourceDeviceId();
+                return new DeviceDoesNotExist(src != null &&
+                        !devices.contains(src) ? src :
+                        transfer.getDestinationDeviceId());
+            case COMPONENT_ALREADY_EXISTS:
+                return new ComponentAlreadyExists(comp,
+                        transfer.getDestinationDeviceId());
+            case COMPONENT_DOES_NOT_EXIST:
+                return new ComponentDoesNotExist(comp,
+                        transfer.getSourceDeviceId());
+            case COMPONENT_DOES_NOT_NEED_TRANSFER:
+                return new ComponentDoesNotNeedTransfer(comp,
+                        transfer.getSourceDeviceId());
+            case COMPONENT_IS_BEING_OPERATED_ON:
+                return new ComponentIsBeingOperatedOn(comp);
+            case TRANSFER_TIMED_OUT:
+                return new TransferTimedOut(comp);
+            case TRANSFER_INTERRUPTED:
+                return new TransferInterrupted(comp);
+            case UNRESOLVABLE_CYCLE:
+                return new UnresolvableCycle(comp);
+            default:
+                throw new IllegalArgumentException("Not a rejection: " + status);
         }
     }
 
-    private void acquireTransferMutex(){
-        try {
-            transferMutex.acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    //Locks both given devices (any of them may be null) in the order
+    //of their ids, so that no two transfers can deadlock on them.
+    //Returns the time in nanoseconds spent waiting for the locks.
+    private long lockDevices(DeviceDataWrapper first,
+                             DeviceDataWrapper second){
+        if(first == null){
+            return second.lockAndGetWaitTime();
+        }
+        else if(second == null){
+            return first.lockAndGetWaitTime();
+        }
+        else if(first.getDeviceId().compareTo(second.getDeviceId()) < 0){
+            return first.lockAndGetWaitTime() + second.lockAndGetWaitTime();
+        }
+        else{
+            return second.lockAndGetWaitTime() + first.lockAndGetWaitTime();
         }
     }
 
-    private void acquireTransfersSemaphore(ComponentTransfer t){
-        try {
-            transfersSemaphores.get(t).acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    //Locks waitingTransfersMutex of the given shard and returns the time
+    //in nanoseconds spent waiting for it.
+    private static long lockWaitingTransfersMutex(Shard shard){
+        if(shard.waitingTransfersMutex.tryLock()){
+            return 0;
         }
+        long start = System.nanoTime();
+        shard.waitingTransfersMutex.lock();
+        return System.nanoTime() - start;
     }
 
-    private void acquireTriggersSemaphore(ComponentTransfer t){
-        try {
-            memoryTriggersMapping.get(t).acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    //Locks waitingTransfersMutex of every shard, in the order of the shards.
+    void lockAllShards(){
+        for(Shard shard : shards){
+            shard.waitingTransfersMutex.lock();
         }
     }
 
-    private int findIndexOfFirstWaiter(ComponentTransfer transfer){
-        for(int i = 0; i < transfers.size(); ++i){
-            if(transfers.get(i).getDestinationDeviceId()
-                    .equals(transfer.getSourceDeviceId())){
-                return i;
-            }
+    void unlockAllShards(){
+        for(int i = shards.length - 1; i >= 0; --i){
+            shards[i].waitingTransfersMutex.unlock();
         }
-        return -1;
     }
 
-    private void waitForPreviousWaiter(ComponentTransfer transfer, int index){
-        if(index >= 0){
-            memoryTriggers.add(transfer);
-            memoryTriggersMapping.put(transfer, new Semaphore(0, true));
-            transfersSemaphores.get(transfers.get(index)).release();
-            acquireTriggersSemaphore(transfer);
-            memoryTriggersMapping.remove(transfer);
-            memoryTriggers.remove(transfer);
+    //Removes the edge of the given waiting transfer from the graph it was
+    //added to. Has to be called with waitingTransfersMutex of the shard
+    //of its destination device held.
+    private void removeWaitingEdge(TransferDataWrapper transfer){
+        if(transfer.bCrossShard){
+            crossShardGraph.removeWaitingTransfer(transfer);
+        }
+        else{
+            transfer.destination.shard.waitForGraph
+                    .removeWaitingTransfer(transfer);
         }
     }
 
-    private void removeWaiter(ComponentTransfer transfer){
-        transfers.remove(transfer);
-        transfersSemaphores.remove(transfer);
+    private void unlockDevices(DeviceDataWrapper first,
+                               DeviceDataWrapper second){
+        if(first != null){
+            first.unlock();
+        }
+        if(second != null){
+            second.unlock();
+        }
     }
 
-    private boolean hasCycle(ComponentTransfer transfer,
-                             ArrayList<ComponentTransfer> waitingTransfers,
-                             ArrayList<ComponentTransfer> result,
-                             HashSet<DeviceId> visitedDevices){
-        //We found the cycle.
-        if(result.size() > 0 && result.get(result.size()-1) == transfer){return true;}
-        //We visited a device that we know that have no waiting transfer that
-        //will lead to the cycle.
-        else if(visitedDevices.contains(transfer.getSourceDeviceId())){return false;}
-        //Recursive DFS.
-        for (ComponentTransfer waitingTransfer : waitingTransfers) {
-            result.add(waitingTransfer);
-            if (hasCycle(transfer,
-                    deviceData.get(waitingTransfer.getSourceDeviceId())
-                            .waitingTransfers, result, visitedDevices)) {
-                return true;
+    //Writes the placement of this system to the given file in the binary
+    //snapshot format. New transfers wait while the placement is read,
+    //and the ones that already have their memory slots reserved are
+    //finished first, so that every component is in exactly one device.
+    void snapshot(Path file) throws IOException {
+        TreeMap<DeviceId, DeviceDataWrapper> devices = new TreeMap<>(deviceData);
+        int[] deviceIds = new int[devices.size()];
+        int[] deviceSlots = new int[devices.size()];
+        int[][] components = new int[devices.size()][];
+        int[][] componentSlots = new int[devices.size()][];
+        transferGate.close();
+        try {
+            for(DeviceDataWrapper device : devices.values()){
+                device.lock();
+            }
+            int i = 0;
+            for(DeviceDataWrapper device : devices.values()){
+                int[][] slots = device.getComponentSlots();
+                deviceIds[i] = Ids.of(device.getDeviceId());
+                deviceSlots[i] = getRecordedSize(device, slots[1]);
+                components[i] = slots[0];
+                componentSlots[i++] = slots[1];
+                device.unlock();
             }
-            result.remove(waitingTransfer);
+        } finally {
+            transferGate.open();
         }
-        if(waitingTransfers.size() > 0){
-            //If the destination device has waiting transfers, and we checked
-            //that none of it leads to the cycle, we add it to the
-            //visitedDevices HashSet so that we won't perform DFS on it again.
-            visitedDevices.add(waitingTransfers.get(0).getDestinationDeviceId());
+        new PlacementSnapshot(deviceIds, deviceSlots, components,
+                componentSlots).write(file);
+    }
+
+    //Returns the snapshot of the runtime metrics of this system.
+    public StorageSystemStats getStats(){
+        return new StorageSystemStats(getDeviceStats(),
+                mutexWaitHistogram.snapshot(), slotWaitHistogram.snapshot(),
+                getTransferLatency(), cycleLengthsHistogram.snapshot(),
+                cancelledTransfersCount.sum());
+    }
+
+    EnumMap<StorageSystemStats.TransferPath, StorageSystemStats.Histogram>
+            getTransferLatency(){
+        EnumMap<StorageSystemStats.TransferPath, StorageSystemStats.Histogram>
+                result = new EnumMap<>(StorageSystemStats.TransferPath.class);
+        for(StorageSystemStats.TransferPath path :
+                StorageSystemStats.TransferPath.values()){
+            result.put(path,
+                    transferLatencyHistograms[path.ordinal()].snapshot());
         }
+        return result;
+    }
 
-        return false;
+    //Returns the current state of all the devices in the order of their ids.
+    //Every device is locked only while its own state is read.
+    List<StorageSystemStats.DeviceStats> getDeviceStats(){
+        ArrayList<StorageSystemStats.DeviceStats> result = new ArrayList<>();
+        for(DeviceDataWrapper device : new TreeMap<>(deviceData).values()){
+            device.lock();
+            int usedSlots = device.getUsedSlotsCount();
+            device.unlock();
+            result.add(new StorageSystemStats.DeviceStats(
+                    Ids.of(device.getDeviceId()), device.getDeviceSize(),
+                    usedSlots, device.getWaitingTransfersCount()));
+        }
+        return result;
     }
 
-    private void moveComponentWithFreeMemorySpace(ComponentTransfer transfer){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId src = transfer.getSourceDeviceId();
-        DeviceId dest = transfer.getDestinationDeviceId();
+    //The three methods below read the placement without any lock, from
+    //the ComponentStatesTable and the seqlocks of the devices, so they never
+    //slow the transfers down, however often they are called.
 
-        deviceData.get(src).addComponentLeavingDevice(comp);
-        deviceData.get(dest).acquireFirstFreeMemorySlot(comp);
-        //If there is someone waiting for the memory, we notify him
-        //that he can resume his operations, and we wait for him
-        //to safely update all necessary information.
-        int index = findIndexOfFirstWaiter(transfer);
-        waitForPreviousWaiter(transfer, index);
-        //We did everything we wanted, release mutex and prepare().
-        transferMutex.release();
-        transfer.prepare();
+    @Override
+    public DeviceId locate(ComponentId component){
+        int device = componentsStates.getDevice(Ids.of(component));
+        return device == ComponentStatesTable.NO_DEVICE ? null :
+                devices[device].getDeviceId();
+    }
 
-        //Free-up memory space.
-        deviceData.get(src).releaseMemoryCell(comp);
-        acquireTransferMutex();
-        deviceData.get(src).leaveDevice(comp);
-        deviceData.get(dest).enterDevice(comp);
-        transferMutex.release();
-        transfer.perform();
+    @Override
+    public int occupancy(DeviceId device){
+        DeviceDataWrapper data = getDevice(device);
+        return data == null ? -1 : data.getUsedSlotsCount();
+    }
 
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
+    @Override
+    public List<ComponentId> listComponents(DeviceId device){
+        DeviceDataWrapper data = getDevice(device);
+        if(data == null){
+            return null;
+        }
+        int[] ids = data.getComponentsWithoutLock();
+        ArrayList<ComponentId> result = new ArrayList<>(ids.length);
+        for(int id : ids){
+            result.add(new ComponentId(id));
+        }
+        return result;
     }
 
-    private void moveComponentWithFreeMemoryInTheFuture(ComponentTransfer transfer){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId src = transfer.getSourceDeviceId();
-        DeviceId dest = transfer.getDestinationDeviceId();
+    //The ring buffer of the feed is allocated by the first subscription,
+    //so the systems no one subscribes to do not pay for it.
+    @Override
+    public PlacementSubscription subscribe(
+            PlacementSubscription.Policy policy){
+        PlacementFeed feed = placementFeed;
+        if(feed == null){
+            synchronized(this){
+                if(placementFeed == null){
+                    placementFeed = new PlacementFeed();
+                }
+                feed = placementFeed;
+            }
+        }
+        return feed.subscribe(policy);
+    }
 
-        deviceData.get(src).addComponentLeavingDevice(comp);
-        //Reserve the memory slot owned by on of the components leaving device.
-        deviceData.get(dest).reserveMemorySpace(comp);
-        //If there is someone waiting for the memory, we notify him
-        //that he can resume his operations, and we wait for him
-        //to safely update all necessary information.
-        int index = findIndexOfFirstWaiter(transfer);
-        waitForPreviousWaiter(transfer, index);
-        transferMutex.release();
-        transfer.prepare();
-
-        deviceData.get(src).releaseMemoryCell(comp);
-        acquireTransferMutex();
-        //Acquire memory reserved before.
-        deviceData.get(dest).acquireReservedMemory(comp);
-        deviceData.get(src).leaveDevice(comp);
-        deviceData.get(dest).enterDevice(comp);
-        transferMutex.release();
-        transfer.perform();
-
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
-    }
-
-    private void moveComponentWithInheritedCS(ComponentTransfer transfer,
-                                              boolean bWasClosingCycle){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId src = transfer.getSourceDeviceId();
-        DeviceId dest = transfer.getDestinationDeviceId();
+    @Override
+    public synchronized void addDevice(DeviceId device, int slots){
+        if(device == null || slots < 0){
+            throw new IllegalArgumentException("Invalid device " + device +
+                    " with " + slots + " slots");
+        }
+        if(deviceData.containsKey(device)){
+            throw new IllegalArgumentException("Device with id = " + device +
+                    " already exists");
+        }
+        DeviceDataWrapper data =
+                new DeviceDataWrapper(device, new ArrayList<>(), slots);
+        data.shard = shards[getShardIndex(device, shards.length, partitioner)];
+        data.shard.waitingTransfersMutex.lock();
+        data.shard.waitForGraph.addDevice(data);
+        data.shard.waitingTransfersMutex.unlock();
+        DeviceDataWrapper[] updated = Arrays.copyOf(devices, devices.length + 1);
+        data.index = devices.length;
+        updated[data.index] = data;
+        devices = updated;
+        if(journal != null){
+            journal.appendDevice(device, slots);
+        }
+        //From now on, the transfers can find the device.
+        deviceData.put(device, data);
+    }
 
-        deviceData.get(src).addComponentLeavingDevice(comp);
-        //Remove transfer from the list of transfers awaiting to enter
-        //a given device.
-        deviceData.get(transfer.getDestinationDeviceId())
-                .waitingTransfers.remove(transfer);
-        if(!bWasClosingCycle){
-            deviceData.get(dest).reserveMemorySpace(comp);
-        }
-        //Remove transfer from the list of transfers waiting for any memory.
-        removeWaiter(transfer);
-        if(bWasThereACycle && transfers.isEmpty()){
-            //We processed every transfer that was part of the cycle,
-            //restore previous information.
-            bWasThereACycle = false;
-            transfers.addAll(cycleTransfersListSaver);
-            cycleTransfersListSaver = new ArrayList<>();
+    //The device is resized with its lock held, so the slots it gains are
+    //reserved for the transfers waiting for it right away. A resize that
+    //finishes at once, which every growth beyond the retiring slots does,
+    //is recorded in the journal before these reservations, so that
+    //the placement recovered from any prefix of the journal fits into
+    //the recorded sizes. A shrink is recorded once its retiring slots are
+    //dropped.
+    @Override
+    public synchronized CompletableFuture<Void> resizeDevice(DeviceId device,
+                                                             int newSlots){
+        DeviceDataWrapper data = getExistingDevice(device);
+        if(newSlots < 0){
+            throw new IllegalArgumentException("Negative number of slots " +
+                    "of the device with id = " + device);
         }
-        else{
-            //If there is someone waiting for the memory, we notify him
-            //that he can resume his operations, and we wait for him
-            //to safely update all necessary information.
-            int index = findIndexOfFirstWaiter(transfer);
-            waitForPreviousWaiter(transfer, index);
+        data.lock();
+        CompletableFuture<Void> result;
+        CompletableFuture<Void> resized;
+        try {
+            if(data.isDraining()){
+                throw new IllegalStateException("Device with id = " + device +
+                        " is being drained");
+            }
+            result = data.resize(newSlots);
+            resized = takeFinishedResize(data);
+            reserveForWaitingTransfers(data);
+        } finally {
+            data.unlock();
         }
-        if(!bWasClosingCycle) {
-            //Resume operations of the transfer that woke us up.
-            memoryTriggersMapping.get(memoryTriggers
-                    .get(memoryTriggers.size() - 1)).release();
+        if(resized != null){
+            resized.complete(null);
         }
-        else{
-            //This transfer is closing a cycle, so it can reserve memory
-            //space only if all other transfers in the cycle
-            // performed their actions.
-            deviceData.get(dest).reserveMemorySpace(comp);
-            transferMutex.release();
-        }
-        transfer.prepare();
-
-        deviceData.get(src).releaseMemoryCell(comp);
-        acquireTransferMutex();
-        deviceData.get(dest).acquireReservedMemory(comp);
-        deviceData.get(src).leaveDevice(comp);
-        deviceData.get(dest).enterDevice(comp);
-        transferMutex.release();
-        transfer.perform();
-
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
-    }
-
-    private void moveComponentOperation(ComponentTransfer transfer){
-        if(deviceData.get(transfer.getDestinationDeviceId())
-                .hasFreeMemorySpace()){
-            //We have a free memory space, so we proceed.
-            moveComponentWithFreeMemorySpace(transfer);
-        }
-        else {//freeMemorySlots == 0
-            if(deviceData.get(transfer.getDestinationDeviceId())
-                    .willHaveFreeMemorySpace()){
-                //We know that there is at least one component leaving
-                //the dest device, so we proceed.
-                moveComponentWithFreeMemoryInTheFuture(transfer);
-            }
-            else{//No component is leaving the dest device.
-                //Add transfer to data structures holding informaton about
-                //waiting transfers.
-                transfers.add(transfer);
-                transfersSemaphores.put(transfer,
-                        new Semaphore(0,true));
-                ArrayList<ComponentTransfer> cycle = new ArrayList<>();
-                deviceData.get(transfer.getDestinationDeviceId())
-                        .waitingTransfers.add(transfer);
-                if(hasCycle(transfer,
-                        deviceData.get(transfer.getSourceDeviceId())
-                                .waitingTransfers, cycle, new HashSet<>())){
-                    //We found the cycle, we need to store the information
-                    //about the waiting transfers that aren't in the cycle,
-                    //and move the cycle into the transfers list so that
-                    //the cycle will be resolved.
-                    for(ComponentTransfer t : cycle){
-                        transfers.remove(t);
-                    }
-                    bWasThereACycle = true;
-                    cycleTransfersListSaver.addAll(transfers);
-                    transfers.clear();
-                    transfers.addAll(cycle);
-                    moveComponentWithInheritedCS(transfer, true);
-                }
-                else{
-                    //Release mutex and await for someone to wake us up.
-                    transferMutex.release();
-                    acquireTransfersSemaphore(transfer);
+        return result;
+    }
 
-                    //Resume operation, called in another transfer's
-                    //critical section.
-                    moveComponentWithInheritedCS(transfer, false);
-                }
+    //The device is removed by the thread of the transfer that takes its last
+    //component out, or by the calling one, if the device is already empty.
+    @Override
+    public synchronized CompletableFuture<Void> drainDevice(DeviceId device){
+        DeviceDataWrapper data = getExistingDevice(device);
+        data.lock();
+        CompletableFuture<Void> emptied;
+        CompletableFuture<Void> resized;
+        try {
+            if(data.isDraining()){
+                throw new IllegalStateException("Device with id = " + device +
+                        " is already being drained");
             }
+            data.startDraining();
+            emptied = data.resize(0);
+            rejectWaitingTransfers(data);
+            resized = takeFinishedResize(data);
+        } finally {
+            data.unlock();
+        }
+        CompletableFuture<Void> result =
+                emptied.thenRun(() -> removeDevice(data));
+        if(resized != null){
+            resized.complete(null);
         }
+        return result;
     }
 
-    private void deleteComponentOperation(ComponentTransfer transfer){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId src = transfer.getSourceDeviceId();
+    private DeviceDataWrapper getExistingDevice(DeviceId device){
+        DeviceDataWrapper result = getDevice(device);
+        if(result == null){
+            throw new IllegalArgumentException("Device with id = " + device +
+                    " does not exist");
+        }
+        return result;
+    }
+
+    //Reserves the memory slots that are free, or will be, in the given device
+    //for the transfers waiting for them, in the order of its queue, and wakes
+    //these transfers up. It stops at the first group the device can't take
+    //yet. Has to be called with the device lock held.
+    private void reserveForWaitingTransfers(DeviceDataWrapper device){
+        if(!device.hasWaitingTransfers() ||
+                device.getAvailableSlotsCount() == 0){
+            return;
+        }
+        lockWaitingTransfersMutex(device.shard);
+        TransferDataWrapper waiter;
+        while((waiter = device.peekWaitingTransfer()) != null &&
+                device.getAvailableSlotsCount() >= sizeOf(waiter)){
+            device.removeWaitingTransfer(waiter);
+            removeWaitingEdge(waiter);
+            if(waiter.group != null){
+                reserveGroupSlots(waiter.group);
+                transferGate.join(waiter.group.size());
+                waiter.group.wakeUp();
+                continue;
+            }
+            waiter.destinationSlot = device.hasFreeMemorySpace() ?
+                    device.reserveFreeMemorySlot() :
+                    device.reserveMemorySpace();
+            recordPlacement(waiter);
+            transferGate.join(1);
+            waiter.wakeUp();
+        }
+        device.shard.waitingTransfersMutex.unlock();
+    }
 
-        deviceData.get(src).addComponentLeavingDevice(comp);
-        //If there is someone waiting for the memory, we notify him
-        //that he can resume his operations, and we wait for him
-        //to safely update all necessary information.
-        int index = findIndexOfFirstWaiter(transfer);
-        waitForPreviousWaiter(transfer, index);
-        transferMutex.release();
-        transfer.prepare();
+    //Takes all the transfers waiting for the given device out of its queue,
+    //and wakes them up to be rejected. Has to be called with the device lock
+    //held.
+    private void rejectWaitingTransfers(DeviceDataWrapper device){
+        if(!device.hasWaitingTransfers()){
+            return;
+        }
+        lockWaitingTransfersMutex(device.shard);
+        TransferDataWrapper waiter;
+        while((waiter = device.pollWaitingTransfer()) != null){
+            removeWaitingEdge(waiter);
+            if(waiter.group != null){
+                waiter.group.rejection = TransferStatus.DEVICE_DOES_NOT_EXIST;
+                waiter.group.wakeUp();
+            }
+            else{
+                waiter.bRejected = true;
+                waiter.wakeUp();
+            }
+        }
+        device.shard.waitingTransfersMutex.unlock();
+    }
 
-        deviceData.get(src).releaseMemoryCell(comp);
-        acquireTransferMutex();
-        deviceData.get(src).leaveDevice(comp);
-        transferMutex.release();
-        transfer.perform();
+    //Returns the future of the last resize of the given device, if it has
+    //just finished, after recording the new size of the device in
+    //the journal, or its removal, if it is being drained. Otherwise returns
+    //null. Has to be called with the device lock held, so that the sizes
+    //are recorded in the order they change.
+    private CompletableFuture<Void> takeFinishedResize(
+            DeviceDataWrapper device){
+        CompletableFuture<Void> result = device.takeFinishedResize();
+        if(result != null && journal != null){
+            if(device.isDraining()){
+                journal.appendDeviceRemoval(device.getDeviceId());
+            }
+            else{
+                journal.appendDevice(device.getDeviceId(),
+                        device.getDeviceSize());
+            }
+        }
+        return result;
+    }
 
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
+    //Removes the drained device. Its index is taken over by an empty device
+    //with the same id, so that locate() never sees a missing one.
+    private synchronized void removeDevice(DeviceDataWrapper device){
+        deviceData.remove(device.getDeviceId());
+        DeviceDataWrapper[] updated = devices.clone();
+        updated[device.index] = new DeviceDataWrapper(device.getDeviceId(),
+                new ArrayList<>(), 0);
+        devices = updated;
     }
 
-    private void addComponentWithFreeMemory(ComponentTransfer transfer){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId dest = transfer.getDestinationDeviceId();
+    //Validates transfer, and if there's anything wrong, this function
+    //unlocks the devices of the transfer and returns the reason. Otherwise,
+    //marks the component as the one that is being operated on and returns OK.
+    private TransferStatus validateTransfer(TransferDataWrapper data){
+        ComponentId comp = data.getComponentId();
+        if(data.destination != null && data.destination.isDraining()){
+            unlockDevices(data.source, data.destination);
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        int state = componentsStates.get(Ids.of(comp));
+        if(state != ComponentStatesTable.ABSENT){
+            if(data.source == null &&
+                    data.destination.isComponentInDevice(comp)){
+                //We are trying to add something that already exist.
+                unlockDevices(data.source, data.destination);
+                return TransferStatus.COMPONENT_ALREADY_EXISTS;
+            }
+            else if(state == ComponentStatesTable.BUSY) {
+                //We are requesting an operation on something that is
+                //already being operated on.
+                unlockDevices(data.source, data.destination);
+                return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+            }
+        }
 
-        deviceData.get(dest).acquireFirstFreeMemorySlot(comp);
-        transferMutex.release();
-        transfer.prepare();
+        if(data.source != null && !data.source.isComponentInDevice(comp)){
+            unlockDevices(data.source, data.destination);
+            return TransferStatus.COMPONENT_DOES_NOT_EXIST;
+        }
+        else if(data.destination != null &&
+                data.destination.isComponentInDevice(comp)){
+            unlockDevices(data.source, data.destination);
+            return TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER;
+        }
 
-        acquireTransferMutex();
-        deviceData.get(dest).enterDevice(comp);
-        transferMutex.release();
-        transfer.perform();
+        //Other transfers of this component may hold different device locks,
+        //so the component is claimed atomically.
+        if(state == ComponentStatesTable.ABSENT ?
+                !componentsStates.putIfAbsent(Ids.of(comp),
+                        ComponentStatesTable.BUSY) :
+                !componentsStates.compareAndSet(Ids.of(comp),
+                        ComponentStatesTable.IDLE, ComponentStatesTable.BUSY)){
+            unlockDevices(data.source, data.destination);
+            return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+        }
+        if(data.source != null){
+            data.sourceSlot = data.source.getComponentSlot(comp);
+        }
+        return TransferStatus.OK;
+    }
 
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
+    //Removes the first transfer waiting for a memory slot in the source device
+    //of the given transfer from the wait-for graph and returns it, or returns
+    //null if there is no such transfer, or if the first one is a group, which
+    //needs more than one slot. Has to be called with the device lock held.
+    private TransferDataWrapper pollWaitingTransfer(TransferDataWrapper data){
+        DeviceDataWrapper device = data.source;
+        if(!device.hasWaitingTransfers()){
+            return null;
+        }
+        data.mutexWaitNanos += lockWaitingTransfersMutex(device.shard);
+        TransferDataWrapper result = device.peekWaitingTransfer();
+        if(result != null && result.group == null){
+            device.removeWaitingTransfer(result);
+            removeWaitingEdge(result);
+        }
+        else{
+            result = null;
+        }
+        device.shard.waitingTransfersMutex.unlock();
+        return result;
     }
 
-    private void addComponentWithFreeMemoryInFuture(ComponentTransfer transfer){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId dest = transfer.getDestinationDeviceId();
+    //Marks the component of the given transfer as the one leaving its source
+    //device. If there is someone waiting for the memory, we hand him our
+    //memory slot and wake him up. Has to be called with the source device
+    //lock held.
+    private void markComponentLeaving(TransferDataWrapper data){
+        DeviceDataWrapper src = data.source;
+        if(data.inheritor != null){
+            //We are a part of the cycle, the transfer inheriting our slot
+            //was already chosen, and it was woken up by the cycle resolver.
+            src.reserveMemorySlot(data.sourceSlot);
+            return;
+        }
+        //A retiring slot is never handed over, see DeviceDataWrapper.
+        TransferDataWrapper waiter = src.isSlotRetiring(data.sourceSlot) ?
+                null : pollWaitingTransfer(data);
+        if(waiter == null){
+            src.addComponentLeavingDevice(data.getComponentId());
+            //The group at the head of the queue may fit now.
+            reserveForWaitingTransfers(src);
+        }
+        else{
+            src.reserveMemorySlot(data.sourceSlot);
+            waiter.destinationSlot = data.sourceSlot;
+            recordPlacement(waiter);
+            transferGate.join(1);
+            waiter.wakeUp();
+        }
+    }
 
-        deviceData.get(dest).reserveMemorySpace(comp);
-        transferMutex.release();
-        transfer.prepare();
+    //Appends the placement decision of the given transfer to the journal,
+    //if there is one. It has to be called as soon as the transfer gets its
+    //memory slot, before the slot of its component can be handed over
+    //to someone else, see PlacementJournal.
+    private void recordPlacement(TransferDataWrapper data){
+        if(journal != null){
+            journal.append(data);
+            compactJournalIfNeeded();
+        }
+    }
 
-        acquireTransferMutex();
-        deviceData.get(dest).acquireReservedMemory(comp);
-        deviceData.get(dest).enterDevice(comp);
-        transferMutex.release();
-        transfer.perform();
+    //Returns the number of the memory slots the given waiting transfer needs,
+    //which is the size of its group, if it stands for one.
+    private static int sizeOf(TransferDataWrapper waiter){
+        return waiter.group == null ? 1 : waiter.group.size();
+    }
 
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
+    //Returns the j-th member transfer of the given waiting transfer, which is
+    //the transfer itself, if it does not stand for a group.
+    private static TransferDataWrapper memberOf(TransferDataWrapper waiter,
+                                                int j){
+        return waiter.group == null ? waiter : waiter.group.members.get(j);
     }
 
-    private void addComponentWithInheritedCS(ComponentTransfer transfer){
-        ComponentId comp = transfer.getComponentId();
-        DeviceId dest = transfer.getDestinationDeviceId();
+    //Returns the index of the first transfer of the given cycle that leaves
+    //too few memory slots to the next one, which can't get all it waits for,
+    //or -1 if the cycle can be resolved. Every transfer takes the slots
+    //of the one leaving the device it waits for, so it can't move more
+    //components than that one, unless it is the given taker, which can also
+    //take the available slots of its destination device. Such a transfer
+    //is always a group. Has to be called with the lock of the destination
+    //device of the taker held, if there is one.
+    private static int findUnresolvable(ArrayList<TransferDataWrapper> cycle,
+                                        TransferDataWrapper taker){
+        for(int i = 0; i < cycle.size(); ++i){
+            TransferDataWrapper entering = cycle.get((i + 1) % cycle.size());
+            int missing = sizeOf(entering) - sizeOf(cycle.get(i));
+            if(missing > 0 && (entering != taker ||
+                    missing > taker.destination.getAvailableSlotsCount())){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Takes the given group, which can't get its memory slots in its cycle,
+    //out of its queue and out of the wait-for graph, and returns it, to be
+    //woken up and rejected. Has to be called with waitingTransfersMutex
+    //of the shard of its destination device held.
+    private GroupDataWrapper rejectGroup(TransferDataWrapper waiter){
+        waiter.destination.removeWaitingTransfer(waiter);
+        removeWaitingEdge(waiter);
+        waiter.group.rejection = TransferStatus.UNRESOLVABLE_CYCLE;
+        return waiter.group;
+    }
 
-        deviceData.get(dest).reserveMemorySpace(comp);
-        removeWaiter(transfer);
-        //Wake up the transfer that woke us up.
-        memoryTriggersMapping.get(memoryTriggers
-                .get(memoryTriggers.size()-1)).release();
-        transfer.prepare();
+    //Removes all transfers of the given cycle from the wait-for graph, and
+    //hands the memory slot of every one of them to the next one, which is
+    //waiting for the device the former one is leaving. A group hands
+    //the slots of its members to the members of the next group with
+    //the same indexes, and the slots no member takes are left to the other
+    //transfers. The members of the taker, see findUnresolvable(), that get
+    //no slot this way take the available slots of its destination device.
+    //Returns the number of the member transfers of the cycle. Has to be
+    //called with waitingTransfersMutex of the shards of all their devices
+    //held, and, if the taker takes any available slots, with the lock of its
+    //destination device.
+    private int resolveCycle(ArrayList<TransferDataWrapper> cycle){
+        ArrayList<TransferDataWrapper> members = new ArrayList<>();
+        for(int i = 0; i < cycle.size(); ++i){
+            TransferDataWrapper edge = cycle.get(i);
+            TransferDataWrapper next = cycle.get((i + 1) % cycle.size());
+            edge.destination.removeWaitingTransfer(edge);
+            removeWaitingEdge(edge);
+            for(int j = 0; j < sizeOf(edge); ++j){
+                TransferDataWrapper member = memberOf(edge, j);
+                member.path = StorageSystemStats.TransferPath.CYCLE;
+                members.add(member);
+                if(j < sizeOf(next)){
+                    member.inheritor = memberOf(next, j);
+                    member.inheritor.destinationSlot = member.sourceSlot;
+                }
+            }
+            DeviceDataWrapper device = edge.source;
+            for(int j = sizeOf(edge); j < sizeOf(next); ++j){
+                memberOf(next, j).destinationSlot =
+                        device.hasFreeMemorySpace() ?
+                                device.reserveFreeMemorySlot() :
+                                device.reserveMemorySpace();
+            }
+        }
+        if(journal != null){
+            journal.appendGroup(members);
+            compactJournalIfNeeded();
+        }
+        return members.size();
+    }
 
-        acquireTransferMutex();
-        deviceData.get(dest).acquireReservedMemory(comp);
-        deviceData.get(dest).enterDevice(comp);
-        transferMutex.release();
-        transfer.perform();
+    //Adds the edge of the given waiting transfer to the WaitForGraph of its
+    //shard, and returns the cycle it closes, if there is one, in which
+    //the transfer is the taker, see findUnresolvable(). While that cycle
+    //can't be resolved, the group that can't get its slots in it is
+    //rejected, and added to the given list, and the edge is added again.
+    //If that group is the given transfer, another cycle through it may
+    //still be resolvable, so the edge that leaves its destination device
+    //with too few components is left out of the graph until the search ends.
+    //If none is, the transfer itself is rejected, and null is returned.
+    //Has to be called with the devices of the transfer locked,
+    //with waitingTransfersMutex of the shard held, and with the transfer
+    //in the queue of its destination device.
+    private ArrayList<TransferDataWrapper> addWaitingEdge(
+            TransferDataWrapper data, ArrayList<GroupDataWrapper> rejected){
+        WaitForGraph graph = data.destination.shard.waitForGraph;
+        ArrayList<TransferDataWrapper> excluded = null;
+        ArrayList<TransferDataWrapper> cycle;
+        int i;
+        while((cycle = graph.addWaitingTransfer(data)) != null &&
+                (i = findUnresolvable(cycle, data)) != -1){
+            TransferDataWrapper entering = cycle.get((i + 1) % cycle.size());
+            if(entering != data){
+                rejected.add(rejectGroup(entering));
+                continue;
+            }
+            if(excluded == null){
+                excluded = new ArrayList<>();
+            }
+            graph.removeWaitingTransfer(cycle.get(i));
+            excluded.add(cycle.get(i));
+        }
+        if(excluded == null){
+            return cycle;
+        }
+        if(cycle == null){
+            //The edges left out would close the cycles again.
+            rejected.add(rejectGroup(data));
+        }
+        //The graph has only the edges it had before, so none of them closes
+        //a cycle.
+        for(TransferDataWrapper edge : excluded){
+            graph.addWaitingTransfer(edge);
+        }
+        return cycle;
+    }
 
-        acquireTransferMutex();
-        componentsStates.put(comp, false);
-        transferMutex.release();
+    //Wakes up the given transfer that was taken out of the wait-for graph,
+    //or its group, if it stands for one.
+    private static void wakeUpWaiter(TransferDataWrapper waiter){
+        if(waiter.group == null){
+            waiter.wakeUp();
+        }
+        else{
+            waiter.group.wakeUp();
+        }
     }
 
-    private void addComponentOperation(ComponentTransfer transfer){
-        if(deviceData.get(transfer.getDestinationDeviceId())
-                .hasFreeMemorySpace()){
-            //There are free memory slots.
-            addComponentWithFreeMemory(transfer);
+    //Registers the given transfer as the one waiting for a memory slot in its
+    //destination device, and resolves the cycle it closes, if there is one.
+    //Returns true if the transfer closed the cycle and can proceed, false
+    //if it has to wait until someone reserves a memory slot for it.
+    //Has to be called with the devices of the transfer locked, returns with
+    //them unlocked.
+    private boolean waitForMemorySlot(TransferDataWrapper data){
+        ArrayList<GroupDataWrapper> rejected = new ArrayList<>();
+        Shard shard = data.destination.shard;
+        data.mutexWaitNanos += lockWaitingTransfersMutex(shard);
+        ArrayList<TransferDataWrapper> cycle = enqueueWaiting(data, rejected);
+        shard.waitingTransfersMutex.unlock();
+        for(GroupDataWrapper group : rejected){
+            group.wakeUp();
         }
-        else {
-            if(deviceData.get(transfer.getDestinationDeviceId())
-                    .willHaveFreeMemorySpace()){
-                //There will be free memory slot.
-                addComponentWithFreeMemoryInFuture(transfer);
-            }
-            else{//No component is leaving the dest device.
-                transfers.add(transfer);
-                transfersSemaphores.put(transfer,
-                        new Semaphore(0,true));
-                transferMutex.release();
-                //Release mutex and wait for the free memory.
-                acquireTransfersSemaphore(transfer);
 
-                //Someone woke us up, we continue operations
-                //in his critical section.
-                addComponentWithInheritedCS(transfer);
+        if(cycle == null){
+            //We may have been ranked before the first waiting transfer,
+            //a group the device can't take, so we may get a slot right away.
+            reserveForWaitingTransfers(data.destination);
+            //Release locks, someone will wake us up.
+            unlockDevices(data.source, data.destination);
+            transferGate.leave();
+            //The WaitForGraph of the shard sees only its own devices, so
+            //a cycle through other shards has to be searched for separately.
+            //It is enough to do it when there are waiting moves between
+            //the shards that it can go through, see mayCloseCycle().
+            if(data.source != null && crossShardGraph.mayCloseCycle(data)){
+                resolveCrossShardCycles(null);
+            }
+            if(waitListener != null &&
+                    (data.source != null || data.remoteId != 0)){
+                waitListener.accept(data);
+            }
+            return false;
+        }
+        cycleLengthsHistogram.record(cycle.size());
+        markComponentLeaving(data);
+        unlockDevices(data.source, data.destination);
+        //Wake up the other transfers of the cycle, each one of them
+        //will update its source device on its own.
+        for(TransferDataWrapper member : cycle){
+            if(member != data){
+                wakeUpWaiter(member);
             }
         }
+        return true;
     }
 
-    @Override
-    public void execute(ComponentTransfer transfer) throws TransferException {
-        acquireTransferMutex(); //Enter the critical section.
-        validateTransfer(transfer); //Validate the data.
-        //Mark the transferred component as the one that is being operated on.
-        componentsStates.put(transfer.getComponentId(), true);
-        if(transfer.getSourceDeviceId() != null && transfer.getDestinationDeviceId() != null){
-            //Move operation case (we have source and destination).
-            moveComponentOperation(transfer);
+    //Puts the given transfer into the queue of its destination device and
+    //its edge into the wait-for graph, see waitForMemorySlot(), and returns
+    //the cycle it closes, already resolved, or null if it has to wait.
+    //The groups rejected on the way are added to the given list. Has to be
+    //called with the devices of the transfer locked, and with
+    //waitingTransfersMutex of the shard of its destination device held.
+    private ArrayList<TransferDataWrapper> enqueueWaiting(
+            TransferDataWrapper data, ArrayList<GroupDataWrapper> rejected){
+        data.path = StorageSystemStats.TransferPath.WAITING;
+        startSlotWait(data);
+        data.rank = scheduler.rank(data.transfer, data.slotWaitStartNanos);
+        data.destination.addWaitingTransfer(data);
+        if(data.bCrossShard){
+            crossShardGraph.addWaitingTransfer(data);
+            return null;
         }
-        else if(transfer.getSourceDeviceId() != null && transfer.getDestinationDeviceId() == null){
-            //Delete operation case (we have source but no destination).
-            deleteComponentOperation(transfer);
+        if(data.source == null){
+            return null;
         }
-        else if(transfer.getSourceDeviceId() == null && transfer.getDestinationDeviceId() != null){
-            //Add operation case (we have destination but no source).
-            addComponentOperation(transfer);
+        ArrayList<TransferDataWrapper> cycle = addWaitingEdge(data, rejected);
+        if(cycle != null){
+            transferGate.join(resolveCycle(cycle) - 1);
         }
-        else{
-            //We have no source and destination, so it is an invalid transfer.
-            componentsStates.put(transfer.getComponentId(), false);
-            transferMutex.release();
-            throw new IllegalTransferType(transfer.getComponentId());
+        return cycle;
+    }
+
+    //Finds and resolves all the cycles that go through more than one shard,
+    //and wakes up their transfers. Only the given taker, if there is one,
+    //can take the available slots of its destination device in such a cycle,
+    //so the group that can't get its slots otherwise is rejected instead.
+    //Its edges are left out like in addWaitingEdge(), and if the taker still
+    //waits when no cycle is left, it is rejected as well. It takes
+    //the mutexes of all the shards, so it has to be called either with none
+    //of them held, or with all of them, and with the devices of the taker
+    //locked, if there is one.
+    private void resolveCrossShardCycles(TransferDataWrapper taker){
+        ArrayList<ArrayList<TransferDataWrapper>> cycles = new ArrayList<>();
+        ArrayList<GroupDataWrapper> rejected = new ArrayList<>();
+        ArrayList<TransferDataWrapper> excluded = new ArrayList<>();
+        int membersCount = 0;
+        lockAllShards();
+        ArrayList<TransferDataWrapper> cycle;
+        while((cycle = crossShardGraph.findCycle()) != null){
+            int i = findUnresolvable(cycle, taker);
+            if(i == -1){
+                membersCount += resolveCycle(cycle);
+                cycles.add(cycle);
+                continue;
+            }
+            TransferDataWrapper entering = cycle.get((i + 1) % cycle.size());
+            if(entering != taker){
+                rejected.add(rejectGroup(entering));
+                continue;
+            }
+            removeWaitingEdge(cycle.get(i));
+            excluded.add(cycle.get(i));
+        }
+        if(!excluded.isEmpty()){
+            if(taker.bWaiting){
+                //The edges left out would close the cycles again.
+                rejected.add(rejectGroup(taker));
+            }
+            for(TransferDataWrapper edge : excluded){
+                if(edge.bCrossShard){
+                    crossShardGraph.addWaitingTransfer(edge);
+                }
+                else{
+                    edge.destination.shard.waitForGraph
+                            .addWaitingTransfer(edge);
+                }
+            }
+        }
+        unlockAllShards();
+        //None of the transfers of the cycles is counted by the gate,
+        //as all of them were waiting.
+        transferGate.join(membersCount);
+        for(ArrayList<TransferDataWrapper> resolved : cycles){
+            cycleLengthsHistogram.record(resolved.size());
+            for(TransferDataWrapper member : resolved){
+                wakeUpWaiter(member);
+            }
+        }
+        for(GroupDataWrapper group : rejected){
+            group.wakeUp();
+        }
+    }
+
+    private boolean moveComponentOperation(TransferDataWrapper data){
+        if(data.destination.hasWaitingTransfers()){
+            //Someone is already waiting for the dest device, so we wait
+            //behind them, even if some of its slots are available.
+            return waitForMemorySlot(data);
+        }
+        else if(data.destination.hasFreeMemorySpace()){
+            //We have a free memory space, so we proceed.
+            data.destinationSlot =
+                    data.destination.reserveFreeMemorySlot();
+        }
+        else if(data.destination.willHaveFreeMemorySpace()){
+            //We know that there is at least one component leaving
+            //the dest device, so we proceed.
+            data.destinationSlot =
+                    data.destination.reserveMemorySpace();
+            data.path = StorageSystemStats.TransferPath.FUTURE;
+        }
+        else{
+            //No component is leaving the dest device.
+            return waitForMemorySlot(data);
+        }
+        recordPlacement(data);
+        markComponentLeaving(data);
+        unlockDevices(data.source, data.destination);
+        return true;
+    }
+
+    private boolean deleteComponentOperation(TransferDataWrapper data){
+        recordPlacement(data);
+        markComponentLeaving(data);
+        data.source.unlock();
+        return true;
+    }
+
+    private boolean addComponentOperation(TransferDataWrapper data){
+        if(data.destination.hasWaitingTransfers()){
+            //Someone is already waiting for the dest device.
+            return waitForMemorySlot(data);
+        }
+        else if(data.destination.hasFreeMemorySpace()){
+            //There are free memory slots.
+            data.destinationSlot =
+                    data.destination.reserveFreeMemorySlot();
+        }
+        else if(data.destination.willHaveFreeMemorySpace()){
+            //There will be free memory slot.
+            data.destinationSlot =
+                    data.destination.reserveMemorySpace();
+            data.path = StorageSystemStats.TransferPath.FUTURE;
+        }
+        else{
+            //No component is leaving the dest device.
+            return waitForMemorySlot(data);
+        }
+        recordPlacement(data);
+        data.destination.unlock();
+        return true;
+    }
+
+    //Checks whether the type and the devices of the given transfer are valid.
+    //It does not need any lock, so the transfers rejected here cost almost
+    //nothing.
+    private TransferStatus checkTransfer(ComponentTransfer transfer){
+        DeviceId src = transfer.getSourceDeviceId();
+        DeviceId dest = transfer.getDestinationDeviceId();
+        if(src == null && dest == null){
+            //We have no source and destination, so it is an invalid transfer.
+            return TransferStatus.ILLEGAL_TRANSFER_TYPE;
+        }
+        if((src != null && !deviceData.containsKey(src)) ||
+                (dest != null && !deviceData.containsKey(dest))){
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        return TransferStatus.OK;
+    }
+
+    //Creates the data of the given transfer, which passed checkTransfer().
+    private TransferDataWrapper createTransfer(ComponentTransfer transfer,
+                                               Executor executor){
+        return new TransferDataWrapper(transfer,
+                getDevice(transfer.getSourceDeviceId()),
+                getDevice(transfer.getDestinationDeviceId()), executor);
+    }
+
+    //Validates the transfer and reserves memory for it. Returns the reason
+    //of the rejection, or OK, in which case bReady of the transfer is set
+    //to true if it can proceed to prepare(), and to false if it has to wait
+    //until someone wakes it up.
+    private TransferStatus startTransfer(TransferDataWrapper data){
+        TransferStatus status = lockAndValidate(data);
+        if(status == TransferStatus.OK){
+            data.bReady = planTransfer(data);
+        }
+        return status;
+    }
+
+    //Locks the devices of the transfer and validates it. Returns OK with
+    //the devices still locked, or the reason of the rejection with them
+    //unlocked and the transfer no longer counted by the gate.
+    private TransferStatus lockAndValidate(TransferDataWrapper data){
+        //Fast path: under the locks, the move or deletion of a component
+        //that is being operated on would be rejected before any other check,
+        //so it can be rejected right away, without taking them. Additions
+        //have to check first whether the component is already in their
+        //destination device, which needs its lock.
+        if(data.source != null &&
+                componentsStates.get(Ids.of(data.getComponentId())) ==
+                        ComponentStatesTable.BUSY){
+            transferGate.leave();
+            return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+        }
+        if(isDeviceRemoved(data)){
+            transferGate.leave();
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        //Enter the critical section of the devices.
+        data.mutexWaitNanos += lockDevices(data.source, data.destination);
+        TransferStatus status = validateTransfer(data); //Validate the data.
+        if(status != TransferStatus.OK){
+            transferGate.leave();
+        }
+        return status;
+    }
+
+    //Reserves memory for the validated transfer, or puts it in the queue
+    //of its destination device. Returns true if it can proceed to prepare(),
+    //and false if it has to wait until someone wakes it up. Has to be
+    //called with the devices of the transfer locked, returns with them
+    //unlocked.
+    private boolean planTransfer(TransferDataWrapper data){
+        if(data.source != null && data.destination != null){
+            //Move operation case (we have source and destination).
+            return moveComponentOperation(data);
+        }
+        else if(data.source != null){
+            //Delete operation case (we have source but no destination).
+            return deleteComponentOperation(data);
+        }
+        else{
+            //Add operation case (we have destination but no source).
+            return addComponentOperation(data);
+        }
+    }
+
+    //Returns true if the validated transfer can get its memory slot without
+    //waiting, like in moveComponentOperation(). Has to be called with
+    //the devices of the transfer locked.
+    private static boolean canProceed(TransferDataWrapper data){
+        DeviceDataWrapper dest = data.destination;
+        return dest == null || (!dest.hasWaitingTransfers() &&
+                (dest.hasFreeMemorySpace() || dest.willHaveFreeMemorySpace()));
+    }
+
+    //Returns true if a device of the transfer was removed after it passed
+    //checkTransfer(), so it is missing from the data of the transfer.
+    //A missing destination would turn a move into a deletion.
+    private static boolean isDeviceRemoved(TransferDataWrapper data){
+        return (data.source == null &&
+                data.transfer.getSourceDeviceId() != null) ||
+                (data.destination == null &&
+                        data.transfer.getDestinationDeviceId() != null);
+    }
+
+    //Resumes the transfer that was woken up, because someone reserved memory
+    //for it. It is called in the resumed transfer's thread.
+    private void resumeTransfer(TransferDataWrapper data){
+        endSlotWait(data);
+        if(data.source != null){
+            data.mutexWaitNanos += data.source.lockAndGetWaitTime();
+            markComponentLeaving(data);
+            data.source.unlock();
+        }
+    }
+
+    //Removes the component from its source device and frees its memory cell.
+    //It is called after prepare().
+    private void leaveSourceDevice(TransferDataWrapper data){
+        ComponentId comp = data.getComponentId();
+        if(data.source != null){
+            data.mutexWaitNanos += data.source.lockAndGetWaitTime();
+            data.source.leaveDevice(comp);
+            CompletableFuture<Void> resized = takeFinishedResize(data.source);
+            data.source.unlock();
+            data.source.releaseMemoryCell(data.sourceSlot);
+            if(resized != null){
+                resized.complete(null);
+            }
+        }
+    }
+
+    //Returns true if the memory cell reserved for the transfer is already
+    //free, otherwise the transfer will be woken up when it is freed.
+    private boolean acquireDestinationMemory(TransferDataWrapper data){
+        return data.destination == null || data.destination
+                .acquireMemoryCell(data.destinationSlot, data);
+    }
+
+    //Marks the beginning of the time the transfer spends waiting for its
+    //memory slot or cell.
+    private void startSlotWait(TransferDataWrapper data){
+        data.slotWaitStartNanos = System.nanoTime();
+    }
+
+    //Marks the end of the waiting started by the last startSlotWait().
+    private void endSlotWait(TransferDataWrapper data){
+        data.slotWaitNanos += System.nanoTime() - data.slotWaitStartNanos;
+        data.bWaitedForSlot = true;
+    }
+
+    //Puts the component into its destination device, and finishes
+    //the transfer.
+    private void enterDestinationDevice(TransferDataWrapper data){
+        ComponentId comp = data.getComponentId();
+        if(data.destination != null){
+            data.mutexWaitNanos += data.destination.lockAndGetWaitTime();
+            data.destination.enterDevice(comp, data.destinationSlot);
+            data.destination.unlock();
+        }
+        data.transfer.perform();
+        publishPlacement(data);
+
+        //The component is located in its new device only from now on.
+        componentsStates.compareAndSet(Ids.of(comp), ComponentStatesTable.BUSY,
+                ComponentStatesTable.IDLE, data.destination == null ?
+                        ComponentStatesTable.NO_DEVICE :
+                        data.destination.index);
+        recordTransfer(data);
+        transferGate.leave();
+    }
+
+    //Publishes the finished transfer to the subscriptions, if there are any.
+    //It is called with no lock held, while the component is still busy,
+    //so the transfers of a component are published in their order.
+    private void publishPlacement(TransferDataWrapper data){
+        PlacementFeed feed = placementFeed;
+        if(feed != null && feed.hasSubscriptions()){
+            feed.publish(Ids.of(data.getComponentId()), data.source,
+                    data.destination, data.destination == null ?
+                            data.sourceSlot : data.destinationSlot);
+        }
+    }
+
+    private void recordTransfer(TransferDataWrapper data){
+        transferLatencyHistograms[data.path.ordinal()]
+                .record(System.nanoTime() - data.startNanos);
+        mutexWaitHistogram.record(data.mutexWaitNanos);
+        if(data.bWaitedForSlot){
+            slotWaitHistogram.record(data.slotWaitNanos);
+        }
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        execute(transfer, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer, Duration timeout)
+            throws TransferException {
+        execute(transfer, toNanos(timeout));
+    }
+
+    private void execute(ComponentTransfer transfer, long timeoutNanos)
+            throws TransferException {
+        TransferStatus status = executeTransfer(transfer, timeoutNanos);
+        if(status != TransferStatus.OK){
+            throw newRejection(status, transfer);
+        }
+    }
+
+    //Executes the transfer like execute(), but returns the reason
+    //of the rejection instead of throwing an exception, so that rejecting
+    //the transfer allocates nothing but its data.
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer) {
+        return executeTransfer(transfer, Long.MAX_VALUE);
+    }
+
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer,
+                                     Duration timeout) {
+        return executeTransfer(transfer, toNanos(timeout));
+    }
+
+    static long toNanos(Duration timeout){
+        try {
+            return timeout.toNanos();
+        } catch (ArithmeticException e) {
+            return timeout.isNegative() ? 0 : Long.MAX_VALUE;
+        }
+    }
+
+    //Returns the time when the call with the given timeout starts, or 0
+    //if it has none, so that the calls without one do not read the clock.
+    private static long startOf(long timeoutNanos){
+        return timeoutNanos == Long.MAX_VALUE ? 0 : System.nanoTime();
+    }
+
+    //Returns what is left of the given timeout of the call started
+    //at the given time, which may be negative once it has passed.
+    private static long remainingNanos(long timeoutNanos, long startNanos){
+        return timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE :
+                timeoutNanos - (System.nanoTime() - startNanos);
+    }
+
+    //Waits until someone reserves a memory slot for the transfer, but at most
+    //for the given time. If the time passes, or the thread is interrupted,
+    //the transfer is removed from the queue and from the wait-for graph,
+    //and its component is released, as if the transfer never started.
+    //Returns OK if the transfer got its slot, which it might get at the same
+    //time as it gave up, otherwise, the reason of the cancellation.
+    private TransferStatus awaitMemorySlot(TransferDataWrapper data,
+                                           long timeoutNanos){
+        TransferStatus status;
+        try {
+            if(data.waitForWakeUp(timeoutNanos)){
+                return data.bRejected ? releaseRejectedTransfer(data) :
+                        TransferStatus.OK;
+            }
+            status = TransferStatus.TRANSFER_TIMED_OUT;
+        } catch (InterruptedException e) {
+            status = TransferStatus.TRANSFER_INTERRUPTED;
+        }
+        boolean bCancelled = cancelWaitingTransfer(data);
+        if(!bCancelled){
+            //Someone has already reserved a slot for us, or rejected us,
+            //and is about to wake us up, so we have to wait for it.
+            data.waitForWakeUpUninterruptibly();
+        }
+        if(status == TransferStatus.TRANSFER_INTERRUPTED){
+            //The interruption is reported by the status, not by
+            //InterruptedException, so the thread stays interrupted.
+            Thread.currentThread().interrupt();
+        }
+        if(bCancelled){
+            return status;
+        }
+        return data.bRejected ? releaseRejectedTransfer(data) :
+                TransferStatus.OK;
+    }
+
+    //Takes the waiting transfer out of the queue and out of the wait-for
+    //graph, and releases its component, as if it never started, unless
+    //someone has already reserved a slot for it, or rejected it. Returns
+    //true if the transfer was cancelled.
+    private boolean cancelWaitingTransfer(TransferDataWrapper data){
+        //The transfers are taken out of the queues, to get their slots,
+        //only with the mutex held, so if ours is still there, nobody can
+        //choose it anymore.
+        Shard shard = data.destination.shard;
+        shard.waitingTransfersMutex.lock();
+        boolean bCancelled = data.bWaiting;
+        if(bCancelled){
+            data.destination.removeWaitingTransfer(data);
+            removeWaitingEdge(data);
+        }
+        shard.waitingTransfersMutex.unlock();
+        if(bCancelled){
+            componentsStates.compareAndSet(Ids.of(data.getComponentId()),
+                    ComponentStatesTable.BUSY, ComponentStatesTable.IDLE);
+            cancelledTransfersCount.increment();
+        }
+        return bCancelled;
+    }
+
+    //Releases the component of the transfer that was taken out of the queue
+    //without a memory slot, because its destination device is being
+    //drained, as if the transfer never started, and returns the reason
+    //of the rejection.
+    private TransferStatus releaseRejectedTransfer(TransferDataWrapper data){
+        componentsStates.compareAndSet(Ids.of(data.getComponentId()),
+                ComponentStatesTable.BUSY, ComponentStatesTable.IDLE);
+        return TransferStatus.DEVICE_DOES_NOT_EXIST;
+    }
+
+    private TransferStatus executeTransfer(ComponentTransfer transfer,
+                                           long timeoutNanos){
+        TransferStatus status = checkTransfer(transfer);
+        if(status != TransferStatus.OK){
+            return status;
+        }
+        //The time spent waiting at the gate counts towards the timeout.
+        long startNanos = startOf(timeoutNanos);
+        status = transferGate.enter(1, timeoutNanos);
+        if(status != TransferStatus.OK){
+            return status;
+        }
+        TransferDataWrapper data = createTransfer(transfer, null);
+        status = startTransfer(data);
+        if(status != TransferStatus.OK){
+            return status;
+        }
+        if(!data.bReady){
+            //Await for someone to wake us up, or give up.
+            status = awaitMemorySlot(data,
+                    remainingNanos(timeoutNanos, startNanos));
+            if(status != TransferStatus.OK){
+                return status;
+            }
+            resumeTransfer(data);
+        }
+        data.transfer.prepare();
+
+        //Free-up memory space.
+        leaveSourceDevice(data);
+        //Wait until the reserved memory space is freed.
+        if(!acquireDestinationMemory(data)){
+            startSlotWait(data);
+            data.waitForWakeUpUninterruptibly();
+            endSlotWait(data);
+        }
+        enterDestinationDevice(data);
+        return TransferStatus.OK;
+    }
+
+    //Creates the data of the asynchronous transfer, or completes its result
+    //exceptionally and returns null, if the transfer is invalid.
+    private TransferDataWrapper createAsyncTransfer(
+            ComponentTransfer transfer, CompletableFuture<Void> result){
+        TransferStatus status = checkTransfer(transfer);
+        if(status != TransferStatus.OK){
+            result.completeExceptionally(newRejection(status, transfer));
+            return null;
+        }
+        return newAsyncTransfer(transfer, result);
+    }
+
+    //Creates the data of the asynchronous transfer, which passed
+    //checkTransfer(), with its continuation.
+    private TransferDataWrapper newAsyncTransfer(ComponentTransfer transfer,
+                                                 CompletableFuture<Void> result){
+        TransferDataWrapper data = createTransfer(transfer, asyncExecutor);
+        data.setContinuation(() -> {
+            if(data.bRejected){
+                result.completeExceptionally(newRejection(
+                        releaseRejectedTransfer(data), transfer));
+                return;
+            }
+            resumeTransfer(data);
+            prepareAsync(data, result);
+        });
+        return data;
+    }
+
+    //Starts the asynchronous transfer. Returns true if it can be prepared
+    //right away. If the transfer is invalid, completes its result
+    //exceptionally and returns false.
+    private boolean startAsyncTransfer(TransferDataWrapper data,
+                                       CompletableFuture<Void> result){
+        TransferStatus status = startTransfer(data);
+        if(status != TransferStatus.OK){
+            result.completeExceptionally(newRejection(status, data.transfer));
+            return false;
+        }
+        return data.bReady;
+    }
+
+    //Executes the transfer without blocking the calling thread. Instead of
+    //sleeping, the waiting transfer registers its continuation, which is run
+    //by asyncExecutor once the transfer is woken up. The same executor runs
+    //prepare() and perform() of the transfer. While snapshot() holds
+    //the gate closed, the transfer is started by asyncExecutor once it
+    //opens.
+    @Override
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        TransferDataWrapper data = createAsyncTransfer(transfer, result);
+        if(data != null){
+            transferGate.enterAsync(1, asyncExecutor, () -> {
+                if(startAsyncTransfer(data, result)){
+                    asyncExecutor.execute(() -> prepareAsync(data, result));
+                }
+            });
+        }
+        return result;
+    }
+
+    //Executes all the given transfers asynchronously, planning them in one
+    //critical section of all the devices they touch. The transfers are
+    //validated and get their memory reserved in the iteration order, so
+    //chains and cycles formed by them (and by the transfers that were already
+    //waiting) are found before any of them starts. Returns results of the
+    //transfers in the iteration order. Like executeAsync(), it never waits
+    //at the gate.
+    @Override
+    public List<CompletableFuture<Void>> executeAll(
+            Collection<? extends ComponentTransfer> transfers) {
+        ArrayList<CompletableFuture<Void>> results = new ArrayList<>();
+        ArrayList<TransferDataWrapper> batch = new ArrayList<>();
+        TreeMap<DeviceId, DeviceDataWrapper> devices = new TreeMap<>();
+        int started = 0;
+        for(ComponentTransfer transfer : transfers){
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            TransferDataWrapper data = createAsyncTransfer(transfer, result);
+            results.add(result);
+            batch.add(data);
+            if(data != null){
+                ++started;
+            }
+            if(data != null && data.source != null){
+                devices.put(data.source.getDeviceId(), data.source);
+            }
+            if(data != null && data.destination != null){
+                devices.put(data.destination.getDeviceId(), data.destination);
+            }
+        }
+
+        if(started > 0){
+            transferGate.enterAsync(started, asyncExecutor,
+                    () -> startBatch(batch, results, devices));
+        }
+        return results;
+    }
+
+    //Plans the transfers of the batch of executeAll(), which are counted by
+    //the gate, as a whole, and lets the ones that can proceed go. First
+    //every transfer is validated, in the iteration order. Then the ones that
+    //get their memory slots right away are started, every device taking its
+    //transfers in the iteration order, and a device is tried again whenever
+    //a transfer of the batch marks a component leaving it. Only the ones
+    //left wait, and their edges are added to the wait-for graphs together,
+    //so the cycles they form among themselves, or with the transfers that
+    //were already waiting, are resolved before any of them is woken up.
+    //The other transfers are woken up, and the listener is told about
+    //the waiting ones, after all the locks are released.
+    private void startBatch(ArrayList<TransferDataWrapper> batch,
+                            ArrayList<CompletableFuture<Void>> results,
+                            TreeMap<DeviceId, DeviceDataWrapper> devices){
+        //Every device of the batch is locked upfront in the order of ids,
+        //so the locks taken by the single transfers never block, and it is
+        //safe to hold the mutexes of all the shards during the whole
+        //planning.
+        for(DeviceDataWrapper device : devices.values()){
+            device.lock();
+        }
+        lockAllShards();
+        boolean[] bIsReady = new boolean[batch.size()];
+        boolean[] bIsPlanned = new boolean[batch.size()];
+        //Indices of the validated transfers by their destination devices.
+        HashMap<DeviceDataWrapper, ArrayDeque<Integer>> pending =
+                new HashMap<>();
+        ArrayDeque<DeviceDataWrapper> changed = new ArrayDeque<>();
+        for(int i = 0; i < batch.size(); ++i){
+            TransferDataWrapper data = batch.get(i);
+            if(data == null){
+                continue;
+            }
+            TransferStatus status = lockAndValidate(data);
+            if(status != TransferStatus.OK){
+                results.get(i).completeExceptionally(
+                        newRejection(status, data.transfer));
+                bIsPlanned[i] = true;
+            }
+            else if(data.destination == null){
+                bIsReady[i] = planTransfer(data);
+                bIsPlanned[i] = true;
+                changed.add(data.source);
+            }
+            else{
+                pending.computeIfAbsent(data.destination,
+                        device -> new ArrayDeque<>()).add(i);
+                changed.add(data.destination);
+            }
+        }
+        while(!changed.isEmpty()){
+            ArrayDeque<Integer> queue = pending.get(changed.poll());
+            while(queue != null && !queue.isEmpty() &&
+                    canProceed(batch.get(queue.peek()))){
+                int i = queue.poll();
+                TransferDataWrapper data = batch.get(i);
+                bIsReady[i] = planTransfer(data);
+                bIsPlanned[i] = true;
+                if(data.source != null){
+                    changed.add(data.source);
+                }
+            }
+        }
+
+        ArrayList<TransferDataWrapper> waiting = new ArrayList<>();
+        ArrayList<ArrayList<TransferDataWrapper>> cycles = new ArrayList<>();
+        ArrayList<GroupDataWrapper> rejected = new ArrayList<>();
+        for(int i = 0; i < batch.size(); ++i){
+            if(bIsPlanned[i]){
+                continue;
+            }
+            TransferDataWrapper data = batch.get(i);
+            ArrayList<TransferDataWrapper> cycle =
+                    enqueueWaiting(data, rejected);
+            if(cycle == null){
+                reserveForWaitingTransfers(data.destination);
+                transferGate.leave();
+                waiting.add(data);
+            }
+            else{
+                cycles.add(cycle);
+                markComponentLeaving(data);
+                bIsReady[i] = true;
+            }
+            unlockDevices(data.source, data.destination);
+        }
+        unlockAllShards();
+        for(DeviceDataWrapper device : devices.values()){
+            device.unlock();
+        }
+
+        //Every cycle starts with the transfer of the batch that closed it.
+        for(ArrayList<TransferDataWrapper> cycle : cycles){
+            cycleLengthsHistogram.record(cycle.size());
+            for(int j = 1; j < cycle.size(); ++j){
+                wakeUpWaiter(cycle.get(j));
+            }
+        }
+        for(GroupDataWrapper group : rejected){
+            group.wakeUp();
+        }
+        boolean bMayCloseCycle = false;
+        for(TransferDataWrapper data : waiting){
+            bMayCloseCycle |= data.source != null &&
+                    crossShardGraph.mayCloseCycle(data);
+        }
+        if(bMayCloseCycle){
+            resolveCrossShardCycles(null);
+        }
+        if(waitListener != null){
+            for(TransferDataWrapper data : waiting){
+                if(data.source != null || data.remoteId != 0){
+                    waitListener.accept(data);
+                }
+            }
+        }
+
+        //Release all the transfers that can proceed.
+        for(int i = 0; i < batch.size(); ++i){
+            if(bIsReady[i]){
+                TransferDataWrapper data = batch.get(i);
+                CompletableFuture<Void> result = results.get(i);
+                asyncExecutor.execute(() -> prepareAsync(data, result));
+            }
+        }
+    }
+
+    private void prepareAsync(TransferDataWrapper data,
+                              CompletableFuture<Void> result){
+        try {
+            data.transfer.prepare();
+            leaveSourceDevice(data);
+            //The continuation may run before acquireDestinationMemory()
+            //returns, so the clock has to be read before the attempt.
+            startSlotWait(data);
+            data.setContinuation(() -> {
+                endSlotWait(data);
+                performAsync(data, result);
+            });
+            if(acquireDestinationMemory(data)){
+                performAsync(data, result);
+            }
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void performAsync(TransferDataWrapper data,
+                              CompletableFuture<Void> result){
+        try {
+            enterDestinationDevice(data);
+            result.complete(null);
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void execute(GroupTransfer transfer) throws TransferException {
+        execute(transfer, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void execute(GroupTransfer transfer, Duration timeout)
+            throws TransferException {
+        execute(transfer, toNanos(timeout));
+    }
+
+    private void execute(GroupTransfer transfer, long timeoutNanos)
+            throws TransferException {
+        GroupDataWrapper group = createGroup(transfer);
+        TransferStatus status = executeGroup(group, timeoutNanos);
+        if(status != TransferStatus.OK){
+            throw newRejection(status, group.rejectedMember.transfer);
+        }
+    }
+
+    @Override
+    public TransferStatus tryExecute(GroupTransfer transfer) {
+        return executeGroup(createGroup(transfer), Long.MAX_VALUE);
+    }
+
+    @Override
+    public TransferStatus tryExecute(GroupTransfer transfer,
+                                     Duration timeout) {
+        return executeGroup(createGroup(transfer), toNanos(timeout));
+    }
+
+    //Creates the data of the given group, after checking that it is a move
+    //of at least one component, listed once.
+    private GroupDataWrapper createGroup(GroupTransfer transfer){
+        List<ComponentId> comps = transfer.getComponentIds();
+        if(transfer.getSourceDeviceId() == null ||
+                transfer.getDestinationDeviceId() == null){
+            throw new IllegalArgumentException("Group transfer without " +
+                    "a source or a destination device");
+        }
+        if(comps.isEmpty()){
+            throw new IllegalArgumentException("Empty group transfer");
+        }
+        if(new HashSet<>(comps).size() != comps.size()){
+            throw new IllegalArgumentException("Group transfer lists " +
+                    "a component more than once");
+        }
+        return new GroupDataWrapper(transfer,
+                getDevice(transfer.getSourceDeviceId()),
+                getDevice(transfer.getDestinationDeviceId()));
+    }
+
+    //Executes the group like executeTransfer() executes a single transfer,
+    //but every device is locked once for all the members. The lock waits
+    //of the group are recorded by its first member.
+    private TransferStatus executeGroup(GroupDataWrapper group,
+                                        long timeoutNanos){
+        group.rejectedMember = group.members.get(0);
+        if(group.source == null || group.destination == null){
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        long startNanos = startOf(timeoutNanos);
+        TransferStatus status = transferGate.enter(group.size(), timeoutNanos);
+        if(status != TransferStatus.OK){
+            return status;
+        }
+        status = startGroup(group);
+        if(status != TransferStatus.OK){
+            return status;
+        }
+        if(!group.bReady){
+            status = awaitGroupSlots(group,
+                    remainingNanos(timeoutNanos, startNanos));
+            if(status != TransferStatus.OK){
+                return status;
+            }
+            resumeGroup(group);
+        }
+        group.transfer.prepare();
+
+        leaveGroupSource(group);
+        for(TransferDataWrapper member : group.members){
+            if(!acquireDestinationMemory(member)){
+                startSlotWait(member);
+                member.waitForWakeUpUninterruptibly();
+                endSlotWait(member);
+            }
+        }
+        enterGroupDestination(group);
+        return TransferStatus.OK;
+    }
+
+    //Validates the group and reserves the memory slots of all its members,
+    //if its destination device has enough of them available, and nobody
+    //waits for it. Otherwise, registers the group as the one waiting for
+    //them, which may close a cycle. Returns the reason of the rejection,
+    //or OK, in which case bReady of the group is set like the one of
+    //a single transfer.
+    private TransferStatus startGroup(GroupDataWrapper group){
+        DeviceDataWrapper src = group.source;
+        DeviceDataWrapper dest = group.destination;
+        group.members.get(0).mutexWaitNanos += lockDevices(src, dest);
+        TransferStatus status = validateGroup(group);
+        if(status != TransferStatus.OK){
+            unlockDevices(src, dest);
+            transferGate.leave(group.size());
+            return status;
+        }
+        ArrayList<TransferDataWrapper> cycle = null;
+        ArrayList<GroupDataWrapper> rejected = new ArrayList<>();
+        group.bReady = !dest.hasWaitingTransfers() &&
+                dest.getAvailableSlotsCount() >= group.size();
+        if(group.bReady){
+            reserveGroupSlots(group);
+        }
+        else{
+            cycle = waitForGroupSlots(group, rejected);
+            group.bReady = cycle != null;
+            if(cycle == null){
+                //The group may have been ranked before the first one
+                //waiting, which the device can't take.
+                reserveForWaitingTransfers(dest);
+                //A cycle through other shards is searched for with
+                //the devices still locked, so that the group can take
+                //the available slots of its destination device in it.
+                if(group.waiter().bWaiting &&
+                        crossShardGraph.mayCloseCycle(group.waiter())){
+                    resolveCrossShardCycles(group.waiter());
+                }
+            }
+        }
+        if(group.bReady){
+            for(TransferDataWrapper member : group.members){
+                markComponentLeaving(member);
+            }
+        }
+        unlockDevices(src, dest);
+        for(GroupDataWrapper other : rejected){
+            if(other != group){
+                other.wakeUp();
+            }
+        }
+        if(cycle != null){
+            cycleLengthsHistogram.record(cycle.size());
+            for(TransferDataWrapper edge : cycle){
+                if(edge != group.waiter()){
+                    wakeUpWaiter(edge);
+                }
+            }
+        }
+        else if(!group.bReady){
+            transferGate.leave(group.size());
+            if(group.rejection != null){
+                return releaseRejectedGroup(group);
+            }
+        }
+        return TransferStatus.OK;
+    }
+
+    //Registers the group as the one waiting for the memory slots in its
+    //destination device, and resolves the cycle it closes, like
+    //waitForMemorySlot() does for a single transfer. Its first member stands
+    //for it, see GroupDataWrapper. Returns the cycle, if there is one and
+    //the group can proceed. Otherwise returns null, and the group either
+    //waits, or is rejected, if the cycle it closes can't be resolved.
+    //Has to be called with the devices of the group locked.
+    private ArrayList<TransferDataWrapper> waitForGroupSlots(
+            GroupDataWrapper group, ArrayList<GroupDataWrapper> rejected){
+        TransferDataWrapper waiter = group.waiter();
+        ArrayList<TransferDataWrapper> cycle = null;
+        Shard shard = group.destination.shard;
+        waiter.mutexWaitNanos += lockWaitingTransfersMutex(shard);
+        for(TransferDataWrapper member : group.members){
+            member.path = StorageSystemStats.TransferPath.WAITING;
+            startSlotWait(member);
+        }
+        waiter.rank = scheduler.rank(waiter.transfer,
+                waiter.slotWaitStartNanos);
+        group.destination.addWaitingTransfer(waiter);
+        if(waiter.bCrossShard){
+            crossShardGraph.addWaitingTransfer(waiter);
+        }
+        else{
+            cycle = addWaitingEdge(waiter, rejected);
+            if(cycle != null){
+                transferGate.join(resolveCycle(cycle) - group.size());
+            }
+        }
+        shard.waitingTransfersMutex.unlock();
+        return cycle;
+    }
+
+    //Claims all the components of the group, which has both its devices
+    //locked. If any of them can't be moved, releases the ones claimed
+    //before, and returns the reason, setting rejectedMember of the group.
+    private TransferStatus validateGroup(GroupDataWrapper group){
+        if(group.destination.isDraining()){
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        for(int i = 0; i < group.size(); ++i){
+            TransferDataWrapper member = group.members.get(i);
+            TransferStatus status = claimMember(member);
+            if(status != TransferStatus.OK){
+                group.rejectedMember = member;
+                for(int j = 0; j < i; ++j){
+                    releaseComponent(group.members.get(j));
+                }
+                return status;
+            }
+        }
+        return TransferStatus.OK;
+    }
+
+    //Claims the component of the member of a group, checking it as
+    //validateTransfer() checks a move.
+    private TransferStatus claimMember(TransferDataWrapper member){
+        ComponentId comp = member.getComponentId();
+        if(componentsStates.get(Ids.of(comp)) == ComponentStatesTable.BUSY){
+            return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+        }
+        if(!member.source.isComponentInDevice(comp)){
+            return TransferStatus.COMPONENT_DOES_NOT_EXIST;
+        }
+        if(member.destination.isComponentInDevice(comp)){
+            return TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER;
+        }
+        if(!componentsStates.compareAndSet(Ids.of(comp),
+                ComponentStatesTable.IDLE, ComponentStatesTable.BUSY)){
+            return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+        }
+        member.sourceSlot = member.source.getComponentSlot(comp);
+        return TransferStatus.OK;
+    }
+
+    private void releaseComponent(TransferDataWrapper data){
+        componentsStates.compareAndSet(Ids.of(data.getComponentId()),
+                ComponentStatesTable.BUSY, ComponentStatesTable.IDLE);
+    }
+
+    //Reserves the memory slots of all the members of the group in its
+    //destination device, which has enough of them available, and records
+    //them together. Has to be called with the destination device locked.
+    private void reserveGroupSlots(GroupDataWrapper group){
+        DeviceDataWrapper dest = group.destination;
+        for(TransferDataWrapper member : group.members){
+            if(dest.hasFreeMemorySpace()){
+                member.destinationSlot = dest.reserveFreeMemorySlot();
+            }
+            else{
+                member.destinationSlot = dest.reserveMemorySpace();
+                if(member.path == StorageSystemStats.TransferPath.FREE){
+                    member.path = StorageSystemStats.TransferPath.FUTURE;
+                }
+            }
+        }
+        if(journal != null){
+            journal.appendGroup(group.members);
+            compactJournalIfNeeded();
+        }
+    }
+
+    //Waits until someone reserves the memory slots for the group, but at most
+    //for the given time, like awaitMemorySlot() does for a single transfer.
+    //The transfers behind the cancelled group may fit into the device, so
+    //they are served right away.
+    private TransferStatus awaitGroupSlots(GroupDataWrapper group,
+                                           long timeoutNanos){
+        TransferStatus status;
+        try {
+            if(group.waitForWakeUp(timeoutNanos)){
+                return finishGroupWait(group);
+            }
+            status = TransferStatus.TRANSFER_TIMED_OUT;
+        } catch (InterruptedException e) {
+            status = TransferStatus.TRANSFER_INTERRUPTED;
+        }
+        DeviceDataWrapper dest = group.destination;
+        TransferDataWrapper waiter = group.waiter();
+        dest.lock();
+        lockWaitingTransfersMutex(dest.shard);
+        boolean bCancelled = waiter.bWaiting;
+        if(bCancelled){
+            dest.removeWaitingTransfer(waiter);
+            removeWaitingEdge(waiter);
+        }
+        dest.shard.waitingTransfersMutex.unlock();
+        if(bCancelled){
+            reserveForWaitingTransfers(dest);
+        }
+        dest.unlock();
+        if(bCancelled){
+            for(TransferDataWrapper member : group.members){
+                releaseComponent(member);
+            }
+            cancelledTransfersCount.add(group.size());
+        }
+        else{
+            //Someone has already reserved the slots for us, or rejected us,
+            //and is about to wake us up, so we have to wait for it.
+            group.waitForWakeUpUninterruptibly();
+        }
+        if(status == TransferStatus.TRANSFER_INTERRUPTED){
+            Thread.currentThread().interrupt();
+        }
+        if(bCancelled){
+            return status;
+        }
+        return finishGroupWait(group);
+    }
+
+    //Finishes the wait of the group that was woken up. Returns OK if it got
+    //its memory slots, otherwise releases its components and returns
+    //the reason of its rejection. The group taken out of the queue by
+    //a cycle, or rejected, might have been holding back the transfers
+    //behind it, so they are served.
+    private TransferStatus finishGroupWait(GroupDataWrapper group){
+        if(group.rejection == null && group.waiter().path !=
+                StorageSystemStats.TransferPath.CYCLE){
+            return TransferStatus.OK;
+        }
+        DeviceDataWrapper dest = group.destination;
+        group.members.get(0).mutexWaitNanos += dest.lockAndGetWaitTime();
+        reserveForWaitingTransfers(dest);
+        dest.unlock();
+        return group.rejection == null ? TransferStatus.OK :
+                releaseRejectedGroup(group);
+    }
+
+    //Releases the components of the group that was taken out of the queue
+    //without memory slots, because its destination device is being drained,
+    //or because it was a part of a cycle that can't be resolved, and returns
+    //the reason of the rejection.
+    private TransferStatus releaseRejectedGroup(GroupDataWrapper group){
+        for(TransferDataWrapper member : group.members){
+            releaseComponent(member);
+        }
+        return group.rejection;
+    }
+
+    //Resumes the group that was woken up, because someone reserved memory
+    //for it, marking all its components as leaving the source device.
+    private void resumeGroup(GroupDataWrapper group){
+        for(TransferDataWrapper member : group.members){
+            endSlotWait(member);
+        }
+        group.members.get(0).mutexWaitNanos +=
+                group.source.lockAndGetWaitTime();
+        for(TransferDataWrapper member : group.members){
+            markComponentLeaving(member);
+        }
+        group.source.unlock();
+    }
+
+    //Removes all the components of the group from its source device
+    //and frees their memory cells. It is called after prepare().
+    private void leaveGroupSource(GroupDataWrapper group){
+        DeviceDataWrapper src = group.source;
+        group.members.get(0).mutexWaitNanos += src.lockAndGetWaitTime();
+        for(TransferDataWrapper member : group.members){
+            src.leaveDevice(member.getComponentId());
+        }
+        CompletableFuture<Void> resized = takeFinishedResize(src);
+        src.unlock();
+        for(TransferDataWrapper member : group.members){
+            src.releaseMemoryCell(member.sourceSlot);
+        }
+        if(resized != null){
+            resized.complete(null);
+        }
+    }
+
+    //Puts all the components of the group into its destination device,
+    //and finishes every member like enterDestinationDevice() does.
+    private void enterGroupDestination(GroupDataWrapper group){
+        DeviceDataWrapper dest = group.destination;
+        group.members.get(0).mutexWaitNanos += dest.lockAndGetWaitTime();
+        for(TransferDataWrapper member : group.members){
+            dest.enterDevice(member.getComponentId(), member.destinationSlot);
+        }
+        dest.unlock();
+        group.transfer.perform();
+
+        for(TransferDataWrapper member : group.members){
+            publishPlacement(member);
+            componentsStates.compareAndSet(Ids.of(member.getComponentId()),
+                    ComponentStatesTable.BUSY, ComponentStatesTable.IDLE,
+                    dest.index);
+            recordTransfer(member);
+            transferGate.leave();
+        }
+    }
+
+    //Sets the listener told about the transfers that start waiting,
+    //see StorageNode. Has to be called before any transfer starts.
+    void setWaitListener(Consumer<TransferDataWrapper> listener){
+        waitListener = listener;
+    }
+
+    //Returns true if there are waiting moves to other nodes. It needs
+    //no lock.
+    boolean hasRemoteMoves(){
+        return !remoteMoveGraph.isEmpty();
+    }
+
+    //Creates the data of the move of a component from a device of this
+    //system to a device of another node, see StorageNode. The system does not
+    //know the destination device, so the move looks like a deletion to it,
+    //except that it waits until the other node reserves a memory slot for it.
+    TransferDataWrapper createRemoteMove(ComponentTransfer transfer,
+                                         long remoteId){
+        TransferDataWrapper data = new TransferDataWrapper(transfer,
+                getDevice(transfer.getSourceDeviceId()), null, null);
+        data.remoteId = remoteId;
+        return data;
+    }
+
+    //Validates the move to another node, claims its component, and registers
+    //the move as the one waiting for its memory slot. Returns the reason
+    //of the rejection, or OK.
+    TransferStatus startRemoteMove(TransferDataWrapper data){
+        if(data.source == null){
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        transferGate.enterUninterruptibly(1);
+        data.mutexWaitNanos += data.source.lockAndGetWaitTime();
+        TransferStatus status = validateTransfer(data);
+        if(status != TransferStatus.OK){
+            transferGate.leave();
+            return status;
+        }
+        Shard shard = data.source.shard;
+        data.mutexWaitNanos += lockWaitingTransfersMutex(shard);
+        data.path = StorageSystemStats.TransferPath.WAITING;
+        startSlotWait(data);
+        data.bWaiting = true;
+        remoteMoveGraph.addWaitingTransfer(data);
+        shard.waitingTransfersMutex.unlock();
+        data.source.unlock();
+        transferGate.leave();
+        return TransferStatus.OK;
+    }
+
+    //Removes the move to another node from the graph, unless it was already
+    //removed as a part of a cycle.
+    private void removeRemoteMove(TransferDataWrapper data){
+        Shard shard = data.source.shard;
+        data.mutexWaitNanos += lockWaitingTransfersMutex(shard);
+        if(data.bWaiting){
+            data.bWaiting = false;
+            remoteMoveGraph.removeWaitingTransfer(data);
+        }
+        shard.waitingTransfersMutex.unlock();
+    }
+
+    //Called when the other node has reserved the memory slot for the move.
+    //After that, the move is finished by finishRemoteMove().
+    void grantRemoteMove(TransferDataWrapper data){
+        removeRemoteMove(data);
+        transferGate.join(1);
+    }
+
+    //Called when the other node has rejected the move. Releases its
+    //component, as if the move never started.
+    void rejectRemoteMove(TransferDataWrapper data){
+        removeRemoteMove(data);
+        componentsStates.compareAndSet(Ids.of(data.getComponentId()),
+                ComponentStatesTable.BUSY, ComponentStatesTable.IDLE);
+    }
+
+    //Finishes the granted move to another node in the calling thread.
+    //prepare() and perform() of its transfer are expected to hand
+    //the component over to the other node.
+    void finishRemoteMove(TransferDataWrapper data){
+        resumeTransfer(data);
+        data.transfer.prepare();
+        leaveSourceDevice(data);
+        enterDestinationDevice(data);
+    }
+
+    //Creates the asynchronous addition of the component moved, or added,
+    //from another node, which passed checkTransfer(). remoteId identifies
+    //the move, and is 0 for an addition, which can't be a part of any cycle.
+    TransferDataWrapper createRemoteAdd(ComponentTransfer transfer,
+                                        long remoteId,
+                                        CompletableFuture<Void> result){
+        TransferDataWrapper data = newAsyncTransfer(transfer, result);
+        data.remoteId = remoteId;
+        return data;
+    }
+
+    //Starts the transfer created by createRemoteAdd(). Returns the reason
+    //of the rejection, or OK, in which case the transfer completes
+    //its result.
+    TransferStatus startRemoteAdd(TransferDataWrapper data,
+                                  CompletableFuture<Void> result){
+        transferGate.enterUninterruptibly(1);
+        TransferStatus status = startTransfer(data);
+        if(status == TransferStatus.OK && data.bReady){
+            asyncExecutor.execute(() -> prepareAsync(data, result));
+        }
+        return status;
+    }
+
+    //Cancels the addition started by startRemoteAdd(), whose timeout passed,
+    //unless it has already got its memory slot, or was rejected. Returns
+    //true if it was cancelled, in which case its result is never completed
+    //by the system.
+    boolean cancelRemoteAdd(TransferDataWrapper data){
+        return cancelWaitingTransfer(data);
+    }
+
+    //Returns the waiting moves to other nodes that wait, directly or not,
+    //for a memory slot in the given device. Has to be called with the mutexes
+    //of all the shards held.
+    ArrayList<TransferDataWrapper> findRemoteMoves(DeviceDataWrapper device){
+        return remoteMoveGraph.findReachable(device);
+    }
+
+    //Returns the waiting transfers leading from the start device
+    //to the target one, or null if there are none, see RemoteMoveGraph.
+    //Has to be called with the mutexes of all the shards held.
+    ArrayList<TransferDataWrapper> findWaitingPath(DeviceDataWrapper start,
+                                                   DeviceDataWrapper target){
+        return remoteMoveGraph.findPath(start, target);
+    }
+
+    //Resolves the part of a cycle through many nodes that goes through this
+    //system: the waiting addition of a component moved from another node,
+    //the given waiting transfers leading from its device to the device
+    //of the waiting move to another node, and that move. Every one of them
+    //inherits the memory slot of the next one, as in resolveCycle(). Returns
+    //the transfers that have to be woken up by wakeResolved(), that is all
+    //of them but the move, which proceeds when the other node reserves
+    //its slot. Has to be called with the mutexes of all the shards held,
+    //after checking that all the transfers still wait.
+    ArrayList<TransferDataWrapper> resolveRemoteSegment(
+            TransferDataWrapper incoming, ArrayList<TransferDataWrapper> path,
+            TransferDataWrapper outgoing){
+        ArrayList<TransferDataWrapper> resolved =
+                new ArrayList<>(path.size() + 1);
+        resolved.add(incoming);
+        resolved.addAll(path);
+        for(int i = 0; i < resolved.size(); ++i){
+            TransferDataWrapper member = resolved.get(i);
+            TransferDataWrapper next = i + 1 < resolved.size() ?
+                    resolved.get(i + 1) : outgoing;
+            member.destination.removeWaitingTransfer(member);
+            removeWaitingEdge(member);
+            member.path = StorageSystemStats.TransferPath.CYCLE;
+            next.inheritor = member;
+            member.destinationSlot = next.sourceSlot;
+        }
+        outgoing.bWaiting = false;
+        remoteMoveGraph.removeWaitingTransfer(outgoing);
+        outgoing.path = StorageSystemStats.TransferPath.CYCLE;
+        return resolved;
+    }
+
+    //Wakes up the transfers of the resolved part of a cycle.
+    void wakeResolved(ArrayList<TransferDataWrapper> resolved){
+        //None of them is counted by the gate, as all of them were waiting.
+        transferGate.join(resolved.size());
+        for(TransferDataWrapper member : resolved){
+            member.wakeUp();
         }
     }
-}
\ No newline at end of file
+}
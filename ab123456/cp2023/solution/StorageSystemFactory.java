@@ -7,7 +7,17 @@
  */
 package cp2023.solution;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToIntFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
@@ -17,10 +27,143 @@ import cp2023.base.StorageSystem;
 public final class StorageSystemFactory {
 
     //Returns a new object of class StirageSystemClass.
-    public static StorageSystem newSystem(
+    public static ExtendedStorageSystem newSystem(
             Map<DeviceId, Integer> deviceTotalSlots,
             Map<ComponentId, DeviceId> componentPlacement) {
         return new StorageSystemClass(deviceTotalSlots, componentPlacement);
     }
 
+    //Returns a new object of class StorageSystemClass, which runs
+    //the asynchronous transfers using the given executor.
+    public static ExtendedStorageSystem newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor asyncExecutor) {
+        return new StorageSystemClass(deviceTotalSlots, componentPlacement,
+                asyncExecutor);
+    }
+
+    //Returns a new object of class StorageSystemClass, which runs
+    //the asynchronous transfers using the given executor, and lets the given
+    //scheduler choose which waiting transfer gets a memory slot.
+    public static ExtendedStorageSystem newSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Executor asyncExecutor, TransferScheduler scheduler) {
+        return new StorageSystemClass(deviceTotalSlots, componentPlacement,
+                asyncExecutor, scheduler);
+    }
+
+    //Returns a new object of class ShardedStorageSystem, whose devices are
+    //assigned to the given number of shards by their ids.
+    public static ExtendedStorageSystem newShardedSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            int shardsCount) {
+        return new ShardedStorageSystem(deviceTotalSlots, componentPlacement,
+                shardsCount);
+    }
+
+    //Returns a new object of class ShardedStorageSystem, whose devices are
+    //assigned to the given number of shards by the given function, and which
+    //runs the asynchronous transfers using the given executor.
+    public static ExtendedStorageSystem newShardedSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            int shardsCount, ToIntFunction<DeviceId> partitioner,
+            Executor asyncExecutor) {
+        return new ShardedStorageSystem(deviceTotalSlots, componentPlacement,
+                shardsCount, partitioner, asyncExecutor);
+    }
+
+    //Returns a new object of class StorageSystemClass, which records every
+    //change of its placement in the journal in the given file, replacing its
+    //old content, so that the placement can be restored by recover().
+    //The journal is closed by close() of the system.
+    public static ExtendedStorageSystem newDurableSystem(
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement,
+            Path journalFile) throws IOException {
+        return new StorageSystemClass(deviceTotalSlots, componentPlacement,
+                ForkJoinPool.commonPool(), journalFile);
+    }
+
+    //Returns a new object of class StorageSystemClass with the devices and
+    //the placement read from the given journal, in which the transfers
+    //interrupted by a crash are already completed. The journal is then
+    //compacted to the recovered placement, and the new system records
+    //its changes in it.
+    public static ExtendedStorageSystem recover(Path journalFile)
+            throws IOException {
+        PlacementJournal.Recovered recovered =
+                PlacementJournal.recover(journalFile);
+        return new StorageSystemClass(recovered.deviceTotalSlots,
+                recovered.componentPlacement, ForkJoinPool.commonPool(),
+                journalFile);
+    }
+
+    //Returns a new builder of StorageSystemClass, which accepts streams
+    //of placements, and validates and groups them in parallel.
+    public static StorageSystemBuilder builder() {
+        return new StorageSystemBuilder();
+    }
+
+    //Returns a new object of class StorageSystemClass with the devices and
+    //the placement read from the given file in the binary snapshot format.
+    public static ExtendedStorageSystem loadSnapshot(Path snapshotFile)
+            throws IOException {
+        return loadSnapshot(snapshotFile, ForkJoinPool.commonPool());
+    }
+
+    //Returns a new object of class StorageSystemClass with the devices and
+    //the placement read from the given snapshot, which runs the asynchronous
+    //transfers using the given executor.
+    public static ExtendedStorageSystem loadSnapshot(Path snapshotFile,
+                                             Executor asyncExecutor)
+            throws IOException {
+        return new StorageSystemClass(PlacementSnapshot.read(snapshotFile),
+                asyncExecutor);
+    }
+
+    //Starts the node with the given id of a system spread over many
+    //processes, which listens on the address with that index, see
+    //StorageNode. deviceNodes maps every device of the whole system to
+    //the id of its node, the other two maps describe the devices of this
+    //node only.
+    public static StorageNode startNode(int nodeId,
+            List<InetSocketAddress> addresses,
+            Map<DeviceId, Integer> deviceNodes,
+            Map<DeviceId, Integer> deviceTotalSlots,
+            Map<ComponentId, DeviceId> componentPlacement) throws IOException {
+        return new StorageNode(nodeId, addresses, deviceNodes,
+                deviceTotalSlots, componentPlacement);
+    }
+
+    //Writes the placement of the given system, created by this factory,
+    //to the given file in the binary snapshot format, which can be loaded
+    //by loadSnapshot(). The transfers that would start in the meantime wait
+    //until the placement is read, and the asynchronous ones are started
+    //then, without blocking their callers.
+    public static void snapshot(StorageSystem system, Path snapshotFile)
+            throws IOException {
+        if(!(system instanceof StorageSystemClass)){
+            throw new IllegalArgumentException(
+                    "System not created by StorageSystemFactory");
+        }
+        ((StorageSystemClass) system).snapshot(snapshotFile);
+    }
+
+    //Registers the StorageSystemStatsMXBean of the given system, created by
+    //this factory, in the platform MBean server under the given name.
+    public static void registerStatsMBean(StorageSystem system,
+                                          ObjectName name)
+            throws JMException {
+        if(!(system instanceof StorageSystemClass)){
+            throw new IllegalArgumentException(
+                    "System not created by StorageSystemFactory");
+        }
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StorageSystemStatsBean((StorageSystemClass) system), name);
+    }
+
 }
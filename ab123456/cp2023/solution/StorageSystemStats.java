@@ -0,0 +1,178 @@
+package cp2023.solution;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+//Snapshot of the runtime metrics of a StorageSystemClass. The device data
+//is read device by device, and the histograms stripe by stripe, so
+//the snapshot is not atomic as a whole, but each of its parts is consistent.
+public final class StorageSystemStats {
+    //The way in which a transfer got its memory slot.
+    public enum TransferPath {
+        //There was a free slot in the destination device, or there was
+        //no destination device at all.
+        FREE,
+        //The transfer reserved the slot of a component leaving
+        //the destination device.
+        FUTURE,
+        //The transfer waited until a component leaving the destination
+        //device handed its slot over.
+        WAITING,
+        //The transfer was a part of a cycle of waiting transfers.
+        CYCLE
+    }
+
+    public static final class DeviceStats {
+        private final int deviceId;
+        private final int slots;
+        private final int usedSlots;
+        private final int waitingTransfers;
+
+        DeviceStats(int deviceId, int slots, int usedSlots,
+                    int waitingTransfers){
+            this.deviceId = deviceId;
+            this.slots = slots;
+            this.usedSlots = usedSlots;
+            this.waitingTransfers = waitingTransfers;
+        }
+
+        //Number of the id of the device, see Ids. Unlike DeviceId, it can
+        //be read over JMX.
+        public int getDeviceId(){
+            return deviceId;
+        }
+
+        public int getSlots(){
+            return slots;
+        }
+
+        //Number of slots that are occupied or reserved.
+        public int getUsedSlots(){
+            return usedSlots;
+        }
+
+        //Number of transfers waiting for a slot in this device.
+        public int getWaitingTransfers(){
+            return waitingTransfers;
+        }
+    }
+
+    //Log-linear histogram, every power of two is split into 8 buckets,
+    //so the reported values are at most 12.5% above the recorded ones.
+    public static final class Histogram {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Histogram(long[] counts, long sum, long max){
+            this.counts = counts;
+            long total = 0;
+            for(long c : counts){
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public double getMean(){
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMax(){
+            return max;
+        }
+
+        //Returns the highest value that falls into the same bucket as the value
+        //at the given percentile, or 0 if nothing was recorded.
+        public long getPercentile(double percentile){
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; ++i){
+                seen += counts[i];
+                if(seen >= Math.max(rank, 1)){
+                    return Math.min(LatencyHistogram.highestInBucket(i), max);
+                }
+            }
+            return 0;
+        }
+
+        public long getP50(){
+            return getPercentile(50);
+        }
+
+        public long getP90(){
+            return getPercentile(90);
+        }
+
+        public long getP99(){
+            return getPercentile(99);
+        }
+
+        public long getP999(){
+            return getPercentile(99.9);
+        }
+    }
+
+    private final List<DeviceStats> devices;
+    private final Histogram mutexWait;
+    private final Histogram slotWait;
+    private final Map<TransferPath, Histogram> transferLatency;
+    private final Histogram cycleLengths;
+    private final long cancelledTransfers;
+
+    StorageSystemStats(List<DeviceStats> devices, Histogram mutexWait,
+                       Histogram slotWait,
+                       EnumMap<TransferPath, Histogram> transferLatency,
+                       Histogram cycleLengths, long cancelledTransfers){
+        this.devices = Collections.unmodifiableList(devices);
+        this.mutexWait = mutexWait;
+        this.slotWait = slotWait;
+        this.transferLatency = Collections.unmodifiableMap(transferLatency);
+        this.cycleLengths = cycleLengths;
+        this.cancelledTransfers = cancelledTransfers;
+    }
+
+    //Devices in the order of their ids.
+    public List<DeviceStats> getDevices(){
+        return devices;
+    }
+
+    //Time in nanoseconds every transfer spent waiting for the device locks
+    //and the waiting transfers mutex.
+    public Histogram getMutexWait(){
+        return mutexWait;
+    }
+
+    //Time in nanoseconds the transfers that could not proceed right away
+    //spent waiting for their memory slots.
+    public Histogram getSlotWait(){
+        return slotWait;
+    }
+
+    //Time in nanoseconds from the call of execute() to the end of perform(),
+    //for the transfers that got their slot in the given way.
+    public Map<TransferPath, Histogram> getTransferLatency(){
+        return transferLatency;
+    }
+
+    //Number of cycles resolved so far.
+    public long getCycles(){
+        return cycleLengths.getCount();
+    }
+
+    public Histogram getCycleLengths(){
+        return cycleLengths;
+    }
+
+    //Number of the transfers cancelled while waiting for their memory slots,
+    //because of a timeout or an interruption.
+    public long getCancelledTransfers(){
+        return cancelledTransfers;
+    }
+}
@@ -0,0 +1,48 @@
+package cp2023.solution;
+import java.util.List;
+import java.util.Map;
+//Implementation of the StorageSystemStatsMXBean of the given system.
+class StorageSystemStatsBean implements StorageSystemStatsMXBean {
+    private final StorageSystemClass system;
+
+    //Constructor.
+    StorageSystemStatsBean(StorageSystemClass system){
+        this.system = system;
+    }
+
+    @Override
+    public List<StorageSystemStats.DeviceStats> getDevices(){
+        return system.getDeviceStats();
+    }
+
+    @Override
+    public StorageSystemStats.Histogram getMutexWait(){
+        return system.mutexWaitHistogram.snapshot();
+    }
+
+    @Override
+    public StorageSystemStats.Histogram getSlotWait(){
+        return system.slotWaitHistogram.snapshot();
+    }
+
+    @Override
+    public Map<StorageSystemStats.TransferPath, StorageSystemStats.Histogram>
+            getTransferLatency(){
+        return system.getTransferLatency();
+    }
+
+    @Override
+    public long getCycles(){
+        return system.cycleLengthsHistogram.snapshot().getCount();
+    }
+
+    @Override
+    public StorageSystemStats.Histogram getCycleLengths(){
+        return system.cycleLengthsHistogram.snapshot();
+    }
+
+    @Override
+    public long getCancelledTransfers(){
+        return system.cancelledTransfersCount.sum();
+    }
+}
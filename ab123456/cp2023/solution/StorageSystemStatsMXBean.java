@@ -0,0 +1,21 @@
+package cp2023.solution;
+import java.util.List;
+import java.util.Map;
+//Management interface exposing the StorageSystemStats of a system over JMX.
+//Every attribute is read from a fresh snapshot.
+public interface StorageSystemStatsMXBean {
+    List<StorageSystemStats.DeviceStats> getDevices();
+
+    StorageSystemStats.Histogram getMutexWait();
+
+    StorageSystemStats.Histogram getSlotWait();
+
+    Map<StorageSystemStats.TransferPath, StorageSystemStats.Histogram>
+            getTransferLatency();
+
+    long getCycles();
+
+    StorageSystemStats.Histogram getCycleLengths();
+
+    long getCancelledTransfers();
+}
@@ -0,0 +1,102 @@
+package cp2023.solution;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import java.util.concurrent.Executor;
+//This class holds all data of the transfer that is being executed, as well as
+//the signal its thread waits on for a memory slot, see HandoffSignal.
+//Asynchronous transfers have no thread that could sleep, so instead
+//their continuation is submitted to the executor when they are woken up.
+class TransferDataWrapper {
+    final ComponentTransfer transfer;
+    final DeviceDataWrapper source;
+    final DeviceDataWrapper destination;
+    //True for the moves between the devices of different shards, which
+    //wait in the CrossShardGraph instead of the WaitForGraph of a shard.
+    final boolean bCrossShard;
+    //Memory slot occupied by the component in the source device.
+    int sourceSlot = -1;
+    //Memory slot reserved for the component in the destination device.
+    int destinationSlot = -1;
+    //Set by startTransfer(): true if the transfer can proceed to prepare()
+    //right away, false if it waits until someone wakes it up.
+    boolean bReady = false;
+    //Transfer that takes over the memory slot of this one because both of
+    //them are part of the same cycle. Guarded by waitingTransfersMutex
+    //of the shard of the destination device.
+    TransferDataWrapper inheritor = null;
+    //Neighbours in the queue of the transfers waiting for a memory slot
+    //in the destination device. Guarded by waitingTransfersMutex of its shard,
+    //as are the next two fields.
+    TransferDataWrapper previousWaiting = null;
+    TransferDataWrapper nextWaiting = null;
+    //True while the transfer is in the queue of its destination device.
+    boolean bWaiting = false;
+    //Set when the transfer is taken out of the queue without a memory slot,
+    //because its destination device is being drained. It is read by
+    //the transfer once it is woken up.
+    boolean bRejected = false;
+    //Rank given by the TransferScheduler when the transfer started waiting,
+    //the queue is ordered by it.
+    long rank = 0;
+    //Id of the move between the nodes this transfer is a part of, either
+    //on the node of its source device, or on the node of its destination
+    //device, see StorageNode, and 0 for the other transfers.
+    long remoteId = 0;
+    //Group transfer this transfer is a member of, or null.
+    GroupDataWrapper group = null;
+    //Metrics of the transfer, recorded in the StorageSystemStats when
+    //it finishes.
+    final long startNanos = System.nanoTime();
+    StorageSystemStats.TransferPath path = StorageSystemStats.TransferPath.FREE;
+    long mutexWaitNanos = 0;
+    long slotWaitNanos = 0;
+    long slotWaitStartNanos = 0;
+    boolean bWaitedForSlot = false;
+    private final HandoffSignal wakeUpSignal = new HandoffSignal();
+    //Both are null for synchronous transfers.
+    private final Executor executor;
+    private volatile Runnable continuation = null;
+
+    //Constructor.
+    TransferDataWrapper(ComponentTransfer transfer, DeviceDataWrapper source,
+                        DeviceDataWrapper destination, Executor executor){
+        this.transfer = transfer;
+        this.source = source;
+        this.destination = destination;
+        this.bCrossShard = source != null && destination != null &&
+                source.shard != destination.shard;
+        this.executor = executor;
+    }
+
+    ComponentId getComponentId(){
+        return transfer.getComponentId();
+    }
+
+    //Waits until someone reserves a memory slot for this transfer, but
+    //at most for the given time. Returns false if the time passed.
+    boolean waitForWakeUp(long timeoutNanos) throws InterruptedException {
+        return wakeUpSignal.await(timeoutNanos);
+    }
+
+    //Waits until someone wakes the thread up, when the transfer can't be
+    //cancelled anymore. If the thread is interrupted, it keeps waiting,
+    //and its interrupt status is set again when it wakes up.
+    void waitForWakeUpUninterruptibly(){
+        wakeUpSignal.awaitUninterruptibly();
+    }
+
+    //Sets the code run by the asynchronous transfer when it is woken up.
+    //Has to be called before the transfer can be woken up.
+    void setContinuation(Runnable continuation){
+        this.continuation = continuation;
+    }
+
+    void wakeUp(){
+        if(executor == null){
+            wakeUpSignal.signal();
+        }
+        else{
+            executor.execute(continuation);
+        }
+    }
+}
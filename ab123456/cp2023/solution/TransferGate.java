@@ -0,0 +1,193 @@
+package cp2023.solution;
+import cp2023.base.TransferStatus;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+//This class counts the transfers that may change the placement, that is
+//the ones that are being started and the ones that have their memory slots
+//reserved, so that the placement can be read when there are none of them.
+//The transfers waiting in the queues for a memory slot are not counted,
+//as they change nothing until someone reserves a slot for them, and whoever
+//does it counts them again with join().
+//The counter is striped by the thread, and padded, so that the transfers
+//of different threads do not write to the same cache line. A stripe alone
+//may be negative, as a transfer can be counted by one thread, and leave
+//in another, only the sum of all of them is meaningful.
+class TransferGate {
+    //Longs per stripe, so that every stripe has its own cache line.
+    private static final int PADDING = 8;
+    private final AtomicLongArray counts;
+    private final int stripesMask;
+    private volatile boolean bClosed = false;
+    //Held by the thread that closed the gate, until it opens it again.
+    private final ReentrantLock closeLock = new ReentrantLock();
+    //The transfers that came while the gate was closed, and did not wait,
+    //see enterAsync(). Guarded by the monitor of the gate.
+    private final ArrayList<PendingEntry> pendingEntries = new ArrayList<>();
+
+    //Constructor.
+    TransferGate(){
+        int stripesCount = Integer.highestOneBit(Math.min(16,
+                Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        counts = new AtomicLongArray(stripesCount * PADDING);
+        stripesMask = stripesCount - 1;
+    }
+
+    private void add(long delta){
+        counts.addAndGet(
+                ((int) Thread.currentThread().getId() & stripesMask) * PADDING,
+                delta);
+    }
+
+    //Counts the given number of the transfers that are being started,
+    //waiting first until the gate is open, but at most for the given time.
+    //It must not be called with any device lock held. Returns OK once
+    //the transfers are counted, otherwise the reason they were not:
+    //the time passed, or the thread was interrupted, which is reported
+    //by the status, like in awaitMemorySlot(), so the thread stays
+    //interrupted.
+    TransferStatus enter(int transfers, long timeoutNanos){
+        long start = 0;
+        while(true){
+            //The count is published before the gate is checked, and close()
+            //does it the other way around, so either the transfers see
+            //the gate closed, or close() sees them counted.
+            add(transfers);
+            if(!bClosed){
+                return TransferStatus.OK;
+            }
+            add(-transfers);
+            if(start == 0){
+                start = System.nanoTime();
+            }
+            synchronized(this){
+                while(bClosed){
+                    try {
+                        if(timeoutNanos == Long.MAX_VALUE){
+                            wait();
+                            continue;
+                        }
+                        long remaining =
+                                timeoutNanos - (System.nanoTime() - start);
+                        if(remaining <= 0){
+                            return TransferStatus.TRANSFER_TIMED_OUT;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return TransferStatus.TRANSFER_INTERRUPTED;
+                    }
+                }
+            }
+        }
+    }
+
+    //Counts the given number of the transfers like enter(), but waits
+    //until the gate is open however long it takes. If the thread is
+    //interrupted, it keeps waiting, and its interrupt status is set again
+    //once the transfers are counted.
+    void enterUninterruptibly(int transfers){
+        boolean bInterrupted = false;
+        while(enter(transfers, Long.MAX_VALUE) != TransferStatus.OK){
+            Thread.interrupted();
+            bInterrupted = true;
+        }
+        if(bInterrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Counts the given number of the transfers like enter(), and runs
+    //the given continuation, but never waits. If the gate is open,
+    //the continuation is run right away by the calling thread. Otherwise
+    //the transfers are counted when the gate opens, and the continuation
+    //is then run by the given executor.
+    void enterAsync(int transfers, Executor executor, Runnable continuation){
+        while(true){
+            add(transfers);
+            if(!bClosed){
+                continuation.run();
+                return;
+            }
+            add(-transfers);
+            synchronized(this){
+                if(bClosed){
+                    pendingEntries.add(new PendingEntry(transfers, executor,
+                            continuation));
+                    return;
+                }
+            }
+        }
+    }
+
+    //Counts the given number of the transfers that got their memory slots
+    //reserved by a transfer that is already counted. It never waits.
+    void join(int transfers){
+        add(transfers);
+    }
+
+    //Stops counting the transfer that has finished, was rejected, or has
+    //to wait for a memory slot.
+    void leave(){
+        add(-1);
+    }
+
+    //Stops counting the given number of the transfers, see leave().
+    void leave(int transfers){
+        add(-transfers);
+    }
+
+    //Closes the gate and waits until there are no counted transfers.
+    void close(){
+        closeLock.lock();
+        bClosed = true;
+        while(sum() != 0){
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    //Opens the gate closed by the calling thread. The transfers that came
+    //while it was closed, without waiting, are counted before the next
+    //close() can start, and their continuations are then run by their
+    //executors.
+    void open(){
+        ArrayList<PendingEntry> entries;
+        synchronized(this){
+            bClosed = false;
+            notifyAll();
+            entries = new ArrayList<>(pendingEntries);
+            pendingEntries.clear();
+            for(PendingEntry entry : entries){
+                add(entry.transfers);
+            }
+        }
+        closeLock.unlock();
+        for(PendingEntry entry : entries){
+            entry.executor.execute(entry.continuation);
+        }
+    }
+
+    private long sum(){
+        long result = 0;
+        for(int i = 0; i < counts.length(); i += PADDING){
+            result += counts.get(i);
+        }
+        return result;
+    }
+
+    //Transfers waiting for the gate to open, see enterAsync().
+    private static final class PendingEntry {
+        final int transfers;
+        final Executor executor;
+        final Runnable continuation;
+
+        PendingEntry(int transfers, Executor executor, Runnable continuation){
+            this.transfers = transfers;
+            this.executor = executor;
+            this.continuation = continuation;
+        }
+    }
+}
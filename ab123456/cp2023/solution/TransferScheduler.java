@@ -0,0 +1,40 @@
+package cp2023.solution;
+import cp2023.base.ComponentTransfer;
+//Decides which of the transfers waiting for a memory slot in a device gets
+//the slot freed there, or the slot of a component leaving it. Every transfer
+//is ranked once, when it starts waiting, and the one with the lowest rank
+//gets the slot first. Transfers with equal ranks get the slots in the order
+//in which they started waiting.
+//The transfers of a cycle do not wait for any slot, as they exchange
+//their slots among themselves, whatever their ranks are.
+public interface TransferScheduler {
+    //Returns the rank of the given transfer, which starts waiting at
+    //the given time, as returned by System.nanoTime(). It is called with
+    //the mutex of the waiting transfers held, so it has to be fast.
+    long rank(ComponentTransfer transfer, long waitStartNanos);
+
+    //The transfers get the slots in the order in which they started waiting.
+    //Ranking and choosing a transfer takes constant time.
+    static TransferScheduler fifo() {
+        return (transfer, waitStartNanos) -> 0;
+    }
+
+    //The transfers with higher SchedulableTransfer.getPriority() get
+    //the slots first. As long as there are waiting transfers with higher
+    //priority, the other ones starve.
+    static TransferScheduler priority() {
+        return (transfer, waitStartNanos) ->
+                transfer instanceof SchedulableTransfer ?
+                        -(long) ((SchedulableTransfer) transfer).getPriority() :
+                        0;
+    }
+
+    //The transfers with earlier SchedulableTransfer.getDeadlineNanos() get
+    //the slots first, and the ones without deadlines, after all of them.
+    static TransferScheduler earliestDeadlineFirst() {
+        return (transfer, waitStartNanos) ->
+                transfer instanceof SchedulableTransfer ?
+                        ((SchedulableTransfer) transfer).getDeadlineNanos() :
+                        Long.MAX_VALUE;
+    }
+}
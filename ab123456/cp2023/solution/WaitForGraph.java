@@ -0,0 +1,173 @@
+package cp2023.solution;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+//This class maintains the device-level wait-for graph, in which every move
+//transfer waiting for a memory slot is an edge from its source device to its
+//destination device. Since the cycles are resolved as soon as they appear,
+//the graph is always acyclic, and we keep the topological order of its
+//devices up to date (Pearce-Kelly algorithm). An edge that agrees with
+//the order can't close a cycle, so it is added in O(1). Otherwise only
+//the devices between its ends in the order are searched and reordered.
+//Every Shard has its own graph of the moves between its devices, and all
+//the functions have to be called with its waitingTransfersMutex held.
+class WaitForGraph {
+    private static final Comparator<DeviceDataWrapper> BY_ORDER =
+            Comparator.comparingInt(d -> d.topologicalOrder);
+    private int devicesCount = 0;
+    //Marks of the devices visited by the current search.
+    private int visitMark = 0;
+    private final ArrayDeque<DeviceDataWrapper> stack = new ArrayDeque<>();
+    private final ArrayList<DeviceDataWrapper> forwardDevices =
+            new ArrayList<>();
+    private final ArrayList<DeviceDataWrapper> backwardDevices =
+            new ArrayList<>();
+    //Order numbers of the devices being reordered, unboxed, grown only
+    //when a reordering moves more devices than any before.
+    private int[] freedOrders = new int[16];
+
+    //Puts the given device at the end of the topological order.
+    void addDevice(DeviceDataWrapper device){
+        device.topologicalOrder = devicesCount++;
+    }
+
+    //Adds the edge of the given waiting move transfer to the graph. If the edge
+    //would close a cycle, it is not added, and the transfers forming
+    //the cycle are returned, starting with the given one, so that every
+    //transfer waits for the device the previous one leaves. Otherwise
+    //returns null.
+    ArrayList<TransferDataWrapper> addWaitingTransfer(
+            TransferDataWrapper transfer){
+        DeviceDataWrapper src = transfer.source;
+        DeviceDataWrapper dest = transfer.destination;
+        if(src.topologicalOrder < dest.topologicalOrder){
+            addOutgoingTransfer(src, transfer);
+            return null;
+        }
+        //Search forward from the destination, among the devices that are
+        //not after the source in the order. If we reach the source, there
+        //is a cycle.
+        ++visitMark;
+        forwardDevices.clear();
+        if(searchForward(dest, src)){
+            ArrayList<TransferDataWrapper> cycle = new ArrayList<>();
+            cycle.add(transfer);
+            for(DeviceDataWrapper d = src; d != dest;
+                d = d.reachedBy.source){
+                cycle.add(d.reachedBy);
+            }
+            return cycle;
+        }
+        //Search backward from the source, among the devices that are not
+        //before the destination in the order, and move all of them before
+        //the devices found by the forward search.
+        backwardDevices.clear();
+        searchBackward(src, dest.topologicalOrder);
+        reorder();
+        addOutgoingTransfer(src, transfer);
+        return null;
+    }
+
+    private static void addOutgoingTransfer(DeviceDataWrapper device,
+                                            TransferDataWrapper transfer){
+        if(device.outgoingTransfers == null){
+            device.outgoingTransfers = new HashSet<>();
+        }
+        device.outgoingTransfers.add(transfer);
+    }
+
+    //Removes the edge of the given transfer, if it is present in the graph.
+    //Removing an edge never breaks the topological order.
+    void removeWaitingTransfer(TransferDataWrapper transfer){
+        if(transfer.source != null &&
+                transfer.source.outgoingTransfers != null){
+            transfer.source.outgoingTransfers.remove(transfer);
+        }
+    }
+
+    //Iterative DFS over the outgoing edges. Sets reachedBy of every visited
+    //device to the edge it was reached by. Returns true if the target
+    //device was reached.
+    private boolean searchForward(DeviceDataWrapper start,
+                                  DeviceDataWrapper target){
+        int upperBound = target.topologicalOrder;
+        start.visitMark = visitMark;
+        start.reachedBy = null;
+        stack.clear();
+        stack.push(start);
+        while(!stack.isEmpty()){
+            DeviceDataWrapper device = stack.pop();
+            forwardDevices.add(device);
+            if(device.outgoingTransfers == null){
+                continue;
+            }
+            for(TransferDataWrapper edge : device.outgoingTransfers){
+                DeviceDataWrapper next = edge.destination;
+                if(next.visitMark == visitMark ||
+                        next.topologicalOrder > upperBound){
+                    continue;
+                }
+                next.visitMark = visitMark;
+                next.reachedBy = edge;
+                if(next == target){
+                    return true;
+                }
+                stack.push(next);
+            }
+        }
+        return false;
+    }
+
+    //Iterative DFS over the incoming edges, skipping the additions, which
+    //have no source device, and the moves from other shards, which are not
+    //a part of this graph.
+    private void searchBackward(DeviceDataWrapper start, int lowerBound){
+        start.visitMark = visitMark;
+        stack.clear();
+        stack.push(start);
+        while(!stack.isEmpty()){
+            DeviceDataWrapper device = stack.pop();
+            backwardDevices.add(device);
+            for(TransferDataWrapper edge = device.firstWaitingTransfer;
+                edge != null; edge = edge.nextWaiting){
+                DeviceDataWrapper previous = edge.source;
+                if(previous == null || edge.bCrossShard ||
+                        previous.visitMark == visitMark ||
+                        previous.topologicalOrder < lowerBound){
+                    continue;
+                }
+                previous.visitMark = visitMark;
+                stack.push(previous);
+            }
+        }
+    }
+
+    //Gives the devices found by both searches their old order numbers
+    //again, so that the backward ones come before the forward ones, and both
+    //groups keep their relative order.
+    private void reorder(){
+        backwardDevices.sort(BY_ORDER);
+        forwardDevices.sort(BY_ORDER);
+        int count = backwardDevices.size() + forwardDevices.size();
+        if(freedOrders.length < count){
+            freedOrders = new int[Math.max(count, 2 * freedOrders.length)];
+        }
+        int i = 0;
+        for(DeviceDataWrapper device : backwardDevices){
+            freedOrders[i++] = device.topologicalOrder;
+        }
+        for(DeviceDataWrapper device : forwardDevices){
+            freedOrders[i++] = device.topologicalOrder;
+        }
+        Arrays.sort(freedOrders, 0, count);
+        i = 0;
+        for(DeviceDataWrapper device : backwardDevices){
+            device.topologicalOrder = freedOrders[i++];
+        }
+        for(DeviceDataWrapper device : forwardDevices){
+            device.topologicalOrder = freedOrders[i++];
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package cp2023.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Takes a snapshot while a transfer is in its perform(), so that
+//the snapshot holds the new transfers back until it finishes, and checks
+//that executeAsync() and executeAll() return right away in the meantime,
+//and that their transfers complete once the snapshot is written.
+//Usage: AsyncGateTest
+public final class AsyncGateTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    //Longest time a call that must not block may take.
+    private static final long NON_BLOCKING_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("async-gate-test", ".snapshot");
+        try {
+            run(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("AsyncGateTest passed");
+    }
+
+    private static void run(Path file) throws Exception {
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        devices.put(new DeviceId(0), 4);
+        devices.put(new DeviceId(1), 5);
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < 4; ++i){
+            components.put(new ComponentId(i), new DeviceId(0));
+        }
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components);
+
+        GatedTransfer gated = new GatedTransfer(0, 0, 1);
+        CompletableFuture<Void> held = system.executeAsync(gated);
+        check(gated.awaitPerforming(TIMEOUT_SECONDS),
+                "Transfer did not start performing");
+        CompletableFuture<Void> snapshot = CompletableFuture.runAsync(() -> {
+            try {
+                StorageSystemFactory.snapshot(system, file);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        awaitClosedGate(system);
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> async = system.executeAsync(
+                new TestTransfer(2, 0, 1));
+        List<CompletableFuture<Void>> batch = system.executeAll(List.of(
+                new TestTransfer(3, 0, 1), new TestTransfer(4, -1, 1)));
+        check(System.nanoTime() - start <
+                TimeUnit.MILLISECONDS.toNanos(NON_BLOCKING_MILLIS),
+                "Asynchronous transfers blocked at the closed gate");
+        check(!async.isDone() && !batch.get(0).isDone() &&
+                !batch.get(1).isDone(),
+                "Asynchronous transfers went through the closed gate");
+
+        gated.open();
+        held.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        snapshot.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        async.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for(CompletableFuture<Void> result : batch){
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        for(int comp : new int[]{0, 2, 3, 4}){
+            check(new DeviceId(1).equals(system.locate(new ComponentId(comp))),
+                    "Component " + comp + " is not in device 1");
+        }
+        //The snapshot waits for the held transfer, but none of the later
+        //ones starts before it is written.
+        ExtendedStorageSystem loaded = StorageSystemFactory.loadSnapshot(file);
+        check(new DeviceId(1).equals(loaded.locate(new ComponentId(0))) &&
+                new DeviceId(0).equals(loaded.locate(new ComponentId(2))) &&
+                new DeviceId(0).equals(loaded.locate(new ComponentId(3))) &&
+                loaded.locate(new ComponentId(4)) == null,
+                "Snapshot is not the placement of the closed gate");
+    }
+
+    //Waits until the snapshot closes the gate, which a transfer of
+    //component 1 back and forth between the devices sees as a timeout.
+    private static void awaitClosedGate(ExtendedStorageSystem system)
+            throws InterruptedException {
+        long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        int device = 0;
+        while(true){
+            TransferStatus status = system.tryExecute(
+                    new TestTransfer(1, device, 1 - device),
+                    Duration.ofMillis(1));
+            if(status == TransferStatus.TRANSFER_TIMED_OUT){
+                break;
+            }
+            check(status == TransferStatus.OK, "Transfer ended with " +
+                    status);
+            device = 1 - device;
+            check(System.nanoTime() < deadline, "Snapshot did not start");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package cp2023.tests;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.StorageSystemClass;
+import cp2023.solution.StorageSystemFactory;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Rotates the components of full devices with one executeAll() batch, whose
+//transfers form a cycle of two and a cycle of three among themselves, and
+//one more cycle with a transfer that was already waiting, both in a plain
+//system and in a sharded one. Checks that every cycle is resolved, and
+//that a transfer which has to wait for a move of the batch out of its
+//destination device gets its slot from it instead of waiting.
+//Usage: BatchCycleTest
+public final class BatchCycleTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int DEVICES = 8;
+
+    public static void main(String[] args) throws Exception {
+        for(int shards = 1; shards <= 2; ++shards){
+            cycles(shards);
+            chain(shards);
+        }
+        System.out.println("BatchCycleTest passed");
+    }
+
+    private static void cycles(int shards) throws Exception {
+        StorageSystemClass system = newSystem(shards);
+        //Waits for the slot of device 6, which the batch frees.
+        CompletableFuture<Void> waiting = system.executeAsync(
+                new TestTransfer(5, 5, 6));
+        Thread.sleep(100);
+        check(!waiting.isDone(), "Transfer into a full device did not wait");
+
+        List<CompletableFuture<Void>> batch = system.executeAll(List.of(
+                new TestTransfer(0, 0, 1), new TestTransfer(2, 2, 3),
+                new TestTransfer(3, 3, 4), new TestTransfer(6, 6, 5),
+                new TestTransfer(1, 1, 0), new TestTransfer(4, 4, 2)));
+        waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for(CompletableFuture<Void> result : batch){
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        int[] placement = {1, 0, 3, 4, 2, 6, 5, 7};
+        for(int i = 0; i < placement.length; ++i){
+            checkPlacement(system, i, placement[i]);
+        }
+        check(system.getStats().getCycles() == 3, "Resolved " +
+                system.getStats().getCycles() + " cycles instead of 3");
+    }
+
+    //Moves the components along a chain ending in a free slot, listed from
+    //its full end, so that every transfer of the batch but the last one
+    //finds its destination device full when it is planned.
+    private static void chain(int shards) throws Exception {
+        StorageSystemClass system = newSystem(shards);
+        check(system.tryExecute(new TestTransfer(7, 7, -1)) ==
+                TransferStatus.OK, "Deletion failed");
+        List<CompletableFuture<Void>> batch = system.executeAll(List.of(
+                new TestTransfer(0, 0, 1), new TestTransfer(1, 1, 2),
+                new TestTransfer(2, 2, 7)));
+        for(CompletableFuture<Void> result : batch){
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        checkPlacement(system, 0, 1);
+        checkPlacement(system, 1, 2);
+        checkPlacement(system, 2, 7);
+        check(system.getStats().getCycles() == 0, "Chain resolved as a cycle");
+    }
+
+    //Every device has one slot, taken by the component of its number.
+    private static StorageSystemClass newSystem(int shards){
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < DEVICES; ++i){
+            devices.put(new DeviceId(i), 1);
+            components.put(new ComponentId(i), new DeviceId(i));
+        }
+        return (StorageSystemClass) (shards > 1 ?
+                StorageSystemFactory.newShardedSystem(devices, components,
+                        shards) :
+                StorageSystemFactory.newSystem(devices, components));
+    }
+
+    private static void checkPlacement(StorageSystemClass system, int comp,
+                                       int device){
+        check(new DeviceId(device).equals(system.locate(new ComponentId(comp))),
+                "Component " + comp + " is not in device " + device);
+    }
+}
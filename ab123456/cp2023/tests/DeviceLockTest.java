@@ -0,0 +1,178 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferScheduler;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Holds the locks of two devices by a transfer whose ranking by
+//the scheduler is blocked, and checks that a transfer between two other
+//devices still completes, while the one into a locked device waits until
+//the locks are released. Then moves components between the same devices
+//in both directions from many threads, which deadlocks unless every
+//transfer locks its devices in one order.
+//Usage: DeviceLockTest
+public final class DeviceLockTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int THREADS = 8;
+    private static final int DEVICES = 4;
+    private static final int MOVES = 20000;
+
+    //Daemon threads, so that the test exits when the transfers deadlock.
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public static void main(String[] args) throws Exception {
+        try {
+            disjointDevices();
+            opposingMoves();
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("DeviceLockTest passed");
+    }
+
+    private static void disjointDevices() throws Exception {
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        devices.put(new DeviceId(0), 2);
+        devices.put(new DeviceId(1), 1);
+        devices.put(new DeviceId(2), 1);
+        devices.put(new DeviceId(3), 2);
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        components.put(new ComponentId(0), new DeviceId(0));
+        components.put(new ComponentId(1), new DeviceId(1));
+        components.put(new ComponentId(2), new DeviceId(2));
+        BlockingScheduler scheduler = new BlockingScheduler(
+                new ComponentId(0));
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components, executor, scheduler);
+
+        //Device 1 is full, so the transfer waits, and is ranked with
+        //the locks of devices 0 and 1 held.
+        Future<TransferStatus> blocked = executor.submit(
+                () -> system.tryExecute(new TestTransfer(0, 0, 1)));
+        check(scheduler.entered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                "Transfer did not start waiting");
+
+        Future<TransferStatus> disjoint = executor.submit(
+                () -> system.tryExecute(new TestTransfer(2, 2, 3)));
+        try {
+            check(disjoint.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                    TransferStatus.OK, "Transfer between free devices failed");
+        } catch (TimeoutException e) {
+            throw new AssertionError("Transfer between other devices waited " +
+                    "for the locks of devices 0 and 1");
+        }
+
+        //Device 0 has a free slot, so only its lock can hold the addition.
+        Future<TransferStatus> locked = executor.submit(
+                () -> system.tryExecute(new TestTransfer(5, -1, 0)));
+        Thread.sleep(100);
+        check(!locked.isDone(), "Addition did not wait for the lock of " +
+                "device 0");
+        scheduler.open();
+        check(locked.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Addition to device 0 failed");
+
+        check(system.tryExecute(new TestTransfer(1, 1, 3)) ==
+                TransferStatus.OK, "Transfer freeing device 1 failed");
+        check(blocked.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Blocked transfer failed");
+    }
+
+    //Every thread moves its own component between random devices, which
+    //always have a free slot, so the transfers only take the locks of
+    //the devices, and pairs of them often take the same two in opposite
+    //directions.
+    private static void opposingMoves() throws Exception {
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        for(int i = 0; i < DEVICES; ++i){
+            devices.put(new DeviceId(i), THREADS);
+        }
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < THREADS; ++i){
+            components.put(new ComponentId(i), new DeviceId(i % DEVICES));
+        }
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components);
+
+        ArrayList<Future<?>> threads = new ArrayList<>();
+        for(int i = 0; i < THREADS; ++i){
+            int comp = i;
+            threads.add(executor.submit(() -> {
+                Random random = new Random(comp);
+                int device = comp % DEVICES;
+                for(int j = 0; j < MOVES; ++j){
+                    int next = (device + 1 + random.nextInt(DEVICES - 1)) %
+                            DEVICES;
+                    check(system.tryExecute(new TestTransfer(comp, device,
+                            next)) == TransferStatus.OK, "Move failed");
+                    device = next;
+                }
+                return null;
+            }));
+        }
+        long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS * 3);
+        for(Future<?> thread : threads){
+            try {
+                thread.get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                throw new AssertionError("Moves between the same devices " +
+                        "deadlocked");
+            }
+        }
+        int total = 0;
+        for(int i = 0; i < DEVICES; ++i){
+            total += system.listComponents(new DeviceId(i)).size();
+        }
+        check(total == THREADS, total + " components instead of " + THREADS);
+    }
+
+    //Ranks every transfer as the FIFO one does, but blocks the ranking of
+    //the transfer of the given component until opened.
+    private static final class BlockingScheduler
+            implements TransferScheduler {
+        private final ComponentId blocked;
+        final CountDownLatch entered = new CountDownLatch(1);
+        private final CompletableFuture<Void> gate = new CompletableFuture<>();
+
+        BlockingScheduler(ComponentId blocked) {
+            this.blocked = blocked;
+        }
+
+        void open() {
+            gate.complete(null);
+        }
+
+        @Override
+        public long rank(ComponentTransfer transfer, long waitStartNanos) {
+            if(transfer.getComponentId().equals(blocked)){
+                entered.countDown();
+                gate.join();
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cp2023.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+//Transfer addressed by the plain ids like TestTransfer, whose perform()
+//waits until the gate is opened.
+final class GatedTransfer implements ComponentTransfer {
+    private final ComponentTransfer transfer;
+    private final CountDownLatch performing = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    GatedTransfer(int compId, int srcDevId, int dstDevId) {
+        this.transfer = new TestTransfer(compId, srcDevId, dstDevId);
+    }
+
+    void open() {
+        gate.countDown();
+    }
+
+    //Waits until perform() is called, at most for the given number
+    //of seconds, and returns whether it was.
+    boolean awaitPerforming(long seconds) throws InterruptedException {
+        return performing.await(seconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return transfer.getComponentId();
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return transfer.getSourceDeviceId();
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return transfer.getDestinationDeviceId();
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void perform() {
+        performing.countDown();
+        try {
+            gate.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package cp2023.tests;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.TransferStatus;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageSystemClass;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemStats;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Puts group transfers into cycles with single transfers and with other
+//groups, while all the devices of the cycles are full, both in a plain
+//system and in a sharded one, where every cycle goes through two shards.
+//Checks that a cycle in which every group gets its slots from the transfer
+//leaving its destination device, or from the free slots the group closing
+//the cycle finds there, is resolved, whichever transfer closes it, that in
+//any other cycle the group is rejected instead of waiting forever, and that
+//a single transfer never overtakes a waiting group.
+//Usage: GroupCycleTest
+public final class GroupCycleTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final Duration TIMEOUT = Duration.ofSeconds(TIMEOUT_SECONDS);
+
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for(int shards = 1; shards <= 2; ++shards){
+                groupAndSingle(shards);
+                twoGroups(shards);
+                parkedGroupInUnequalCycle(shards);
+                groupClosingUnequalCycle(shards);
+                singleBehindGroup(shards);
+                groupTakingFreeSlotInCycle(shards);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("GroupCycleTest passed");
+    }
+
+    //Swaps the components of two full devices with a group of one component
+    //and a single transfer, first closing the cycle with the single one,
+    //then with the group.
+    private static void groupAndSingle(int shards) throws Exception {
+        StorageSystemClass system = newSystem(shards, new int[]{1, 1},
+                new int[]{0, 1});
+        CompletableFuture<TransferStatus> group = executeAsync(system,
+                new TestGroup(List.of(0), 0, 1));
+        awaitWaiting(system, 1, 1);
+        check(system.tryExecute(new TestTransfer(1, 1, 0), TIMEOUT) ==
+                TransferStatus.OK, "Single transfer closing the cycle failed");
+        check(group.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Group in the cycle failed");
+
+        CompletableFuture<TransferStatus> single = executeAsync(system,
+                new TestTransfer(1, 0, 1));
+        awaitWaiting(system, 1, 1);
+        check(system.tryExecute(new TestGroup(List.of(0), 1, 0), TIMEOUT) ==
+                TransferStatus.OK, "Group closing the cycle failed");
+        check(single.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Single transfer in the cycle failed");
+        checkPlacement(system, new int[]{0, 1});
+    }
+
+    //Swaps the components of two full devices with two groups of the same
+    //size.
+    private static void twoGroups(int shards) throws Exception {
+        StorageSystemClass system = newSystem(shards, new int[]{2, 2},
+                new int[]{0, 0, 1, 1});
+        CompletableFuture<TransferStatus> group = executeAsync(system,
+                new TestGroup(List.of(0, 1), 0, 1));
+        awaitWaiting(system, 1, 1);
+        check(system.tryExecute(new TestGroup(List.of(2, 3), 1, 0),
+                TIMEOUT) == TransferStatus.OK,
+                "Group closing the cycle failed");
+        check(group.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Group in the cycle failed");
+        checkPlacement(system, new int[]{1, 1, 0, 0});
+    }
+
+    //Closes the cycle of a waiting group of two components with a single
+    //transfer, which can't be resolved, so the group is rejected, and
+    //the single transfer waits until another one closes a cycle with it.
+    private static void parkedGroupInUnequalCycle(int shards)
+            throws Exception {
+        StorageSystemClass system = newSystem(shards, new int[]{2, 2},
+                new int[]{0, 0, 1, 1});
+        CompletableFuture<TransferStatus> group = executeAsync(system,
+                new TestGroup(List.of(0, 1), 0, 1));
+        awaitWaiting(system, 1, 1);
+        CompletableFuture<TransferStatus> single = executeAsync(system,
+                new TestTransfer(2, 1, 0));
+        check(group.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.UNRESOLVABLE_CYCLE,
+                "Group in the unresolvable cycle was not rejected");
+        awaitWaiting(system, 0, 1);
+        check(!single.isDone(), "Single transfer got a slot of a full device");
+        check(system.tryExecute(new TestTransfer(0, 0, 1), TIMEOUT) ==
+                TransferStatus.OK, "Single transfer closing the cycle failed");
+        check(single.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Single transfer in the cycle failed");
+        checkPlacement(system, new int[]{1, 0, 0, 1});
+    }
+
+    //Closes the cycle of a waiting single transfer with a group of two
+    //components, which is rejected right away.
+    private static void groupClosingUnequalCycle(int shards)
+            throws Exception {
+        StorageSystemClass system = newSystem(shards, new int[]{2, 2},
+                new int[]{0, 0, 1, 1});
+        CompletableFuture<TransferStatus> single = executeAsync(system,
+                new TestTransfer(2, 1, 0));
+        awaitWaiting(system, 0, 1);
+        check(system.tryExecute(new TestGroup(List.of(0, 1), 0, 1),
+                TIMEOUT) == TransferStatus.UNRESOLVABLE_CYCLE,
+                "Group closing the unresolvable cycle was not rejected");
+        check(system.tryExecute(new TestTransfer(0, 0, 1), TIMEOUT) ==
+                TransferStatus.OK, "Single transfer closing the cycle failed");
+        check(single.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Single transfer in the cycle failed");
+        checkPlacement(system, new int[]{1, 0, 0, 1});
+    }
+
+    //Closes the cycle of a waiting single transfer with a group of two
+    //components, which takes the slot of the single one and the free slot
+    //of its destination device, and leaves one of its slots free.
+    private static void groupTakingFreeSlotInCycle(int shards)
+            throws Exception {
+        StorageSystemClass system = newSystem(shards, new int[]{3, 2},
+                new int[]{0, 0, 1, 1});
+        CompletableFuture<TransferStatus> single = executeAsync(system,
+                new TestTransfer(0, 0, 1));
+        awaitWaiting(system, 1, 1);
+        check(system.tryExecute(new TestGroup(List.of(2, 3), 1, 0),
+                TIMEOUT) == TransferStatus.OK,
+                "Group closing the cycle failed");
+        check(single.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Single transfer in the cycle failed");
+        checkPlacement(system, new int[]{1, 0, 0, 0});
+        check(system.occupancy(new DeviceId(1)) == 1,
+                "Slot left by the group is not free");
+    }
+
+    //Frees one slot of the device a group of two components waits for, and
+    //checks that the addition that starts waiting after the group does not
+    //take it, but waits until the group gets its slots.
+    private static void singleBehindGroup(int shards) throws Exception {
+        StorageSystemClass system = newSystem(shards, new int[]{2, 2, 4},
+                new int[]{0, 0, 1, 1});
+        CompletableFuture<TransferStatus> group = executeAsync(system,
+                new TestGroup(List.of(0, 1), 0, 1));
+        awaitWaiting(system, 1, 1);
+        check(system.tryExecute(new TestTransfer(2, 1, 2), TIMEOUT) ==
+                TransferStatus.OK, "Transfer freeing a slot failed");
+        CompletableFuture<TransferStatus> single = executeAsync(system,
+                new TestTransfer(4, -1, 1));
+        awaitWaiting(system, 1, 2);
+        check(system.tryExecute(new TestTransfer(3, 1, 2), TIMEOUT) ==
+                TransferStatus.OK, "Transfer freeing a slot failed");
+        check(group.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Group failed");
+        check(!single.isDone(), "Single transfer overtook the group");
+        check(system.tryExecute(new TestTransfer(0, 1, 2), TIMEOUT) ==
+                TransferStatus.OK, "Transfer freeing a slot failed");
+        check(single.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Single transfer failed");
+        checkPlacement(system, new int[]{2, 1, 2, 2, 1});
+    }
+
+    //Creates a system with the given numbers of slots of the devices
+    //and the given devices of the components, in the given number
+    //of shards, which puts every device in a different shard than
+    //the previous one.
+    private static StorageSystemClass newSystem(int shards, int[] slots,
+                                                int[] placement){
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        for(int i = 0; i < slots.length; ++i){
+            devices.put(new DeviceId(i), slots[i]);
+        }
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < placement.length; ++i){
+            components.put(new ComponentId(i), new DeviceId(placement[i]));
+        }
+        return (StorageSystemClass) (shards > 1 ?
+                StorageSystemFactory.newShardedSystem(devices, components,
+                        shards) :
+                StorageSystemFactory.newSystem(devices, components));
+    }
+
+    private static CompletableFuture<TransferStatus> executeAsync(
+            StorageSystemClass system, TestGroup group){
+        return CompletableFuture.supplyAsync(
+                () -> system.tryExecute(group, TIMEOUT), executor);
+    }
+
+    private static CompletableFuture<TransferStatus> executeAsync(
+            StorageSystemClass system, TestTransfer transfer){
+        return CompletableFuture.supplyAsync(
+                () -> system.tryExecute(transfer, TIMEOUT), executor);
+    }
+
+    //Waits until the given number of transfers waits for the given device.
+    private static void awaitWaiting(StorageSystemClass system, int device,
+                                     int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while(true){
+            for(StorageSystemStats.DeviceStats stats :
+                    system.getStats().getDevices()){
+                if(stats.getDeviceId() == device &&
+                        stats.getWaitingTransfers() == count){
+                    return;
+                }
+            }
+            check(System.nanoTime() < deadline, count +
+                    " transfers did not start waiting for device " + device);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void checkPlacement(StorageSystemClass system,
+                                       int[] placement){
+        for(int i = 0; i < placement.length; ++i){
+            DeviceId device = system.locate(new ComponentId(i));
+            check(device != null && Ids.of(device) == placement[i],
+                    "Component " + i + " is in " + device + " instead of " +
+                    placement[i]);
+        }
+    }
+
+    //Group transfer with empty prepare() and perform(), addressed by
+    //the plain ids.
+    private static final class TestGroup implements GroupTransfer {
+        private final List<ComponentId> compIds;
+        private final DeviceId srcDevId;
+        private final DeviceId dstDevId;
+
+        TestGroup(List<Integer> compIds, int srcDevId, int dstDevId) {
+            this.compIds = compIds.stream().map(ComponentId::new).toList();
+            this.srcDevId = new DeviceId(srcDevId);
+            this.dstDevId = new DeviceId(dstDevId);
+        }
+
+        @Override
+        public List<ComponentId> getComponentIds() {
+            return this.compIds;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return this.srcDevId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return this.dstDevId;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
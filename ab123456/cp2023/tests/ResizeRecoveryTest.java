@@ -0,0 +1,109 @@
+package cp2023.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageSystemFactory;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Grows a full device of a durable system while transfers wait for it,
+//so that they are placed into the new slots, and checks that the system
+//recovered from every prefix of the journal is valid, as it would be after
+//a crash at any moment, and that the whole journal recovers the final
+//placement.
+//Usage: ResizeRecoveryTest
+public final class ResizeRecoveryTest {
+    private static final int RECORD_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("resize-recovery");
+        try {
+            run(dir);
+        } finally {
+            try(Stream<Path> files = Files.list(dir)){
+                for(Path file : (Iterable<Path>) files::iterator){
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+        System.out.println("ResizeRecoveryTest passed");
+    }
+
+    private static void run(Path dir) throws Exception {
+        Path journal = dir.resolve("journal");
+        HashMap<DeviceId, Integer> slots = new HashMap<>();
+        slots.put(new DeviceId(0), 1);
+        slots.put(new DeviceId(1), 2);
+        HashMap<ComponentId, DeviceId> placement = new HashMap<>();
+        placement.put(new ComponentId(0), new DeviceId(0));
+        placement.put(new ComponentId(1), new DeviceId(1));
+        placement.put(new ComponentId(2), new DeviceId(1));
+
+        ExtendedStorageSystem system = StorageSystemFactory.newDurableSystem(
+                slots, placement, journal);
+        //Both wait, as device 0 is full, and get the slots it gains.
+        List<CompletableFuture<Void>> waiting = List.of(
+                system.executeAsync(new TestTransfer(1, 1, 0)),
+                system.executeAsync(new TestTransfer(3, -1, 0)));
+        system.resizeDevice(new DeviceId(0), 3).join();
+        CompletableFuture.allOf(waiting.toArray(new CompletableFuture<?>[0]))
+                .join();
+        system.close();
+
+        byte[] records = readRecords(journal);
+        int count = records.length / RECORD_SIZE;
+        for(int i = 1; i <= count; ++i){
+            Path prefix = dir.resolve("prefix-" + i);
+            Files.write(prefix, Arrays.copyOf(records, i * RECORD_SIZE));
+            try {
+                StorageSystemFactory.recover(prefix).close();
+            } catch (IllegalArgumentException e) {
+                throw new AssertionError("Cannot recover the first " + i +
+                        " of " + count + " records", e);
+            }
+        }
+
+        ExtendedStorageSystem recovered = StorageSystemFactory.recover(journal);
+        Map<Integer, Integer> expected = Map.of(0, 0, 1, 0, 2, 1, 3, 0);
+        for(Map.Entry<Integer, Integer> entry : expected.entrySet()){
+            DeviceId device = recovered.locate(
+                    new ComponentId(entry.getKey()));
+            check(device != null && Ids.of(device) == entry.getValue(),
+                    "Component " + entry.getKey() + " recovered in " + device);
+        }
+        check(recovered.occupancy(new DeviceId(0)) == 3,
+                "Device 0 has " + recovered.occupancy(new DeviceId(0)) +
+                " components");
+        recovered.close();
+    }
+
+    //Returns the records written to the journal, which end where the first
+    //unused, zeroed record starts.
+    private static byte[] readRecords(Path journal) throws IOException {
+        byte[] content;
+        try(InputStream in = Files.newInputStream(journal)){
+            content = in.readNBytes(1 << 16);
+        }
+        int end = 0;
+        while(end + RECORD_SIZE <= content.length &&
+                (content[end] != 0 || content[end + 1] != 0 ||
+                        content[end + 2] != 0 || content[end + 3] != 0)){
+            end += RECORD_SIZE;
+        }
+        return Arrays.copyOf(content, end);
+    }
+}
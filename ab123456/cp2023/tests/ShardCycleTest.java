@@ -0,0 +1,140 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.Ids;
+import cp2023.solution.StorageSystemClass;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemStats;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Rotates the components of four full devices in two shards, devices 0 and 1
+//in the first one, and 2 and 3 in the second, so that the cycle goes
+//through both shards, twice over moves within a shard and twice over moves
+//between them. Every move of the cycle closes it once. Then closes a cycle
+//within the second shard while a move between the shards waits, which
+//has to be resolved by the graph of that shard alone.
+//Usage: ShardCycleTest
+public final class ShardCycleTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int DEVICES = 4;
+
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            for(int closing = 0; closing < DEVICES; ++closing){
+                crossShardCycle(closing);
+            }
+            localCycle();
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("ShardCycleTest passed");
+    }
+
+    //Moves every component to the next device, starting the move from
+    //the given device last.
+    private static void crossShardCycle(int closing) throws Exception {
+        StorageSystemClass system = newSystem();
+        ArrayList<CompletableFuture<TransferStatus>> results =
+                new ArrayList<>();
+        for(int i = 1; i < DEVICES; ++i){
+            int device = (closing + i) % DEVICES;
+            results.add(execute(system, device, device, next(device)));
+            awaitWaiting(system, i);
+        }
+        results.add(execute(system, closing, closing, next(closing)));
+        for(CompletableFuture<TransferStatus> result : results){
+            check(result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                    TransferStatus.OK, "Transfer of the cycle failed");
+        }
+        for(int comp = 0; comp < DEVICES; ++comp){
+            checkPlacement(system, comp, next(comp));
+        }
+        check(system.getStats().getCycles() == 1, "Resolved " +
+                system.getStats().getCycles() + " cycles instead of 1");
+    }
+
+    private static void localCycle() throws Exception {
+        StorageSystemClass system = newSystem();
+        //Waits between the shards until the end.
+        CompletableFuture<TransferStatus> crossing = execute(system, 1, 1, 2);
+        awaitWaiting(system, 1);
+        CompletableFuture<TransferStatus> local = execute(system, 2, 2, 3);
+        awaitWaiting(system, 2);
+        check(system.tryExecute(new TestTransfer(3, 3, 2)) ==
+                TransferStatus.OK, "Transfer closing the cycle failed");
+        check(local.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Transfer of the cycle failed");
+        checkPlacement(system, 2, 3);
+        checkPlacement(system, 3, 2);
+        check(!crossing.isDone(), "Transfer into a full device finished");
+
+        //Frees its slot in the end.
+        check(system.tryExecute(new TestTransfer(3, 2, -1)) ==
+                TransferStatus.OK, "Deletion failed");
+        check(crossing.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Transfer between the shards failed");
+        checkPlacement(system, 1, 2);
+    }
+
+    private static int next(int device){
+        return (device + 1) % DEVICES;
+    }
+
+    //Every device has one slot, taken by the component of its number.
+    private static StorageSystemClass newSystem(){
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < DEVICES; ++i){
+            devices.put(new DeviceId(i), 1);
+            components.put(new ComponentId(i), new DeviceId(i));
+        }
+        return (StorageSystemClass) StorageSystemFactory.newShardedSystem(
+                devices, components, 2, device -> Ids.of(device) / 2,
+                executor);
+    }
+
+    private static CompletableFuture<TransferStatus> execute(
+            StorageSystemClass system, int comp, int src, int dst){
+        return CompletableFuture.supplyAsync(
+                () -> system.tryExecute(new TestTransfer(comp, src, dst)),
+                executor);
+    }
+
+    //Waits until the given number of transfers wait in the whole system.
+    private static void awaitWaiting(StorageSystemClass system, int count)
+            throws InterruptedException {
+        long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while(true){
+            int waiting = 0;
+            for(StorageSystemStats.DeviceStats device :
+                    system.getStats().getDevices()){
+                waiting += device.getWaitingTransfers();
+            }
+            if(waiting >= count){
+                return;
+            }
+            check(System.nanoTime() < deadline, "Transfer did not wait");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void checkPlacement(StorageSystemClass system, int comp,
+                                       int device){
+        check(new DeviceId(device).equals(system.locate(new ComponentId(comp))),
+                "Component " + comp + " is not in device " + device);
+    }
+}
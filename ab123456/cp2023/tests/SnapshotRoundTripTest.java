@@ -0,0 +1,107 @@
+package cp2023.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Takes a snapshot while a move holds the memory slot it reserved in its
+//destination device, which its component has not entered yet, and another
+//move waits for a slot in the same device. Checks that the snapshot waits
+//for the first move, and that the loaded system has every component in
+//the device it ended in, no other component, and as many free slots in
+//every device as the original one.
+//Usage: SnapshotRoundTripTest
+public final class SnapshotRoundTripTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final Duration SHORT_TIMEOUT = Duration.ofMillis(100);
+
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("snapshot-round-trip-test",
+                ".snapshot");
+        try {
+            run(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("SnapshotRoundTripTest passed");
+    }
+
+    private static void run(Path file) throws Exception {
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        devices.put(new DeviceId(0), 3);
+        devices.put(new DeviceId(1), 2);
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        components.put(new ComponentId(1), new DeviceId(0));
+        components.put(new ComponentId(2), new DeviceId(0));
+        components.put(new ComponentId(3), new DeviceId(1));
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components);
+
+        //Takes the last free slot of device 1, so the next move waits.
+        GatedTransfer gated = new GatedTransfer(1, 0, 1);
+        CompletableFuture<Void> held = system.executeAsync(gated);
+        check(gated.awaitPerforming(TIMEOUT_SECONDS),
+                "Transfer did not start performing");
+        CompletableFuture<Void> waiting = system.executeAsync(
+                new TestTransfer(2, 0, 1));
+        CompletableFuture<Void> snapshot = CompletableFuture.runAsync(() -> {
+            try {
+                StorageSystemFactory.snapshot(system, file);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        check(!snapshot.isDone(), "Snapshot did not wait for the transfer");
+        check(!waiting.isDone(), "Transfer into a full device did not wait");
+
+        gated.open();
+        held.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        snapshot.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        ExtendedStorageSystem loaded = StorageSystemFactory.loadSnapshot(file);
+        checkPlacement(loaded, 1, 1);
+        checkPlacement(loaded, 2, 0);
+        checkPlacement(loaded, 3, 1);
+        check(loaded.locate(new ComponentId(0)) == null,
+                "Loaded system has a component that was never added");
+        check(loaded.listComponents(new DeviceId(0)).size() == 1 &&
+                loaded.listComponents(new DeviceId(1)).size() == 2,
+                "Loaded system has other components in its devices");
+
+        //Device 1 is full, and device 0 has two free slots.
+        check(loaded.tryExecute(new TestTransfer(2, 0, 1), SHORT_TIMEOUT) ==
+                TransferStatus.TRANSFER_TIMED_OUT,
+                "Transfer into the full device did not wait");
+        for(int comp = 4; comp <= 5; ++comp){
+            check(loaded.tryExecute(new TestTransfer(comp, -1, 0)) ==
+                    TransferStatus.OK, "Addition to a free slot failed");
+        }
+        check(loaded.tryExecute(new TestTransfer(6, -1, 0), SHORT_TIMEOUT) ==
+                TransferStatus.TRANSFER_TIMED_OUT,
+                "Device 0 has more slots than in the snapshot");
+
+        //The original system goes on from where the snapshot was taken.
+        check(system.tryExecute(new TestTransfer(3, 1, -1)) ==
+                TransferStatus.OK, "Deletion failed");
+        waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        checkPlacement(system, 2, 1);
+    }
+
+    private static void checkPlacement(ExtendedStorageSystem system, int comp,
+                                       int device){
+        check(new DeviceId(device).equals(system.locate(new ComponentId(comp))),
+                "Component " + comp + " is not in device " + device);
+    }
+}
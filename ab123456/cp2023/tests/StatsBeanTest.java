@@ -0,0 +1,146 @@
+package cp2023.tests;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Registers the StorageSystemStatsMXBean of a system in the platform MBean
+//server, runs a cycle of three transfers, an addition to a free slot and
+//a transfer that times out, and checks the counters read over JMX.
+//Usage: StatsBeanTest
+public final class StatsBeanTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static final ExecutorService executor =
+            Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("cp2023.tests:type=StatsBeanTest");
+        try {
+            run(server, name);
+        } finally {
+            executor.shutdownNow();
+            if(server.isRegistered(name)){
+                server.unregisterMBean(name);
+            }
+        }
+        System.out.println("StatsBeanTest passed");
+    }
+
+    private static void run(MBeanServer server, ObjectName name)
+            throws Exception {
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < 3; ++i){
+            devices.put(new DeviceId(i), 1);
+            components.put(new ComponentId(i), new DeviceId(i));
+        }
+        devices.put(new DeviceId(3), 2);
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components);
+        StorageSystemFactory.registerStatsMBean(system, name);
+
+        //Every device of the cycle is full, so the first two transfers wait
+        //until the third one closes it.
+        CompletableFuture<TransferStatus> first = executeAsync(system,
+                new TestTransfer(0, 0, 1));
+        awaitWaiting(server, name, 1);
+        CompletableFuture<TransferStatus> second = executeAsync(system,
+                new TestTransfer(1, 1, 2));
+        awaitWaiting(server, name, 2);
+        check(system.tryExecute(new TestTransfer(2, 2, 0)) ==
+                TransferStatus.OK, "Transfer closing the cycle failed");
+        check(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "First transfer of the cycle failed");
+        check(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.OK, "Second transfer of the cycle failed");
+
+        check(system.tryExecute(new TestTransfer(7, -1, 3)) ==
+                TransferStatus.OK, "Addition to a free slot failed");
+        check(system.tryExecute(new TestTransfer(8, -1, 0),
+                Duration.ofMillis(20)) == TransferStatus.TRANSFER_TIMED_OUT,
+                "Addition to a full device did not time out");
+
+        check((Long) server.getAttribute(name, "Cycles") == 1,
+                "Cycles is not 1");
+        CompositeData lengths =
+                (CompositeData) server.getAttribute(name, "CycleLengths");
+        check((Long) lengths.get("count") == 1 &&
+                (Long) lengths.get("max") == 3, "CycleLengths is " + lengths);
+        check((Long) server.getAttribute(name, "CancelledTransfers") == 1,
+                "CancelledTransfers is not 1");
+        CompositeData slotWait =
+                (CompositeData) server.getAttribute(name, "SlotWait");
+        check((Long) slotWait.get("count") >= 2,
+                "SlotWait does not count the transfers of the cycle");
+
+        TabularData latency =
+                (TabularData) server.getAttribute(name, "TransferLatency");
+        check(countOf(latency, "CYCLE") == 3,
+                "Latency of the transfers of the cycle is not counted");
+        check(countOf(latency, "FREE") >= 1,
+                "Latency of the addition to a free slot is not counted");
+
+        CompositeData device = deviceStats(server, name, 3);
+        check((Integer) device.get("slots") == 2 &&
+                (Integer) device.get("usedSlots") == 1 &&
+                (Integer) device.get("waitingTransfers") == 0,
+                "Stats of device 3 are " + device);
+    }
+
+    private static CompletableFuture<TransferStatus> executeAsync(
+            ExtendedStorageSystem system, TestTransfer transfer){
+        return CompletableFuture.supplyAsync(
+                () -> system.tryExecute(transfer), executor);
+    }
+
+    //Waits until a transfer waits for the given device, as seen over JMX.
+    private static void awaitWaiting(MBeanServer server, ObjectName name,
+                                     int device) throws Exception {
+        long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while((Integer) deviceStats(server, name, device)
+                .get("waitingTransfers") == 0){
+            check(System.nanoTime() < deadline,
+                    "No transfer started waiting for device " + device);
+            Thread.sleep(1);
+        }
+    }
+
+    private static CompositeData deviceStats(MBeanServer server,
+                                             ObjectName name, int device)
+            throws Exception {
+        for(CompositeData stats :
+                (CompositeData[]) server.getAttribute(name, "Devices")){
+            if((Integer) stats.get("deviceId") == device){
+                return stats;
+            }
+        }
+        throw new AssertionError("No stats of device " + device);
+    }
+
+    //Returns the number of the transfers in the histogram of the given path.
+    private static long countOf(TabularData latency, String path){
+        CompositeData row = latency.get(new Object[]{path});
+        return row == null ? 0 :
+                (Long) ((CompositeData) row.get("value")).get("count");
+    }
+}
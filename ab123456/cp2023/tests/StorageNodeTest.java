@@ -0,0 +1,163 @@
+package cp2023.tests;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.StorageNode;
+import cp2023.solution.StorageSystemFactory;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Runs two nodes on localhost, node 0 with devices 1 and 3, and node 1 with
+//devices 2 and 4, every one with a single slot. Moves components between
+//them through RESERVE and COMMIT, both into a free slot and into a full
+//device, where the move waits until the slot is freed. Then swaps
+//the components of two full devices, which is a cycle through both nodes,
+//and closes one node while a move to it waits, which has to fail the move
+//and leave its component where it was, free to be deleted.
+//Usage: StorageNodeTest
+public final class StorageNodeTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        reserveAndCommit();
+        distributedCycle();
+        disconnect();
+        System.out.println("StorageNodeTest passed");
+    }
+
+    private static void reserveAndCommit() throws Exception {
+        StorageNode[] nodes = startNodes();
+        try {
+            //Device 4 is free.
+            check(nodes[0].tryExecute(new TestTransfer(10, 1, 4)) ==
+                    TransferStatus.OK, "Move into a free slot failed");
+            check(nodes[0].locate(new ComponentId(10)) == null,
+                    "Component stayed on its node");
+            checkPlacement(nodes[1], 10, 4);
+
+            //Device 1 is free now, and device 2 is full.
+            CompletableFuture<Void> waiting = nodes[0].executeAsync(
+                    new TestTransfer(30, 3, 2));
+            Thread.sleep(100);
+            check(!waiting.isDone(), "Move into a full device did not wait");
+            check(nodes[1].tryExecute(new TestTransfer(20, 2, 1)) ==
+                    TransferStatus.OK, "Move into a free slot failed");
+            waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            checkPlacement(nodes[1], 30, 2);
+            checkPlacement(nodes[0], 20, 1);
+            check(nodes[0].occupancy(new DeviceId(3)) == 0 &&
+                    nodes[1].occupancy(new DeviceId(2)) == 1,
+                    "Slots not handed over between the nodes");
+        } finally {
+            close(nodes);
+        }
+    }
+
+    private static void distributedCycle() throws Exception {
+        StorageNode[] nodes = startNodes();
+        try {
+            CompletableFuture<Void> there = nodes[0].executeAsync(
+                    new TestTransfer(10, 1, 2));
+            CompletableFuture<Void> back = nodes[1].executeAsync(
+                    new TestTransfer(20, 2, 1));
+            there.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            back.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            checkPlacement(nodes[1], 10, 2);
+            checkPlacement(nodes[0], 20, 1);
+            check(nodes[0].getRemoteCycles() + nodes[1].getRemoteCycles() == 1,
+                    "Cycle through the nodes not resolved once");
+        } finally {
+            close(nodes);
+        }
+    }
+
+    private static void disconnect() throws Exception {
+        StorageNode[] nodes = startNodes();
+        try {
+            //Device 2 is full, so the move waits for RESERVED.
+            CompletableFuture<Void> waiting = nodes[0].executeAsync(
+                    new TestTransfer(10, 1, 2));
+            Thread.sleep(100);
+            check(!waiting.isDone(), "Move into a full device did not wait");
+            nodes[1].close();
+            try {
+                waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                throw new AssertionError("Move to a closed node finished");
+            } catch (ExecutionException e) {
+                check(e.getCause() instanceof UncheckedIOException,
+                        "Move to a closed node failed with " + e.getCause());
+            }
+            //The component is released where it was.
+            checkPlacement(nodes[0], 10, 1);
+            check(nodes[0].tryExecute(new TestTransfer(10, 1, -1)) ==
+                    TransferStatus.OK, "Component of the failed move " +
+                    "is still busy");
+            check(nodes[0].locate(new ComponentId(10)) == null,
+                    "Deleted component is still placed");
+            try {
+                nodes[0].tryExecute(new TestTransfer(11, -1, 4));
+                throw new AssertionError("Addition to a closed node finished");
+            } catch (UncheckedIOException e) {
+                //The closed node can't take it.
+            }
+        } finally {
+            close(nodes);
+        }
+    }
+
+    //Starts both nodes, with component 10 in device 1, 20 in device 2,
+    //and 30 in device 3.
+    private static StorageNode[] startNodes() throws IOException {
+        List<InetSocketAddress> addresses = List.of(freeAddress(),
+                freeAddress());
+        Map<DeviceId, Integer> deviceNodes = Map.of(new DeviceId(1), 0,
+                new DeviceId(3), 0, new DeviceId(2), 1, new DeviceId(4), 1);
+        StorageNode first = StorageSystemFactory.startNode(0, addresses,
+                deviceNodes, Map.of(new DeviceId(1), 1, new DeviceId(3), 1),
+                Map.of(new ComponentId(10), new DeviceId(1),
+                        new ComponentId(30), new DeviceId(3)));
+        StorageNode second = StorageSystemFactory.startNode(1, addresses,
+                deviceNodes, Map.of(new DeviceId(2), 1, new DeviceId(4), 1),
+                Map.of(new ComponentId(20), new DeviceId(2)));
+        return new StorageNode[]{first, second};
+    }
+
+    private static InetSocketAddress freeAddress() throws IOException {
+        InetAddress localhost = InetAddress.getLoopbackAddress();
+        try (ServerSocket socket = new ServerSocket(0, 1, localhost)) {
+            return new InetSocketAddress(localhost, socket.getLocalPort());
+        }
+    }
+
+    private static void close(StorageNode[] nodes) throws IOException {
+        ArrayList<IOException> errors = new ArrayList<>();
+        for(StorageNode node : nodes){
+            try {
+                node.close();
+            } catch (IOException e) {
+                errors.add(e);
+            }
+        }
+        if(!errors.isEmpty()){
+            throw errors.get(0);
+        }
+    }
+
+    private static void checkPlacement(StorageNode node, int comp, int device){
+        check(new DeviceId(device).equals(node.locate(new ComponentId(comp))),
+                "Component " + comp + " is not in device " + device);
+    }
+}
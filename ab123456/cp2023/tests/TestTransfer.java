@@ -0,0 +1,50 @@
+package cp2023.tests;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+//Transfer with empty prepare() and perform(), addressed by the plain ids,
+//with -1 standing for no device.
+final class TestTransfer implements ComponentTransfer {
+    private final ComponentId compId;
+    private final DeviceId srcDevId;
+    private final DeviceId dstDevId;
+
+    TestTransfer(int compId, int srcDevId, int dstDevId) {
+        this.compId = new ComponentId(compId);
+        this.srcDevId = srcDevId < 0 ? null : new DeviceId(srcDevId);
+        this.dstDevId = dstDevId < 0 ? null : new DeviceId(dstDevId);
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return this.compId;
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return this.srcDevId;
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return this.dstDevId;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void perform() {
+    }
+
+    //Throws AssertionError with the given message unless the condition
+    //holds, so that the tests fail also without -ea.
+    static void check(boolean condition, String message) {
+        if(!condition){
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package cp2023.tests;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.SchedulableTransfer;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.trace.Trace;
+import cp2023.trace.TraceRecorder;
+import cp2023.trace.TraceReplayer;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Records a run with every kind of status and with changes of the devices,
+//in which a transfer started early finishes after the later ones, and
+//checks that the records are written in the order the calls started.
+//Then replays the trace against a new system, recording it again, and
+//checks that every transfer ends with the status it was recorded with, and
+//that a SchedulableTransfer is replayed with its priority and deadline.
+//Last, records many calls while an early one does not finish, and checks
+//that their records are written before it finishes, and read in order.
+//Usage: TraceReplayTest
+public final class TraceReplayTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final int PRIORITY = 3;
+    private static final long DEADLINE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    //More than the records TraceRecorder keeps waiting.
+    private static final int MANY_CALLS = 10000;
+
+    private static final int[] SLOTS = {1, 1, 1, 2};
+    //Component 3 never leaves device 2, so it is always full.
+    private static final int[] PLACEMENT = {0, 1, 3, 2};
+
+    public static void main(String[] args) throws Exception {
+        Path file = Files.createTempFile("trace-replay-test", ".trace");
+        Path replayed = Files.createTempFile("trace-replay-test", ".trace");
+        try {
+            record(file);
+            checkStartOrder(file);
+            replay(file, replayed);
+            recordMany(file);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(replayed);
+        }
+        System.out.println("TraceReplayTest passed");
+    }
+
+    private static void record(Path file) throws Exception {
+        HashMap<DeviceId, Integer> devices = newDevices();
+        HashMap<ComponentId, DeviceId> components = newComponents();
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components);
+        try (TraceRecorder recorder = new TraceRecorder(system, devices,
+                components, file)) {
+            //Waits for device 1, and finishes only after the next transfer
+            //frees it and returns.
+            GatedTransfer gated = new GatedTransfer(0, 0, 1);
+            CompletableFuture<Void> move = recorder.executeAsync(gated);
+            expect(recorder.tryExecute(new TestTransfer(1, 1, 3)),
+                    TransferStatus.OK);
+            gated.open();
+            move.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            expect(recorder.tryExecute(new TestTransfer(2, 3, 2),
+                    Duration.ofMillis(50)), TransferStatus.TRANSFER_TIMED_OUT);
+            expect(recorder.tryExecute(new TestTransfer(9, 0, 1)),
+                    TransferStatus.COMPONENT_DOES_NOT_EXIST);
+            expect(recorder.tryExecute(new TestTransfer(5, -1, 7)),
+                    TransferStatus.DEVICE_DOES_NOT_EXIST);
+            expect(recorder.tryExecute(new TestTransfer(3, -1, 2)),
+                    TransferStatus.COMPONENT_ALREADY_EXISTS);
+            expect(recorder.tryExecute(new TestTransfer(0, 1, 1)),
+                    TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER);
+            expect(recorder.tryExecute(new TestTransfer(1, 3, 0)),
+                    TransferStatus.OK);
+
+            recorder.addDevice(new DeviceId(4), 1);
+            expect(recorder.tryExecute(new TestTransfer(2, 3, 4)),
+                    TransferStatus.OK);
+            recorder.resizeDevice(new DeviceId(4), 2)
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            expect(recorder.tryExecute(new HintedTransfer(1, 0, 4,
+                    System.nanoTime() + DEADLINE_NANOS)), TransferStatus.OK);
+        }
+    }
+
+    //Records more calls than the recorder keeps waiting, while the first
+    //one waits for the last one, to free the slot it needs.
+    private static void recordMany(Path file) throws Exception {
+        HashMap<DeviceId, Integer> devices = newDevices();
+        HashMap<ComponentId, DeviceId> components = newComponents();
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(devices,
+                components);
+        try (TraceRecorder recorder = new TraceRecorder(system, devices,
+                components, file)) {
+            CompletableFuture<Void> waiting = recorder.executeAsync(
+                    new TestTransfer(0, 0, 2));
+            for(int i = 0; i < MANY_CALLS; ++i){
+                expect(recorder.tryExecute(i % 2 == 0 ?
+                        new TestTransfer(1, 1, 3) : new TestTransfer(1, 3, 1)),
+                        TransferStatus.OK);
+            }
+            check(!waiting.isDone(), "Transfer into a full device finished");
+            check(Files.readAllLines(file).size() > MANY_CALLS / 4,
+                    "Records of the finished calls wait for the first one");
+            expect(recorder.tryExecute(new TestTransfer(3, 2, -1)),
+                    TransferStatus.OK);
+            waiting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        List<Trace.Record> records = Trace.read(file).getRecords();
+        check(records.size() == MANY_CALLS + 2, "Read " + records.size() +
+                " calls instead of " + (MANY_CALLS + 2));
+        check(records.get(0).getComponentIds().get(0).equals(
+                new ComponentId(0)) && records.get(MANY_CALLS + 1)
+                .getComponentIds().get(0).equals(new ComponentId(3)),
+                "Calls are not read in the order they started");
+    }
+
+    //Checks that the start times of the calls in the file increase.
+    private static void checkStartOrder(Path file) throws Exception {
+        long previous = Long.MIN_VALUE;
+        int calls = 0;
+        for(String line : Files.readAllLines(file)){
+            String[] fields = line.split(" ");
+            if(fields[0].equals("trace") || fields[0].equals("device") ||
+                    fields[0].equals("component")){
+                continue;
+            }
+            long start = Long.parseLong(fields[1]);
+            check(start > previous, "Call started at " + start +
+                    " is written after the one started at " + previous);
+            previous = start;
+            ++calls;
+        }
+        check(calls == 12, "Recorded " + calls + " calls instead of 12");
+    }
+
+    private static void replay(Path file, Path replayed) throws Exception {
+        Trace trace = Trace.read(file);
+        Trace.Record hinted = getHinted(trace);
+        check(hinted.getDeadlineNanos() > 0 &&
+                hinted.getDeadlineNanos() <= DEADLINE_NANOS,
+                "Recorded deadline " + hinted.getDeadlineNanos() +
+                        " is not within the call");
+        ExtendedStorageSystem system = StorageSystemFactory.newSystem(
+                trace.getDeviceTotalSlots(), trace.getComponentPlacement());
+        TraceReplayer.Report report;
+        try (TraceRecorder recorder = new TraceRecorder(system,
+                trace.getDeviceTotalSlots(), trace.getComponentPlacement(),
+                replayed)) {
+            report = TraceReplayer.replay(trace, recorder,
+                    Double.POSITIVE_INFINITY,
+                    Duration.ofSeconds(TIMEOUT_SECONDS));
+        }
+        check(report.getTransfers() == 10, "Replayed " +
+                report.getTransfers() + " transfers instead of 10");
+        check(report.getMismatches().isEmpty(),
+                "Replayed statuses differ: " + report.getMismatches());
+        check(report.getDeviceChangeFailures() == 0,
+                "Replayed changes of the devices failed");
+        check(system.listComponents(new DeviceId(4)).size() == 2,
+                "Components are not in the added device");
+        //Called a moment after the replay takes its start, so its deadline
+        //is a bit shorter.
+        long deadline = getHinted(Trace.read(replayed)).getDeadlineNanos();
+        check(deadline <= hinted.getDeadlineNanos() &&
+                deadline > hinted.getDeadlineNanos() - DEADLINE_NANOS / 2,
+                "Replayed deadline " + deadline + " instead of " +
+                        hinted.getDeadlineNanos());
+    }
+
+    //Returns the record of the only SchedulableTransfer of the trace.
+    private static Trace.Record getHinted(Trace trace){
+        Trace.Record result = null;
+        for(Trace.Record record : trace.getRecords()){
+            if(record.isSchedulable()){
+                check(result == null, "Many transfers are schedulable");
+                result = record;
+            }
+        }
+        check(result != null && result.getPriority() == PRIORITY,
+                "Priority of the schedulable transfer is not recorded");
+        return result;
+    }
+
+    private static void expect(TransferStatus status,
+                               TransferStatus expected){
+        check(status == expected, "Transfer ended with " + status +
+                " instead of " + expected);
+    }
+
+    private static HashMap<DeviceId, Integer> newDevices(){
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        for(int i = 0; i < SLOTS.length; ++i){
+            devices.put(new DeviceId(i), SLOTS[i]);
+        }
+        return devices;
+    }
+
+    private static HashMap<ComponentId, DeviceId> newComponents(){
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < PLACEMENT.length; ++i){
+            components.put(new ComponentId(i), new DeviceId(PLACEMENT[i]));
+        }
+        return components;
+    }
+
+    //Transfer like TestTransfer, with PRIORITY and the given deadline.
+    private static final class HintedTransfer implements SchedulableTransfer {
+        private final ComponentTransfer transfer;
+        private final long deadlineNanos;
+
+        HintedTransfer(int compId, int srcDevId, int dstDevId,
+                       long deadlineNanos) {
+            this.transfer = new TestTransfer(compId, srcDevId, dstDevId);
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return transfer.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return transfer.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+
+        @Override
+        public int getPriority() {
+            return PRIORITY;
+        }
+
+        @Override
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package cp2023.tests;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.TransferInterrupted;
+import cp2023.solution.StorageSystemClass;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.StorageSystemStats;
+
+import static cp2023.tests.TestTransfer.check;
+
+//Gives up a move waiting for a slot in a full device, once by its timeout
+//and once by interrupting its thread, and checks that it leaves no trace:
+//its place in the queue of the device goes to the transfer behind it,
+//its edge in the wait-for graph does not close a cycle with the move in
+//the opposite direction, and its component can be moved again.
+//Usage: WaitCancelTest
+public final class WaitCancelTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final Duration SHORT_TIMEOUT = Duration.ofMillis(200);
+
+    public static void main(String[] args) throws Exception {
+        timedOut();
+        interrupted();
+        System.out.println("WaitCancelTest passed");
+    }
+
+    private static void timedOut() throws Exception {
+        StorageSystemClass system = newSystem();
+        CompletableFuture<TransferStatus> cancelled = CompletableFuture
+                .supplyAsync(() -> system.tryExecute(new TestTransfer(0, 0, 1),
+                        SHORT_TIMEOUT));
+        awaitWaiting(system, 1, 1);
+        //Waits for the same slot, behind the move that gives up.
+        CompletableFuture<Void> behind = system.executeAsync(
+                new TestTransfer(2, 2, 1));
+        awaitWaiting(system, 1, 2);
+        check(cancelled.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                TransferStatus.TRANSFER_TIMED_OUT, "Transfer did not time out");
+        check(system.getStats().getCancelledTransfers() == 1,
+                "Cancelled transfer not counted");
+        checkReleased(system, 1);
+
+        //The freed slot goes to the transfer behind, and the component of
+        //the cancelled one can take the slot that transfer left.
+        check(system.tryExecute(new TestTransfer(1, 1, -1)) ==
+                TransferStatus.OK, "Deletion failed");
+        behind.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        checkPlacement(system, 2, 1);
+        check(system.tryExecute(new TestTransfer(0, 0, 2)) ==
+                TransferStatus.OK, "Component of the cancelled transfer " +
+                "is still busy");
+    }
+
+    private static void interrupted() throws Exception {
+        StorageSystemClass system = newSystem();
+        Object[] result = new Object[2];
+        Thread thread = new Thread(() -> {
+            try {
+                system.execute(new TestTransfer(0, 0, 1));
+                result[0] = "none";
+            } catch (Exception e) {
+                result[0] = e;
+            }
+            result[1] = Thread.currentThread().isInterrupted();
+        });
+        thread.start();
+        awaitWaiting(system, 1, 1);
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        check(!thread.isAlive(), "Interrupted transfer did not return");
+        check(result[0] instanceof TransferInterrupted &&
+                new ComponentId(0).equals(
+                        ((TransferInterrupted) result[0]).getComponentId()),
+                "Interrupted transfer ended with " + result[0]);
+        check(Boolean.TRUE.equals(result[1]),
+                "Interrupted thread lost its interrupt status");
+        checkReleased(system, 0);
+
+        //The component can be moved again, in a cycle with the move that
+        //waited in vain before.
+        CompletableFuture<TransferStatus> forth = CompletableFuture
+                .supplyAsync(() -> system.tryExecute(
+                        new TestTransfer(0, 0, 1)));
+        awaitWaiting(system, 1, 1);
+        check(system.tryExecute(new TestTransfer(1, 1, 0)) ==
+                TransferStatus.OK && forth.get(TIMEOUT_SECONDS,
+                        TimeUnit.SECONDS) == TransferStatus.OK,
+                "Cycle after the interruption failed");
+        checkPlacement(system, 0, 1);
+        checkPlacement(system, 1, 0);
+    }
+
+    //Checks that the move of component 0 from device 0 to 1, which gave up,
+    //holds nothing, and that the given number of other transfers still wait
+    //for device 1.
+    private static void checkReleased(StorageSystemClass system, int waiting)
+            throws Exception {
+        StorageSystemStats.DeviceStats device = getDeviceStats(system, 1);
+        check(device.getWaitingTransfers() == waiting &&
+                device.getUsedSlots() == 1,
+                "Device 1 still holds the cancelled transfer");
+        checkPlacement(system, 0, 0);
+        checkPlacement(system, 1, 1);
+        //The edge from device 0 to 1 is gone, so this one has to wait.
+        //A cycle with the cancelled transfer would make it wait forever
+        //for component 0 to leave, despite its timeout.
+        CompletableFuture<TransferStatus> back = CompletableFuture
+                .supplyAsync(() -> system.tryExecute(
+                        new TestTransfer(1, 1, 0), SHORT_TIMEOUT));
+        try {
+            check(back.get(TIMEOUT_SECONDS, TimeUnit.SECONDS) ==
+                    TransferStatus.TRANSFER_TIMED_OUT,
+                    "Transfer closed a cycle with the cancelled one");
+        } catch (TimeoutException e) {
+            throw new AssertionError("Transfer closed a cycle with " +
+                    "the cancelled one");
+        }
+        checkPlacement(system, 1, 1);
+        check(system.getStats().getCycles() == 0, "Resolved a cycle");
+    }
+
+    //Waits until the given number of transfers wait for the given device.
+    private static void awaitWaiting(StorageSystemClass system, int device,
+                                     int count) throws InterruptedException {
+        long deadline = System.nanoTime() +
+                TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while(getDeviceStats(system, device).getWaitingTransfers() < count){
+            check(System.nanoTime() < deadline, "Transfer did not wait");
+            Thread.sleep(1);
+        }
+    }
+
+    private static StorageSystemStats.DeviceStats getDeviceStats(
+            StorageSystemClass system, int device){
+        for(StorageSystemStats.DeviceStats stats :
+                system.getStats().getDevices()){
+            if(stats.getDeviceId() == device){
+                return stats;
+            }
+        }
+        throw new AssertionError("No device " + device);
+    }
+
+    //Devices 0, 1 and 2 have one slot each, taken by the component of
+    //the same number.
+    private static StorageSystemClass newSystem(){
+        HashMap<DeviceId, Integer> devices = new HashMap<>();
+        HashMap<ComponentId, DeviceId> components = new HashMap<>();
+        for(int i = 0; i < 3; ++i){
+            devices.put(new DeviceId(i), 1);
+            components.put(new ComponentId(i), new DeviceId(i));
+        }
+        return (StorageSystemClass) StorageSystemFactory.newSystem(devices,
+                components);
+    }
+
+    private static void checkPlacement(StorageSystemClass system, int comp,
+                                       int device){
+        check(new DeviceId(device).equals(system.locate(new ComponentId(comp))),
+                "Component " + comp + " is not in device " + device);
+    }
+}
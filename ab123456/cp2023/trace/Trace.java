@@ -0,0 +1,300 @@
+package cp2023.trace;
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.TransferStatus;
+import cp2023.solution.Ids;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+//This class is a trace of the calls made to a StorageSystem, as recorded
+//by TraceRecorder, and replayed by TraceReplayer.
+//
+//The trace is a text file with one record per line, so that it can be read,
+//filtered and edited with the usual tools. It starts with the devices
+//and the placement of the system when the recording started:
+//  trace 1
+//  device <id> <slots>
+//  component <id> <device id>
+//followed by the calls, in the order they started, each with the time
+//it started, in nanoseconds since the start of the recording:
+//  transfer <start> <component id> <source> <destination> <prepare>
+//           <perform> <latency> <timeout> <status> [<priority> <deadline>]
+//  group <start> <source> <destination> <prepare> <perform> <latency>
+//        <timeout> <status> <component ids separated by commas>
+//  add-device <start> <device id> <slots>
+//  resize-device <start> <device id> <slots>
+//  drain-device <start> <device id>
+//Every record is a single line. A missing device, or the timeout of a call
+//made without one, is '-'. The durations of prepare() and perform(),
+//the latency of the whole call and the timeout are in nanoseconds,
+//and the status is the one tryExecute() would return. The priority and
+//the deadline are there only for a SchedulableTransfer, with the deadline
+//in nanoseconds since the start of the call, or '-' if it has none.
+//The empty lines and the ones starting with '#' are skipped.
+public final class Trace {
+    static final String HEADER = "trace 1";
+    static final String NO_DEVICE = "-";
+    static final String NO_TIMEOUT = "-";
+    static final String NO_DEADLINE = "-";
+    private final LinkedHashMap<DeviceId, Integer> deviceTotalSlots =
+            new LinkedHashMap<>();
+    private final HashMap<ComponentId, DeviceId> componentPlacement =
+            new HashMap<>();
+    //Sorted by the start times.
+    private final ArrayList<Record> records = new ArrayList<>();
+
+    public enum Kind {
+        TRANSFER,
+        GROUP,
+        ADD_DEVICE,
+        RESIZE_DEVICE,
+        DRAIN_DEVICE
+    }
+
+    //Recorded call. The changes of the devices have only the device, which
+    //is the destination one, and the slots, the transfers have everything
+    //else.
+    public static final class Record {
+        private final Kind kind;
+        private final long startNanos;
+        private final List<ComponentId> componentIds;
+        private final DeviceId sourceDeviceId;
+        private final DeviceId destinationDeviceId;
+        private final int slots;
+        private final long prepareNanos;
+        private final long performNanos;
+        private final long latencyNanos;
+        private final long timeoutNanos;
+        private final TransferStatus status;
+        private final boolean bSchedulable;
+        private final int priority;
+        private final long deadlineNanos;
+
+        Record(Kind kind, long startNanos, List<ComponentId> componentIds,
+               DeviceId sourceDeviceId, DeviceId destinationDeviceId,
+               int slots, long prepareNanos, long performNanos,
+               long latencyNanos, long timeoutNanos,
+               TransferStatus status, boolean bSchedulable, int priority,
+               long deadlineNanos) {
+            this.kind = kind;
+            this.startNanos = startNanos;
+            this.componentIds = componentIds;
+            this.sourceDeviceId = sourceDeviceId;
+            this.destinationDeviceId = destinationDeviceId;
+            this.slots = slots;
+            this.prepareNanos = prepareNanos;
+            this.performNanos = performNanos;
+            this.latencyNanos = latencyNanos;
+            this.timeoutNanos = timeoutNanos;
+            this.status = status;
+            this.bSchedulable = bSchedulable;
+            this.priority = priority;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        //The component of a transfer, or the components of a group.
+        public List<ComponentId> getComponentIds() {
+            return componentIds;
+        }
+
+        public DeviceId getSourceDeviceId() {
+            return sourceDeviceId;
+        }
+
+        public DeviceId getDestinationDeviceId() {
+            return destinationDeviceId;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+
+        public long getPrepareNanos() {
+            return prepareNanos;
+        }
+
+        public long getPerformNanos() {
+            return performNanos;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        //The timeout the call was made with, or -1 if it had none.
+        public long getTimeoutNanos() {
+            return timeoutNanos;
+        }
+
+        public TransferStatus getStatus() {
+            return status;
+        }
+
+        //Whether the transfer was a SchedulableTransfer, whose priority
+        //and deadline are recorded.
+        public boolean isSchedulable() {
+            return bSchedulable;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        //The deadline of the transfer, since the time the call started, or
+        //Long.MAX_VALUE if it had none.
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+    }
+
+    private Trace(){
+    }
+
+    public Map<DeviceId, Integer> getDeviceTotalSlots() {
+        return Collections.unmodifiableMap(deviceTotalSlots);
+    }
+
+    public Map<ComponentId, DeviceId> getComponentPlacement() {
+        return Collections.unmodifiableMap(componentPlacement);
+    }
+
+    //Returns the recorded calls in the order they started.
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    //Reads the trace from the given file. Throws IOException if it is not
+    //a valid trace.
+    public static Trace read(Path file) throws IOException {
+        Trace result = new Trace();
+        try(BufferedReader reader = Files.newBufferedReader(file)){
+            String line = reader.readLine();
+            if(line == null || !line.equals(HEADER)){
+                throw new IOException("Not a trace: " + file);
+            }
+            int number = 1;
+            while((line = reader.readLine()) != null){
+                ++number;
+                if(line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                try {
+                    result.parse(line.split(" "));
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid record in line " + number +
+                            " of " + file + ": " + line, e);
+                }
+            }
+        }
+        //TraceRecorder writes the calls in the order they started, unless
+        //too many of them wait for an earlier one, and a trace may have been
+        //edited. The start times of the recorded calls differ, and the sort
+        //is stable, so the calls that started at the same time in an edited
+        //trace keep the order they are written in.
+        result.records.sort(Comparator.comparingLong(Record::getStartNanos));
+        return result;
+    }
+
+    private void parse(String[] fields){
+        switch(fields[0]){
+            case "device":
+                deviceTotalSlots.put(parseDevice(fields[1]),
+                        Integer.parseInt(fields[2]));
+                break;
+            case "component":
+                componentPlacement.put(parseComponent(fields[1]),
+                        parseDevice(fields[2]));
+                break;
+            case "transfer":
+                records.add(new Record(Kind.TRANSFER, Long.parseLong(fields[1]),
+                        List.of(parseComponent(fields[2])),
+                        parseDevice(fields[3]), parseDevice(fields[4]), 0,
+                        Long.parseLong(fields[5]), Long.parseLong(fields[6]),
+                        Long.parseLong(fields[7]), parseTimeout(fields[8]),
+                        TransferStatus.valueOf(fields[9]), fields.length > 10,
+                        fields.length > 10 ? Integer.parseInt(fields[10]) : 0,
+                        fields.length > 10 ? parseDeadline(fields[11]) :
+                                Long.MAX_VALUE));
+                break;
+            case "group":
+                ArrayList<ComponentId> comps = new ArrayList<>();
+                for(String comp : fields[9].split(",")){
+                    comps.add(parseComponent(comp));
+                }
+                records.add(new Record(Kind.GROUP, Long.parseLong(fields[1]),
+                        comps, parseDevice(fields[2]), parseDevice(fields[3]),
+                        0, Long.parseLong(fields[4]), Long.parseLong(fields[5]),
+                        Long.parseLong(fields[6]), parseTimeout(fields[7]),
+                        TransferStatus.valueOf(fields[8]), false, 0,
+                        Long.MAX_VALUE));
+                break;
+            case "add-device":
+            case "resize-device":
+                records.add(new Record(fields[0].equals("add-device") ?
+                        Kind.ADD_DEVICE : Kind.RESIZE_DEVICE,
+                        Long.parseLong(fields[1]), List.of(), null,
+                        parseDevice(fields[2]), Integer.parseInt(fields[3]),
+                        0, 0, 0, -1, TransferStatus.OK, false, 0,
+                        Long.MAX_VALUE));
+                break;
+            case "drain-device":
+                records.add(new Record(Kind.DRAIN_DEVICE,
+                        Long.parseLong(fields[1]), List.of(), null,
+                        parseDevice(fields[2]), 0, 0, 0, 0, -1,
+                        TransferStatus.OK, false, 0, Long.MAX_VALUE));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown record " +
+                        fields[0]);
+        }
+    }
+
+    private static DeviceId parseDevice(String field){
+        return field.equals(NO_DEVICE) ? null :
+                new DeviceId(Integer.parseInt(field));
+    }
+
+    private static long parseTimeout(String field){
+        return field.equals(NO_TIMEOUT) ? -1 : Long.parseLong(field);
+    }
+
+    private static long parseDeadline(String field){
+        return field.equals(NO_DEADLINE) ? Long.MAX_VALUE :
+                Long.parseLong(field);
+    }
+
+    private static ComponentId parseComponent(String field){
+        return new ComponentId(Integer.parseInt(field));
+    }
+
+    static String formatDevice(DeviceId device){
+        return device == null ? NO_DEVICE : Integer.toString(Ids.of(device));
+    }
+
+    static String formatTimeout(Duration timeout){
+        return timeout == null ? NO_TIMEOUT :
+                Long.toString(timeout.toNanos());
+    }
+
+    static String formatDeadline(long deadlineNanos){
+        return deadlineNanos == Long.MAX_VALUE ? NO_DEADLINE :
+                Long.toString(deadlineNanos);
+    }
+}
@@ -0,0 +1,630 @@
+package cp2023.trace;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.PlacementSubscription;
+import cp2023.base.TransferStatus;
+import cp2023.exceptions.ComponentAlreadyExists;
+import cp2023.exceptions.ComponentDoesNotExist;
+import cp2023.exceptions.ComponentDoesNotNeedTransfer;
+import cp2023.exceptions.ComponentIsBeingOperatedOn;
+import cp2023.exceptions.DeviceDoesNotExist;
+import cp2023.exceptions.IllegalTransferType;
+import cp2023.exceptions.TransferException;
+import cp2023.exceptions.TransferInterrupted;
+import cp2023.exceptions.TransferTimedOut;
+import cp2023.exceptions.UnresolvableCycle;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.Ids;
+import cp2023.solution.SchedulableTransfer;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+//This class is an ExtendedStorageSystem that passes all the calls to
+//another one, and records the transfers and the changes of the devices
+//in a Trace file, so that the workload can be replayed later by
+//TraceReplayer, against any implementation. It wraps every transfer
+//to time its prepare() and perform(), and makes the record of the call
+//once it finishes, with the status it ended with. The records are written
+//in the order the calls started, so the record of a call waits in memory
+//until all the calls started before it finish, but no more than
+//MAX_WAITING_RECORDS of them wait. Beyond that, the oldest ones are written
+//at once, so that a call that never ends, like a transfer waiting for
+//a slot that is never freed, does not keep all the later records in memory.
+//The start times of the calls differ, so that Trace puts such records back
+//in order. A SchedulableTransfer stays one, so that the scheduler of
+//the system sees its hints, and they are recorded. The transfers
+//of executeAll() are recorded one by one, like the ones of executeAsync().
+//The calls that end with an exception other than a TransferException,
+//thrown by prepare() or perform(), are not recorded. Neither are the reads,
+//which do not change the placement.
+//
+//Recording costs a line of text per call, written under a single lock.
+//If writing fails, the recorder stops recording, but keeps passing
+//the calls on, and throws the failure from close().
+public final class TraceRecorder implements ExtendedStorageSystem {
+    //Maximum number of the records of the finished calls that wait for
+    //the calls started before them.
+    static final int MAX_WAITING_RECORDS = 1 << 12;
+
+    private final ExtendedStorageSystem system;
+    private final long originNanos;
+    //Guarded by this, as are the rest of the fields.
+    private final BufferedWriter writer;
+    private boolean bClosed = false;
+    private IOException failure = null;
+    //Number of the next call, in the order the calls start.
+    private long nextCall = 0;
+    //Start time of the last call, which the next one starts after.
+    private long lastStartNanos = Long.MIN_VALUE;
+    //Numbers of the calls that started, but have not finished yet.
+    private final TreeSet<Long> runningCalls = new TreeSet<>();
+    //Records of the finished calls, by their numbers, which wait for
+    //the calls started before them.
+    private final TreeMap<Long, String> finishedRecords = new TreeMap<>();
+
+    //Constructor. The devices and the placement must be the ones
+    //the system has at the moment, as they are where the replay starts.
+    public TraceRecorder(ExtendedStorageSystem system,
+                         Map<DeviceId, Integer> deviceTotalSlots,
+                         Map<ComponentId, DeviceId> componentPlacement,
+                         Path file) throws IOException {
+        this.system = system;
+        writer = Files.newBufferedWriter(file);
+        try {
+            writer.write(Trace.HEADER);
+            writer.newLine();
+            //Sorted, so that the traces of the same system start the same.
+            TreeMap<Integer, Integer> devices = new TreeMap<>();
+            deviceTotalSlots.forEach((id, slots) ->
+                    devices.put(Ids.of(id), slots));
+            for(Map.Entry<Integer, Integer> e : devices.entrySet()){
+                writer.write("device " + e.getKey() + " " + e.getValue());
+                writer.newLine();
+            }
+            TreeMap<Integer, Integer> comps = new TreeMap<>();
+            componentPlacement.forEach((comp, device) ->
+                    comps.put(Ids.of(comp), Ids.of(device)));
+            for(Map.Entry<Integer, Integer> e : comps.entrySet()){
+                writer.write("component " + e.getKey() + " " + e.getValue());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            writer.close();
+            throw e;
+        }
+        originNanos = System.nanoTime();
+    }
+
+    //Writes the records still waiting for the calls started before them,
+    //flushes the trace and closes the file. The calls that finish later
+    //are passed on, but not recorded. The recorded system is not closed,
+    //as it may outlive the recording.
+    @Override
+    public synchronized void close() throws IOException {
+        if(bClosed){
+            return;
+        }
+        for(String record : finishedRecords.values()){
+            write(record);
+        }
+        finishedRecords.clear();
+        bClosed = true;
+        try {
+            if(failure == null){
+                writer.flush();
+            }
+        } finally {
+            writer.close();
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    //Every call finishes its record in a finally block, even if it ends
+    //with an exception that is not recorded, as the records of the calls
+    //started later wait for it.
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        RecordedTransfer recorded = newRecordedTransfer(transfer, null);
+        TransferStatus status = null;
+        try {
+            system.execute(recorded);
+            status = TransferStatus.OK;
+        } catch (TransferException e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            recorded.finish(status);
+        }
+    }
+
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer) {
+        RecordedTransfer recorded = newRecordedTransfer(transfer, null);
+        TransferStatus status = null;
+        try {
+            status = system.tryExecute(recorded);
+        } finally {
+            recorded.finish(status);
+        }
+        return status;
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer, Duration timeout)
+            throws TransferException {
+        RecordedTransfer recorded = newRecordedTransfer(transfer, timeout);
+        TransferStatus status = null;
+        try {
+            system.execute(recorded, timeout);
+            status = TransferStatus.OK;
+        } catch (TransferException e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            recorded.finish(status);
+        }
+    }
+
+    @Override
+    public TransferStatus tryExecute(ComponentTransfer transfer,
+                                     Duration timeout) {
+        RecordedTransfer recorded = newRecordedTransfer(transfer, timeout);
+        TransferStatus status = null;
+        try {
+            status = system.tryExecute(recorded, timeout);
+        } finally {
+            recorded.finish(status);
+        }
+        return status;
+    }
+
+    @Override
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer) {
+        RecordedTransfer recorded = newRecordedTransfer(transfer, null);
+        CompletableFuture<Void> result;
+        try {
+            result = system.executeAsync(recorded);
+        } catch (RuntimeException e) {
+            recorded.finish(null);
+            throw e;
+        }
+        result.whenComplete((v, e) -> recorded.finish(e == null ?
+                TransferStatus.OK : statusOf(e)));
+        return result;
+    }
+
+    @Override
+    public List<CompletableFuture<Void>> executeAll(
+            Collection<? extends ComponentTransfer> transfers) {
+        ArrayList<RecordedTransfer> recorded =
+                new ArrayList<>(transfers.size());
+        for(ComponentTransfer transfer : transfers){
+            recorded.add(newRecordedTransfer(transfer, null));
+        }
+        List<CompletableFuture<Void>> results;
+        try {
+            results = system.executeAll(recorded);
+        } catch (RuntimeException e) {
+            for(RecordedTransfer r : recorded){
+                r.finish(null);
+            }
+            throw e;
+        }
+        for(int i = 0; i < results.size(); ++i){
+            RecordedTransfer r = recorded.get(i);
+            results.get(i).whenComplete((v, e) -> r.finish(e == null ?
+                    TransferStatus.OK : statusOf(e)));
+        }
+        return results;
+    }
+
+    @Override
+    public void execute(GroupTransfer transfer) throws TransferException {
+        RecordedGroup recorded = new RecordedGroup(transfer, null);
+        TransferStatus status = null;
+        try {
+            system.execute(recorded);
+            status = TransferStatus.OK;
+        } catch (TransferException e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            recorded.finish(status);
+        }
+    }
+
+    @Override
+    public TransferStatus tryExecute(GroupTransfer transfer) {
+        RecordedGroup recorded = new RecordedGroup(transfer, null);
+        TransferStatus status = null;
+        try {
+            status = system.tryExecute(recorded);
+        } finally {
+            recorded.finish(status);
+        }
+        return status;
+    }
+
+    @Override
+    public void execute(GroupTransfer transfer, Duration timeout)
+            throws TransferException {
+        RecordedGroup recorded = new RecordedGroup(transfer, timeout);
+        TransferStatus status = null;
+        try {
+            system.execute(recorded, timeout);
+            status = TransferStatus.OK;
+        } catch (TransferException e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            recorded.finish(status);
+        }
+    }
+
+    @Override
+    public TransferStatus tryExecute(GroupTransfer transfer,
+                                     Duration timeout) {
+        RecordedGroup recorded = new RecordedGroup(transfer, timeout);
+        TransferStatus status = null;
+        try {
+            status = system.tryExecute(recorded, timeout);
+        } finally {
+            recorded.finish(status);
+        }
+        return status;
+    }
+
+    @Override
+    public DeviceId locate(ComponentId component) {
+        return system.locate(component);
+    }
+
+    @Override
+    public int occupancy(DeviceId device) {
+        return system.occupancy(device);
+    }
+
+    @Override
+    public List<ComponentId> listComponents(DeviceId device) {
+        return system.listComponents(device);
+    }
+
+    @Override
+    public PlacementSubscription subscribe(
+            PlacementSubscription.Policy policy) {
+        return system.subscribe(policy);
+    }
+
+    @Override
+    public void addDevice(DeviceId device, int slots) {
+        Call call = new Call();
+        String record = null;
+        try {
+            system.addDevice(device, slots);
+            record = "add-device " + call.getStart() + " " +
+                    Trace.formatDevice(device) + " " + slots;
+        } finally {
+            call.end(record);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> resizeDevice(DeviceId device,
+                                                int newSlots) {
+        Call call = new Call();
+        String record = null;
+        try {
+            CompletableFuture<Void> result =
+                    system.resizeDevice(device, newSlots);
+            record = "resize-device " + call.getStart() + " " +
+                    Trace.formatDevice(device) + " " + newSlots;
+            return result;
+        } finally {
+            call.end(record);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> drainDevice(DeviceId device) {
+        Call call = new Call();
+        String record = null;
+        try {
+            CompletableFuture<Void> result = system.drainDevice(device);
+            record = "drain-device " + call.getStart() + " " +
+                    Trace.formatDevice(device);
+            return result;
+        } finally {
+            call.end(record);
+        }
+    }
+
+    //Wraps the given transfer, keeping it a SchedulableTransfer if it is one.
+    private RecordedTransfer newRecordedTransfer(ComponentTransfer transfer,
+                                                 Duration timeout){
+        return transfer instanceof SchedulableTransfer ?
+                new RecordedSchedulableTransfer(
+                        (SchedulableTransfer) transfer, timeout) :
+                new RecordedTransfer(transfer, timeout);
+    }
+
+    //Returns the status corresponding to the given exception, or null
+    //if it is not a rejection of the transfer.
+    private static TransferStatus statusOf(Throwable e){
+        if(e instanceof CompletionException && e.getCause() != null){
+            e = e.getCause();
+        }
+        if(e instanceof IllegalTransferType){
+            return TransferStatus.ILLEGAL_TRANSFER_TYPE;
+        }
+        if(e instanceof DeviceDoesNotExist){
+            return TransferStatus.DEVICE_DOES_NOT_EXIST;
+        }
+        if(e instanceof ComponentAlreadyExists){
+            return TransferStatus.COMPONENT_ALREADY_EXISTS;
+        }
+        if(e instanceof ComponentDoesNotExist){
+            return TransferStatus.COMPONENT_DOES_NOT_EXIST;
+        }
+        if(e instanceof ComponentDoesNotNeedTransfer){
+            return TransferStatus.COMPONENT_DOES_NOT_NEED_TRANSFER;
+        }
+        if(e instanceof ComponentIsBeingOperatedOn){
+            return TransferStatus.COMPONENT_IS_BEING_OPERATED_ON;
+        }
+        if(e instanceof TransferTimedOut){
+            return TransferStatus.TRANSFER_TIMED_OUT;
+        }
+        if(e instanceof TransferInterrupted){
+            return TransferStatus.TRANSFER_INTERRUPTED;
+        }
+        if(e instanceof UnresolvableCycle){
+            return TransferStatus.UNRESOLVABLE_CYCLE;
+        }
+        return null;
+    }
+
+    //Numbers the call that starts now, and returns its start time, which
+    //is later than the one of every call started before.
+    private synchronized long startCall(Call call){
+        call.number = nextCall++;
+        runningCalls.add(call.number);
+        lastStartNanos = Math.max(System.nanoTime(), lastStartNanos + 1);
+        return lastStartNanos;
+    }
+
+    //Ends the call with the given number, whose record, if it is not null,
+    //is written once all the calls started before it end, along with
+    //the records of the later calls that wait only for it, or once
+    //it is the oldest of too many waiting records.
+    private synchronized void endCall(long number, String record){
+        runningCalls.remove(number);
+        if(bClosed){
+            return;
+        }
+        if(record != null){
+            finishedRecords.put(number, record);
+        }
+        long firstRunning = runningCalls.isEmpty() ? Long.MAX_VALUE :
+                runningCalls.first();
+        while(!finishedRecords.isEmpty() &&
+                finishedRecords.firstKey() < firstRunning){
+            write(finishedRecords.pollFirstEntry().getValue());
+        }
+        while(finishedRecords.size() > MAX_WAITING_RECORDS){
+            write(finishedRecords.pollFirstEntry().getValue());
+        }
+    }
+
+    private synchronized void write(String record){
+        if(bClosed || failure != null){
+            return;
+        }
+        try {
+            writer.write(record);
+            writer.newLine();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    //Call that is being recorded, numbered in the order the calls start.
+    private class Call {
+        long number;
+        final long startNanos = startCall(this);
+
+        //Returns the time the call started, since the start of the recording.
+        long getStart(){
+            return startNanos - originNanos;
+        }
+
+        //Ends the call, which is recorded with the given record, unless it
+        //is null.
+        void end(String record){
+            endCall(number, record);
+        }
+    }
+
+    //Times of a transfer that is being recorded.
+    private abstract class RecordedCall extends Call {
+        //Null if the call is made without a timeout.
+        final Duration timeout;
+        long prepareNanos = 0;
+        long performNanos = 0;
+
+        //Constructor.
+        RecordedCall(Duration timeout){
+            this.timeout = timeout;
+        }
+
+        void prepare(Runnable prepare){
+            long begin = System.nanoTime();
+            prepare.run();
+            prepareNanos = System.nanoTime() - begin;
+        }
+
+        void perform(Runnable perform){
+            long begin = System.nanoTime();
+            perform.run();
+            performNanos = System.nanoTime() - begin;
+        }
+
+        //Ends the call with the given status, which is not recorded
+        //if the status is null.
+        void finish(TransferStatus status){
+            if(status == null){
+                end(null);
+                return;
+            }
+            long latency = System.nanoTime() - startNanos;
+            end(format(getStart(), latency, status));
+        }
+
+        abstract String format(long start, long latency, TransferStatus status);
+    }
+
+    private class RecordedTransfer extends RecordedCall
+            implements ComponentTransfer {
+        private final ComponentTransfer transfer;
+
+        //Constructor.
+        RecordedTransfer(ComponentTransfer transfer, Duration timeout){
+            super(timeout);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public ComponentId getComponentId(){
+            return transfer.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId(){
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId(){
+            return transfer.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare(){
+            prepare(transfer::prepare);
+        }
+
+        @Override
+        public void perform(){
+            perform(transfer::perform);
+        }
+
+        @Override
+        String format(long start, long latency, TransferStatus status){
+            return "transfer " + start + " " +
+                    Ids.of(transfer.getComponentId()) + " " +
+                    Trace.formatDevice(transfer.getSourceDeviceId()) + " " +
+                    Trace.formatDevice(transfer.getDestinationDeviceId()) +
+                    " " + prepareNanos + " " + performNanos + " " + latency +
+                    " " + Trace.formatTimeout(timeout) + " " + status;
+        }
+    }
+
+    private final class RecordedSchedulableTransfer extends RecordedTransfer
+            implements SchedulableTransfer {
+        private final SchedulableTransfer transfer;
+
+        //Constructor.
+        RecordedSchedulableTransfer(SchedulableTransfer transfer,
+                                    Duration timeout){
+            super(transfer, timeout);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public int getPriority(){
+            return transfer.getPriority();
+        }
+
+        @Override
+        public long getDeadlineNanos(){
+            return transfer.getDeadlineNanos();
+        }
+
+        //The deadline is recorded since the start of the call, as the clock
+        //of the replay starts elsewhere.
+        @Override
+        String format(long start, long latency, TransferStatus status){
+            long deadline = transfer.getDeadlineNanos();
+            return super.format(start, latency, status) + " " +
+                    transfer.getPriority() + " " + Trace.formatDeadline(
+                            deadline == Long.MAX_VALUE ? deadline :
+                                    deadline - startNanos);
+        }
+    }
+
+    private final class RecordedGroup extends RecordedCall
+            implements GroupTransfer {
+        private final GroupTransfer transfer;
+
+        //Constructor.
+        RecordedGroup(GroupTransfer transfer, Duration timeout){
+            super(timeout);
+            this.transfer = transfer;
+        }
+
+        @Override
+        public List<ComponentId> getComponentIds(){
+            return transfer.getComponentIds();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId(){
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId(){
+            return transfer.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare(){
+            prepare(transfer::prepare);
+        }
+
+        @Override
+        public void perform(){
+            perform(transfer::perform);
+        }
+
+        @Override
+        String format(long start, long latency, TransferStatus status){
+            StringBuilder comps = new StringBuilder();
+            for(ComponentId comp : transfer.getComponentIds()){
+                if(comps.length() > 0){
+                    comps.append(',');
+                }
+                comps.append(Ids.of(comp));
+            }
+            return "group " + start + " " +
+                    Trace.formatDevice(transfer.getSourceDeviceId()) + " " +
+                    Trace.formatDevice(transfer.getDestinationDeviceId()) +
+                    " " + prepareNanos + " " + performNanos + " " + latency +
+                    " " + Trace.formatTimeout(timeout) + " " + status + " " +
+                    comps;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package cp2023.trace;
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.GroupTransfer;
+import cp2023.base.TransferStatus;
+import cp2023.solution.ExtendedStorageSystem;
+import cp2023.solution.SchedulableTransfer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+//This class replays a Trace against a ExtendedStorageSystem on a VirtualClock,
+//and reports how the system coped with it.
+//
+//Every call starts at its recorded time on the clock, but not before
+//the calls of its components that had finished before it started when
+//they were recorded, so that the replay keeps the order of the calls that
+//followed one another, and does not reject a transfer only because its
+//component is still on the move. The calls that overlapped when they were
+//recorded are not ordered.
+//prepare() and perform() take their recorded durations on the clock,
+//and return at once at the infinite speed. Every transfer runs in its own
+//thread, with tryExecute() and the timeout it was recorded with, shortened
+//as much as the clock is faster, but kept as it is at the infinite speed.
+//The ones recorded without a timeout get the given one, so that a transfer
+//the replayed system would never finish cannot stop the replay.
+//A transfer recorded as a SchedulableTransfer is replayed as one, with its
+//priority, and its deadline counted from the time it is called and
+//shortened like the timeout.
+//The thread that starts the calls also changes the devices.
+//
+//The system must start with the devices and the placement of the trace.
+public final class TraceReplayer {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+    private TraceReplayer(){
+    }
+
+    //Replays the trace at the given speed, which is the number of times
+    //the clock runs faster than the recording, and may be infinite, and
+    //returns the report once all the transfers finish. The timeout is
+    //the one of the transfers recorded without a timeout.
+    public static Report replay(Trace trace, ExtendedStorageSystem system,
+                                double speed, Duration transferTimeout){
+        VirtualClock clock = new VirtualClock(speed);
+        //Cached, as a transfer waiting for a memory slot holds its thread,
+        //and the one that frees the slot must not wait for a thread.
+        ExecutorService threads = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "trace-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        //The calls of every component that may not have finished yet
+        //when the last call started, in the recording.
+        HashMap<ComponentId, ArrayList<Pending>> pending = new HashMap<>();
+        ArrayList<ReplayedCall> calls = new ArrayList<>();
+        ArrayList<CompletableFuture<Void>> results = new ArrayList<>();
+        int deviceChangeFailures = 0;
+        long start = System.nanoTime();
+        for(Trace.Record record : trace.getRecords()){
+            clock.awaitTime(record.getStartNanos());
+            if(record.getKind() != Trace.Kind.TRANSFER &&
+                    record.getKind() != Trace.Kind.GROUP){
+                if(!changeDevice(system, record)){
+                    ++deviceChangeFailures;
+                }
+                continue;
+            }
+            ReplayedCall call = new ReplayedCall(record, clock);
+            calls.add(call);
+            long startNanos = record.getStartNanos();
+            ArrayList<CompletableFuture<Void>> previous = new ArrayList<>();
+            for(ComponentId comp : record.getComponentIds()){
+                ArrayList<Pending> list = pending.get(comp);
+                if(list == null){
+                    continue;
+                }
+                for(Pending p : list){
+                    previous.add(p.endNanos <= startNanos ? p.done : p.ready);
+                }
+            }
+            CompletableFuture<Void> ready = CompletableFuture.allOf(
+                    previous.toArray(new CompletableFuture<?>[0]));
+            CompletableFuture<Void> result = ready.thenRunAsync(
+                    () -> call.run(system, transferTimeout), threads);
+            Pending added = new Pending(startNanos + record.getLatencyNanos(),
+                    ready, result);
+            for(ComponentId comp : record.getComponentIds()){
+                //The calls that had finished are waited for by the added
+                //one, and so by all the later ones that wait for it.
+                ArrayList<Pending> list = pending.computeIfAbsent(comp,
+                        c -> new ArrayList<>());
+                list.removeIf(p -> p.endNanos <= startNanos);
+                list.add(added);
+            }
+            results.add(result);
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]))
+                .join();
+        long wallNanos = System.nanoTime() - start;
+        threads.shutdown();
+        return new Report(calls, wallNanos, speed, deviceChangeFailures);
+    }
+
+    //Makes the recorded change of the device. Returns false if the system
+    //refused it.
+    private static boolean changeDevice(ExtendedStorageSystem system,
+                                        Trace.Record record){
+        DeviceId device = record.getDestinationDeviceId();
+        try {
+            switch(record.getKind()){
+                case ADD_DEVICE:
+                    system.addDevice(device, record.getSlots());
+                    break;
+                case RESIZE_DEVICE:
+                    system.resizeDevice(device, record.getSlots());
+                    break;
+                default:
+                    system.drainDevice(device);
+                    break;
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    //Call that has been scheduled, with the time it finished when it was
+    //recorded. The calls that started later wait for it to be done if it
+    //had finished by then, and otherwise only for it to be ready, that is
+    //for the calls it waits for.
+    private static final class Pending {
+        final long endNanos;
+        final CompletableFuture<Void> ready;
+        final CompletableFuture<Void> done;
+
+        //Constructor.
+        Pending(long endNanos, CompletableFuture<Void> ready,
+                CompletableFuture<Void> done){
+            this.endNanos = endNanos;
+            this.ready = ready;
+            this.done = done;
+        }
+    }
+
+    //Replay of a single transfer or group, with the times it went
+    //through, as returned by System.nanoTime().
+    private static final class ReplayedCall {
+        final Trace.Record record;
+        private final VirtualClock clock;
+        //The time the call should have started at.
+        final long scheduledNanos;
+        long startNanos;
+        long prepareStartNanos;
+        long prepareEndNanos;
+        long performStartNanos;
+        long performEndNanos;
+        long endNanos;
+        TransferStatus status;
+        //Set if the call threw, instead of returning a status.
+        Throwable failure = null;
+
+        //Constructor.
+        ReplayedCall(Trace.Record record, VirtualClock clock){
+            this.record = record;
+            this.clock = clock;
+            //At the infinite speed every call is late, so it is only
+            //delayed by the calls it waits for.
+            scheduledNanos = clock.isInfinite() ? System.nanoTime() :
+                    clock.toRealTime(record.getStartNanos());
+        }
+
+        void run(ExtendedStorageSystem system, Duration defaultTimeout){
+            Duration timeout = defaultTimeout;
+            if(record.getTimeoutNanos() >= 0){
+                timeout = Duration.ofNanos(clock.isInfinite() ?
+                        record.getTimeoutNanos() :
+                        clock.toRealDuration(record.getTimeoutNanos()));
+            }
+            startNanos = System.nanoTime();
+            try {
+                if(record.getKind() == Trace.Kind.GROUP){
+                    status = system.tryExecute(new Group(), timeout);
+                }
+                else if(record.isSchedulable()){
+                    status = system.tryExecute(new ScheduledTransfer(
+                            deadlineOf(startNanos)), timeout);
+                }
+                else{
+                    status = system.tryExecute(new Transfer(), timeout);
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            endNanos = System.nanoTime();
+        }
+
+        //Returns the recorded deadline of the transfer called at the given
+        //time, as returned by System.nanoTime().
+        private long deadlineOf(long startNanos){
+            long deadline = record.getDeadlineNanos();
+            if(deadline == Long.MAX_VALUE){
+                return deadline;
+            }
+            return startNanos + (clock.isInfinite() ? deadline :
+                    clock.toRealDuration(deadline));
+        }
+
+        boolean isPerformed(){
+            return status == TransferStatus.OK && failure == null;
+        }
+
+        private void prepare(){
+            prepareStartNanos = System.nanoTime();
+            clock.sleep(record.getPrepareNanos());
+            prepareEndNanos = System.nanoTime();
+        }
+
+        private void perform(){
+            performStartNanos = System.nanoTime();
+            clock.sleep(record.getPerformNanos());
+            performEndNanos = System.nanoTime();
+        }
+
+        private class Transfer implements ComponentTransfer {
+            @Override
+            public ComponentId getComponentId(){
+                return record.getComponentIds().get(0);
+            }
+
+            @Override
+            public DeviceId getSourceDeviceId(){
+                return record.getSourceDeviceId();
+            }
+
+            @Override
+            public DeviceId getDestinationDeviceId(){
+                return record.getDestinationDeviceId();
+            }
+
+            @Override
+            public void prepare(){
+                ReplayedCall.this.prepare();
+            }
+
+            @Override
+            public void perform(){
+                ReplayedCall.this.perform();
+            }
+        }
+
+        private final class ScheduledTransfer extends Transfer
+                implements SchedulableTransfer {
+            private final long deadlineNanos;
+
+            //Constructor.
+            ScheduledTransfer(long deadlineNanos){
+                this.deadlineNanos = deadlineNanos;
+            }
+
+            @Override
+            public int getPriority(){
+                return record.getPriority();
+            }
+
+            @Override
+            public long getDeadlineNanos(){
+                return deadlineNanos;
+            }
+        }
+
+        private final class Group implements GroupTransfer {
+            @Override
+            public List<ComponentId> getComponentIds(){
+                return record.getComponentIds();
+            }
+
+            @Override
+            public DeviceId getSourceDeviceId(){
+                return record.getSourceDeviceId();
+            }
+
+            @Override
+            public DeviceId getDestinationDeviceId(){
+                return record.getDestinationDeviceId();
+            }
+
+            @Override
+            public void prepare(){
+                ReplayedCall.this.prepare();
+            }
+
+            @Override
+            public void perform(){
+                ReplayedCall.this.perform();
+            }
+        }
+    }
+
+    //Result of a replay. The latency of every performed transfer is split
+    //into the time it waited for its memory slot, until prepare() was
+    //called, the time prepare() took, the time it waited for the memory
+    //cell of its slot to be freed, until perform() was called, and the time
+    //perform() took. The start delay is how late the transfer was called,
+    //after its recorded time, because the replay waited for the previous
+    //transfers of its components, or could not keep up with the clock.
+    public static final class Report {
+        private final int transfers;
+        private final int performed;
+        private final long wallNanos;
+        private final double speed;
+        private final int deviceChangeFailures;
+        private final long[] latencies;
+        private final long[] recordedLatencies;
+        private final long[] startDelays;
+        private final long[] slotWaits;
+        private final long[] prepares;
+        private final long[] cellWaits;
+        private final long[] performs;
+        //Number of the transfers for every pair of the recorded
+        //and the replayed status that differ, as "OK -> TRANSFER_TIMED_OUT".
+        private final TreeMap<String, Integer> mismatches = new TreeMap<>();
+
+        //Constructor.
+        private Report(List<ReplayedCall> calls, long wallNanos, double speed,
+                       int deviceChangeFailures){
+            this.wallNanos = wallNanos;
+            this.speed = speed;
+            this.deviceChangeFailures = deviceChangeFailures;
+            transfers = calls.size();
+            int count = 0;
+            for(ReplayedCall call : calls){
+                if(call.isPerformed()){
+                    ++count;
+                }
+                String replayed = call.failure != null ?
+                        call.failure.getClass().getSimpleName() :
+                        call.status.toString();
+                if(!replayed.equals(call.record.getStatus().toString())){
+                    mismatches.merge(call.record.getStatus() + " -> " +
+                            replayed, 1, Integer::sum);
+                }
+            }
+            performed = count;
+            latencies = new long[count];
+            recordedLatencies = new long[count];
+            startDelays = new long[count];
+            slotWaits = new long[count];
+            prepares = new long[count];
+            cellWaits = new long[count];
+            performs = new long[count];
+            int i = 0;
+            for(ReplayedCall call : calls){
+                if(!call.isPerformed()){
+                    continue;
+                }
+                latencies[i] = call.endNanos - call.startNanos;
+                recordedLatencies[i] = call.record.getLatencyNanos();
+                startDelays[i] = Math.max(0,
+                        call.startNanos - call.scheduledNanos);
+                slotWaits[i] = call.prepareStartNanos - call.startNanos;
+                prepares[i] = call.prepareEndNanos - call.prepareStartNanos;
+                cellWaits[i] = call.performStartNanos - call.prepareEndNanos;
+                performs[i] = call.performEndNanos - call.performStartNanos;
+                ++i;
+            }
+            for(long[] values : Arrays.asList(latencies, recordedLatencies,
+                    startDelays, slotWaits, prepares, cellWaits, performs)){
+                Arrays.sort(values);
+            }
+        }
+
+        //Number of the transfers and groups replayed.
+        public int getTransfers(){
+            return transfers;
+        }
+
+        //Number of the transfers and groups that ended with OK.
+        public int getPerformed(){
+            return performed;
+        }
+
+        public long getWallNanos(){
+            return wallNanos;
+        }
+
+        //Transfers and groups performed per second of the replay.
+        public double getThroughput(){
+            return wallNanos == 0 ? 0 : performed * 1e9 / wallNanos;
+        }
+
+        public Map<String, Integer> getMismatches(){
+            return Collections.unmodifiableMap(mismatches);
+        }
+
+        public int getDeviceChangeFailures(){
+            return deviceChangeFailures;
+        }
+
+        //Returns the given percentile of the latencies of the performed
+        //transfers, in nanoseconds.
+        public long getLatencyPercentile(double percentile){
+            return percentile(latencies, percentile);
+        }
+
+        public long getRecordedLatencyPercentile(double percentile){
+            return percentile(recordedLatencies, percentile);
+        }
+
+        //Returns the total time the performed transfers spent waiting
+        //for their memory slots, in nanoseconds.
+        public long getSlotWaitNanos(){
+            return sum(slotWaits);
+        }
+
+        //Returns the total time the performed transfers spent waiting
+        //for the memory cells of their slots, in nanoseconds.
+        public long getCellWaitNanos(){
+            return sum(cellWaits);
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("speed %s: %d transfers in %.3f s, " +
+                            "%d performed, %.0f performed/s%n",
+                    speed == Double.POSITIVE_INFINITY ? "max" :
+                            String.valueOf(speed),
+                    transfers, wallNanos / 1e9, performed, getThroughput()));
+            out.append(String.format("%-18s", "(us)"));
+            for(double p : PERCENTILES){
+                out.append(String.format("%12s", p == 100 ? "max" :
+                        "p" + (p == Math.floor(p) ? String.valueOf((int) p) :
+                                String.valueOf(p))));
+            }
+            out.append(String.format("%12s%n", "total (s)"));
+            appendRow(out, "latency", latencies);
+            appendRow(out, "recorded latency", recordedLatencies);
+            appendRow(out, "start delay", startDelays);
+            appendRow(out, "slot wait", slotWaits);
+            appendRow(out, "prepare", prepares);
+            appendRow(out, "cell wait", cellWaits);
+            appendRow(out, "perform", performs);
+            for(Map.Entry<String, Integer> e : mismatches.entrySet()){
+                out.append(String.format("status %s: %d%n", e.getKey(),
+                        e.getValue()));
+            }
+            if(deviceChangeFailures > 0){
+                out.append(String.format("device changes refused: %d%n",
+                        deviceChangeFailures));
+            }
+            return out.toString();
+        }
+
+        private static void appendRow(StringBuilder out, String name,
+                                      long[] sorted){
+            out.append(String.format("%-18s", name));
+            for(double p : PERCENTILES){
+                out.append(String.format("%12.1f",
+                        percentile(sorted, p) / 1e3));
+            }
+            out.append(String.format("%12.3f%n", sum(sorted) / 1e9));
+        }
+
+        private static long percentile(long[] sorted, double percentile){
+            if(sorted.length == 0){
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+        }
+
+        private static long sum(long[] values){
+            long sum = 0;
+            for(long value : values){
+                sum += value;
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cp2023.trace;
+import java.util.concurrent.locks.LockSupport;
+//This class is the clock of a replay, whose virtual time runs the given
+//number of times faster than the real time since the clock was created.
+//At the infinite speed the virtual time never makes anyone wait: every
+//moment has already come, and every duration is over at once.
+//
+//Waiting ignores interrupts. It parks the thread until shortly before
+//the deadline, and spins for the rest, so that the short durations
+//of prepare() and perform() are simulated as precisely as the long ones.
+public final class VirtualClock {
+    //Below it, the thread spins rather than parks, as a parked thread may
+    //wake up tens of microseconds too late.
+    private static final long SPIN_NANOS = 50_000;
+    private final double speed;
+    private final long originNanos;
+
+    //Constructor.
+    public VirtualClock(double speed){
+        if(!(speed > 0)){
+            throw new IllegalArgumentException("Speed " + speed +
+                    " is not positive");
+        }
+        this.speed = speed;
+        originNanos = System.nanoTime();
+    }
+
+    public double getSpeed(){
+        return speed;
+    }
+
+    public boolean isInfinite(){
+        return speed == Double.POSITIVE_INFINITY;
+    }
+
+    //Returns the virtual time that has passed since the clock was created.
+    public long now(){
+        return isInfinite() ? Long.MAX_VALUE :
+                (long) ((System.nanoTime() - originNanos) * speed);
+    }
+
+    //Returns the real time, as returned by System.nanoTime(), when
+    //the given virtual time comes.
+    public long toRealTime(long virtualNanos){
+        return originNanos + toRealDuration(virtualNanos);
+    }
+
+    public long toRealDuration(long virtualNanos){
+        return isInfinite() ? 0 : (long) (virtualNanos / speed);
+    }
+
+    //Waits until the given virtual time comes.
+    public void awaitTime(long virtualNanos){
+        if(!isInfinite()){
+            awaitRealTime(toRealTime(virtualNanos));
+        }
+    }
+
+    //Waits for the given virtual duration.
+    public void sleep(long virtualNanos){
+        if(!isInfinite() && virtualNanos > 0){
+            awaitRealTime(System.nanoTime() + toRealDuration(virtualNanos));
+        }
+    }
+
+    private static void awaitRealTime(long deadline){
+        long remaining;
+        while((remaining = deadline - System.nanoTime()) > SPIN_NANOS){
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while(deadline - System.nanoTime() > 0){
+            Thread.onSpinWait();
+        }
+    }
+}